@@ -17,6 +17,8 @@
  */
 package io.github.explodingbottle.jmagicproxy;
 
+import io.github.explodingbottle.jmagicproxy.properties.PropertyKey;
+
 /**
  * This class is here to store some hard-coded values, such as config file name.
  * 
@@ -24,6 +26,10 @@ package io.github.explodingbottle.jmagicproxy;
  */
 public class HardcodedConfig {
 
+	private static final int MIN_BUFFER_SIZE = 1024;
+
+	private static int bufferSize;
+
 	/**
 	 * Preventing this class to be instantiated.
 	 */
@@ -46,7 +52,12 @@ public class HardcodedConfig {
 	 * @return The buffer size.
 	 */
 	public static int returnBufferSize() {
-		return 65536; // Note: I tried before allowing to change the buffer size but, for example, a
-						// buffer size of 16 makes cURL not getting the whole content.
+		if (bufferSize == 0) {
+			// The header blocks are parsed across reads, so any size works, the
+			// smallest one only avoids reading a byte at a time.
+			bufferSize = Math.max(MIN_BUFFER_SIZE,
+					ProxyMain.getPropertiesProvider().getAsInteger(PropertyKey.PROXY_BUFFERS_SIZE));
+		}
+		return bufferSize;
 	}
 }
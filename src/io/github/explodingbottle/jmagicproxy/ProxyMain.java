@@ -19,19 +19,34 @@ package io.github.explodingbottle.jmagicproxy;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.ServerSocket;
 import java.security.Security;
 
 import io.github.explodingbottle.explodingau.ExplodingAULib;
 import io.github.explodingbottle.jmagicproxy.api.PluginsManager;
+import io.github.explodingbottle.jmagicproxy.buffer.BufferPool;
+import io.github.explodingbottle.jmagicproxy.buffer.FlowWindow;
+import io.github.explodingbottle.jmagicproxy.dns.DnsCache;
+import io.github.explodingbottle.jmagicproxy.http.HttpMessageWriter;
 import io.github.explodingbottle.jmagicproxy.logging.LoggerProvider;
 import io.github.explodingbottle.jmagicproxy.logging.LoggingLevel;
 import io.github.explodingbottle.jmagicproxy.logging.ProxyLogger;
+import io.github.explodingbottle.jmagicproxy.nio.NioServer;
+import io.github.explodingbottle.jmagicproxy.pool.UpstreamPool;
 import io.github.explodingbottle.jmagicproxy.properties.PropertiesProvider;
 import io.github.explodingbottle.jmagicproxy.properties.PropertyKey;
 import io.github.explodingbottle.jmagicproxy.proxy.ssl.SSLObjectsProvider;
+import io.github.explodingbottle.jmagicproxy.proxy.ssl.InterceptionGovernor;
 import io.github.explodingbottle.jmagicproxy.proxy.ssl.SSLSortEngine;
 import io.github.explodingbottle.jmagicproxy.proxy.ssl.SSLSortMode;
+import io.github.explodingbottle.jmagicproxy.server.AdmissionController;
+import io.github.explodingbottle.jmagicproxy.server.ListenSocketOpener;
+import io.github.explodingbottle.jmagicproxy.server.ServerTransport;
 import io.github.explodingbottle.jmagicproxy.server.SocketAcceptorThread;
+import io.github.explodingbottle.jmagicproxy.threading.PinningCheck;
+import io.github.explodingbottle.jmagicproxy.threading.ThreadProvider;
+import io.github.explodingbottle.jmagicproxy.threading.ThreadingMode;
+import io.github.explodingbottle.jmagicproxy.timeout.TimeoutWheel;
 
 /**
  * This is the main class of the proxy.
@@ -44,6 +59,67 @@ public class ProxyMain {
 	private static PropertiesProvider propsProvider;
 	private static PluginsManager pluginsManager;
 	private static SSLSortEngine sslSortEngine;
+	private static InterceptionGovernor interceptionGovernor;
+	private static ThreadProvider threadProvider;
+	private static AdmissionController admissionController;
+	private static BufferPool bufferPool;
+	private static TimeoutWheel timeoutWheel;
+	private static DnsCache dnsCache;
+	private static UpstreamPool upstreamPool;
+
+	/**
+	 * Returns the pool of idle outgoing connections.
+	 * 
+	 * @return The upstream pool.
+	 */
+	public static UpstreamPool getUpstreamPool() {
+		return upstreamPool;
+	}
+
+	/**
+	 * Returns the DNS cache.
+	 * 
+	 * @return The DNS cache.
+	 */
+	public static DnsCache getDnsCache() {
+		return dnsCache;
+	}
+
+	/**
+	 * Returns the timeout wheel.
+	 * 
+	 * @return The timeout wheel.
+	 */
+	public static TimeoutWheel getTimeoutWheel() {
+		return timeoutWheel;
+	}
+
+	/**
+	 * Returns the buffer pool.
+	 * 
+	 * @return The buffer pool.
+	 */
+	public static BufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	/**
+	 * Returns the admission controller.
+	 * 
+	 * @return The admission controller.
+	 */
+	public static AdmissionController getAdmissionController() {
+		return admissionController;
+	}
+
+	/**
+	 * Returns the thread provider.
+	 * 
+	 * @return The thread provider.
+	 */
+	public static ThreadProvider getThreadProvider() {
+		return threadProvider;
+	}
 
 	/**
 	 * Returns the SSL sort engine.
@@ -54,6 +130,16 @@ public class ProxyMain {
 		return sslSortEngine;
 	}
 
+	/**
+	 * Returns the interception governor.
+	 * 
+	 * @return The interception governor, or {@code null} if the adaptive mode is
+	 *         disabled.
+	 */
+	public static InterceptionGovernor getInterceptionGovernor() {
+		return interceptionGovernor;
+	}
+
 	/**
 	 * Returns the logger provider.
 	 * 
@@ -103,7 +189,8 @@ public class ProxyMain {
 		return sslObjectsProvider;
 	}
 
-	private static SocketAcceptorThread socketAcceptor;
+	private static SocketAcceptorThread[] socketAcceptors;
+	private static NioServer nioServer;
 
 	private static SSLObjectsProvider sslObjectsProvider;
 
@@ -112,13 +199,70 @@ public class ProxyMain {
 	 */
 	synchronized static void shutdown() {
 		mainLogger.log(LoggingLevel.INFO, "Recieved shutdown signal.");
-		if (socketAcceptor != null)
-			socketAcceptor.closeServerSocket();
+		if (socketAcceptors != null) {
+			for (SocketAcceptorThread socketAcceptor : socketAcceptors) {
+				socketAcceptor.closeServerSocket();
+			}
+		}
+		if (nioServer != null)
+			nioServer.closeServerSocket();
+		if (admissionController != null) {
+			admissionController.closeController();
+			mainLogger.log(LoggingLevel.INFO, admissionController.getStatistics());
+		}
+		if (timeoutWheel != null) {
+			timeoutWheel.closeWheel();
+			mainLogger.log(LoggingLevel.INFO, timeoutWheel.getStatistics());
+		}
+		if (upstreamPool != null) {
+			upstreamPool.closePool();
+			mainLogger.log(LoggingLevel.INFO, upstreamPool.getStatistics());
+		}
+		if (dnsCache != null) {
+			dnsCache.closeCache();
+			mainLogger.log(LoggingLevel.INFO, dnsCache.getStatistics());
+		}
+		if (sslObjectsProvider != null) {
+			sslObjectsProvider.closeProvider();
+			for (String statistics : sslObjectsProvider.getStatistics()) {
+				mainLogger.log(LoggingLevel.INFO, statistics);
+			}
+		}
+		if (interceptionGovernor != null)
+			mainLogger.log(LoggingLevel.INFO, interceptionGovernor.getStatistics());
+		if (bufferPool != null)
+			mainLogger.log(LoggingLevel.INFO, bufferPool.getStatistics());
+		mainLogger.log(LoggingLevel.INFO, FlowWindow.getGlobalStatistics());
+		mainLogger.log(LoggingLevel.INFO, HttpMessageWriter.getGlobalStatistics());
 		propsProvider.saveConfiguration();
 		lgp.closeLogStream();
 		mainLogger.log(LoggingLevel.INFO, "Proxy has been fully shut down.");
 	}
 
+	private static void startAcceptors(ListenSocketOpener opener, int count) {
+		count = Math.max(1, count);
+		ServerSocket sharedSocket = null;
+		if (count > 1 && !opener.isReusePortEnabled()) {
+			mainLogger.log(LoggingLevel.INFO, "Starting the shared Server socket for port " + opener.getPort());
+			try {
+				sharedSocket = opener.openServerSocket();
+			} catch (IOException e) {
+				mainLogger.log(LoggingLevel.FATAL, "Failed to open the Server Socket, sending shutdown message.", e);
+				shutdownThread.start();
+				return;
+			}
+		}
+		mainLogger.log(LoggingLevel.INFO, "Starting " + count + " acceptor(s).");
+		SocketAcceptorThread[] acceptors = new SocketAcceptorThread[count];
+		for (int i = 0; i < count; i++) {
+			acceptors[i] = new SocketAcceptorThread(opener, sharedSocket);
+		}
+		socketAcceptors = acceptors;
+		for (SocketAcceptorThread acceptor : acceptors) {
+			acceptor.start();
+		}
+	}
+
 	/**
 	 * This is the main method.
 	 * 
@@ -165,6 +309,8 @@ public class ProxyMain {
 		}
 		sslSortEngine = new SSLSortEngine(sortMode, propsProvider.getAsString(PropertyKey.PROXY_SSL_SORT_LIST));
 		lgp.openLogStream(new File(logsFolder, logPath));
+		bufferPool = new BufferPool(HardcodedConfig.returnBufferSize(),
+				propsProvider.getAsInteger(PropertyKey.PROXY_BUFFERS_MAX_FREE_BYTES));
 		pluginsManager = new PluginsManager(propsProvider.getAsString(PropertyKey.PROXY_PLUGINS));
 		pluginsManager.loadPlugins();
 		if (propsProvider.getAsBoolean(PropertyKey.PROXY_SSL_ENABLED)) {
@@ -182,8 +328,58 @@ public class ProxyMain {
 		} else {
 			mainLogger.log(LoggingLevel.INFO, "SSL is not enabled.");
 		}
-		socketAcceptor = new SocketAcceptorThread(propsProvider.getAsInteger(PropertyKey.PROXY_SERVER_PORT));
-		socketAcceptor.start();
+		ThreadingMode threadingMode = ThreadingMode.PLATFORM;
+		try {
+			threadingMode = ThreadingMode.valueOf(propsProvider.getAsString(PropertyKey.PROXY_THREADING_MODE));
+		} catch (IllegalArgumentException e) {
+			mainLogger.log(LoggingLevel.WARN, "Failed to parse threading mode. Default PLATFORM will be used.", e);
+		}
+		threadProvider = new ThreadProvider(threadingMode);
+		if (threadProvider.getMode() == ThreadingMode.VIRTUAL) {
+			new PinningCheck().runCheck();
+		}
+		admissionController = new AdmissionController(
+				propsProvider.getAsInteger(PropertyKey.PROXY_ADMISSION_MAX_CONNECTIONS),
+				propsProvider.getAsInteger(PropertyKey.PROXY_ADMISSION_MAX_PER_CLIENT),
+				propsProvider.getAsInteger(PropertyKey.PROXY_ADMISSION_QUEUE_SIZE),
+				propsProvider.getAsInteger(PropertyKey.PROXY_ADMISSION_QUEUE_TIMEOUT),
+				propsProvider.getAsInteger(PropertyKey.PROXY_ADMISSION_RETRY_AFTER));
+		admissionController.start();
+		if (propsProvider.getAsBoolean(PropertyKey.PROXY_SSL_ADAPTIVE_ENABLED)) {
+			interceptionGovernor = new InterceptionGovernor(
+					propsProvider.getAsInteger(PropertyKey.PROXY_SSL_ADAPTIVE_CPU_LOAD),
+					propsProvider.getAsInteger(PropertyKey.PROXY_SSL_ADAPTIVE_QUEUED_HANDSHAKES),
+					propsProvider.getAsInteger(PropertyKey.PROXY_SSL_ADAPTIVE_CONNECTIONS));
+		}
+		timeoutWheel = new TimeoutWheel();
+		timeoutWheel.start();
+		dnsCache = new DnsCache(propsProvider.getAsInteger(PropertyKey.PROXY_DNS_TTL),
+				propsProvider.getAsInteger(PropertyKey.PROXY_DNS_NEGATIVE_TTL),
+				propsProvider.getAsInteger(PropertyKey.PROXY_DNS_REFRESH_HITS),
+				propsProvider.getAsInteger(PropertyKey.PROXY_DNS_MAX_ENTRIES),
+				propsProvider.getAsString(PropertyKey.PROXY_DNS_OVERRIDES));
+		dnsCache.start();
+		upstreamPool = new UpstreamPool(propsProvider.getAsInteger(PropertyKey.PROXY_POOL_MAX_IDLE),
+				propsProvider.getAsInteger(PropertyKey.PROXY_POOL_MAX_PER_HOST),
+				propsProvider.getAsInteger(PropertyKey.PROXY_POOL_IDLE_TIMEOUT));
+		upstreamPool.start();
+		ServerTransport transport = ServerTransport.BLOCKING;
+		try {
+			transport = ServerTransport.valueOf(propsProvider.getAsString(PropertyKey.PROXY_SERVER_TRANSPORT));
+		} catch (IllegalArgumentException e) {
+			mainLogger.log(LoggingLevel.WARN, "Failed to parse server transport. Default BLOCKING will be used.", e);
+		}
+		ListenSocketOpener listenOpener = new ListenSocketOpener(
+				propsProvider.getAsInteger(PropertyKey.PROXY_SERVER_PORT),
+				propsProvider.getAsInteger(PropertyKey.PROXY_SERVER_BACKLOG),
+				propsProvider.getAsBoolean(PropertyKey.PROXY_SERVER_REUSEPORT));
+		if (transport == ServerTransport.NIO) {
+			mainLogger.log(LoggingLevel.INFO, "The non-blocking transport will be used.");
+			nioServer = new NioServer(listenOpener, propsProvider.getAsInteger(PropertyKey.PROXY_SERVER_NIO_EVENTLOOPS));
+			nioServer.start();
+		} else {
+			startAcceptors(listenOpener, propsProvider.getAsInteger(PropertyKey.PROXY_SERVER_ACCEPTORS));
+		}
 		mainLogger.log(LoggingLevel.INFO, "Pressing Backspace in the console will send the shutdown signal.");
 		try {
 			// If someone has a proper fix, please do a Pull Request.
@@ -0,0 +1,371 @@
+/*
+ *   JMagic Proxy - A HTTP and HTTPS Proxy
+ *   Copyright (C) 2023  ExplodingBottle
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.explodingbottle.jmagicproxy.api;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.function.BiConsumer;
+
+/**
+ * This class holds the headers of a HTTP message in the order they were
+ * received. A header can be present several times, like {@code Set-Cookie}.
+ * The names and the values are kept in two arrays instead of a map, so a
+ * message doesn't need more than three objects for its headers.
+ *
+ * The names of the common headers are replaced by the same constant
+ * {@link String} objects, so they are not allocated for each message and can
+ * be compared by reference.
+ *
+ * The names are compared without case, as HTTP requires.
+ *
+ * @author ExplodingBottle
+ *
+ */
+public class HttpHeaders {
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private static final String[] KNOWN_NAMES = { "Host", "Connection", "Proxy-Connection", "Keep-Alive",
+			"Content-Length", "Content-Type", "Content-Encoding", "Transfer-Encoding", "TE", "Trailer", "Upgrade",
+			"Expect", "Date", "Server", "User-Agent", "Accept", "Accept-Encoding", "Accept-Language",
+			"Accept-Ranges", "Cache-Control", "Pragma", "Expires", "Age", "ETag", "Last-Modified",
+			"If-Modified-Since", "If-None-Match", "Range", "Content-Range", "Location", "Set-Cookie", "Cookie",
+			"Authorization", "Proxy-Authorization", "Referer", "Origin", "Vary", "Via", "X-Forwarded-For" };
+	private static final byte[][] KNOWN_BYTES = new byte[KNOWN_NAMES.length][];
+
+	static {
+		for (int i = 0; i < KNOWN_NAMES.length; i++)
+			KNOWN_BYTES[i] = KNOWN_NAMES[i].getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	private String[] names;
+	private String[] values;
+	private int count;
+	private int modificationCount;
+
+	/**
+	 * Creates an empty list of headers.
+	 */
+	public HttpHeaders() {
+		names = new String[INITIAL_CAPACITY];
+		values = new String[INITIAL_CAPACITY];
+	}
+
+	/**
+	 * Creates a list of headers from a map, in the order of the map.
+	 *
+	 * @param map The headers and their values.
+	 * @return The created list.
+	 */
+	public static HttpHeaders fromMap(Map<String, String> map) {
+		HttpHeaders headers = new HttpHeaders();
+		map.forEach((name, value) -> headers.add(name, value));
+		return headers;
+	}
+
+	private static boolean sameLetter(byte read, byte known) {
+		if (read == known)
+			return true;
+		// Only the letters have a case, any other byte must be the same.
+		int lower = read | 0x20;
+		return lower >= 'a' && lower <= 'z' && lower == (known | 0x20);
+	}
+
+	/**
+	 * Returns the constant name of a common header written in the given bytes,
+	 * or a new {@link String} if the header isn't a common one.
+	 *
+	 * @param data The bytes containing the name.
+	 * @param from Where the name starts.
+	 * @param to   Where the name ends.
+	 * @return The name of the header.
+	 */
+	public static String internName(byte[] data, int from, int to) {
+		int length = to - from;
+		for (int i = 0; i < KNOWN_BYTES.length; i++) {
+			byte[] known = KNOWN_BYTES[i];
+			if (known.length != length)
+				continue;
+			int k = 0;
+			while (k < length && sameLetter(data[from + k], known[k]))
+				k++;
+			if (k == length)
+				return KNOWN_NAMES[i];
+		}
+		return new String(data, from, length, StandardCharsets.ISO_8859_1);
+	}
+
+	private static boolean sameName(String first, String second) {
+		return first == second || first.equalsIgnoreCase(second);
+	}
+
+	private int indexOf(String name, int from) {
+		for (int i = from; i < count; i++) {
+			if (sameName(names[i], name))
+				return i;
+		}
+		return -1;
+	}
+
+	private void removeAt(int index) {
+		System.arraycopy(names, index + 1, names, index, count - index - 1);
+		System.arraycopy(values, index + 1, values, index, count - index - 1);
+		count--;
+		names[count] = null;
+		values[count] = null;
+	}
+
+	/**
+	 * Adds a header at the end of the list, even if it is already present.
+	 *
+	 * @param name  The name of the header.
+	 * @param value The value of the header.
+	 */
+	public void add(String name, String value) {
+		if (count == names.length) {
+			names = Arrays.copyOf(names, count * 2);
+			values = Arrays.copyOf(values, count * 2);
+		}
+		names[count] = name;
+		values[count] = value;
+		count++;
+		modificationCount++;
+	}
+
+	/**
+	 * Sets the value of a header. The first occurrence of the header takes the
+	 * value and the others are removed. The header is added if it is missing.
+	 *
+	 * @param name  The name of the header.
+	 * @param value The value of the header.
+	 */
+	public void set(String name, String value) {
+		int index = indexOf(name, 0);
+		if (index < 0) {
+			add(name, value);
+			return;
+		}
+		values[index] = value;
+		int other;
+		while ((other = indexOf(name, index + 1)) >= 0)
+			removeAt(other);
+		modificationCount++;
+	}
+
+	/**
+	 * Removes all the occurrences of a header.
+	 *
+	 * @param name The name of the header.
+	 * @return If the header was present.
+	 */
+	public boolean remove(String name) {
+		boolean removed = false;
+		int index;
+		while ((index = indexOf(name, 0)) >= 0) {
+			removeAt(index);
+			removed = true;
+		}
+		if (removed)
+			modificationCount++;
+		return removed;
+	}
+
+	/**
+	 * Returns the value of the first occurrence of a header.
+	 *
+	 * @param name The name of the header.
+	 * @return The value, or null if the header is missing.
+	 */
+	public String get(String name) {
+		int index = indexOf(name, 0);
+		return index < 0 ? null : values[index];
+	}
+
+	/**
+	 * Returns the values of all the occurrences of a header.
+	 *
+	 * @param name The name of the header.
+	 * @return The values in the order of the message, empty if the header is
+	 *         missing.
+	 */
+	public List<String> getAll(String name) {
+		List<String> found = new ArrayList<String>();
+		for (int i = 0; i < count; i++) {
+			if (sameName(names[i], name))
+				found.add(values[i]);
+		}
+		return found;
+	}
+
+	/**
+	 * Tells if a header is present.
+	 *
+	 * @param name The name of the header.
+	 * @return If the header is present at least once.
+	 */
+	public boolean contains(String name) {
+		return indexOf(name, 0) >= 0;
+	}
+
+	/**
+	 * Returns the count of headers, each occurrence being counted.
+	 *
+	 * @return The count of headers.
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Returns the name of a header by its position.
+	 *
+	 * @param index The position of the header.
+	 * @return The name of the header.
+	 */
+	public String getName(int index) {
+		if (index >= count)
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + count);
+		return names[index];
+	}
+
+	/**
+	 * Returns the value of a header by its position.
+	 *
+	 * @param index The position of the header.
+	 * @return The value of the header.
+	 */
+	public String getValue(int index) {
+		if (index >= count)
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + count);
+		return values[index];
+	}
+
+	/**
+	 * Changes the value of a header by its position.
+	 *
+	 * @param index The position of the header.
+	 * @param value The new value of the header.
+	 */
+	public void setValue(int index, String value) {
+		if (index >= count)
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + count);
+		values[index] = value;
+		modificationCount++;
+	}
+
+	/**
+	 * Returns a number which changes each time the list is modified.
+	 *
+	 * @return The modification count.
+	 */
+	public int getModificationCount() {
+		return modificationCount;
+	}
+
+	/**
+	 * Creates a copy of the list, which can be modified without changing this
+	 * one.
+	 *
+	 * @return The copy.
+	 */
+	public HttpHeaders copy() {
+		HttpHeaders copy = new HttpHeaders();
+		copy.names = Arrays.copyOf(names, Math.max(INITIAL_CAPACITY, count));
+		copy.values = Arrays.copyOf(values, copy.names.length);
+		copy.count = count;
+		return copy;
+	}
+
+	/**
+	 * Creates a map of the headers, as given to the plugins. A header present
+	 * several times is given with its first value.
+	 *
+	 * @return The map, which isn't linked to this list.
+	 */
+	public TreeMap<String, String> toMap() {
+		TreeMap<String, String> map = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+		for (int i = 0; i < count; i++)
+			map.putIfAbsent(names[i], values[i]);
+		return map;
+	}
+
+	/**
+	 * Makes the list match a map created by {@link #toMap()} and maybe modified
+	 * since. Nothing changes if the map wasn't modified, so the headers present
+	 * several times are only lost when the map changed them.
+	 *
+	 * @param map The map.
+	 */
+	public void update(Map<String, String> map) {
+		int distinct = 0;
+		boolean same = true;
+		for (int i = 0; i < count && same; i++) {
+			if (indexOf(names[i], 0) != i)
+				continue;
+			distinct++;
+			same = Objects.equals(values[i], map.get(names[i]));
+		}
+		if (same && distinct == map.size())
+			return;
+		for (int i = count - 1; i >= 0; i--) {
+			if (!map.containsKey(names[i])) {
+				removeAt(i);
+				modificationCount++;
+			}
+		}
+		map.forEach((name, value) -> {
+			int index = indexOf(name, 0);
+			if (index < 0 || !Objects.equals(values[index], value))
+				set(name, value);
+		});
+	}
+
+	/**
+	 * Gives each header to an action, in the order of the list.
+	 *
+	 * @param action The action receiving the name and the value of the header.
+	 */
+	public void forEach(BiConsumer<String, String> action) {
+		for (int i = 0; i < count; i++)
+			action.accept(names[i], values[i]);
+	}
+
+	/**
+	 * Writes the headers as lines of a header block.
+	 *
+	 * @param builder Where the lines are written.
+	 */
+	public void appendTo(StringBuilder builder) {
+		for (int i = 0; i < count; i++)
+			builder.append(names[i]).append(": ").append(values[i]).append("\r\n");
+	}
+
+	public String toString() {
+		StringBuilder strb = new StringBuilder("{");
+		for (int i = 0; i < count; i++)
+			strb.append(names[i] + "=" + values[i] + ";");
+		strb.append("}");
+		return strb.toString();
+	}
+
+}
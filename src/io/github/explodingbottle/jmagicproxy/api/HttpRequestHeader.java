@@ -17,6 +17,7 @@
  */
 package io.github.explodingbottle.jmagicproxy.api;
 
+import java.nio.charset.StandardCharsets;
 import java.util.TreeMap;
 
 /**
@@ -54,6 +55,7 @@ public class HttpRequestHeader {
 	 */
 	public void setHost(String host) {
 		this.host = host;
+		rawHead = null;
 	}
 
 	/**
@@ -66,15 +68,37 @@ public class HttpRequestHeader {
 	}
 
 	/**
-	 * This function will return the list of headers.
+	 * This function will return the list of headers. Only the first value of the
+	 * headers present several times is in the map. The changes made to the map
+	 * are applied to the request until {@link #getHeaderList()} is called, a new
+	 * map must be asked after it.
 	 * 
 	 * @return the list containing the headers and their values.
 	 */
 	public TreeMap<String, String> getHeaders() {
+		if (headers == null)
+			headers = headerList.toMap();
 		return headers;
 	}
 
+	/**
+	 * This function will return all the headers, in their order and with their
+	 * repeated occurrences.
+	 * 
+	 * @return the headers.
+	 */
+	public HttpHeaders getHeaderList() {
+		if (headers != null) {
+			headerList.update(headers);
+			headers = null;
+		}
+		return headerList;
+	}
+
+	private HttpHeaders headerList;
 	private TreeMap<String, String> headers;
+	private byte[] rawHead;
+	private int rawModificationCount;
 
 	/**
 	 * The constructor of a HTTP Request. Let's take for example GET / HTTP/1.1
@@ -85,16 +109,34 @@ public class HttpRequestHeader {
 	 * @param headers     Corresponds to the lines like Accept: xml/text
 	 */
 	public HttpRequestHeader(HttpMethod method, String host, String httpVersion, TreeMap<String, String> headers) {
+		this(method, host, httpVersion, HttpHeaders.fromMap(headers), null);
+	}
+
+	/**
+	 * The constructor of a HTTP Request which keeps the bytes it was parsed from.
+	 * The headers are used as they are, without being copied.
+	 * 
+	 * @param method      Corresponds to GET
+	 * @param host        Corresponds to /
+	 * @param httpVersion Corresponds to HTTP/1.1
+	 * @param headers     Corresponds to the lines like Accept: xml/text
+	 * @param rawHead     The header block the request was parsed from, sent as it
+	 *                    is while the request isn't modified. Can be null.
+	 */
+	public HttpRequestHeader(HttpMethod method, String host, String httpVersion, HttpHeaders headers,
+			byte[] rawHead) {
 		this.method = method;
 		this.host = host;
 		this.httpVersion = httpVersion;
-		this.headers = headers;
+		this.headerList = headers;
+		this.rawHead = rawHead;
+		rawModificationCount = headers.getModificationCount();
 	}
 
 	public String toString() {
 		String b = "{Method=" + method + ";Host=" + host + ";Version=" + httpVersion + ";Headers={";
 		StringBuilder strb = new StringBuilder(b);
-		headers.forEach((header, val) -> {
+		getHeaderList().forEach((header, val) -> {
 			strb.append(header + "=" + val + ";");
 		});
 		strb.append("}}");
@@ -117,13 +159,24 @@ public class HttpRequestHeader {
 	 */
 	public String toHttpRequestBlock() {
 		StringBuilder builder = new StringBuilder(toHttpRequestLine() + "\r\n");
-		getHeaders().forEach((hKey, hVal) -> {
-			builder.append(hKey + ": " + hVal + "\r\n");
-		});
+		getHeaderList().appendTo(builder);
 		builder.append("\r\n");
 		return builder.toString();
 	}
 
+	/**
+	 * Returns the bytes of the full request block. They are the bytes the request
+	 * was parsed from if it wasn't modified.
+	 * 
+	 * @return the bytes of the request block.
+	 */
+	public byte[] toHttpRequestBytes() {
+		HttpHeaders current = getHeaderList();
+		if (rawHead != null && rawModificationCount == current.getModificationCount())
+			return rawHead;
+		return toHttpRequestBlock().getBytes(StandardCharsets.ISO_8859_1);
+	}
+
 	/**
 	 * Builds a HTTP Request Header using parameters.
 	 * 
@@ -140,6 +193,23 @@ public class HttpRequestHeader {
 		return new HttpRequestHeader(method, host, version, headers);
 	}
 
+	/**
+	 * Builds a HTTP Request Header using parameters, keeping the order and the
+	 * repeated occurrences of the headers.
+	 * 
+	 * @param method  The HTTP Method
+	 * @param host    The destination host
+	 * @param version The HTTP version
+	 * @param headers HTTP Headers, used without being copied
+	 * @return The built HTTP Request Header.
+	 */
+	public static HttpRequestHeader createFromParameters(HttpMethod method, String host, String version,
+			HttpHeaders headers) {
+		if (headers == null)
+			headers = new HttpHeaders();
+		return new HttpRequestHeader(method, host, version, headers, null);
+	}
+
 	/**
 	 * Returns a new HTTP Request header from the parsed lines.
 	 * 
@@ -151,7 +221,7 @@ public class HttpRequestHeader {
 		String host = null;
 		String httpVersion = null;
 		String lines[] = builder.toString().replace("\r", "").split("\n");
-		TreeMap<String, String> headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+		HttpHeaders headers = new HttpHeaders();
 		if (lines.length <= 0) {
 			throw new MalformedParsableContent("No content.");
 		}
@@ -186,12 +256,12 @@ public class HttpRequestHeader {
 							else
 								rebuiltSecHeader += splitedHH[k] + ": ";
 						}
-						headers.put(splitedHH[0], rebuiltSecHeader);
+						headers.add(splitedHH[0], rebuiltSecHeader);
 					}
 
 				}
 			}
 		}
-		return new HttpRequestHeader(method, host, httpVersion, headers);
+		return new HttpRequestHeader(method, host, httpVersion, headers, null);
 	}
 }
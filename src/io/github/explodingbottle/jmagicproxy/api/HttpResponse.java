@@ -17,6 +17,7 @@
  */
 package io.github.explodingbottle.jmagicproxy.api;
 
+import java.nio.charset.StandardCharsets;
 import java.util.TreeMap;
 
 /**
@@ -30,7 +31,10 @@ public class HttpResponse {
 	private String version;
 	private int responseCode;
 	private String responseMessage;
+	private HttpHeaders headerList;
 	private TreeMap<String, String> headers;
+	private byte[] rawHead;
+	private int rawModificationCount;
 
 	/**
 	 * The constructor of a HTTP Response. Let's take for example HTTP/1.1 200 OK
@@ -41,22 +45,36 @@ public class HttpResponse {
 	 * @param headers         Corresponds to the lines like Connection: Keep-Alive
 	 */
 	public HttpResponse(String version, int responseCode, String responseMessage, TreeMap<String, String> headers) {
+		this(version, responseCode, responseMessage, HttpHeaders.fromMap(headers), null);
+	}
+
+	/**
+	 * The constructor of a HTTP Response which keeps the bytes it was parsed from.
+	 * The headers are used as they are, without being copied.
+	 * 
+	 * @param version         Corresponds to HTTP/1.1
+	 * @param responseCode    Corresponds to 200
+	 * @param responseMessage Corresponds to OK
+	 * @param headers         Corresponds to the lines like Connection: Keep-Alive
+	 * @param rawHead         The header block the response was parsed from, sent
+	 *                        as it is while the response isn't modified. Can be
+	 *                        null.
+	 */
+	public HttpResponse(String version, int responseCode, String responseMessage, HttpHeaders headers,
+			byte[] rawHead) {
 		this.version = version;
 		this.responseCode = responseCode;
 		this.responseMessage = responseMessage;
-		// Sanitizing
-		TreeMap<String, String> headersSan = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
-		headers.forEach((s1, s2) -> {
-			headersSan.put(s1, s2);
-		});
-		this.headers = headersSan;
+		this.headerList = headers;
+		this.rawHead = rawHead;
+		rawModificationCount = headers.getModificationCount();
 	}
 
 	public String toString() {
 		String b = "{Message=" + responseMessage + ";ResponseCode=" + responseCode + ";Version=" + version
 				+ ";Headers={";
 		StringBuilder strb = new StringBuilder(b);
-		headers.forEach((header, val) -> {
+		getHeaderList().forEach((header, val) -> {
 			strb.append(header + "=" + val + ";");
 		});
 		strb.append("}}");
@@ -79,13 +97,35 @@ public class HttpResponse {
 	 */
 	public String toHttpResponseBlock() {
 		StringBuilder builder = new StringBuilder(toHttpResponseLine() + "\r\n");
-		getHeaders().forEach((hKey, hVal) -> {
-			builder.append(hKey + ": " + hVal + "\r\n");
-		});
+		getHeaderList().appendTo(builder);
 		builder.append("\r\n");
 		return builder.toString();
 	}
 
+	/**
+	 * Returns the bytes of the full response block. They are the bytes the
+	 * response was parsed from if it wasn't modified.
+	 * 
+	 * @return the bytes of the response block.
+	 */
+	public byte[] toHttpResponseBytes() {
+		byte[] unmodifiedHead = getUnmodifiedHead();
+		if (unmodifiedHead != null)
+			return unmodifiedHead;
+		return toHttpResponseBlock().getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Returns the bytes the response was parsed from, if it wasn't modified since.
+	 * 
+	 * @return the bytes of the response block, or null if they can't be used.
+	 */
+	public byte[] getUnmodifiedHead() {
+		if (rawHead != null && rawModificationCount == getHeaderList().getModificationCount())
+			return rawHead;
+		return null;
+	}
+
 	/**
 	 * Returns a new HTTP Response from the parsed lines.
 	 * 
@@ -99,7 +139,7 @@ public class HttpResponse {
 		String lines[] = builder.toString().replace("\r", "").split("\n");
 		if (lines.length <= 0)
 			throw new MalformedParsableContent("Totally invalid response block.");
-		TreeMap<String, String> headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+		HttpHeaders headers = new HttpHeaders();
 		if (lines.length <= 0) {
 			throw new MalformedParsableContent("No content.");
 		}
@@ -139,13 +179,13 @@ public class HttpResponse {
 							else
 								rebuiltSecHeader += splitedHH[k] + ": ";
 						}
-						headers.put(splitedHH[0], rebuiltSecHeader);
+						headers.add(splitedHH[0], rebuiltSecHeader);
 					}
 
 				}
 			}
 		}
-		return new HttpResponse(httpVersion, responseCode, responseMessage, headers);
+		return new HttpResponse(httpVersion, responseCode, responseMessage, headers, null);
 	}
 
 	/**
@@ -176,12 +216,31 @@ public class HttpResponse {
 	}
 
 	/**
-	 * This function will return the list of headers.
+	 * This function will return the list of headers. Only the first value of the
+	 * headers present several times is in the map. The changes made to the map
+	 * are applied to the response until {@link #getHeaderList()} is called, a new
+	 * map must be asked after it.
 	 * 
 	 * @return the list containing the headers and their values.
 	 */
 	public TreeMap<String, String> getHeaders() {
+		if (headers == null)
+			headers = headerList.toMap();
 		return headers;
 	}
 
+	/**
+	 * This function will return all the headers, in their order and with their
+	 * repeated occurrences.
+	 * 
+	 * @return the headers.
+	 */
+	public HttpHeaders getHeaderList() {
+		if (headers != null) {
+			headerList.update(headers);
+			headers = null;
+		}
+		return headerList;
+	}
+
 }
@@ -0,0 +1,78 @@
+/*
+ *   JMagic Proxy - A HTTP and HTTPS Proxy
+ *   Copyright (C) 2023  ExplodingBottle
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.explodingbottle.jmagicproxy.buffer;
+
+/**
+ * This class chooses how many bytes a connection should read at once. The size
+ * grows when the reads fill the buffer and shrinks when they stay small for a
+ * while.
+ * 
+ * @author ExplodingBottle
+ *
+ */
+public class AdaptiveReadSize {
+
+	private static final int SHRINK_AFTER = 8;
+
+	private int minSize;
+	private int maxSize;
+	private int currentSize;
+	private int smallReads;
+
+	/**
+	 * Creates the read size.
+	 * 
+	 * @param minSize The smallest read size.
+	 * @param maxSize The biggest read size.
+	 */
+	public AdaptiveReadSize(int minSize, int maxSize) {
+		this.maxSize = maxSize;
+		this.minSize = Math.min(Math.max(1, minSize), maxSize);
+		currentSize = this.minSize;
+	}
+
+	/**
+	 * Returns the size of the next read.
+	 * 
+	 * @return The read size.
+	 */
+	public int getSize() {
+		return currentSize;
+	}
+
+	/**
+	 * Records the length of a read.
+	 * 
+	 * @param length The count of bytes which were read.
+	 */
+	public void record(int length) {
+		if (length >= currentSize) {
+			currentSize = Math.min(maxSize, currentSize * 2);
+			smallReads = 0;
+		} else if (length < currentSize / 4 && currentSize > minSize) {
+			smallReads++;
+			if (smallReads >= SHRINK_AFTER) {
+				currentSize = Math.max(minSize, currentSize / 2);
+				smallReads = 0;
+			}
+		} else {
+			smallReads = 0;
+		}
+	}
+
+}
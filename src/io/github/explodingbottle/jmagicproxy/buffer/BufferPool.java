@@ -0,0 +1,319 @@
+/*
+ *   JMagic Proxy - A HTTP and HTTPS Proxy
+ *   Copyright (C) 2023  ExplodingBottle
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.explodingbottle.jmagicproxy.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class is a shared pool of buffers, sorted by size classes going from
+ * 1 KB to the maximum buffer size. It gives both heap arrays and direct
+ * buffers.
+ * 
+ * Each thread keeps the last released buffer of each class so it can get it
+ * back without touching the shared lists. A thread must call
+ * {@code flushThreadCache()} before waiting for a long time, otherwise the
+ * buffers of its cache would stay unused.
+ * 
+ * @author ExplodingBottle
+ *
+ */
+public class BufferPool {
+
+	private static final int MIN_CLASS_SIZE = 1024;
+
+	private int classCount;
+	private long maxFreeBytes;
+
+	private ConcurrentLinkedQueue<byte[]>[] heapFree;
+	private ConcurrentLinkedQueue<ByteBuffer>[] directFree;
+	private ThreadLocal<Object[]> threadCache;
+
+	private AtomicInteger leasedBuffers;
+	private AtomicLong leasedBytes;
+	private AtomicLong highWaterBytes;
+	private AtomicInteger freeBuffers;
+	private AtomicLong freeBytes;
+	private AtomicLong allocatedBuffers;
+
+	/**
+	 * Creates the pool.
+	 * 
+	 * @param maxBufferSize The size of the biggest class, it is rounded up to a
+	 *                      power of two.
+	 * @param maxFreeBytes  The maximum count of bytes kept in the shared lists,
+	 *                      the buffers released beyond it are dropped.
+	 */
+	@SuppressWarnings("unchecked")
+	public BufferPool(int maxBufferSize, long maxFreeBytes) {
+		this.maxFreeBytes = maxFreeBytes;
+		classCount = 1;
+		while ((MIN_CLASS_SIZE << (classCount - 1)) < maxBufferSize) {
+			classCount++;
+		}
+		heapFree = (ConcurrentLinkedQueue<byte[]>[]) new ConcurrentLinkedQueue<?>[classCount];
+		directFree = (ConcurrentLinkedQueue<ByteBuffer>[]) new ConcurrentLinkedQueue<?>[classCount];
+		for (int i = 0; i < classCount; i++) {
+			heapFree[i] = new ConcurrentLinkedQueue<byte[]>();
+			directFree[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+		}
+		threadCache = ThreadLocal.withInitial(() -> {
+			return new Object[classCount * 2];
+		});
+		leasedBuffers = new AtomicInteger();
+		leasedBytes = new AtomicLong();
+		highWaterBytes = new AtomicLong();
+		freeBuffers = new AtomicInteger();
+		freeBytes = new AtomicLong();
+		allocatedBuffers = new AtomicLong();
+	}
+
+	/**
+	 * Returns the size of the biggest buffer the pool can give.
+	 * 
+	 * @return The maximum buffer size.
+	 */
+	public int getMaxBufferSize() {
+		return MIN_CLASS_SIZE << (classCount - 1);
+	}
+
+	private int classFor(int size) {
+		int index = 0;
+		while (index < classCount && (MIN_CLASS_SIZE << index) < size) {
+			index++;
+		}
+		return index < classCount ? index : -1;
+	}
+
+	private int exactClass(int size) {
+		int index = classFor(size);
+		if (index != -1 && (MIN_CLASS_SIZE << index) == size)
+			return index;
+		return -1;
+	}
+
+	private void onLeased(int size) {
+		leasedBuffers.incrementAndGet();
+		long total = leasedBytes.addAndGet(size);
+		long highWater = highWaterBytes.get();
+		while (total > highWater && !highWaterBytes.compareAndSet(highWater, total)) {
+			highWater = highWaterBytes.get();
+		}
+	}
+
+	private void onReleased(int size) {
+		leasedBuffers.decrementAndGet();
+		leasedBytes.addAndGet(-size);
+	}
+
+	private <T> T takeShared(ConcurrentLinkedQueue<T> queue, int size) {
+		T taken = queue.poll();
+		if (taken != null) {
+			freeBuffers.decrementAndGet();
+			freeBytes.addAndGet(-size);
+		}
+		return taken;
+	}
+
+	private <T> void putShared(ConcurrentLinkedQueue<T> queue, T buffer, int size) {
+		if (freeBytes.get() + size > maxFreeBytes)
+			return;
+		freeBuffers.incrementAndGet();
+		freeBytes.addAndGet(size);
+		queue.add(buffer);
+	}
+
+	/**
+	 * Leases a heap buffer which is at least as big as requested. A request bigger
+	 * than the biggest class gives an array which isn't pooled.
+	 * 
+	 * @param size The minimum size of the buffer.
+	 * @return The buffer.
+	 */
+	public byte[] leaseHeap(int size) {
+		int index = classFor(size);
+		if (index == -1)
+			return new byte[size];
+		int classSize = MIN_CLASS_SIZE << index;
+		Object[] cache = threadCache.get();
+		byte[] buffer = (byte[]) cache[index];
+		if (buffer != null) {
+			cache[index] = null;
+		} else {
+			buffer = takeShared(heapFree[index], classSize);
+			if (buffer == null) {
+				buffer = new byte[classSize];
+				allocatedBuffers.incrementAndGet();
+			}
+		}
+		onLeased(classSize);
+		return buffer;
+	}
+
+	/**
+	 * Gives back a heap buffer which has been leased from this pool.
+	 * 
+	 * @param buffer The buffer to give back.
+	 */
+	public void releaseHeap(byte[] buffer) {
+		int index = exactClass(buffer.length);
+		if (index == -1)
+			return;
+		onReleased(buffer.length);
+		Object[] cache = threadCache.get();
+		if (cache[index] == null) {
+			cache[index] = buffer;
+		} else {
+			putShared(heapFree[index], buffer, buffer.length);
+		}
+	}
+
+	/**
+	 * Leases a cleared direct buffer which is at least as big as requested. A
+	 * request bigger than the biggest class gives a buffer which isn't pooled.
+	 * 
+	 * @param size The minimum capacity of the buffer.
+	 * @return The buffer.
+	 */
+	public ByteBuffer leaseDirect(int size) {
+		int index = classFor(size);
+		if (index == -1)
+			return ByteBuffer.allocateDirect(size);
+		int classSize = MIN_CLASS_SIZE << index;
+		Object[] cache = threadCache.get();
+		ByteBuffer buffer = (ByteBuffer) cache[classCount + index];
+		if (buffer != null) {
+			cache[classCount + index] = null;
+		} else {
+			buffer = takeShared(directFree[index], classSize);
+			if (buffer == null) {
+				buffer = ByteBuffer.allocateDirect(classSize);
+				allocatedBuffers.incrementAndGet();
+			}
+		}
+		buffer.clear();
+		onLeased(classSize);
+		return buffer;
+	}
+
+	/**
+	 * Gives back a direct buffer which has been leased from this pool.
+	 * 
+	 * @param buffer The buffer to give back.
+	 */
+	public void releaseDirect(ByteBuffer buffer) {
+		int index = exactClass(buffer.capacity());
+		if (index == -1 || !buffer.isDirect())
+			return;
+		onReleased(buffer.capacity());
+		Object[] cache = threadCache.get();
+		if (cache[classCount + index] == null) {
+			cache[classCount + index] = buffer;
+		} else {
+			putShared(directFree[index], buffer, buffer.capacity());
+		}
+	}
+
+	/**
+	 * Moves the buffers kept by the cache of the current thread back to the shared
+	 * lists. It must be called before the thread blocks for a long time.
+	 */
+	public void flushThreadCache() {
+		Object[] cache = threadCache.get();
+		for (int i = 0; i < classCount; i++) {
+			int classSize = MIN_CLASS_SIZE << i;
+			if (cache[i] != null) {
+				putShared(heapFree[i], (byte[]) cache[i], classSize);
+				cache[i] = null;
+			}
+			if (cache[classCount + i] != null) {
+				putShared(directFree[i], (ByteBuffer) cache[classCount + i], classSize);
+				cache[classCount + i] = null;
+			}
+		}
+	}
+
+	/**
+	 * Returns the count of buffers currently leased.
+	 * 
+	 * @return The count of leased buffers.
+	 */
+	public int getLeasedBuffers() {
+		return leasedBuffers.get();
+	}
+
+	/**
+	 * Returns the count of bytes currently leased.
+	 * 
+	 * @return The count of leased bytes.
+	 */
+	public long getLeasedBytes() {
+		return leasedBytes.get();
+	}
+
+	/**
+	 * Returns the highest count of bytes which has been leased at the same time.
+	 * 
+	 * @return The high-water mark of the leased bytes.
+	 */
+	public long getHighWaterBytes() {
+		return highWaterBytes.get();
+	}
+
+	/**
+	 * Returns the count of buffers waiting in the shared lists.
+	 * 
+	 * @return The count of free buffers.
+	 */
+	public int getFreeBuffers() {
+		return freeBuffers.get();
+	}
+
+	/**
+	 * Returns the count of bytes waiting in the shared lists.
+	 * 
+	 * @return The count of free bytes.
+	 */
+	public long getFreeBytes() {
+		return freeBytes.get();
+	}
+
+	/**
+	 * Returns the count of pooled buffers which have been allocated since the
+	 * start.
+	 * 
+	 * @return The count of allocated buffers.
+	 */
+	public long getAllocatedBuffers() {
+		return allocatedBuffers.get();
+	}
+
+	/**
+	 * Returns a summary of the gauges.
+	 * 
+	 * @return The summary.
+	 */
+	public String getStatistics() {
+		return "Buffers: " + getLeasedBuffers() + " leased (" + getLeasedBytes() + " bytes), " + getFreeBuffers()
+				+ " free (" + getFreeBytes() + " bytes), high-water " + getHighWaterBytes() + " bytes, "
+				+ getAllocatedBuffers() + " allocated.";
+	}
+
+}
@@ -0,0 +1,151 @@
+/*
+ *   JMagic Proxy - A HTTP and HTTPS Proxy
+ *   Copyright (C) 2023  ExplodingBottle
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.explodingbottle.jmagicproxy.buffer;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class counts the bytes of one direction of a connection which have
+ * been read from the source but not written to the sink yet. The source must
+ * stop reading while the window is full.
+ * 
+ * The counts of every window are also added together, to know how many bytes
+ * the whole proxy is holding.
+ * 
+ * @author ExplodingBottle
+ *
+ */
+public class FlowWindow {
+
+	private static final AtomicLong GLOBAL_IN_FLIGHT = new AtomicLong();
+	private static final AtomicLong GLOBAL_HIGH_WATER = new AtomicLong();
+	private static final AtomicLong GLOBAL_PAUSES = new AtomicLong();
+
+	private long limit;
+	private AtomicLong inFlight;
+	private AtomicLong highWater;
+
+	/**
+	 * Creates the window.
+	 * 
+	 * @param limit The maximum count of bytes in flight.
+	 */
+	public FlowWindow(long limit) {
+		this.limit = Math.max(1, limit);
+		inFlight = new AtomicLong();
+		highWater = new AtomicLong();
+	}
+
+	/**
+	 * Returns the maximum count of bytes in flight.
+	 * 
+	 * @return The limit of the window.
+	 */
+	public long getLimit() {
+		return limit;
+	}
+
+	/**
+	 * Returns the count of bytes in flight.
+	 * 
+	 * @return The count of bytes read but not written yet.
+	 */
+	public long getInFlight() {
+		return inFlight.get();
+	}
+
+	/**
+	 * Returns the highest count of bytes which were in flight at once.
+	 * 
+	 * @return The high-water mark of this window.
+	 */
+	public long getHighWater() {
+		return highWater.get();
+	}
+
+	/**
+	 * Returns if the source can read again.
+	 * 
+	 * @return If the window isn't full.
+	 */
+	public boolean isOpen() {
+		return inFlight.get() < limit;
+	}
+
+	/**
+	 * Returns if some bytes fit in the window. An empty window always accepts
+	 * bytes, so a chunk bigger than the window can still go through.
+	 * 
+	 * @param count The count of bytes.
+	 * @return If the bytes can be taken now.
+	 */
+	public boolean fits(long count) {
+		long current = inFlight.get();
+		return current == 0 || current + count <= limit;
+	}
+
+	/**
+	 * Counts bytes which were read and are waiting to be written.
+	 * 
+	 * @param count The count of bytes.
+	 */
+	public void acquire(long count) {
+		if (count <= 0)
+			return;
+		long current = inFlight.addAndGet(count);
+		highWater.accumulateAndGet(current, Math::max);
+		GLOBAL_HIGH_WATER.accumulateAndGet(GLOBAL_IN_FLIGHT.addAndGet(count), Math::max);
+	}
+
+	/**
+	 * Counts bytes which have been written or dropped.
+	 * 
+	 * @param count The count of bytes.
+	 */
+	public void release(long count) {
+		if (count <= 0)
+			return;
+		inFlight.addAndGet(-count);
+		GLOBAL_IN_FLIGHT.addAndGet(-count);
+	}
+
+	/**
+	 * Releases every byte still in flight, used when what was waiting is dropped.
+	 */
+	public void reset() {
+		GLOBAL_IN_FLIGHT.addAndGet(-inFlight.getAndSet(0));
+	}
+
+	/**
+	 * Counts a time the source had to stop reading because of this window.
+	 */
+	public void recordPause() {
+		GLOBAL_PAUSES.incrementAndGet();
+	}
+
+	/**
+	 * Returns the metrics of every window as a printable line.
+	 * 
+	 * @return The statistics of the windows.
+	 */
+	public static String getGlobalStatistics() {
+		return "Flow windows: " + GLOBAL_IN_FLIGHT.get() + " bytes in flight, high-water " + GLOBAL_HIGH_WATER.get()
+				+ " bytes, " + GLOBAL_PAUSES.get() + " paused reads.";
+	}
+
+}
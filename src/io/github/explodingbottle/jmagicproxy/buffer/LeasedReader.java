@@ -0,0 +1,160 @@
+/*
+ *   JMagic Proxy - A HTTP and HTTPS Proxy
+ *   Copyright (C) 2023  ExplodingBottle
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.explodingbottle.jmagicproxy.buffer;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import io.github.explodingbottle.jmagicproxy.ProxyMain;
+
+/**
+ * This class reads a stream into buffers leased from the {@code BufferPool}.
+ * The buffer is only leased once the first byte has arrived, and it is given
+ * back before the next wait, so an idle connection doesn't hold any buffer.
+ * 
+ * When bytes are already waiting, the chunk is read with a single read sized
+ * by the {@code AdaptiveReadSize}. Otherwise, once the first byte has arrived,
+ * the rest of the chunk is read without blocking thanks to
+ * {@code available()}. For streams which can't tell how many bytes are
+ * available, the reader can be told to read in a blocking way, the buffer is
+ * then held during the wait.
+ * 
+ * @author ExplodingBottle
+ *
+ */
+public class LeasedReader {
+
+	private InputStream input;
+	private AdaptiveReadSize readSize;
+	private boolean canPeek;
+	private byte[] pendingData;
+
+	private BufferPool pool;
+	private byte[] buffer;
+
+	/**
+	 * Creates the reader.
+	 * 
+	 * @param input       The stream to read.
+	 * @param readSize    The size of the reads.
+	 * @param canPeek     If {@code available()} of the stream can be trusted.
+	 * @param pendingData The data which must be given before reading the stream,
+	 *                    can be {@code null}.
+	 */
+	public LeasedReader(InputStream input, AdaptiveReadSize readSize, boolean canPeek, byte[] pendingData) {
+		this.input = input;
+		this.readSize = readSize;
+		this.canPeek = canPeek;
+		this.pendingData = pendingData;
+		pool = ProxyMain.getBufferPool();
+	}
+
+	/**
+	 * Changes the size of the next reads.
+	 * 
+	 * @param readSize The new read size.
+	 */
+	public void setReadSize(AdaptiveReadSize readSize) {
+		this.readSize = readSize;
+	}
+
+	/**
+	 * Reads the next chunk. The previous buffer is given back to the pool.
+	 * 
+	 * @return The count of bytes placed at the start of {@code getBuffer()}, or -1
+	 *         if the stream has ended.
+	 * @throws IOException If the read failed.
+	 */
+	public int read() throws IOException {
+		release();
+		if (pendingData != null) {
+			byte[] toHandle = pendingData;
+			buffer = pool.leaseHeap(Math.min(toHandle.length, pool.getMaxBufferSize()));
+			int length = Math.min(toHandle.length, buffer.length);
+			System.arraycopy(toHandle, 0, buffer, 0, length);
+			if (length < toHandle.length) {
+				byte[] remaining = new byte[toHandle.length - length];
+				System.arraycopy(toHandle, length, remaining, 0, remaining.length);
+				pendingData = remaining;
+			} else {
+				pendingData = null;
+			}
+			return length;
+		}
+		if (!canPeek) {
+			buffer = pool.leaseHeap(readSize.getSize());
+			pool.flushThreadCache();
+			int read = input.read(buffer, 0, Math.min(buffer.length, readSize.getSize()));
+			if (read > 0)
+				readSize.record(read);
+			return read;
+		}
+		if (input.available() > 0) {
+			// Bytes are waiting, a single read takes them without blocking.
+			buffer = pool.leaseHeap(readSize.getSize());
+			int read = input.read(buffer, 0, Math.min(buffer.length, readSize.getSize()));
+			if (read > 0)
+				readSize.record(read);
+			return read;
+		}
+		pool.flushThreadCache();
+		int first = input.read();
+		if (first == -1)
+			return -1;
+		buffer = pool.leaseHeap(readSize.getSize());
+		buffer[0] = (byte) first;
+		int length = 1;
+		int available = Math.min(input.available(), Math.min(buffer.length, readSize.getSize()) - 1);
+		if (available > 0) {
+			int read = input.read(buffer, 1, available);
+			if (read > 0)
+				length += read;
+		}
+		readSize.record(length);
+		return length;
+	}
+
+	/**
+	 * Returns the buffer of the last chunk.
+	 * 
+	 * @return The buffer, or {@code null} if nothing is being read.
+	 */
+	public byte[] getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * Gives back the buffer of the last chunk.
+	 */
+	public void release() {
+		if (buffer != null) {
+			pool.releaseHeap(buffer);
+			buffer = null;
+		}
+	}
+
+	/**
+	 * Gives back the buffer and empties the cache of the current thread, as it is
+	 * about to end.
+	 */
+	public void close() {
+		release();
+		pool.flushThreadCache();
+	}
+
+}
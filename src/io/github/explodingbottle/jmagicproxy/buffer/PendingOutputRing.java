@@ -0,0 +1,206 @@
+/*
+ *   JMagic Proxy - A HTTP and HTTPS Proxy
+ *   Copyright (C) 2023  ExplodingBottle
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.explodingbottle.jmagicproxy.buffer;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class keeps what a client sends before the outgoing connection is
+ * ready. It is a ring of slices written by a single thread, the one reading
+ * the client, and drained by whichever thread currently owns the writing. Once
+ * the ring has been opened and drained, the writes go straight to the sink.
+ * 
+ * The queued bytes are counted in a {@code FlowWindow}, a writer which would
+ * go beyond it is parked until the draining thread frees enough of it or the
+ * ring is closed.
+ * 
+ * @author ExplodingBottle
+ *
+ */
+public class PendingOutputRing {
+
+	/**
+	 * This interface represents where the bytes go once the connection is ready.
+	 * 
+	 * @author ExplodingBottle
+	 *
+	 */
+	public interface Sink {
+
+		/**
+		 * Writes bytes to the outgoing connection.
+		 * 
+		 * @param buffer The buffer to write.
+		 * @param offset The offset in the buffer.
+		 * @param length The count of bytes to write.
+		 */
+		void write(byte[] buffer, int offset, int length);
+
+	}
+
+	private static final int SLOTS = 256;
+
+	private byte[][] slices;
+	private AtomicLong head;
+	private AtomicLong tail;
+	private FlowWindow window;
+
+	private volatile Sink sink;
+	private volatile boolean closed;
+	private volatile Thread waitingWriter;
+	private AtomicBoolean draining;
+
+	/**
+	 * Creates the ring.
+	 * 
+	 * @param window The window counting the bytes waiting in the ring.
+	 */
+	public PendingOutputRing(FlowWindow window) {
+		this.window = window;
+		slices = new byte[SLOTS][];
+		head = new AtomicLong();
+		tail = new AtomicLong();
+		draining = new AtomicBoolean();
+	}
+
+	/**
+	 * Returns if the ring has been opened.
+	 * 
+	 * @return If the sink is set.
+	 */
+	public boolean isOpen() {
+		return sink != null;
+	}
+
+	/**
+	 * Returns the count of bytes waiting in the ring.
+	 * 
+	 * @return The count of queued bytes.
+	 */
+	public long getQueuedBytes() {
+		return window.getInFlight();
+	}
+
+	/**
+	 * Writes bytes, they are only copied if they can't be written now. Must only
+	 * be called by the thread reading the client.
+	 * 
+	 * @param buffer The buffer containing the bytes.
+	 * @param offset The offset of the bytes.
+	 * @param length The count of bytes.
+	 */
+	public void write(byte[] buffer, int offset, int length) {
+		if (closed || length <= 0)
+			return;
+		if (sink != null && head.get() == tail.get() && draining.compareAndSet(false, true)) {
+			boolean written = false;
+			try {
+				if (head.get() == tail.get()) {
+					sink.write(buffer, offset, length);
+					written = true;
+				}
+			} finally {
+				draining.set(false);
+			}
+			if (written)
+				return;
+		}
+		byte[] slice = new byte[length];
+		System.arraycopy(buffer, offset, slice, 0, length);
+		long position = tail.get();
+		if (mustWait(position, length))
+			window.recordPause();
+		while (mustWait(position, length)) {
+			waitingWriter = Thread.currentThread();
+			drain();
+			// Checked again once the writer is visible, as the thread which frees the
+			// budget only wakes a writer it can see.
+			if (mustWait(position, length))
+				LockSupport.park(this);
+		}
+		waitingWriter = null;
+		if (closed)
+			return;
+		slices[(int) (position % SLOTS)] = slice;
+		window.acquire(length);
+		tail.set(position + 1);
+		drain();
+	}
+
+	private boolean mustWait(long position, int length) {
+		if (closed)
+			return false;
+		long first = head.get();
+		return position - first >= SLOTS || (position != first && !window.fits(length));
+	}
+
+	/**
+	 * Sets the sink and writes everything which was waiting.
+	 * 
+	 * @param sink Where the bytes must go.
+	 */
+	public void open(Sink sink) {
+		this.sink = sink;
+		drain();
+	}
+
+	private void drain() {
+		while (sink != null && !closed && head.get() != tail.get() && draining.compareAndSet(false, true)) {
+			try {
+				long position = head.get();
+				while (!closed && position != tail.get()) {
+					int slot = (int) (position % SLOTS);
+					byte[] slice = slices[slot];
+					sink.write(slice, 0, slice.length);
+					slices[slot] = null;
+					window.release(slice.length);
+					position++;
+					head.set(position);
+					Thread writer = waitingWriter;
+					if (writer != null)
+						LockSupport.unpark(writer);
+				}
+			} finally {
+				draining.set(false);
+			}
+		}
+	}
+
+	/**
+	 * Closes the ring, what was waiting is dropped.
+	 */
+	public void close() {
+		closed = true;
+		// The draining flag is kept set, nothing can be written anymore.
+		Thread writer = waitingWriter;
+		if (writer != null)
+			LockSupport.unpark(writer);
+		if (draining.compareAndSet(false, true)) {
+			long position = head.get();
+			while (position != tail.get()) {
+				slices[(int) (position % SLOTS)] = null;
+				position++;
+			}
+			head.set(position);
+			window.reset();
+		}
+	}
+
+}
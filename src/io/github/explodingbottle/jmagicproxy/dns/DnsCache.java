@@ -0,0 +1,288 @@
+/*
+ *   JMagic Proxy - A HTTP and HTTPS Proxy
+ *   Copyright (C) 2023  ExplodingBottle
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.explodingbottle.jmagicproxy.dns;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.Security;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import io.github.explodingbottle.jmagicproxy.ProxyMain;
+import io.github.explodingbottle.jmagicproxy.logging.LoggingLevel;
+import io.github.explodingbottle.jmagicproxy.logging.ProxyLogger;
+
+/**
+ * This Thread keeps the results of the host resolutions, so the resolver isn't
+ * on the path of every outgoing connection. Unknown hosts are remembered for a
+ * shorter time. A host which was used often enough during the life of its
+ * entry is resolved again by this thread before the entry expires, a failed
+ * refresh keeps the old addresses until they expire.
+ *
+ * The hosts listed in the overrides file never reach the resolver.
+ *
+ * The system resolver doesn't give the TTL of the records, so the lifetimes
+ * come from the configuration.
+ *
+ * @author ExplodingBottle
+ *
+ */
+public class DnsCache extends Thread {
+
+	/**
+	 * The part of the lifetime of an entry after which it can be refreshed.
+	 */
+	private static final double REFRESH_RATIO = 0.75;
+
+	private ProxyLogger logger;
+
+	private long ttl;
+	private long negativeTtl;
+	private int refreshHits;
+	private int maxEntries;
+
+	private Map<String, InetAddress[]> overrides;
+	private LinkedHashMap<String, CacheEntry> entries;
+	private HashSet<String> resolving;
+	private ArrayDeque<String> refreshQueue;
+
+	private long hitCount;
+	private long negativeHitCount;
+	private long missCount;
+	private long refreshCount;
+	private long failedRefreshCount;
+	private long overrideCount;
+	private long evictedCount;
+
+	private boolean closed;
+
+	private static class CacheEntry {
+		private InetAddress[] addresses;
+		private long expiry;
+		private long refreshAt;
+		private int hits;
+		private boolean refreshing;
+
+		private CacheEntry(InetAddress[] addresses, long now, long lifetime) {
+			this.addresses = addresses;
+			expiry = now + lifetime;
+			refreshAt = now + (long) (lifetime * REFRESH_RATIO);
+		}
+	}
+
+	/**
+	 * Creates the cache.
+	 *
+	 * @param ttl           The time in milliseconds the addresses of a host are
+	 *                      kept, 0 disables it.
+	 * @param negativeTtl   The time in milliseconds an unknown host is
+	 *                      remembered, 0 disables it.
+	 * @param refreshHits   The count of uses during the life of an entry from
+	 *                      which it is refreshed before it expires, 0 disables
+	 *                      the refreshes.
+	 * @param maxEntries    The maximum count of entries, the least recently used
+	 *                      ones are dropped beyond it.
+	 * @param overridesPath The path of the overrides file, or an empty string if
+	 *                      there is none.
+	 */
+	public DnsCache(long ttl, long negativeTtl, int refreshHits, int maxEntries, String overridesPath) {
+		this.ttl = Math.max(0, ttl);
+		this.negativeTtl = Math.max(0, negativeTtl);
+		this.refreshHits = Math.max(0, refreshHits);
+		this.maxEntries = Math.max(1, maxEntries);
+		logger = ProxyMain.getLoggerProvider().createLogger();
+		entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+				if (size() > DnsCache.this.maxEntries) {
+					evictedCount++;
+					return true;
+				}
+				return false;
+			}
+		};
+		resolving = new HashSet<String>();
+		refreshQueue = new ArrayDeque<String>();
+		if (overridesPath != null && !overridesPath.trim().isEmpty()) {
+			overrides = new HostsOverrides(new File(overridesPath.trim())).load();
+		} else {
+			overrides = Collections.emptyMap();
+		}
+		if (isEnabled()) {
+			// Otherwise the refreshes could get the copy kept by the JVM. This only
+			// applies if nothing was resolved yet.
+			Security.setProperty("networkaddress.cache.ttl", "0");
+			Security.setProperty("networkaddress.cache.negative.ttl", "0");
+		}
+		setName("DNS Cache Refresher");
+		setDaemon(true);
+	}
+
+	private boolean isEnabled() {
+		return ttl > 0 || negativeTtl > 0;
+	}
+
+	/**
+	 * Gives the addresses of a host, from the overrides, from the cache or from
+	 * the resolver.
+	 *
+	 * @param host The host to resolve.
+	 * @return The addresses of the host.
+	 * @throws UnknownHostException If the host is unknown.
+	 */
+	public InetAddress[] resolve(String host) throws UnknownHostException {
+		String key = host.toLowerCase(Locale.ROOT);
+		InetAddress[] overridden = overrides.get(key);
+		if (overridden != null) {
+			synchronized (this) {
+				overrideCount++;
+			}
+			return overridden.clone();
+		}
+		if (!isEnabled()) {
+			synchronized (this) {
+				missCount++;
+			}
+			return InetAddress.getAllByName(host);
+		}
+		synchronized (this) {
+			while (true) {
+				long now = System.currentTimeMillis();
+				CacheEntry entry = entries.get(key);
+				if (entry != null && entry.expiry > now) {
+					entry.hits++;
+					if (entry.addresses == null) {
+						negativeHitCount++;
+						throw new UnknownHostException(host);
+					}
+					hitCount++;
+					if (refreshHits > 0 && !entry.refreshing && entry.hits >= refreshHits && now >= entry.refreshAt) {
+						entry.refreshing = true;
+						refreshQueue.add(key);
+						notifyAll();
+					}
+					return entry.addresses.clone();
+				}
+				if (!resolving.contains(key))
+					break;
+				// Another thread is resolving this host, its result will be used.
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new UnknownHostException(host);
+				}
+			}
+			missCount++;
+			resolving.add(key);
+		}
+		InetAddress[] resolved = null;
+		boolean unknown = false;
+		try {
+			resolved = InetAddress.getAllByName(host);
+			return resolved.clone();
+		} catch (UnknownHostException e) {
+			unknown = true;
+			throw e;
+		} finally {
+			synchronized (this) {
+				resolving.remove(key);
+				long now = System.currentTimeMillis();
+				if (resolved != null && ttl > 0) {
+					entries.put(key, new CacheEntry(resolved, now, ttl));
+				} else if (unknown && negativeTtl > 0) {
+					entries.put(key, new CacheEntry(null, now, negativeTtl));
+				}
+				notifyAll();
+			}
+		}
+	}
+
+	private void refresh(String key) {
+		InetAddress[] resolved = null;
+		try {
+			resolved = InetAddress.getAllByName(key);
+		} catch (UnknownHostException e) {
+			logger.log(LoggingLevel.WARN, "Failed to refresh the addresses of " + key + ".", e);
+		}
+		synchronized (this) {
+			CacheEntry entry = entries.get(key);
+			if (resolved != null) {
+				refreshCount++;
+				entries.put(key, new CacheEntry(resolved, System.currentTimeMillis(), ttl));
+			} else {
+				failedRefreshCount++;
+				if (entry != null) {
+					// Otherwise each following hit would start a new refresh until the entry
+					// expires.
+					long now = System.currentTimeMillis();
+					entry.refreshing = false;
+					entry.hits = 0;
+					entry.refreshAt = now + Math.max(0, entry.expiry - now) / 2;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stops the refreshes.
+	 */
+	public synchronized void closeCache() {
+		closed = true;
+		refreshQueue.clear();
+		notifyAll();
+	}
+
+	/**
+	 * Returns a summary of the counters.
+	 *
+	 * @return The summary.
+	 */
+	public synchronized String getStatistics() {
+		return "DNS cache: " + entries.size() + " entries, " + hitCount + " hits, " + negativeHitCount
+				+ " negative hits, " + missCount + " misses, " + refreshCount + " refreshes (" + failedRefreshCount
+				+ " failed), " + overrideCount + " overridden, " + evictedCount + " evicted.";
+	}
+
+	public void run() {
+		while (true) {
+			String key;
+			synchronized (this) {
+				while (!closed && refreshQueue.isEmpty()) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (closed)
+					return;
+				key = refreshQueue.poll();
+			}
+			refresh(key);
+		}
+	}
+
+}
@@ -0,0 +1,116 @@
+/*
+ *   JMagic Proxy - A HTTP and HTTPS Proxy
+ *   Copyright (C) 2023  ExplodingBottle
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.explodingbottle.jmagicproxy.dns;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import io.github.explodingbottle.jmagicproxy.ProxyMain;
+import io.github.explodingbottle.jmagicproxy.logging.LoggingLevel;
+import io.github.explodingbottle.jmagicproxy.logging.ProxyLogger;
+
+/**
+ * This class reads a file giving the addresses of some hosts, so they can be
+ * used without any DNS. The file uses the format of a {@code hosts} file: an
+ * IP followed by one or more host names on each line, {@code #} starting a
+ * comment. A host listed on several lines gets all of their addresses.
+ *
+ * @author ExplodingBottle
+ *
+ */
+class HostsOverrides {
+
+	private static final Pattern IPV4_LITERAL = Pattern.compile("\\d{1,3}(\\.\\d{1,3}){3}");
+
+	private File file;
+	private ProxyLogger logger;
+
+	/**
+	 * Builds the reader of an overrides file.
+	 *
+	 * @param file The file to read.
+	 */
+	HostsOverrides(File file) {
+		this.file = file;
+		logger = ProxyMain.getLoggerProvider().createLogger();
+	}
+
+	private InetAddress parseLiteral(String ip, String host) {
+		// Only literals are accepted, InetAddress would start a lookup otherwise.
+		if (!IPV4_LITERAL.matcher(ip).matches() && ip.indexOf(':') < 0)
+			return null;
+		try {
+			return InetAddress.getByAddress(host, InetAddress.getByName(ip).getAddress());
+		} catch (UnknownHostException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Reads the file.
+	 *
+	 * @return The addresses of each host, the host names are in lower case. The
+	 *         map is empty if the file couldn't be read.
+	 */
+	Map<String, InetAddress[]> load() {
+		HashMap<String, List<InetAddress>> found = new HashMap<String, List<InetAddress>>();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"))) {
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				int comment = line.indexOf('#');
+				if (comment >= 0)
+					line = line.substring(0, comment);
+				String[] parts = line.trim().split("\\s+");
+				if (parts.length < 2)
+					continue;
+				for (int i = 1; i < parts.length; i++) {
+					String host = parts[i].toLowerCase(Locale.ROOT);
+					InetAddress address = parseLiteral(parts[0], host);
+					if (address == null) {
+						logger.log(LoggingLevel.WARN,
+								"Ignoring line " + lineNumber + " of the DNS overrides, " + parts[0] + " is not an IP.");
+						break;
+					}
+					found.computeIfAbsent(host, key -> new ArrayList<InetAddress>()).add(address);
+				}
+			}
+		} catch (IOException e) {
+			logger.log(LoggingLevel.WARN, "Failed to read the DNS overrides file " + file + ".", e);
+		}
+		HashMap<String, InetAddress[]> overrides = new HashMap<String, InetAddress[]>();
+		found.forEach((host, addresses) -> {
+			overrides.put(host, addresses.toArray(new InetAddress[0]));
+		});
+		logger.log(LoggingLevel.INFO, "Loaded DNS overrides for " + overrides.size() + " host(s).");
+		return overrides;
+	}
+
+}
@@ -0,0 +1,41 @@
+/*
+ *   JMagic Proxy - A HTTP and HTTPS Proxy
+ *   Copyright (C) 2023  ExplodingBottle
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.explodingbottle.jmagicproxy.http;
+
+/**
+ * This enumeration lists what a {@link HttpHeadParser} found in the bytes it
+ * has been given.
+ * 
+ * @author ExplodingBottle
+ *
+ */
+public enum HeadParseResult {
+	/**
+	 * The bytes are the start of a header block, which isn't complete yet.
+	 */
+	NEED_MORE,
+	/**
+	 * The header block is complete, the message can be built.
+	 */
+	COMPLETE,
+	/**
+	 * The bytes are not part of a header block, they must be transferred as they
+	 * are.
+	 */
+	NOT_A_HEAD;
+}
@@ -0,0 +1,333 @@
+/*
+ *   JMagic Proxy - A HTTP and HTTPS Proxy
+ *   Copyright (C) 2023  ExplodingBottle
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.explodingbottle.jmagicproxy.http;
+
+import java.util.List;
+
+import io.github.explodingbottle.jmagicproxy.api.HttpHeaders;
+import io.github.explodingbottle.jmagicproxy.api.HttpRequestHeader;
+import io.github.explodingbottle.jmagicproxy.api.HttpResponse;
+
+/**
+ * This class finds where the body of a HTTP message ends, following the rules
+ * of RFC 9112. The body is read as it is transferred, the chunks of a chunked
+ * body are followed without being decoded, so the bytes can be sent as they
+ * are.
+ *
+ * A body which can't be followed, because it ends with the connection or
+ * because its chunks are malformed, takes every byte until the connection is
+ * closed.
+ *
+ * @author ExplodingBottle
+ *
+ */
+public class HttpBodyFramer {
+
+	private static final int MAX_LINE_LENGTH = 4096;
+
+	private static final int COMPLETE = 0;
+	private static final int LENGTH = 1;
+	private static final int CHUNK_SIZE = 2;
+	private static final int CHUNK_DATA = 3;
+	private static final int CHUNK_END = 4;
+	private static final int TRAILER = 5;
+	private static final int UNTIL_CLOSE = 6;
+
+	private int state;
+	private long remaining;
+	private long chunkSize;
+	private boolean sizeRead;
+	private boolean inExtension;
+	private int lineLength;
+	private boolean malformed;
+
+	/**
+	 * Creates the framer, with no body to read.
+	 */
+	public HttpBodyFramer() {
+		state = COMPLETE;
+	}
+
+	/**
+	 * Reads the value of the Content-Length headers. Several values are accepted
+	 * only if they are the same.
+	 *
+	 * @param values The values of the headers.
+	 * @return The length, or -1 if it isn't valid.
+	 */
+	public static long parseContentLength(List<String> values) {
+		long length = -1;
+		for (String value : values) {
+			for (String part : value.split(",", -1)) {
+				part = part.trim();
+				if (part.isEmpty() || part.length() > 18)
+					return -1;
+				for (int i = 0; i < part.length(); i++) {
+					if (part.charAt(i) < '0' || part.charAt(i) > '9')
+						return -1;
+				}
+				long parsed = Long.parseLong(part);
+				if (length != -1 && parsed != length)
+					return -1;
+				length = parsed;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Tells if the last transfer coding of a message is chunked.
+	 *
+	 * @param headers The headers of the message.
+	 * @return If the last coding is chunked, or null if there is no
+	 *         Transfer-Encoding header.
+	 */
+	static Boolean isChunked(HttpHeaders headers) {
+		List<String> codings = headers.getAll("Transfer-Encoding");
+		if (codings.isEmpty())
+			return null;
+		String last = codings.get(codings.size() - 1);
+		int comma = last.lastIndexOf(',');
+		return "chunked".equalsIgnoreCase(last.substring(comma + 1).trim());
+	}
+
+	private void startChunks() {
+		state = CHUNK_SIZE;
+		chunkSize = 0;
+		sizeRead = false;
+		inExtension = false;
+		lineLength = 0;
+	}
+
+	/**
+	 * Starts the body of a response.
+	 *
+	 * @param response    The response, as received from the server.
+	 * @param headRequest If the response answers a HEAD request.
+	 */
+	public void startResponse(HttpResponse response, boolean headRequest) {
+		malformed = false;
+		int code = response.getResponseCode();
+		if (headRequest || (code >= 100 && code < 200) || code == 204 || code == 304) {
+			state = COMPLETE;
+			return;
+		}
+		HttpHeaders headers = response.getHeaderList();
+		Boolean chunked = isChunked(headers);
+		if (chunked != null) {
+			// A response whose last coding isn't chunked ends with the connection.
+			if (chunked)
+				startChunks();
+			else
+				state = UNTIL_CLOSE;
+			return;
+		}
+		List<String> lengths = headers.getAll("Content-Length");
+		if (lengths.isEmpty()) {
+			state = UNTIL_CLOSE;
+			return;
+		}
+		remaining = parseContentLength(lengths);
+		if (remaining < 0) {
+			malformed = true;
+			state = UNTIL_CLOSE;
+		} else {
+			state = remaining == 0 ? COMPLETE : LENGTH;
+		}
+	}
+
+	/**
+	 * Starts the body of a request. A request without Content-Length or
+	 * Transfer-Encoding has no body. The Content-Length of a chunked request is
+	 * removed, so the server can't use it to find the end of the body.
+	 *
+	 * @param request The request, as received from the client.
+	 * @return If the framing of the body is valid. Where an invalid body ends
+	 *         can't be known, so the request must be rejected.
+	 */
+	public boolean startRequest(HttpRequestHeader request) {
+		malformed = false;
+		state = COMPLETE;
+		HttpHeaders headers = request.getHeaderList();
+		Boolean chunked = isChunked(headers);
+		if (chunked != null) {
+			if (!chunked) {
+				malformed = true;
+				return false;
+			}
+			headers.remove("Content-Length");
+			startChunks();
+			return true;
+		}
+		List<String> lengths = headers.getAll("Content-Length");
+		if (lengths.isEmpty())
+			return true;
+		remaining = parseContentLength(lengths);
+		if (remaining < 0) {
+			malformed = true;
+			return false;
+		}
+		if (remaining > 0)
+			state = LENGTH;
+		return true;
+	}
+
+	/**
+	 * Tells if the client waits for a {@code 100 Continue} response before
+	 * sending the body of its request.
+	 *
+	 * @param request The request given to {@link #startRequest(HttpRequestHeader)}.
+	 * @return If the request has a body and expects {@code 100-continue}.
+	 */
+	public boolean isWaitingForContinue(HttpRequestHeader request) {
+		String expect = request.getHeaderList().get("Expect");
+		return state != COMPLETE && expect != null && "100-continue".equalsIgnoreCase(expect.trim());
+	}
+
+	private void fail() {
+		malformed = true;
+		state = UNTIL_CLOSE;
+	}
+
+	private static int hexValue(byte read) {
+		if (read >= '0' && read <= '9')
+			return read - '0';
+		if (read >= 'a' && read <= 'f')
+			return read - 'a' + 10;
+		if (read >= 'A' && read <= 'F')
+			return read - 'A' + 10;
+		return -1;
+	}
+
+	private void readChunkSize(byte read) {
+		if (++lineLength > MAX_LINE_LENGTH) {
+			fail();
+			return;
+		}
+		if (read == '\n') {
+			if (!sizeRead) {
+				fail();
+			} else if (chunkSize == 0) {
+				state = TRAILER;
+				lineLength = 0;
+			} else {
+				remaining = chunkSize;
+				state = CHUNK_DATA;
+			}
+			return;
+		}
+		if (read == '\r' || inExtension)
+			return;
+		if (read == ';' || read == ' ' || read == '\t') {
+			inExtension = true;
+			return;
+		}
+		int digit = hexValue(read);
+		if (digit < 0 || chunkSize > (Long.MAX_VALUE >> 4)) {
+			fail();
+			return;
+		}
+		chunkSize = (chunkSize << 4) | digit;
+		sizeRead = true;
+	}
+
+	private void readChunkEnd(byte read) {
+		if (read == '\n')
+			startChunks();
+		else if (read != '\r')
+			fail();
+	}
+
+	private void readTrailer(byte read) {
+		if (read == '\n') {
+			if (lineLength == 0)
+				state = COMPLETE;
+			lineLength = 0;
+		} else if (read != '\r' && ++lineLength > MAX_LINE_LENGTH) {
+			fail();
+		}
+	}
+
+	/**
+	 * Reads bytes of the body. It stops at the end of the body, the following
+	 * bytes belong to the next message.
+	 *
+	 * @param data   The read bytes.
+	 * @param offset Where the bytes start.
+	 * @param count  The count of bytes.
+	 * @return The count of bytes which are part of the body.
+	 */
+	public int consume(byte[] data, int offset, int count) {
+		int end = offset + count;
+		int position = offset;
+		while (position < end && state != COMPLETE) {
+			switch (state) {
+			case UNTIL_CLOSE:
+				position = end;
+				break;
+			case LENGTH:
+			case CHUNK_DATA:
+				int length = (int) Math.min(remaining, end - position);
+				position += length;
+				remaining -= length;
+				if (remaining == 0)
+					state = state == LENGTH ? COMPLETE : CHUNK_END;
+				break;
+			case CHUNK_SIZE:
+				readChunkSize(data[position++]);
+				break;
+			case CHUNK_END:
+				readChunkEnd(data[position++]);
+				break;
+			default:
+				readTrailer(data[position++]);
+				break;
+			}
+		}
+		return position - offset;
+	}
+
+	/**
+	 * Tells if the whole body has been read.
+	 *
+	 * @return If the next bytes start a new message.
+	 */
+	public boolean isComplete() {
+		return state == COMPLETE;
+	}
+
+	/**
+	 * Tells if the body ends with the connection.
+	 *
+	 * @return If every following byte is part of the body.
+	 */
+	public boolean isCloseDelimited() {
+		return state == UNTIL_CLOSE;
+	}
+
+	/**
+	 * Tells if the framing of the body was invalid, the body is then considered
+	 * to end with the connection.
+	 *
+	 * @return If the framing was invalid.
+	 */
+	public boolean isMalformed() {
+		return malformed;
+	}
+
+}
@@ -0,0 +1,390 @@
+/*
+ *   JMagic Proxy - A HTTP and HTTPS Proxy
+ *   Copyright (C) 2023  ExplodingBottle
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.explodingbottle.jmagicproxy.http;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import io.github.explodingbottle.jmagicproxy.ProxyMain;
+import io.github.explodingbottle.jmagicproxy.api.HttpHeaders;
+import io.github.explodingbottle.jmagicproxy.api.HttpMethod;
+import io.github.explodingbottle.jmagicproxy.api.HttpRequestHeader;
+import io.github.explodingbottle.jmagicproxy.api.HttpResponse;
+import io.github.explodingbottle.jmagicproxy.api.MalformedParsableContent;
+import io.github.explodingbottle.jmagicproxy.properties.PropertiesProvider;
+import io.github.explodingbottle.jmagicproxy.properties.PropertyKey;
+
+/**
+ * This class finds the header blocks of the HTTP messages in the bytes read
+ * from a connection. The bytes are given as they are read, a header block can
+ * be split between several reads. The parser only keeps the bytes of the
+ * current header block and where its lines start, the message is built once
+ * the block is complete.
+ * 
+ * The bytes which can't be the start of a message, like a body which isn't
+ * framed, are given back line by line so they can be transferred as they are.
+ * 
+ * @author ExplodingBottle
+ *
+ */
+public class HttpHeadParser {
+
+	private static final int INITIAL_SIZE = 1024;
+	private static final int INITIAL_LINES = 16;
+	private static final int MAX_METHOD_LENGTH = 16;
+	private static final byte[] VERSION_PREFIX = { 'H', 'T', 'T', 'P', '/' };
+	private static final HttpMethod[] METHODS = HttpMethod.values();
+
+	private boolean response;
+	private int maxSize;
+	private int maxCount;
+
+	private byte[] head;
+	private int length;
+	private int[] lineStarts;
+	private int lineCount;
+	private int lineStart;
+	private int headEnd;
+
+	private boolean startAccepted;
+	private boolean spaceBeforeColon;
+	private boolean skipping;
+	private int rejectedLength;
+	private HeadParseResult result;
+
+	/**
+	 * Creates a parser.
+	 * 
+	 * @param response If the parser looks for responses rather than requests.
+	 * @param maxSize  The maximum size in bytes of a header block.
+	 * @param maxCount The maximum count of headers in a header block.
+	 */
+	public HttpHeadParser(boolean response, int maxSize, int maxCount) {
+		this.response = response;
+		this.maxSize = Math.max(VERSION_PREFIX.length + 1, maxSize);
+		this.maxCount = Math.max(0, maxCount);
+		head = new byte[Math.min(INITIAL_SIZE, this.maxSize)];
+		lineStarts = new int[Math.min(INITIAL_LINES, this.maxCount + 1)];
+		result = HeadParseResult.NEED_MORE;
+	}
+
+	/**
+	 * Creates a parser with the limits of the configuration.
+	 * 
+	 * @param response If the parser looks for responses rather than requests.
+	 * @return The parser.
+	 */
+	public static HttpHeadParser createConfigured(boolean response) {
+		PropertiesProvider properties = ProxyMain.getPropertiesProvider();
+		return new HttpHeadParser(response, properties.getAsInteger(PropertyKey.PROXY_HEADERS_MAX_SIZE),
+				properties.getAsInteger(PropertyKey.PROXY_HEADERS_MAX_COUNT));
+	}
+
+	/**
+	 * Forgets the current header block.
+	 */
+	public void reset() {
+		length = 0;
+		lineCount = 0;
+		lineStart = 0;
+		headEnd = 0;
+		startAccepted = false;
+		spaceBeforeColon = false;
+		skipping = false;
+		rejectedLength = 0;
+		result = HeadParseResult.NEED_MORE;
+	}
+
+	/**
+	 * Tells if a byte can be at this place of the first line of a message.
+	 * 
+	 * @return -1 if it can't, 1 if the line is now known to be a first line, 0 if
+	 *         more bytes are needed to know.
+	 */
+	private int checkStart(byte read, int index) {
+		if (response) {
+			if (read != VERSION_PREFIX[index])
+				return -1;
+			return index == VERSION_PREFIX.length - 1 ? 1 : 0;
+		}
+		if (read == ' ')
+			return index > 0 ? 1 : -1;
+		boolean letter = (read >= 'A' && read <= 'Z') || (read >= 'a' && read <= 'z');
+		return letter && index < MAX_METHOD_LENGTH ? 0 : -1;
+	}
+
+	private void append(byte read) throws MalformedParsableContent {
+		if (length == head.length) {
+			if (length >= maxSize)
+				throw new MalformedParsableContent("The header block is larger than " + maxSize + " bytes.");
+			byte[] grown = new byte[(int) Math.min(maxSize, head.length * 2L)];
+			System.arraycopy(head, 0, grown, 0, length);
+			head = grown;
+		}
+		head[length++] = read;
+	}
+
+	private void endLine() throws MalformedParsableContent {
+		if (lineCount == lineStarts.length) {
+			if (lineCount > maxCount)
+				throw new MalformedParsableContent("The header block has more than " + maxCount + " headers.");
+			int[] grown = new int[Math.min(maxCount + 1, lineCount * 2)];
+			System.arraycopy(lineStarts, 0, grown, 0, lineCount);
+			lineStarts = grown;
+		}
+		lineStarts[lineCount++] = lineStart;
+		lineStart = length;
+	}
+
+	/**
+	 * Gives read bytes to the parser. It reads them until the end of the header
+	 * block or until it finds they are not part of a header block.
+	 * 
+	 * @param data   The read bytes.
+	 * @param offset Where the bytes to parse start.
+	 * @param count  The count of bytes to parse.
+	 * @return The count of bytes used, they are either part of the header block
+	 *         or not a header block depending on {@link #getResult()}.
+	 * @throws MalformedParsableContent If the header block is too large or has
+	 *                                  too many headers.
+	 */
+	public int feed(byte[] data, int offset, int count) throws MalformedParsableContent {
+		if (result == HeadParseResult.COMPLETE) {
+			reset();
+		} else if (result == HeadParseResult.NOT_A_HEAD) {
+			// The rejected bytes have been taken by the caller.
+			length = 0;
+			rejectedLength = 0;
+			result = HeadParseResult.NEED_MORE;
+		}
+		int end = offset + count;
+		int position = offset;
+		if (!skipping) {
+			int heldBefore = length;
+			while (position < end) {
+				byte read = data[position];
+				if (!startAccepted) {
+					int decision = checkStart(read, length);
+					if (decision < 0) {
+						rejectedLength = heldBefore;
+						length = 0;
+						skipping = true;
+						break;
+					}
+					startAccepted = decision > 0;
+				}
+				append(read);
+				position++;
+				if (read == '\n') {
+					int lineLength = length - lineStart;
+					if (lineLength == 1 || (lineLength == 2 && head[lineStart] == '\r')) {
+						headEnd = lineStart;
+						result = HeadParseResult.COMPLETE;
+						return position - offset;
+					}
+					endLine();
+				}
+			}
+			if (!skipping)
+				return count;
+		}
+		while (position < end) {
+			if (data[position++] == '\n') {
+				skipping = false;
+				startAccepted = false;
+				break;
+			}
+		}
+		result = HeadParseResult.NOT_A_HEAD;
+		return position - offset;
+	}
+
+	/**
+	 * Returns what the last given bytes were.
+	 * 
+	 * @return The result of the last call to
+	 *         {@link #feed(byte[], int, int)}.
+	 */
+	public HeadParseResult getResult() {
+		return result;
+	}
+
+	/**
+	 * Tells if the start of a header block has been read.
+	 * 
+	 * @return If a header block is being read.
+	 */
+	public boolean hasPartialHead() {
+		return result == HeadParseResult.NEED_MORE && length > 0;
+	}
+
+	/**
+	 * Returns the buffer of the bytes kept by previous calls which were found not
+	 * to be a header block. They come before the bytes of the last call.
+	 * 
+	 * @return The buffer, the bytes start at 0.
+	 */
+	public byte[] getRejectedBytes() {
+		return head;
+	}
+
+	/**
+	 * Returns the count of bytes in {@link #getRejectedBytes()}.
+	 * 
+	 * @return The count of rejected bytes, 0 unless the result is
+	 *         {@link HeadParseResult#NOT_A_HEAD}.
+	 */
+	public int getRejectedLength() {
+		return result == HeadParseResult.NOT_A_HEAD ? rejectedLength : 0;
+	}
+
+	private static boolean isSpace(byte read) {
+		return read == ' ' || read == '\t';
+	}
+
+	private int getLineEnd(int line) {
+		int end = line + 1 < lineCount ? lineStarts[line + 1] : headEnd;
+		while (end > lineStarts[line] && (head[end - 1] == '\n' || head[end - 1] == '\r'))
+			end--;
+		return end;
+	}
+
+	private int indexOf(byte searched, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (head[i] == searched)
+				return i;
+		}
+		return -1;
+	}
+
+	private String text(int from, int to) {
+		return new String(head, from, to - from, StandardCharsets.ISO_8859_1);
+	}
+
+	private HttpHeaders buildHeaders() {
+		HttpHeaders headers = new HttpHeaders();
+		spaceBeforeColon = false;
+		int last = -1;
+		for (int line = 1; line < lineCount; line++) {
+			int from = lineStarts[line];
+			int to = getLineEnd(line);
+			while (to > from && isSpace(head[to - 1]))
+				to--;
+			if (from == to)
+				continue;
+			if (isSpace(head[from])) {
+				// A folded line continues the value of the previous header.
+				while (isSpace(head[from]))
+					from++;
+				if (last >= 0)
+					headers.setValue(last, headers.getValue(last) + " " + text(from, to));
+				continue;
+			}
+			int colon = indexOf((byte) ':', from, to);
+			int nameEnd = colon;
+			while (nameEnd > from && isSpace(head[nameEnd - 1]))
+				nameEnd--;
+			if (nameEnd != colon)
+				spaceBeforeColon = true;
+			if (nameEnd <= from) {
+				last = -1;
+				continue;
+			}
+			int valueFrom = colon + 1;
+			while (valueFrom < to && isSpace(head[valueFrom]))
+				valueFrom++;
+			last = headers.size();
+			headers.add(HttpHeaders.internName(head, from, nameEnd), text(valueFrom, to));
+		}
+		return headers;
+	}
+
+	/**
+	 * Tells if a header name of the last built message is followed by whitespace
+	 * before its colon. Such a request must be rejected, as the server could read
+	 * the header differently.
+	 * 
+	 * @return If a header name has whitespace before its colon.
+	 */
+	public boolean hasSpaceBeforeColon() {
+		return spaceBeforeColon;
+	}
+
+	private HttpMethod findMethod(int to) {
+		for (HttpMethod method : METHODS) {
+			String name = method.name();
+			if (name.length() != to)
+				continue;
+			int i = 0;
+			while (i < to && (head[i] | 0x20) == (name.charAt(i) | 0x20))
+				i++;
+			if (i == to)
+				return method;
+		}
+		return null;
+	}
+
+	/**
+	 * Builds the request from the complete header block.
+	 * 
+	 * @return The request.
+	 * @throws MalformedParsableContent If the first line isn't a request line.
+	 */
+	public HttpRequestHeader toRequest() throws MalformedParsableContent {
+		int end = getLineEnd(0);
+		int firstSpace = indexOf((byte) ' ', 0, end);
+		int lastSpace = end - 1;
+		while (lastSpace > firstSpace && head[lastSpace] != ' ')
+			lastSpace--;
+		if (firstSpace <= 0 || lastSpace <= firstSpace + 1)
+			throw new MalformedParsableContent("First line doesn't have 3 chunks.");
+		HttpMethod method = findMethod(firstSpace);
+		if (method == null)
+			throw new MalformedParsableContent("First line is not a correct method.");
+		int version = lastSpace + 1;
+		if (end - version < VERSION_PREFIX.length + 1 || head[version] != 'H' || head[version + 4] != '/')
+			throw new MalformedParsableContent("Request version doesn't starts with HTTP.");
+		return new HttpRequestHeader(method, text(firstSpace + 1, lastSpace), text(version, end), buildHeaders(),
+				Arrays.copyOf(head, length));
+	}
+
+	/**
+	 * Builds the response from the complete header block.
+	 * 
+	 * @return The response.
+	 * @throws MalformedParsableContent If the first line isn't a status line.
+	 */
+	public HttpResponse toResponse() throws MalformedParsableContent {
+		int end = getLineEnd(0);
+		int firstSpace = indexOf((byte) ' ', 0, end);
+		if (firstSpace < 0 || end - firstSpace < 4)
+			throw new MalformedParsableContent("First line doesn't have a response code.");
+		int code = 0;
+		for (int i = firstSpace + 1; i < firstSpace + 4; i++) {
+			if (head[i] < '0' || head[i] > '9')
+				throw new MalformedParsableContent("Response code is not a valid number.");
+			code = code * 10 + head[i] - '0';
+		}
+		int codeEnd = firstSpace + 4;
+		if (codeEnd < end && head[codeEnd] != ' ')
+			throw new MalformedParsableContent("Response code is not a valid number.");
+		String message = codeEnd < end ? text(codeEnd + 1, end) : "";
+		return new HttpResponse(text(0, firstSpace), code, message, buildHeaders(), Arrays.copyOf(head, length));
+	}
+
+}
@@ -0,0 +1,284 @@
+/*
+ *   JMagic Proxy - A HTTP and HTTPS Proxy
+ *   Copyright (C) 2023  ExplodingBottle
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.explodingbottle.jmagicproxy.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.github.explodingbottle.jmagicproxy.HardcodedConfig;
+import io.github.explodingbottle.jmagicproxy.ProxyMain;
+import io.github.explodingbottle.jmagicproxy.api.HttpHeaders;
+import io.github.explodingbottle.jmagicproxy.api.HttpResponse;
+
+/**
+ * This class writes the responses sent to a client. The header block of a
+ * response is encoded into a leased buffer and kept there until the first
+ * bytes of the body are written, so both are sent with a single write. Over
+ * SSL, this also means a single record instead of one for the header block
+ * and one for the start of the body.
+ *
+ * The writes and, over SSL, the records of each response are counted for all
+ * the writers.
+ *
+ * @author ExplodingBottle
+ *
+ */
+public class HttpMessageWriter {
+
+	/**
+	 * The biggest count of bytes a SSL record can carry.
+	 */
+	private static final int SSL_RECORD_SIZE = 16384;
+
+	private static final byte[] CRLF = { '\r', '\n' };
+	private static final byte[] SEPARATOR = { ':', ' ' };
+	private static final byte[][] STATUS_LINES = new byte[600][];
+
+	private static final AtomicLong GLOBAL_RESPONSES = new AtomicLong();
+	private static final AtomicLong GLOBAL_WRITES = new AtomicLong();
+	private static final AtomicLong GLOBAL_SSL_RESPONSES = new AtomicLong();
+	private static final AtomicLong GLOBAL_SSL_WRITES = new AtomicLong();
+	private static final AtomicLong GLOBAL_SSL_RECORDS = new AtomicLong();
+	private static final AtomicLong GLOBAL_COALESCED = new AtomicLong();
+
+	static {
+		String[] reasons = { "100 Continue", "101 Switching Protocols", "200 OK", "201 Created", "202 Accepted",
+				"204 No Content", "206 Partial Content", "301 Moved Permanently", "302 Found", "303 See Other",
+				"304 Not Modified", "307 Temporary Redirect", "308 Permanent Redirect", "400 Bad Request",
+				"401 Unauthorized", "403 Forbidden", "404 Not Found", "405 Method Not Allowed",
+				"408 Request Timeout", "411 Length Required", "413 Content Too Large", "416 Range Not Satisfiable",
+				"429 Too Many Requests", "431 Request Header Fields Too Large", "500 Internal Server Error",
+				"501 Not Implemented", "502 Bad Gateway", "503 Service Unavailable", "504 Gateway Timeout" };
+		for (String reason : reasons) {
+			STATUS_LINES[Integer.parseInt(reason.substring(0, 3))] = ("HTTP/1.1 " + reason + "\r\n")
+					.getBytes(StandardCharsets.ISO_8859_1);
+		}
+	}
+
+	private OutputStream out;
+	private boolean ssl;
+
+	private byte[] buffer;
+	private int pending;
+
+	private boolean responseOpen;
+	private int responseWrites;
+	private int responseRecords;
+
+	/**
+	 * Creates the writer.
+	 *
+	 * @param out Where the responses are written.
+	 * @param ssl If the stream is a SSL one, its records are then counted.
+	 */
+	public HttpMessageWriter(OutputStream out, boolean ssl) {
+		this.out = out;
+		this.ssl = ssl;
+	}
+
+	private void ensure(int extra) {
+		if (buffer == null) {
+			buffer = ProxyMain.getBufferPool().leaseHeap(Math.max(HardcodedConfig.returnBufferSize(), extra));
+		} else if (pending + extra > buffer.length) {
+			byte[] grown = ProxyMain.getBufferPool().leaseHeap(Math.max(buffer.length * 2, pending + extra));
+			System.arraycopy(buffer, 0, grown, 0, pending);
+			ProxyMain.getBufferPool().releaseHeap(buffer);
+			buffer = grown;
+		}
+	}
+
+	private void put(byte[] data) {
+		ensure(data.length);
+		System.arraycopy(data, 0, buffer, pending, data.length);
+		pending += data.length;
+	}
+
+	private void put(String text) {
+		int length = text.length();
+		ensure(length);
+		for (int i = 0; i < length; i++)
+			buffer[pending++] = (byte) text.charAt(i);
+	}
+
+	private static byte[] findStatusLine(HttpResponse response) {
+		int code = response.getResponseCode();
+		if (code < 0 || code >= STATUS_LINES.length || STATUS_LINES[code] == null
+				|| !"HTTP/1.1".equals(response.getHttpVersion()))
+			return null;
+		byte[] line = STATUS_LINES[code];
+		String message = response.getResponseMessage();
+		// The line is "HTTP/1.1 XXX " followed by the message and CRLF.
+		if (line.length - 15 != message.length())
+			return null;
+		for (int i = 0; i < message.length(); i++) {
+			if (line[13 + i] != message.charAt(i))
+				return null;
+		}
+		return line;
+	}
+
+	private void send(byte[] data, int offset, int length) throws IOException {
+		out.write(data, offset, length);
+		responseWrites++;
+		responseRecords += (length + SSL_RECORD_SIZE - 1) / SSL_RECORD_SIZE;
+	}
+
+	private void releaseBuffer() {
+		if (buffer != null) {
+			ProxyMain.getBufferPool().releaseHeap(buffer);
+			buffer = null;
+		}
+		pending = 0;
+	}
+
+	private void finishResponse() {
+		if (!responseOpen)
+			return;
+		responseOpen = false;
+		if (ssl) {
+			GLOBAL_SSL_RESPONSES.incrementAndGet();
+			GLOBAL_SSL_WRITES.addAndGet(responseWrites);
+			GLOBAL_SSL_RECORDS.addAndGet(responseRecords);
+		} else {
+			GLOBAL_RESPONSES.incrementAndGet();
+			GLOBAL_WRITES.addAndGet(responseWrites);
+		}
+	}
+
+	/**
+	 * Starts a new response by encoding its header block. It is sent with the
+	 * first bytes of the body, or by {@link #flush()}. The header blocks of
+	 * several responses, like an interim one followed by the final one, are sent
+	 * together.
+	 *
+	 * @param response The response.
+	 */
+	public void writeHead(HttpResponse response) {
+		finishResponse();
+		responseOpen = true;
+		responseWrites = 0;
+		responseRecords = 0;
+		byte[] rawHead = response.getUnmodifiedHead();
+		if (rawHead != null) {
+			put(rawHead);
+			return;
+		}
+		byte[] statusLine = findStatusLine(response);
+		if (statusLine != null) {
+			put(statusLine);
+		} else {
+			put(response.toHttpResponseLine());
+			put(CRLF);
+		}
+		HttpHeaders headers = response.getHeaderList();
+		for (int i = 0; i < headers.size(); i++) {
+			put(headers.getName(i));
+			put(SEPARATOR);
+			put(headers.getValue(i));
+			put(CRLF);
+		}
+		put(CRLF);
+	}
+
+	/**
+	 * Writes bytes of a body, along with the header block waiting to be sent if
+	 * there is one.
+	 *
+	 * @param data   The bytes.
+	 * @param offset Where the bytes start.
+	 * @param length The count of bytes.
+	 * @throws IOException If the write fails.
+	 */
+	public void write(byte[] data, int offset, int length) throws IOException {
+		if (pending > 0) {
+			int joined = Math.min(length, buffer.length - pending);
+			System.arraycopy(data, offset, buffer, pending, joined);
+			int total = pending + joined;
+			pending = 0;
+			try {
+				send(buffer, 0, total);
+			} finally {
+				releaseBuffer();
+			}
+			if (joined > 0)
+				GLOBAL_COALESCED.incrementAndGet();
+			offset += joined;
+			length -= joined;
+		}
+		if (length > 0)
+			send(data, offset, length);
+	}
+
+	/**
+	 * Sends the header block waiting to be sent, if there is one.
+	 *
+	 * @throws IOException If the write fails.
+	 */
+	public void flush() throws IOException {
+		if (pending == 0)
+			return;
+		int total = pending;
+		pending = 0;
+		try {
+			send(buffer, 0, total);
+		} finally {
+			releaseBuffer();
+		}
+	}
+
+	/**
+	 * Tells if a header block is waiting to be sent.
+	 *
+	 * @return If there is a header block to send.
+	 */
+	public boolean hasPendingHead() {
+		return pending > 0;
+	}
+
+	/**
+	 * Drops the header block waiting to be sent, counts the last response and
+	 * gives back the buffer.
+	 */
+	public void close() {
+		releaseBuffer();
+		finishResponse();
+	}
+
+	private static String average(long total, long count) {
+		return count == 0 ? "0" : String.format(Locale.ROOT, "%.2f", (double) total / count);
+	}
+
+	/**
+	 * Returns a summary of the writes of all the writers.
+	 *
+	 * @return The summary.
+	 */
+	public static String getGlobalStatistics() {
+		long responses = GLOBAL_RESPONSES.get();
+		long sslResponses = GLOBAL_SSL_RESPONSES.get();
+		return "Response writes: " + responses + " responses with " + average(GLOBAL_WRITES.get(), responses)
+				+ " writes on average, " + sslResponses + " SSL responses with "
+				+ average(GLOBAL_SSL_WRITES.get(), sslResponses) + " writes and "
+				+ average(GLOBAL_SSL_RECORDS.get(), sslResponses) + " records on average, "
+				+ GLOBAL_COALESCED.get() + " header blocks sent with the start of their body.";
+	}
+
+}
@@ -35,6 +35,7 @@ import io.github.explodingbottle.jmagicproxy.HardcodedConfig;
 import io.github.explodingbottle.jmagicproxy.ProxyMain;
 import io.github.explodingbottle.jmagicproxy.api.ConnectionDirective;
 import io.github.explodingbottle.jmagicproxy.api.ConnectionType;
+import io.github.explodingbottle.jmagicproxy.api.HttpHeaders;
 import io.github.explodingbottle.jmagicproxy.api.HttpMethod;
 import io.github.explodingbottle.jmagicproxy.api.HttpRequestHeader;
 import io.github.explodingbottle.jmagicproxy.api.HttpResponse;
@@ -56,7 +57,6 @@ public class BasicProxy extends ProxyPlugin {
 
 	private ProxyLogger logger;
 
-	private byte[] fileReadingBuffer;
 	private Map<Object, FileInputStream> readingFiles;
 	private List<Object> toFinishDirectives;
 
@@ -64,7 +64,6 @@ public class BasicProxy extends ProxyPlugin {
 		logger = ProxyMain.getLoggerProvider().createLogger();
 		readingFiles = Collections.synchronizedMap(new HashMap<Object, FileInputStream>());
 		toFinishDirectives = Collections.synchronizedList(new ArrayList<Object>());
-		fileReadingBuffer = new byte[HardcodedConfig.returnBufferSize()];
 	}
 
 	/**
@@ -109,6 +108,8 @@ public class BasicProxy extends ProxyPlugin {
 			if (isDirect) {
 				logger.log(LoggingLevel.INFO, "SSLSortEngine decided that " + realHost + ":" + realPort
 						+ " will be using direct connection.");
+			} else if (ProxyMain.getInterceptionGovernor() != null && !engine.isListedExplicitly(realHost)) {
+				isDirect = ProxyMain.getInterceptionGovernor().shouldDowngrade(realHost, realPort);
 			}
 		} else {
 			String[] splitedHost = host.split("/");
@@ -127,8 +128,7 @@ public class BasicProxy extends ProxyPlugin {
 				} else {
 					realHost = realSmallURLPart;
 				}
-				TreeMap<String, String> modifiedHeaders = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
-				modifiedHeaders.putAll(request.getHeaders());
+				HttpHeaders modifiedHeaders = request.getHeaderList().copy();
 				String proxyConnection = modifiedHeaders.get("Proxy-Connection");
 				logger.log(LoggingLevel.INFO, "Proxy-Connection header was set to " + proxyConnection + ".");
 				modifiedHeaders.remove("Proxy-Connection");
@@ -149,14 +149,14 @@ public class BasicProxy extends ProxyPlugin {
 
 	@Override
 	public IncomingTransferDirective onReceiveServerAnswer(HttpResponse response) {
-		TreeMap<String, String> headers = response.getHeaders();
+		HttpHeaders headers = response.getHeaderList();
 		ConnectionType defaultConType = null;
 		if (response.getHttpVersion().split("/")[1].equals("1.1")) { // Keep-Alive by default after HTTP/1.1
 			defaultConType = ConnectionType.KEEPALIVE;
 		} else if (response.getHttpVersion().split("/")[1].equals("1.0")) {
 			defaultConType = ConnectionType.CLOSE;
 		}
-		if (headers.containsKey("Connection")) {
+		if (headers.contains("Connection")) {
 			logger.log(LoggingLevel.INFO, "Detected a Connection header with " + headers.get("Connection"));
 			if ("Close".equalsIgnoreCase(headers.get("Connection")))
 				defaultConType = ConnectionType.CLOSE;
@@ -219,13 +219,14 @@ public class BasicProxy extends ProxyPlugin {
 		}
 		if (isUsingFile) {
 			if (readingFiles.containsKey(linkedDirective)) {
+				// Several directives can be read at the same time, so each read leases its
+				// own buffer.
+				byte[] fileReadingBuffer = ProxyMain.getBufferPool().leaseHeap(HardcodedConfig.returnBufferSize());
 				try {
 					int read = readingFiles.get(linkedDirective).read(fileReadingBuffer, 0, fileReadingBuffer.length);
 					if (read != -1) {
 						byte[] b = new byte[read];
-						for (int i = 0; i < read; i++) {
-							b[i] = fileReadingBuffer[i];
-						}
+						System.arraycopy(fileReadingBuffer, 0, b, 0, read);
 						return b;
 					} else {
 						readingFiles.get(linkedDirective).close();
@@ -239,6 +240,8 @@ public class BasicProxy extends ProxyPlugin {
 					} catch (IOException e1) {
 						logger.log(LoggingLevel.WARN, "Failed a file close.", e1);
 					}
+				} finally {
+					ProxyMain.getBufferPool().releaseHeap(fileReadingBuffer);
 				}
 			} else {
 				if (!inFile.exists() || inFile.isDirectory()) {
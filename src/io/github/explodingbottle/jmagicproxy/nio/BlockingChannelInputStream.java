@@ -0,0 +1,68 @@
+/*
+ *   JMagic Proxy - A HTTP and HTTPS Proxy
+ *   Copyright (C) 2023  ExplodingBottle
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.explodingbottle.jmagicproxy.nio;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * This input stream reads directly from a {@code SocketChannel} in blocking
+ * mode. It is used instead of {@code Socket.getInputStream()} because the
+ * stream of a channel socket can lock the writing side while a read is
+ * pending.
+ * 
+ * @author ExplodingBottle
+ *
+ */
+class BlockingChannelInputStream extends InputStream {
+
+	private SocketChannel channel;
+
+	/**
+	 * Builds the stream over a channel.
+	 * 
+	 * @param channel The channel to read, must be in blocking mode.
+	 */
+	BlockingChannelInputStream(SocketChannel channel) {
+		this.channel = channel;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] single = new byte[1];
+		int read = read(single, 0, 1);
+		if (read == -1)
+			return -1;
+		return single[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		return channel.read(ByteBuffer.wrap(b, off, len));
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+}
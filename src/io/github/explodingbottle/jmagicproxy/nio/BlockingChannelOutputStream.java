@@ -0,0 +1,64 @@
+/*
+ *   JMagic Proxy - A HTTP and HTTPS Proxy
+ *   Copyright (C) 2023  ExplodingBottle
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.explodingbottle.jmagicproxy.nio;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * This output stream writes directly to a {@code SocketChannel} in blocking
+ * mode.
+ * 
+ * @author ExplodingBottle
+ * @see BlockingChannelInputStream
+ *
+ */
+class BlockingChannelOutputStream extends OutputStream {
+
+	private SocketChannel channel;
+
+	/**
+	 * Builds the stream over a channel.
+	 * 
+	 * @param channel The channel to write, must be in blocking mode.
+	 */
+	BlockingChannelOutputStream(SocketChannel channel) {
+		this.channel = channel;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		ByteBuffer toWrite = ByteBuffer.wrap(b, off, len);
+		while (toWrite.hasRemaining()) {
+			channel.write(toWrite);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+}
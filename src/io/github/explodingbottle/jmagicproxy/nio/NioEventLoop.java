@@ -0,0 +1,185 @@
+/*
+ *   JMagic Proxy - A HTTP and HTTPS Proxy
+ *   Copyright (C) 2023  ExplodingBottle
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.explodingbottle.jmagicproxy.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import io.github.explodingbottle.jmagicproxy.HardcodedConfig;
+import io.github.explodingbottle.jmagicproxy.ProxyMain;
+import io.github.explodingbottle.jmagicproxy.logging.LoggingLevel;
+import io.github.explodingbottle.jmagicproxy.logging.ProxyLogger;
+
+/**
+ * This thread runs a {@code Selector} and drives every connection which has
+ * been registered to it. Nothing running on this thread is allowed to block.
+ * 
+ * @author ExplodingBottle
+ *
+ */
+class NioEventLoop extends Thread {
+
+	private Selector selector;
+	private ProxyLogger logger;
+
+	private ConcurrentLinkedQueue<Runnable> tasks;
+
+	private byte[] heapBuffer;
+	private ByteBuffer heapView;
+	private ByteBuffer directBuffer;
+
+	private volatile boolean running;
+
+	/**
+	 * Builds an event loop with its own selector.
+	 * 
+	 * @throws IOException If the selector could not be opened.
+	 */
+	NioEventLoop() throws IOException {
+		selector = Selector.open();
+		logger = ProxyMain.getLoggerProvider().createLogger();
+		tasks = new ConcurrentLinkedQueue<Runnable>();
+		// Those buffers are shared by every connection of the loop, a connection only
+		// keeps bytes when its peer cannot take them yet.
+		heapBuffer = ProxyMain.getBufferPool().leaseHeap(HardcodedConfig.returnBufferSize());
+		heapView = ByteBuffer.wrap(heapBuffer);
+		directBuffer = ProxyMain.getBufferPool().leaseDirect(HardcodedConfig.returnBufferSize());
+		running = true;
+	}
+
+	/**
+	 * Returns the selector of this loop.
+	 * 
+	 * @return The selector.
+	 */
+	Selector getSelector() {
+		return selector;
+	}
+
+	/**
+	 * Returns the heap buffer shared by the connections of this loop. Its content
+	 * is only valid until the connection returns to the loop.
+	 * 
+	 * @return The shared heap buffer.
+	 */
+	byte[] getHeapBuffer() {
+		return heapBuffer;
+	}
+
+	/**
+	 * Returns a cleared view over the shared heap buffer.
+	 * 
+	 * @return The cleared view.
+	 */
+	ByteBuffer getHeapView() {
+		heapView.clear();
+		return heapView;
+	}
+
+	/**
+	 * Returns the cleared direct buffer shared by the connections of this loop.
+	 * 
+	 * @return The cleared direct buffer.
+	 */
+	ByteBuffer getDirectBuffer() {
+		directBuffer.clear();
+		return directBuffer;
+	}
+
+	/**
+	 * Schedules a task to be executed on the loop thread.
+	 * 
+	 * @param task The task to run.
+	 */
+	void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	/**
+	 * Asks the loop to stop and to close every connection.
+	 */
+	void shutdownLoop() {
+		running = false;
+		selector.wakeup();
+	}
+
+	private void runTasks() {
+		Runnable task = tasks.poll();
+		while (task != null) {
+			try {
+				task.run();
+			} catch (Exception e) {
+				logger.log(LoggingLevel.WARN, "A task of the event loop has failed.", e);
+			}
+			task = tasks.poll();
+		}
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			try {
+				if (selector.selectedKeys().isEmpty())
+					selector.select();
+				else
+					selector.selectNow();
+			} catch (IOException e) {
+				logger.log(LoggingLevel.ERROR, "The selector has failed, the event loop will stop.", e);
+				break;
+			}
+			Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+			while (iterator.hasNext()) {
+				SelectionKey key = iterator.next();
+				iterator.remove();
+				if (!key.isValid())
+					continue;
+				NioProxyConnection connection = (NioProxyConnection) key.attachment();
+				try {
+					connection.handleKey(key);
+				} catch (RuntimeException e) {
+					// Only the connection which failed is lost, not the whole loop.
+					logger.log(LoggingLevel.WARN, "A connection crashed, it will be closed.", e);
+					connection.close();
+				}
+			}
+			runTasks();
+		}
+		HashSet<NioProxyConnection> connections = new HashSet<NioProxyConnection>();
+		for (SelectionKey key : selector.keys()) {
+			connections.add((NioProxyConnection) key.attachment());
+		}
+		connections.forEach(connection -> {
+			connection.close();
+		});
+		try {
+			selector.close();
+		} catch (IOException e) {
+			logger.log(LoggingLevel.WARN, "Failed to close the selector.", e);
+		}
+		ProxyMain.getBufferPool().releaseHeap(heapBuffer);
+		ProxyMain.getBufferPool().releaseDirect(directBuffer);
+		ProxyMain.getBufferPool().flushThreadCache();
+	}
+
+}
@@ -0,0 +1,792 @@
+/*
+ *   JMagic Proxy - A HTTP and HTTPS Proxy
+ *   Copyright (C) 2023  ExplodingBottle
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.explodingbottle.jmagicproxy.nio;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.TreeMap;
+
+import io.github.explodingbottle.jmagicproxy.ProxyMain;
+import io.github.explodingbottle.jmagicproxy.api.ConnectionDirective;
+import io.github.explodingbottle.jmagicproxy.api.ConnectionType;
+import io.github.explodingbottle.jmagicproxy.api.HttpMethod;
+import io.github.explodingbottle.jmagicproxy.api.HttpRequestHeader;
+import io.github.explodingbottle.jmagicproxy.api.HttpResponse;
+import io.github.explodingbottle.jmagicproxy.api.IncomingTransferDirective;
+import io.github.explodingbottle.jmagicproxy.api.MalformedParsableContent;
+import io.github.explodingbottle.jmagicproxy.buffer.FlowWindow;
+import io.github.explodingbottle.jmagicproxy.http.HeadParseResult;
+import io.github.explodingbottle.jmagicproxy.http.HttpBodyFramer;
+import io.github.explodingbottle.jmagicproxy.http.HttpHeadParser;
+import io.github.explodingbottle.jmagicproxy.logging.LoggingLevel;
+import io.github.explodingbottle.jmagicproxy.logging.ProxyLogger;
+import io.github.explodingbottle.jmagicproxy.properties.PropertyKey;
+import io.github.explodingbottle.jmagicproxy.proxy.SocketHandlerThread;
+import io.github.explodingbottle.jmagicproxy.timeout.TimeoutGuard;
+import io.github.explodingbottle.jmagicproxy.timeout.TimeoutType;
+
+/**
+ * This class drives one client connection of the non-blocking transport, as
+ * well as its outgoing connection. It does the same work as
+ * {@code SocketHandlerThread}, {@code ConnectionDirectiveHandler} and
+ * {@code SimpleInputOutputPipeThread} but without owning any thread.
+ * 
+ * Every method must be called from the event loop owning the connection.
+ * 
+ * @author ExplodingBottle
+ *
+ */
+class NioProxyConnection {
+
+	private SocketChannel client;
+	private InetAddress clientAddress;
+	private SelectionKey clientKey;
+	private NioEventLoop loop;
+	private NioServer server;
+	private ProxyLogger logger;
+
+	private SocketChannel upstream;
+	private SelectionKey upstreamKey;
+	private boolean upstreamConnected;
+	private int upstreamGeneration;
+	private InetAddress[] pendingAddresses;
+	private int pendingAddressIndex;
+
+	private ArrayDeque<ByteBuffer> toClient;
+	private ArrayDeque<ByteBuffer> toUpstream;
+	private FlowWindow toClientWindow;
+	private FlowWindow toUpstreamWindow;
+
+	private TimeoutGuard readTimeout;
+	private TimeoutGuard upstreamTimeout;
+	private TimeoutGuard writeTimeout;
+
+	private boolean closed;
+	private boolean closeAfterFlush;
+	private boolean tunnel;
+	private byte[] handOffData;
+
+	private ConnectionDirective directive;
+	private ConnectionType connectionType;
+	private IncomingTransferDirective lastTransferDirective;
+
+	private HttpHeadParser requestParser;
+	private HttpBodyFramer requestFramer;
+	private HttpHeadParser responseParser;
+	private HttpBodyFramer responseFramer;
+	private ArrayDeque<HttpMethod> sentMethods;
+	private boolean canParseHeader;
+
+	/**
+	 * Builds the connection. It must then be registered from the loop thread.
+	 * 
+	 * @param client The accepted client channel, in non-blocking mode.
+	 * @param loop   The loop which will drive this connection.
+	 * @param server The server which accepted the connection.
+	 */
+	NioProxyConnection(SocketChannel client, NioEventLoop loop, NioServer server) {
+		this.client = client;
+		clientAddress = client.socket().getInetAddress();
+		this.loop = loop;
+		this.server = server;
+		logger = ProxyMain.getLoggerProvider().createLogger();
+		toClient = new ArrayDeque<ByteBuffer>();
+		toUpstream = new ArrayDeque<ByteBuffer>();
+		toClientWindow = new FlowWindow(
+				ProxyMain.getPropertiesProvider().getAsInteger(PropertyKey.PROXY_FLOW_RESPONSE_WINDOW));
+		toUpstreamWindow = new FlowWindow(
+				ProxyMain.getPropertiesProvider().getAsInteger(PropertyKey.PROXY_FLOW_REQUEST_WINDOW));
+		readTimeout = ProxyMain.getTimeoutWheel().newGuard(this::timeoutExpired);
+		upstreamTimeout = ProxyMain.getTimeoutWheel().newGuard(this::timeoutExpired);
+		writeTimeout = ProxyMain.getTimeoutWheel().newGuard(this::timeoutExpired);
+		connectionType = ConnectionType.CLOSE;
+		requestParser = HttpHeadParser.createConfigured(false);
+		requestFramer = new HttpBodyFramer();
+		responseParser = HttpHeadParser.createConfigured(true);
+		responseFramer = new HttpBodyFramer();
+		sentMethods = new ArrayDeque<HttpMethod>();
+	}
+
+	/**
+	 * Registers the client channel to the selector of the loop.
+	 */
+	void register() {
+		Socket socket = client.socket();
+		logger.log(LoggingLevel.INFO,
+				"Now handling a socket from " + socket.getInetAddress() + " and from port " + socket.getPort());
+		try {
+			clientKey = client.register(loop.getSelector(), SelectionKey.OP_READ, this);
+			server.connectionOpened();
+			readTimeout.arm(TimeoutType.HEADER_READ);
+		} catch (IOException e) {
+			logger.log(LoggingLevel.WARN, "Failed to register the client channel.", e);
+			try {
+				client.close();
+			} catch (IOException e1) {
+				logger.log(LoggingLevel.WARN, "Failed to close the current socket.", e1);
+			}
+			closed = true;
+			server.releaseAdmission(clientAddress);
+		}
+	}
+
+	/**
+	 * Handles a selected key of this connection.
+	 * 
+	 * @param key The selected key.
+	 */
+	void handleKey(SelectionKey key) {
+		if (key.channel() == client) {
+			try {
+				if (key.isWritable())
+					flush(client, toClient, true);
+				if (!closed && key.isValid() && key.isReadable())
+					readClient();
+			} catch (IOException e) {
+				logger.log(LoggingLevel.WARN, "Transfer with the client crashed.", e);
+				close();
+			}
+		} else {
+			try {
+				if (key.isConnectable()) {
+					finishUpstreamConnect();
+				} else {
+					if (key.isWritable())
+						flush(upstream, toUpstream, false);
+					if (!closed && key.isValid() && key.isReadable())
+						readUpstream();
+				}
+			} catch (IOException e) {
+				if (!closed) {
+					logger.log(LoggingLevel.WARN, "An unexpected stream closure happened.", e);
+					upstreamTerminated();
+				}
+			}
+		}
+		updateInterests();
+	}
+
+	private void timeoutExpired(TimeoutType type) {
+		// The guards expire on another thread, the connection can only be touched
+		// from its loop.
+		loop.execute(() -> {
+			if (closed)
+				return;
+			Socket socket = client.socket();
+			logger.log(LoggingLevel.WARN, "The " + type.getDescription() + " timeout has expired for the socket from "
+					+ socket.getInetAddress() + " and from port " + socket.getPort() + ".");
+			if (type == TimeoutType.UPSTREAM_FIRST_BYTE) {
+				failUpstream(false);
+				updateInterests();
+			} else {
+				close();
+			}
+		});
+	}
+
+	private void disarmTimeouts() {
+		readTimeout.disarm();
+		upstreamTimeout.disarm();
+		writeTimeout.disarm();
+	}
+
+	private void updateInterests() {
+		if (closed)
+			return;
+		if (toClient.isEmpty() && (!upstreamConnected || toUpstream.isEmpty())) {
+			writeTimeout.disarm();
+		} else if (writeTimeout.getType() == null) {
+			writeTimeout.arm(TimeoutType.WRITE_STALL);
+		}
+		if (clientKey != null && clientKey.isValid()) {
+			int ops = 0;
+			if (handOffData == null && !closeAfterFlush && windowAllowsRead(clientKey, toUpstreamWindow))
+				ops |= SelectionKey.OP_READ;
+			if (!toClient.isEmpty())
+				ops |= SelectionKey.OP_WRITE;
+			clientKey.interestOps(ops);
+		}
+		if (upstreamKey != null && upstreamKey.isValid()) {
+			int ops = 0;
+			if (!upstreamConnected) {
+				ops = SelectionKey.OP_CONNECT;
+			} else {
+				if (windowAllowsRead(upstreamKey, toClientWindow))
+					ops |= SelectionKey.OP_READ;
+				if (!toUpstream.isEmpty())
+					ops |= SelectionKey.OP_WRITE;
+			}
+			upstreamKey.interestOps(ops);
+		}
+	}
+
+	private boolean windowAllowsRead(SelectionKey key, FlowWindow window) {
+		if (window.isOpen())
+			return true;
+		if ((key.interestOps() & SelectionKey.OP_READ) != 0)
+			window.recordPause();
+		return false;
+	}
+
+	private void flush(SocketChannel channel, ArrayDeque<ByteBuffer> queue, boolean clientSide)
+			throws IOException {
+		if (!queue.isEmpty()) {
+			ByteBuffer[] pending = queue.toArray(new ByteBuffer[queue.size()]);
+			long written = channel.write(pending);
+			if (written > 0)
+				writeTimeout.disarm(); // Armed again from now if something is left.
+			(clientSide ? toClientWindow : toUpstreamWindow).release(written);
+			while (!queue.isEmpty() && !queue.peek().hasRemaining()) {
+				queue.poll();
+			}
+		}
+		if (clientSide && queue.isEmpty()) {
+			if (closeAfterFlush) {
+				close();
+			} else if (handOffData != null) {
+				handOff();
+			}
+		}
+	}
+
+	private void enqueue(SocketChannel channel, ArrayDeque<ByteBuffer> queue, boolean clientSide, byte[] data,
+			int offset, int length) throws IOException {
+		if (length <= 0)
+			return;
+		ByteBuffer wrapped = ByteBuffer.wrap(data, offset, length);
+		boolean canWrite = clientSide || upstreamConnected;
+		if (canWrite && queue.isEmpty() && channel != null) {
+			channel.write(wrapped);
+			if (!wrapped.hasRemaining())
+				return;
+		}
+		// The data may belong to the buffer of the loop, a copy must be kept.
+		ByteBuffer copy = ByteBuffer.allocate(wrapped.remaining());
+		copy.put(wrapped);
+		copy.flip();
+		queue.add(copy);
+		(clientSide ? toClientWindow : toUpstreamWindow).acquire(copy.remaining());
+	}
+
+	private void writeToClient(byte[] data, int offset, int length) throws IOException {
+		enqueue(client, toClient, true, data, offset, length);
+	}
+
+	private void writeToUpstream(byte[] data, int offset, int length) throws IOException {
+		enqueue(upstream, toUpstream, false, data, offset, length);
+	}
+
+	private void readClient() throws IOException {
+		if (tunnel) {
+			ByteBuffer direct = loop.getDirectBuffer();
+			int read = client.read(direct);
+			if (read == -1) {
+				close();
+				return;
+			}
+			direct.flip();
+			readTimeout.arm(TimeoutType.IDLE_KEEPALIVE);
+			relayTunnelBytes(direct, upstream, toUpstream, false);
+			return;
+		}
+		ByteBuffer view = loop.getHeapView();
+		int read = client.read(view);
+		if (read == -1) {
+			close();
+			return;
+		}
+		if (read > 0) {
+			try {
+				handleRequestBytes(loop.getHeapBuffer(), read);
+			} catch (MalformedParsableContent e) {
+				logger.log(LoggingLevel.WARN, "Rejected a request header, closing socket.", e);
+				rejectHead("431 Request Header Fields Too Large");
+				return;
+			}
+			if (requestParser.hasPartialHead()) {
+				// A request header has been started, the client must complete it in time.
+				if (readTimeout.getType() != TimeoutType.HEADER_READ)
+					readTimeout.arm(TimeoutType.HEADER_READ);
+			} else if (directive != null) {
+				readTimeout.arm(TimeoutType.IDLE_KEEPALIVE);
+			}
+		}
+	}
+
+	private void readUpstream() throws IOException {
+		if (tunnel) {
+			ByteBuffer direct = loop.getDirectBuffer();
+			int read = upstream.read(direct);
+			if (read == -1) {
+				close();
+				return;
+			}
+			direct.flip();
+			readTimeout.arm(TimeoutType.IDLE_KEEPALIVE);
+			relayTunnelBytes(direct, client, toClient, true);
+			return;
+		}
+		ByteBuffer view = loop.getHeapView();
+		int read = upstream.read(view);
+		if (read == -1) {
+			logger.log(LoggingLevel.INFO, "Server has terminated the stream. Forcing connection mode to Close.");
+			upstreamTerminated();
+			return;
+		}
+		if (read > 0) {
+			upstreamTimeout.disarm();
+			readTimeout.refresh(TimeoutType.IDLE_KEEPALIVE);
+			try {
+				handleResponseBytes(loop.getHeapBuffer(), read);
+			} catch (MalformedParsableContent e) {
+				logger.log(LoggingLevel.WARN, "Rejected a response header, closing the connection.", e);
+				rejectHead("502 Bad Gateway");
+			}
+		}
+	}
+
+	private void relayTunnelBytes(ByteBuffer direct, SocketChannel sink, ArrayDeque<ByteBuffer> queue,
+			boolean clientSide) throws IOException {
+		boolean canWrite = clientSide || upstreamConnected;
+		if (canWrite && queue.isEmpty())
+			sink.write(direct);
+		if (direct.hasRemaining()) {
+			ByteBuffer copy = ByteBuffer.allocate(direct.remaining());
+			copy.put(direct);
+			copy.flip();
+			queue.add(copy);
+			(clientSide ? toClientWindow : toUpstreamWindow).acquire(copy.remaining());
+		}
+	}
+
+	private void handleRequestBytes(byte[] data, int length) throws IOException, MalformedParsableContent {
+		int pos = 0;
+		while (pos < length && !closed && handOffData == null) {
+			if (tunnel) {
+				writeToUpstream(data, pos, length - pos);
+				return;
+			}
+			if (!requestFramer.isComplete()) {
+				// The body goes to the server as it is, the parser only starts again at the
+				// next request.
+				boolean framed = !requestFramer.isCloseDelimited();
+				int bodyPart = requestFramer.consume(data, pos, length - pos);
+				forwardRequestBody(data, pos, bodyPart);
+				pos += bodyPart;
+				if (framed && requestFramer.isCloseDelimited())
+					logger.log(LoggingLevel.WARN,
+							"Malformed chunked request, the rest of the connection is sent as it is.");
+				continue;
+			}
+			int used = requestParser.feed(data, pos, length - pos);
+			if (requestParser.getResult() == HeadParseResult.NOT_A_HEAD) {
+				// This is not a request header, so it is sent as it is to the server.
+				forwardRequestBody(requestParser.getRejectedBytes(), 0, requestParser.getRejectedLength());
+				forwardRequestBody(data, pos, used);
+			} else if (requestParser.getResult() == HeadParseResult.COMPLETE) {
+				pos += used;
+				if (!handleRequestHead(data, pos, length))
+					return;
+				continue;
+			}
+			pos += used;
+		}
+	}
+
+	private boolean handleRequestHead(byte[] data, int offset, int length) throws IOException {
+		HttpRequestHeader httpRequestHeader;
+		try {
+			httpRequestHeader = requestParser.toRequest();
+		} catch (MalformedParsableContent e) {
+			logger.log(LoggingLevel.WARN, "Ignored a malformed request header.", e);
+			return true;
+		}
+		if (requestParser.hasSpaceBeforeColon()) {
+			logger.log(LoggingLevel.WARN, "Rejected a request header, closing socket.",
+					new MalformedParsableContent("A header name of the request is followed by whitespace."));
+			rejectHead("400 Bad Request");
+			return false;
+		}
+		// The bytes of the client are kept before any plugin can change the request.
+		byte[] head = httpRequestHeader.toHttpRequestBytes();
+		// The body is framed with the headers given by the client, as these are
+		// the bytes coming from it.
+		if (!requestFramer.startRequest(httpRequestHeader)) {
+			logger.log(LoggingLevel.WARN, "Rejected a request header, closing socket.",
+					new MalformedParsableContent("The length of the request body is invalid."));
+			rejectHead("400 Bad Request");
+			return false;
+		}
+		ConnectionDirective newDirective = ProxyMain.getPluginsManager().getInitialDirectiveByPlugins(httpRequestHeader);
+		if (newDirective == null) {
+			logger.log(LoggingLevel.WARN, "Directive is null, closing socket.");
+			close();
+			return false;
+		}
+		if (!newDirective.isRemoteConnect() || (newDirective.isSSL() && !newDirective.isDirect())) {
+			// Those directives need the blocking implementation.
+			byte[] pending = new byte[head.length + length - offset];
+			System.arraycopy(head, 0, pending, 0, head.length);
+			System.arraycopy(data, offset, pending, head.length, length - offset);
+			closeUpstream();
+			handOffData = pending;
+			if (toClient.isEmpty())
+				handOff();
+			return false;
+		}
+		boolean reuse = false;
+		if (directive != null) {
+			if (!newDirective.isSSL() && !directive.isSSL()
+					&& newDirective.getHost().equalsIgnoreCase(directive.getHost())
+					&& newDirective.getPort() == directive.getPort() && connectionType == ConnectionType.KEEPALIVE
+					&& canParseHeader && upstream != null)
+				reuse = true;
+			if (!reuse)
+				closeUpstream();
+		}
+		directive = newDirective;
+		if (directive.isSSL()) {
+			logger.log(LoggingLevel.INFO, "Opening outgoing socket for " + directive.getHost() + ":"
+					+ directive.getPort() + " with SSL.");
+			tunnel = true;
+			connectUpstream();
+			writeToUpstream(data, offset, length - offset);
+			return false;
+		}
+		byte[] requestBlock = directive.getOutcomingRequest().toHttpRequestBytes();
+		if (reuse) {
+			logger.log(LoggingLevel.INFO, "Keep-Alive connection has been reused for "
+					+ directive.getOutcomingRequest().toHttpRequestLine() + ".");
+		} else {
+			logger.log(LoggingLevel.INFO, "Opening outgoing socket for " + directive.getHost() + ":"
+					+ directive.getPort() + " with request " + directive.getOutcomingRequest().toHttpRequestLine());
+			connectUpstream();
+		}
+		upstreamTimeout.arm(TimeoutType.UPSTREAM_FIRST_BYTE);
+		sentMethods.add(directive.getOutcomingRequest().getMethod());
+		writeToUpstream(requestBlock, 0, requestBlock.length);
+		return true;
+	}
+
+	private void forwardRequestBody(byte[] data, int offset, int length) throws IOException {
+		if (directive == null || length <= 0)
+			return;
+		byte[] realData = new byte[length];
+		System.arraycopy(data, offset, realData, 0, length);
+		realData = ProxyMain.getPluginsManager().getModifiedData(1, directive, realData, null);
+		if (realData != null)
+			writeToUpstream(realData, 0, realData.length);
+	}
+
+	private void handleResponseBytes(byte[] data, int length) throws IOException, MalformedParsableContent {
+		int pos = 0;
+		while (pos < length && !closed) {
+			if (!canParseHeader) {
+				forwardResponseBody(data, pos, length - pos);
+				return;
+			}
+			if (!responseFramer.isComplete()) {
+				int bodyPart = responseFramer.consume(data, pos, length - pos);
+				forwardResponseBody(data, pos, bodyPart);
+				pos += bodyPart;
+				if (responseFramer.isCloseDelimited()) {
+					logger.log(LoggingLevel.WARN, "Malformed chunked response, it will end with the connection.");
+					canParseHeader = false;
+				}
+				continue;
+			}
+			int used = responseParser.feed(data, pos, length - pos);
+			if (responseParser.getResult() == HeadParseResult.NOT_A_HEAD) {
+				forwardResponseBody(responseParser.getRejectedBytes(), 0, responseParser.getRejectedLength());
+				forwardResponseBody(data, pos, used);
+			} else if (responseParser.getResult() == HeadParseResult.COMPLETE) {
+				handleResponseHead();
+			}
+			pos += used;
+		}
+	}
+
+	private void handleResponseHead() throws IOException {
+		HttpResponse response;
+		try {
+			response = responseParser.toResponse();
+		} catch (MalformedParsableContent e) {
+			logger.log(LoggingLevel.WARN, "Ignored a malformed response header.", e);
+			return;
+		}
+		IncomingTransferDirective itd = ProxyMain.getPluginsManager().getIncomingTransferDirective(response);
+		if (itd == null) {
+			logger.log(LoggingLevel.WARN, "Directive is null, no actions will be taken.");
+			byte[] head = response.toHttpResponseBytes();
+			forwardResponseBody(head, 0, head.length);
+			return;
+		}
+		lastTransferDirective = itd;
+		HttpResponse modifiedResponse = itd.getResponse();
+		ConnectionType ct = itd.getConnectionType();
+		// The body is framed with the headers given by the server, as these
+		// are the bytes coming from it. Interim responses don't answer the request.
+		HttpMethod method = response.getResponseCode() >= 200 ? sentMethods.poll() : sentMethods.peek();
+		responseFramer.startResponse(response, method == HttpMethod.HEAD);
+		if (responseFramer.isMalformed())
+			logger.log(LoggingLevel.WARN, "Invalid Content-Length in a response, it will end with the connection.");
+		if (ct != ConnectionType.KEEPALIVE || responseFramer.isCloseDelimited())
+			canParseHeader = false;
+		logger.log(LoggingLevel.INFO, "Connection type has been changed to " + ct);
+		connectionType = ct;
+		byte[] block = modifiedResponse.toHttpResponseBytes();
+		writeToClient(block, 0, block.length);
+	}
+
+	private void forwardResponseBody(byte[] data, int offset, int length) throws IOException {
+		if (length <= 0)
+			return;
+		byte[] realData = new byte[length];
+		System.arraycopy(data, offset, realData, 0, length);
+		realData = ProxyMain.getPluginsManager().getModifiedData(2, directive, realData, lastTransferDirective);
+		if (realData != null)
+			writeToClient(realData, 0, realData.length);
+	}
+
+	private void connectUpstream() {
+		upstreamGeneration++;
+		int generation = upstreamGeneration;
+		ConnectionDirective target = directive;
+		upstreamConnected = false;
+		connectionType = ConnectionType.CLOSE;
+		canParseHeader = true;
+		responseParser.reset();
+		responseFramer = new HttpBodyFramer();
+		sentMethods.clear();
+		server.resolve(target.getHost(), loop, addresses -> {
+			if (closed || generation != upstreamGeneration)
+				return;
+			if (addresses == null) {
+				failUpstream(true);
+				updateInterests();
+				return;
+			}
+			pendingAddresses = addresses;
+			pendingAddressIndex = 0;
+			connectAddress(target.getPort());
+			updateInterests();
+		});
+	}
+
+	private void connectAddress(int port) {
+		while (pendingAddressIndex < pendingAddresses.length) {
+			InetAddress address = pendingAddresses[pendingAddressIndex++];
+			SocketChannel channel = null;
+			try {
+				channel = SocketChannel.open();
+				channel.configureBlocking(false);
+				boolean connected = channel.connect(new InetSocketAddress(address, port));
+				upstream = channel;
+				upstreamKey = channel.register(loop.getSelector(), SelectionKey.OP_CONNECT, this);
+				if (connected)
+					upstreamReady();
+				return;
+			} catch (IOException e) {
+				if (channel != null) {
+					try {
+						channel.close();
+					} catch (IOException e1) {
+						logger.log(LoggingLevel.WARN, "Failed to close a connection.", e1);
+					}
+				}
+				upstream = null;
+				upstreamKey = null;
+			}
+		}
+		logger.log(LoggingLevel.WARN, "We found NO socket for connection " + directive.getHost() + ":" + port + ".");
+		failUpstream(false);
+	}
+
+	private void finishUpstreamConnect() {
+		boolean connected;
+		try {
+			connected = upstream.finishConnect();
+		} catch (IOException e) {
+			upstreamKey.cancel();
+			try {
+				upstream.close();
+			} catch (IOException e1) {
+				logger.log(LoggingLevel.WARN, "Failed to close a connection.", e1);
+			}
+			upstream = null;
+			upstreamKey = null;
+			connectAddress(directive.getPort());
+			return;
+		}
+		if (connected)
+			upstreamReady();
+	}
+
+	private void upstreamReady() {
+		upstreamConnected = true;
+		logger.log(LoggingLevel.INFO, "We found a socket for connection " + directive.getHost() + ":"
+				+ directive.getPort() + " for IP " + upstream.socket().getInetAddress() + ".");
+		try {
+			if (tunnel) {
+				HttpResponse hrqh = new HttpResponse("HTTP/1.1", 200, "Connection Established",
+						new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER));
+				byte[] established = (hrqh.toHttpResponseLine() + "\r\n\r\n").getBytes();
+				writeToClient(established, 0, established.length);
+				logger.log(LoggingLevel.INFO, "Direct connection established.");
+			} else {
+				logger.log(LoggingLevel.INFO, "Outgoing socket opened.");
+			}
+			flush(upstream, toUpstream, false);
+		} catch (IOException e) {
+			logger.log(LoggingLevel.WARN, "Failed to write to the outgoing stream.", e);
+			upstreamTerminated();
+		}
+	}
+
+	private void rejectHead(String status) throws IOException {
+		byte[] answer = ("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\nConnection: Close\r\n\r\n").getBytes();
+		writeToClient(answer, 0, answer.length);
+		connectionType = ConnectionType.CLOSE;
+		closeUpstream();
+		closeAfterFlush = true;
+		if (toClient.isEmpty())
+			close();
+	}
+
+	private void failUpstream(boolean unknownHost) {
+		try {
+			byte[] answer;
+			if (!unknownHost) {
+				answer = "HTTP/1.1 504 Gateway Timeout\r\nConnection: Close\r\n\r\n".getBytes();
+			} else {
+				answer = "HTTP/1.1 502 Bad Gateway\r\nConnection: Close\r\n\r\n".getBytes();
+			}
+			writeToClient(answer, 0, answer.length);
+		} catch (IOException e) {
+			logger.log(LoggingLevel.WARN, "Failed to tell the client that an error occured.", e);
+		}
+		logger.log(LoggingLevel.WARN, "Failed to open the outgoing socket.");
+		connectionType = ConnectionType.CLOSE;
+		upstreamTerminated();
+	}
+
+	private void upstreamTerminated() {
+		if (!tunnel)
+			connectionType = ConnectionType.CLOSE;
+		closeUpstream();
+		if (tunnel || connectionType == ConnectionType.CLOSE) {
+			logger.log(LoggingLevel.INFO, "Closing listening socket as the connection is in Close mode.");
+			closeAfterFlush = true;
+			if (toClient.isEmpty())
+				close();
+		}
+	}
+
+	private void closeUpstream() {
+		upstreamGeneration++;
+		upstreamTimeout.disarm();
+		if (upstreamKey != null)
+			upstreamKey.cancel();
+		if (upstream != null) {
+			try {
+				upstream.close();
+			} catch (IOException e) {
+				logger.log(LoggingLevel.WARN, "Failed to close the socket coming from outside.", e);
+			}
+		}
+		upstream = null;
+		upstreamKey = null;
+		upstreamConnected = false;
+		toUpstream.clear();
+		toUpstreamWindow.reset();
+		if (directive != null) {
+			ProxyMain.getPluginsManager().notifyDirectiveClose(directive);
+			if (directive.isSSL()) {
+				logger.log(LoggingLevel.INFO, "Closed outgoing socket for " + directive.getHost() + ":"
+						+ directive.getPort() + " with SSL.");
+			} else {
+				logger.log(LoggingLevel.INFO, "Closed outgoing socket for " + directive.getHost() + ":"
+						+ directive.getPort() + " with request " + directive.getOutcomingRequest().toHttpRequestLine());
+			}
+			directive = null;
+		}
+	}
+
+	private void handOff() {
+		byte[] pending = handOffData;
+		clientKey.cancel();
+		closed = true;
+		disarmTimeouts();
+		server.connectionClosed();
+		logger.log(LoggingLevel.INFO, "Handing off the connection to a blocking handler.");
+		loop.execute(() -> {
+			try {
+				// The cancelled key must be flushed before going back to blocking mode.
+				loop.getSelector().selectNow();
+				client.configureBlocking(true);
+				SocketHandlerThread handler = new SocketHandlerThread(client.socket(),
+						new BlockingChannelInputStream(client), new BlockingChannelOutputStream(client), pending,
+						server);
+				server.addToList(handler);
+				handler.start();
+			} catch (IOException e) {
+				logger.log(LoggingLevel.WARN, "Failed to hand off the connection.", e);
+				try {
+					client.close();
+				} catch (IOException e1) {
+					logger.log(LoggingLevel.WARN, "Failed to close the current socket.", e1);
+				}
+				server.releaseAdmission(clientAddress);
+			}
+		});
+	}
+
+	/**
+	 * Closes the client connection and its outgoing connection.
+	 */
+	void close() {
+		if (closed)
+			return;
+		closed = true;
+		disarmTimeouts();
+		closeUpstream();
+		if (clientKey != null)
+			clientKey.cancel();
+		Socket socket = client.socket();
+		try {
+			client.close();
+		} catch (IOException e) {
+			logger.log(LoggingLevel.WARN, "Failed to close the current socket.", e);
+		}
+		toClient.clear();
+		toClientWindow.reset();
+		server.connectionClosed();
+		server.releaseAdmission(clientAddress);
+		logger.log(LoggingLevel.INFO, "Socket from " + socket.getInetAddress() + " and from port " + socket.getPort()
+				+ " has been closed.");
+		logger.log(LoggingLevel.INFO, "Flow high-water of the connection: " + toUpstreamWindow.getHighWater()
+				+ " bytes for the requests, " + toClientWindow.getHighWater() + " bytes for the responses.");
+	}
+
+}
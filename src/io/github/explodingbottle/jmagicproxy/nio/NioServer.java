@@ -0,0 +1,235 @@
+/*
+ *   JMagic Proxy - A HTTP and HTTPS Proxy
+ *   Copyright (C) 2023  ExplodingBottle
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.explodingbottle.jmagicproxy.nio;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import io.github.explodingbottle.jmagicproxy.ProxyMain;
+import io.github.explodingbottle.jmagicproxy.logging.LoggingLevel;
+import io.github.explodingbottle.jmagicproxy.logging.ProxyLogger;
+import io.github.explodingbottle.jmagicproxy.proxy.SocketHandlerThread;
+import io.github.explodingbottle.jmagicproxy.server.HandlerRegistry;
+import io.github.explodingbottle.jmagicproxy.server.ListenSocketOpener;
+
+/**
+ * This Thread accepts the incoming connections of the non-blocking transport
+ * and spreads them across a small pool of event loops. Plain HTTP forwarding
+ * and direct CONNECT tunnels are fully handled by the loops, every other
+ * directive is handed off to a classic {@code SocketHandlerThread}.
+ * 
+ * @author ExplodingBottle
+ *
+ */
+public class NioServer extends Thread implements HandlerRegistry {
+
+	private ProxyLogger selfLogger;
+	private ListenSocketOpener opener;
+	private int loopsCount;
+
+	private ServerSocketChannel serverChannel;
+	private NioEventLoop[] loops;
+	private int nextLoop;
+
+	private List<SocketHandlerThread> threads;
+	private ExecutorService resolverPool;
+
+	private AtomicInteger openConnections;
+
+	/**
+	 * Instantiates the server with the opener of its server channel.
+	 * 
+	 * @param opener     The opener of the server channel.
+	 * @param loopsCount The number of event loops, 0 or less means one per core.
+	 */
+	public NioServer(ListenSocketOpener opener, int loopsCount) {
+		this.opener = opener;
+		if (loopsCount <= 0)
+			loopsCount = Runtime.getRuntime().availableProcessors();
+		this.loopsCount = loopsCount;
+		threads = Collections.synchronizedList(new ArrayList<SocketHandlerThread>());
+		openConnections = new AtomicInteger();
+		selfLogger = ProxyMain.getLoggerProvider().createLogger();
+		resolverPool = Executors.newFixedThreadPool(Math.max(2, loopsCount), runnable -> {
+			Thread resolverThread = new Thread(runnable);
+			resolverThread.setDaemon(true);
+			return resolverThread;
+		});
+	}
+
+	/**
+	 * Use this method to close the server channel, the event loops and interrupt
+	 * the thread.
+	 */
+	public void closeServerSocket() {
+		super.interrupt();
+		try {
+			if (serverChannel != null)
+				serverChannel.close();
+		} catch (IOException e) {
+			selfLogger.log(LoggingLevel.WARN, "Failed to close the server channel.", e);
+		}
+	}
+
+	/**
+	 * Redefining interrupt to force use of closeServerSocket().
+	 */
+	public void interrupt() {
+		closeServerSocket();
+	}
+
+	@Override
+	public synchronized void addToList(SocketHandlerThread sht) {
+		threads.add(sht);
+	}
+
+	@Override
+	public synchronized void removeFromList(SocketHandlerThread sht) {
+		if (threads.remove(sht))
+			ProxyMain.getAdmissionController().release(sht.getClientAddress());
+	}
+
+	/**
+	 * Returns the number of connections currently driven by the event loops.
+	 * 
+	 * @return The number of open connections.
+	 */
+	public int getOpenConnections() {
+		return openConnections.get();
+	}
+
+	void connectionOpened() {
+		openConnections.incrementAndGet();
+	}
+
+	void connectionClosed() {
+		openConnections.decrementAndGet();
+	}
+
+	void releaseAdmission(InetAddress clientAddress) {
+		ProxyMain.getAdmissionController().release(clientAddress);
+	}
+
+	/**
+	 * Resolves a host outside of the event loops, as resolving may block.
+	 * 
+	 * @param host     The host to resolve.
+	 * @param loop     The loop on which the callback will be ran.
+	 * @param callback The callback which will receive the addresses or
+	 *                 {@code null} if the host is unknown.
+	 */
+	void resolve(String host, NioEventLoop loop, Consumer<InetAddress[]> callback) {
+		resolverPool.execute(() -> {
+			InetAddress[] resolved = null;
+			try {
+				resolved = ProxyMain.getDnsCache().resolve(host);
+			} catch (UnknownHostException e) {
+				selfLogger.log(LoggingLevel.WARN, "Failed to get IPs of an unknown host.", e);
+			}
+			InetAddress[] result = resolved;
+			loop.execute(() -> {
+				callback.accept(result);
+			});
+		});
+	}
+
+	private void admitConnection(SocketChannel accepted, NioEventLoop loop) {
+		try {
+			accepted.configureBlocking(false);
+		} catch (IOException e) {
+			selfLogger.log(LoggingLevel.WARN, "Failed to configure the accepted channel.", e);
+			releaseAdmission(accepted.socket().getInetAddress());
+			try {
+				accepted.close();
+			} catch (IOException e1) {
+				selfLogger.log(LoggingLevel.WARN, "Failed to close the current socket.", e1);
+			}
+			return;
+		}
+		NioProxyConnection connection = new NioProxyConnection(accepted, loop, this);
+		loop.execute(() -> {
+			connection.register();
+		});
+	}
+
+	public void run() {
+		selfLogger.log(LoggingLevel.INFO, "Starting the Server channel for port " + opener.getPort() + " with " + loopsCount
+				+ " event loops.");
+		loops = new NioEventLoop[loopsCount];
+		try {
+			for (int i = 0; i < loopsCount; i++) {
+				loops[i] = new NioEventLoop();
+			}
+			serverChannel = opener.openServerChannel();
+		} catch (IOException e) {
+			selfLogger.log(LoggingLevel.FATAL, "Failed to open the Server Channel, sending shutdown message.", e);
+			ProxyMain.getShutdownThread().start();
+			return;
+		}
+		for (NioEventLoop loop : loops) {
+			loop.start();
+		}
+		selfLogger.log(LoggingLevel.INFO, "Server channel is listening.");
+		while (!interrupted()) {
+			try {
+				SocketChannel accepted = serverChannel.accept();
+				NioEventLoop loop = loops[nextLoop];
+				nextLoop = (nextLoop + 1) % loops.length;
+				ProxyMain.getAdmissionController().admit(accepted.socket(), admitted -> {
+					admitConnection(accepted, loop);
+				});
+			} catch (ClosedChannelException e) {
+				break;
+			} catch (IOException e) {
+				if (!isInterrupted())
+					selfLogger.log(LoggingLevel.WARN, "Failed to accept socket.", e);
+			}
+		}
+		selfLogger.log(LoggingLevel.INFO, "Closing event loops and handed off threads.");
+		for (NioEventLoop loop : loops) {
+			loop.shutdownLoop();
+		}
+		ArrayList<SocketHandlerThread> t2 = new ArrayList<SocketHandlerThread>();
+		threads.forEach(handler -> {
+			t2.add(handler);
+		});
+		t2.forEach(handler -> {
+			handler.closeListeningSocket();
+		});
+		resolverPool.shutdownNow();
+		selfLogger.log(LoggingLevel.INFO, "Event loops and handed off threads were closed.");
+		if (serverChannel != null && serverChannel.isOpen()) {
+			try {
+				serverChannel.close();
+			} catch (IOException e) {
+				selfLogger.log(LoggingLevel.WARN, "Failed to close the server channel.", e);
+			}
+		}
+	}
+}
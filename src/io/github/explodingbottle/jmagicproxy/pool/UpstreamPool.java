@@ -0,0 +1,322 @@
+/*
+ *   JMagic Proxy - A HTTP and HTTPS Proxy
+ *   Copyright (C) 2023  ExplodingBottle
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.explodingbottle.jmagicproxy.pool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+
+import io.github.explodingbottle.jmagicproxy.ProxyMain;
+import io.github.explodingbottle.jmagicproxy.logging.LoggingLevel;
+import io.github.explodingbottle.jmagicproxy.logging.ProxyLogger;
+
+/**
+ * This Thread keeps the idle outgoing HTTP connections, so a connection to a
+ * server can be used again by any client instead of opening a new one. The
+ * connections are kept by host and port, the most recently returned one is
+ * given first. A connection is checked before being given, and the ones idle
+ * for too long are closed by this thread.
+ *
+ * @author ExplodingBottle
+ *
+ */
+public class UpstreamPool extends Thread {
+
+	/**
+	 * The time in milliseconds the check of a connection waits for the server to
+	 * close it.
+	 */
+	private static final int PROBE_TIMEOUT = 1;
+
+	private ProxyLogger logger;
+
+	private int maxIdle;
+	private int maxPerHost;
+	private long idleTimeout;
+
+	private HashMap<String, ArrayDeque<IdleConnection>> idle;
+	private int idleCount;
+
+	private long hitCount;
+	private long missCount;
+	private long returnedCount;
+	private long staleCount;
+	private long expiredCount;
+	private long overflowCount;
+	private long openedCount;
+	private long closedCount;
+
+	private boolean closed;
+
+	private static class IdleConnection {
+		private String key;
+		private Socket socket;
+		private long since;
+
+		private IdleConnection(String key, Socket socket, long since) {
+			this.key = key;
+			this.socket = socket;
+			this.since = since;
+		}
+	}
+
+	/**
+	 * Creates the pool.
+	 *
+	 * @param maxIdle     The maximum count of idle connections, 0 disables the
+	 *                    pool.
+	 * @param maxPerHost  The maximum count of idle connections to a single host
+	 *                    and port.
+	 * @param idleTimeout The time in milliseconds after which an idle connection
+	 *                    is closed.
+	 */
+	public UpstreamPool(int maxIdle, int maxPerHost, long idleTimeout) {
+		this.maxIdle = Math.max(0, maxIdle);
+		this.maxPerHost = Math.max(1, maxPerHost);
+		this.idleTimeout = Math.max(1, idleTimeout);
+		idle = new HashMap<String, ArrayDeque<IdleConnection>>();
+		logger = ProxyMain.getLoggerProvider().createLogger();
+		setName("Upstream Pool Evictor");
+		setDaemon(true);
+	}
+
+	private static String keyOf(String host, int port) {
+		return host.toLowerCase(Locale.ROOT) + ":" + port;
+	}
+
+	/**
+	 * Checks that a connection can still be used: the server must not have closed
+	 * it, and must not have sent anything while it was idle. The end of the stream
+	 * can only be seen by reading, so a read is tried with a very short timeout.
+	 */
+	private static boolean isAlive(Socket socket) {
+		if (socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown())
+			return false;
+		try {
+			InputStream input = socket.getInputStream();
+			if (input.available() > 0)
+				return false;
+			socket.setSoTimeout(PROBE_TIMEOUT);
+			try {
+				input.read();
+				// Either the end of the stream or unexpected bytes.
+				return false;
+			} catch (SocketTimeoutException e) {
+				return true;
+			} finally {
+				socket.setSoTimeout(0);
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private void closeConnection(Socket socket) {
+		synchronized (this) {
+			closedCount++;
+		}
+		try {
+			socket.close();
+		} catch (IOException e) {
+			logger.log(LoggingLevel.WARN, "Failed to close a pooled connection.", e);
+		}
+	}
+
+	/**
+	 * Gives an idle connection to a server.
+	 *
+	 * @param host The host of the server.
+	 * @param port The port of the server.
+	 * @return A connected socket, or {@code null} if there is no usable idle
+	 *         connection and a new one must be opened.
+	 */
+	public Socket acquire(String host, int port) {
+		String key = keyOf(host, port);
+		while (true) {
+			IdleConnection connection;
+			synchronized (this) {
+				ArrayDeque<IdleConnection> forHost = idle.get(key);
+				connection = forHost != null ? forHost.pollLast() : null;
+				if (connection == null) {
+					missCount++;
+					return null;
+				}
+				idleCount--;
+				if (forHost.isEmpty())
+					idle.remove(key);
+			}
+			if (isAlive(connection.socket)) {
+				synchronized (this) {
+					hitCount++;
+				}
+				return connection.socket;
+			}
+			synchronized (this) {
+				staleCount++;
+			}
+			closeConnection(connection.socket);
+		}
+	}
+
+	/**
+	 * Gives back a connection which is waiting for a request. It is closed if the
+	 * pool is full.
+	 *
+	 * @param host   The host of the server.
+	 * @param port   The port of the server.
+	 * @param socket The connected socket.
+	 */
+	public void release(String host, int port, Socket socket) {
+		String key = keyOf(host, port);
+		synchronized (this) {
+			if (!closed && idleCount < maxIdle) {
+				ArrayDeque<IdleConnection> forHost = idle.computeIfAbsent(key,
+						k -> new ArrayDeque<IdleConnection>());
+				if (forHost.size() < maxPerHost) {
+					forHost.add(new IdleConnection(key, socket, System.currentTimeMillis()));
+					idleCount++;
+					returnedCount++;
+					notifyAll();
+					return;
+				}
+			}
+			overflowCount++;
+		}
+		closeConnection(socket);
+	}
+
+	/**
+	 * Tells that a new connection to a server has been opened.
+	 */
+	public synchronized void connectionOpened() {
+		openedCount++;
+	}
+
+	/**
+	 * Tells that a connection to a server which wasn't in the pool has been
+	 * closed.
+	 */
+	public synchronized void connectionClosed() {
+		closedCount++;
+	}
+
+	/**
+	 * Tells that a connection given by the pool was found closed by the server
+	 * once used, and has been closed.
+	 */
+	public synchronized void connectionStale() {
+		staleCount++;
+		closedCount++;
+	}
+
+	/**
+	 * Closes the pool and every idle connection.
+	 */
+	public void closePool() {
+		List<IdleConnection> toClose = new ArrayList<IdleConnection>();
+		synchronized (this) {
+			closed = true;
+			idle.values().forEach(toClose::addAll);
+			idle.clear();
+			idleCount = 0;
+			notifyAll();
+		}
+		toClose.forEach(connection -> {
+			closeConnection(connection.socket);
+		});
+	}
+
+	/**
+	 * Returns the count of idle connections.
+	 *
+	 * @return The count of idle connections.
+	 */
+	public synchronized int getIdleCount() {
+		return idleCount;
+	}
+
+	/**
+	 * Returns the part of the requests for a connection which got an idle one.
+	 *
+	 * @return The hit ratio, between 0 and 1.
+	 */
+	public synchronized double getHitRatio() {
+		long total = hitCount + missCount;
+		return total == 0 ? 0 : (double) hitCount / total;
+	}
+
+	/**
+	 * Returns a summary of the counters.
+	 *
+	 * @return The summary.
+	 */
+	public synchronized String getStatistics() {
+		return "Upstream pool: " + idleCount + " idle, " + hitCount + " hits, " + missCount + " misses ("
+				+ Math.round(getHitRatio() * 100) + "% hit ratio), " + returnedCount + " returned, " + staleCount
+				+ " stale, " + expiredCount + " expired, " + overflowCount + " overflowed, " + openedCount
+				+ " opened, " + closedCount + " closed.";
+	}
+
+	public void run() {
+		while (true) {
+			List<IdleConnection> expired = new ArrayList<IdleConnection>();
+			synchronized (this) {
+				if (closed)
+					return;
+				long now = System.currentTimeMillis();
+				long nextExpiry = Long.MAX_VALUE;
+				Iterator<ArrayDeque<IdleConnection>> hosts = idle.values().iterator();
+				while (hosts.hasNext()) {
+					ArrayDeque<IdleConnection> forHost = hosts.next();
+					// The oldest connections are at the head.
+					while (!forHost.isEmpty() && forHost.peekFirst().since + idleTimeout <= now) {
+						expired.add(forHost.pollFirst());
+						idleCount--;
+						expiredCount++;
+					}
+					if (forHost.isEmpty())
+						hosts.remove();
+					else
+						nextExpiry = Math.min(nextExpiry, forHost.peekFirst().since + idleTimeout);
+				}
+				if (expired.isEmpty()) {
+					try {
+						if (nextExpiry == Long.MAX_VALUE)
+							wait();
+						else
+							wait(Math.max(1, nextExpiry - now));
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+			expired.forEach(connection -> {
+				logger.log(LoggingLevel.INFO, "Closing the idle connection to " + connection.key + ".");
+				closeConnection(connection.socket);
+			});
+		}
+	}
+
+}
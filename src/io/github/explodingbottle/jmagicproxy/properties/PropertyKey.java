@@ -39,8 +39,62 @@ public enum PropertyKey {
 	PROXY_SSL_SORT_MODE("proxy.ssl.sortmode", "NONE", String.class),
 	PROXY_SSL_SORT_LIST("proxy.ssl.sortlist", "*", String.class),
 	WUPROXY_REDIRECT_WUCLIENT("proxy.plugins.wuproxy.redirwuclient", false, Boolean.class),
-	PROXY_SSL_SCAN_STARTING_PORT("proxy.ssl.scan.startingport", 9784, Integer.class),
-	PROXY_SSL_ENABLE_SSLV3("proxy.ssl.enable.sslv3", false, Boolean.class);
+	PROXY_SSL_ENABLE_SSLV3("proxy.ssl.enable.sslv3", false, Boolean.class),
+	PROXY_SERVER_TRANSPORT("proxy.server.transport", "BLOCKING", String.class),
+	PROXY_SERVER_NIO_EVENTLOOPS("proxy.server.nio.eventloops", 0, Integer.class),
+	PROXY_THREADING_MODE("proxy.threading.mode", "PLATFORM", String.class),
+	PROXY_ADMISSION_MAX_CONNECTIONS("proxy.admission.maxconnections", 0, Integer.class),
+	PROXY_ADMISSION_MAX_PER_CLIENT("proxy.admission.maxperclient", 0, Integer.class),
+	PROXY_ADMISSION_QUEUE_SIZE("proxy.admission.queuesize", 256, Integer.class),
+	PROXY_ADMISSION_QUEUE_TIMEOUT("proxy.admission.queuetimeout", 5000, Integer.class),
+	PROXY_ADMISSION_RETRY_AFTER("proxy.admission.retryafter", 10, Integer.class),
+	PROXY_SERVER_ACCEPTORS("proxy.server.acceptors", 1, Integer.class),
+	PROXY_SERVER_BACKLOG("proxy.server.backlog", 50, Integer.class),
+	PROXY_SERVER_REUSEPORT("proxy.server.reuseport", false, Boolean.class),
+	PROXY_BUFFERS_MIN_READ_SIZE("proxy.buffers.minreadsize", 4096, Integer.class),
+	PROXY_BUFFERS_MAX_FREE_BYTES("proxy.buffers.maxfreebytes", 16777216, Integer.class),
+	PROXY_BUFFERS_SIZE("proxy.buffers.size", 65536, Integer.class),
+	PROXY_HEADERS_MAX_SIZE("proxy.headers.maxsize", 65536, Integer.class),
+	PROXY_HEADERS_MAX_COUNT("proxy.headers.maxcount", 128, Integer.class),
+	PROXY_FLOW_REQUEST_WINDOW("proxy.flow.requestwindow", 1048576, Integer.class),
+	PROXY_FLOW_RESPONSE_WINDOW("proxy.flow.responsewindow", 65536, Integer.class),
+	PROXY_TIMEOUT_HEADER_READ("proxy.timeout.headerread", 30000, Integer.class),
+	PROXY_TIMEOUT_IDLE("proxy.timeout.idle", 300000, Integer.class),
+	PROXY_TIMEOUT_FIRST_BYTE("proxy.timeout.firstbyte", 120000, Integer.class),
+	PROXY_TIMEOUT_WRITE_STALL("proxy.timeout.writestall", 60000, Integer.class),
+	PROXY_CONNECT_ATTEMPT_DELAY("proxy.connect.attemptdelay", 250, Integer.class),
+	PROXY_CONNECT_TIMEOUT("proxy.connect.timeout", 10000, Integer.class),
+	PROXY_DNS_TTL("proxy.dns.ttl", 60000, Integer.class),
+	PROXY_DNS_NEGATIVE_TTL("proxy.dns.negativettl", 5000, Integer.class),
+	PROXY_DNS_REFRESH_HITS("proxy.dns.refreshhits", 3, Integer.class),
+	PROXY_DNS_MAX_ENTRIES("proxy.dns.maxentries", 4096, Integer.class),
+	PROXY_DNS_OVERRIDES("proxy.dns.overrides", "", String.class),
+	PROXY_POOL_MAX_IDLE("proxy.pool.maxidle", 64, Integer.class),
+	PROXY_POOL_MAX_PER_HOST("proxy.pool.maxperhost", 8, Integer.class),
+	PROXY_POOL_IDLE_TIMEOUT("proxy.pool.idletimeout", 4000, Integer.class),
+	PROXY_SSL_MINT_ENABLED("proxy.ssl.mint.enabled", false, Boolean.class),
+	PROXY_SSL_MINT_CA_ALIAS("proxy.ssl.mint.caalias", "", String.class),
+	PROXY_SSL_MINT_CACHE_SIZE("proxy.ssl.mint.cachesize", 1024, Integer.class),
+	PROXY_SSL_MINT_CACHE_FOLDER("proxy.ssl.mint.cachefolder", "certs/minted", String.class),
+	PROXY_SSL_MINT_KEY_POOL("proxy.ssl.mint.keypool", 8, Integer.class),
+	PROXY_SSL_MINT_KEY_SIZE("proxy.ssl.mint.keysize", 2048, Integer.class),
+	PROXY_SSL_MINT_VALIDITY("proxy.ssl.mint.validity", 365, Integer.class),
+	PROXY_SSL_SESSION_CACHE_SIZE("proxy.ssl.session.cachesize", 20480, Integer.class),
+	PROXY_SSL_SESSION_TIMEOUT("proxy.ssl.session.timeout", 86400, Integer.class),
+	PROXY_SSL_SESSION_TICKETS("proxy.ssl.session.tickets", true, Boolean.class),
+	PROXY_SSL_SPECULATIVE_CONNECT("proxy.ssl.speculativeconnect", true, Boolean.class),
+	PROXY_SSL_HANDSHAKE_PROFILE("proxy.ssl.handshakeprofile", "FAST", String.class),
+	PROXY_SSL_HANDSHAKE_INCOMING_MAX("proxy.ssl.handshake.incoming.max", 32, Integer.class),
+	PROXY_SSL_HANDSHAKE_INCOMING_QUEUE_SIZE("proxy.ssl.handshake.incoming.queuesize", 512, Integer.class),
+	PROXY_SSL_HANDSHAKE_INCOMING_QUEUE_TIMEOUT("proxy.ssl.handshake.incoming.queuetimeout", 10000, Integer.class),
+	PROXY_SSL_HANDSHAKE_OUTGOING_MAX("proxy.ssl.handshake.outgoing.max", 32, Integer.class),
+	PROXY_SSL_HANDSHAKE_OUTGOING_QUEUE_SIZE("proxy.ssl.handshake.outgoing.queuesize", 512, Integer.class),
+	PROXY_SSL_HANDSHAKE_OUTGOING_QUEUE_TIMEOUT("proxy.ssl.handshake.outgoing.queuetimeout", 10000, Integer.class),
+	PROXY_SSL_HANDSHAKE_OUTGOING_TIMEOUT("proxy.ssl.handshake.outgoing.timeout", 10000, Integer.class),
+	PROXY_SSL_ADAPTIVE_ENABLED("proxy.ssl.adaptive.enabled", false, Boolean.class),
+	PROXY_SSL_ADAPTIVE_CPU_LOAD("proxy.ssl.adaptive.cpuload", 85, Integer.class),
+	PROXY_SSL_ADAPTIVE_QUEUED_HANDSHAKES("proxy.ssl.adaptive.queuedhandshakes", 16, Integer.class),
+	PROXY_SSL_ADAPTIVE_CONNECTIONS("proxy.ssl.adaptive.connections", 768, Integer.class);
 
 	private String propKey;
 	private Object defaultVal;
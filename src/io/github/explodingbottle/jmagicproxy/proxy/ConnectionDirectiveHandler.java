@@ -21,18 +21,20 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
 
 import io.github.explodingbottle.jmagicproxy.ProxyMain;
 import io.github.explodingbottle.jmagicproxy.api.ConnectionDirective;
 import io.github.explodingbottle.jmagicproxy.api.ConnectionType;
+import io.github.explodingbottle.jmagicproxy.buffer.FlowWindow;
+import io.github.explodingbottle.jmagicproxy.buffer.PendingOutputRing;
 import io.github.explodingbottle.jmagicproxy.logging.LoggingLevel;
 import io.github.explodingbottle.jmagicproxy.logging.ProxyLogger;
+import io.github.explodingbottle.jmagicproxy.properties.PropertyKey;
 import io.github.explodingbottle.jmagicproxy.proxy.ssl.SSLComunicator;
 import io.github.explodingbottle.jmagicproxy.socketopener.SocketOpeningTool;
 import io.github.explodingbottle.jmagicproxy.socketopener.StandardSocketOpener;
+import io.github.explodingbottle.jmagicproxy.timeout.TimeoutGuard;
+import io.github.explodingbottle.jmagicproxy.timeout.TimeoutType;
 
 /**
  * This class contains code to handle directives.
@@ -57,7 +59,7 @@ public class ConnectionDirectiveHandler {
 	private OutputStream outputStream;
 
 	private ProxyLogger logger;
-	private boolean closed;
+	private volatile boolean closed;
 
 	private ConnectionType connectionType;
 
@@ -65,11 +67,16 @@ public class ConnectionDirectiveHandler {
 
 	private SSLComunicator sslCommunicator;
 
-	private List<byte[]> toflush;
-	private List<Integer> offsetFlush;
-	private List<Integer> lengthFlush;
+	private PendingOutputRing pendingOutput;
+	private FlowWindow requestWindow;
+	private FlowWindow responseWindow;
 
-	private boolean readyToFlush;
+	private TimeoutGuard upstreamTimeout;
+	private TimeoutGuard writeTimeout;
+
+	private volatile int requestsSent;
+	private volatile boolean socketFromPool;
+	private volatile boolean clientBytesFed;
 
 	/**
 	 * Constructor for this class which takes the connection directive and the
@@ -84,10 +91,13 @@ public class ConnectionDirectiveHandler {
 		logger = ProxyMain.getLoggerProvider().createLogger();
 		connectionType = ConnectionType.CLOSE;
 		closed = false;
-		toflush = Collections.synchronizedList(new ArrayList<byte[]>());
-		offsetFlush = Collections.synchronizedList(new ArrayList<Integer>());
-		lengthFlush = Collections.synchronizedList(new ArrayList<Integer>());
-		readyToFlush = false;
+		requestWindow = new FlowWindow(
+				ProxyMain.getPropertiesProvider().getAsInteger(PropertyKey.PROXY_FLOW_REQUEST_WINDOW));
+		responseWindow = new FlowWindow(
+				ProxyMain.getPropertiesProvider().getAsInteger(PropertyKey.PROXY_FLOW_RESPONSE_WINDOW));
+		pendingOutput = new PendingOutputRing(requestWindow);
+		upstreamTimeout = ProxyMain.getTimeoutWheel().newGuard(this::timeoutExpired);
+		writeTimeout = ProxyMain.getTimeoutWheel().newGuard(this::timeoutExpired);
 	}
 
 	/**
@@ -109,6 +119,61 @@ public class ConnectionDirectiveHandler {
 		return connectionType;
 	}
 
+	/**
+	 * Returns the window of the bytes going from the server to the client.
+	 * 
+	 * @return The response window.
+	 */
+	FlowWindow getResponseWindow() {
+		return responseWindow;
+	}
+
+	/**
+	 * Closes the connection because of an expired timeout. The client gets a
+	 * {@code 504} if the server never answered.
+	 * 
+	 * @param type The expired timeout.
+	 */
+	void timeoutExpired(TimeoutType type) {
+		logger.log(LoggingLevel.WARN, "The " + type.getDescription() + " timeout has expired for "
+				+ directive.getHost() + ":" + directive.getPort() + ".");
+		if (type == TimeoutType.UPSTREAM_FIRST_BYTE) {
+			try {
+				handlerThread.getOutputStream()
+						.write("HTTP/1.1 504 Gateway Timeout\r\nConnection: Close\r\n\r\n".getBytes());
+			} catch (IOException e) {
+				logger.log(LoggingLevel.WARN, "Failed to tell the client that an error occured.", e);
+			}
+		}
+		setConnectionType(ConnectionType.CLOSE);
+		closeSocket();
+	}
+
+	/**
+	 * Tells that the server has sent a part of its response.
+	 */
+	void signalResponse() {
+		upstreamTimeout.disarm();
+		handlerThread.signalActivity();
+	}
+
+	/**
+	 * Tells that something has been transferred through this handler, so the
+	 * connection isn't idle.
+	 */
+	public void signalActivity() {
+		handlerThread.signalActivity();
+	}
+
+	/**
+	 * Returns the count of requests sent to the server through this handler.
+	 * 
+	 * @return The count of sent requests.
+	 */
+	int getRequestsSent() {
+		return requestsSent;
+	}
+
 	void signalThreadClose() {
 		closeSocket();
 	}
@@ -149,10 +214,28 @@ public class ConnectionDirectiveHandler {
 			logger.log(LoggingLevel.WARN, "Trying to use Keep-Alive with unsupported methods.");
 			return;
 		}
+		byte[] block = directive.getOutcomingRequest().toHttpRequestBytes();
+		synchronized (this) {
+			// The timeout of a closed handler would never be disarmed.
+			if (closed)
+				return;
+			requestsSent++;
+			upstreamTimeout.arm(TimeoutType.UPSTREAM_FIRST_BYTE);
+		}
+		if (pipeThread != null)
+			pipeThread.signalRequest();
+		if (pendingOutput.isOpen()) {
+			// The connection is reused, the ring keeps it after what is still waiting.
+			pendingOutput.write(block, 0, block.length);
+			return;
+		}
 		try {
-			outputStream.write(directive.getOutcomingRequest().toHttpRequestBlock().getBytes());
+			writeTimeout.arm(TimeoutType.WRITE_STALL);
+			outputStream.write(block);
 		} catch (IOException e) {
 			logger.log(LoggingLevel.WARN, "Failed to write directive content.", e);
+		} finally {
+			writeTimeout.disarm();
 		}
 
 	}
@@ -174,110 +257,187 @@ public class ConnectionDirectiveHandler {
 				sslCommunicator = new SSLComunicator(handlerThread.getOutputStream(), this, directive.getHost(),
 						directive.getPort());
 				sslCommunicator.startConnection();
-				readyToFlush = true;
-				registerToWaitingQueue(null, 0, 0, true);
+				pendingOutput.open(sslCommunicator::feedOutput);
 			} else {
-				logger.log(LoggingLevel.INFO, "Opening outgoing socket for " + directive.getHost() + ":"
-						+ directive.getPort() + " with request " + directive.getOutcomingRequest().toHttpRequestLine());
-				SocketOpeningTool openingTool = new SocketOpeningTool(directive.getHost(), directive.getPort(),
-						new StandardSocketOpener(), (s, status) -> {
-							if (s == null) {
-								try {
-									if (!status) {
-										handlerThread.getOutputStream()
-												.write(new String("HTTP/1.1 504 Gateway Timeout\r\n").getBytes());
-									} else {
-										handlerThread.getOutputStream()
-												.write(new String("HTTP/1.1 502 Bad Gateway\r\n").getBytes());
-									}
-									handlerThread.getOutputStream()
-											.write(new String("Connection: Close\r\n\r\n").getBytes());
-								} catch (IOException e) {
-									logger.log(LoggingLevel.WARN, "Failed to tell the client that an error occured.",
-											e);
-								}
-								logger.log(LoggingLevel.WARN, "Failed to open the outgoing socket.");
-								closeSocket();
-							} else {
-								try {
-									referenceSocket = s;
-									inputStream = referenceSocket.getInputStream();
-									outputStream = referenceSocket.getOutputStream();
-									rewriteDirectiveLine();
-									pipeThread = new SimpleInputOutputPipeThread(inputStream,
-											handlerThread.getOutputStream(), this);
-									pipeThread.start();
-									logger.log(LoggingLevel.INFO, "Outgoing socket opened.");
-									readyToFlush = true;
-									registerToWaitingQueue(null, 0, 0, true);
-								} catch (IOException e) {
-									logger.log(LoggingLevel.WARN, "Failed to open the outgoing socket.", e);
-									closeSocket();
-								}
-							}
-						});
-				try {
-
-					openingTool.run();
-				} catch (Exception e) {
-					logger.log(LoggingLevel.WARN, "Failed to open the outgoing socket.", e);
-					closeSocket();
+				Socket pooled = ProxyMain.getUpstreamPool().acquire(directive.getHost(), directive.getPort());
+				if (pooled != null) {
+					logger.log(LoggingLevel.INFO, "Using a pooled outgoing socket for " + directive.getHost() + ":"
+							+ directive.getPort() + " with request "
+							+ directive.getOutcomingRequest().toHttpRequestLine());
+					socketFromPool = true;
+					try {
+						attachOutgoing(pooled);
+					} catch (IOException e) {
+						logger.log(LoggingLevel.WARN, "Failed to use the pooled outgoing socket.", e);
+						closeSocket();
+					}
+					return;
 				}
+				openFreshSocket();
 			}
 		} else {
-			pipeThread = new SimpleInputOutputPipeThread(null, handlerThread.getOutputStream(), this);
+			pipeThread = new SimpleInputOutputPipeThread((InputStream) null, handlerThread.getOutputStream(), this);
 			pipeThread.start();
 			logger.log(LoggingLevel.INFO, "Won't create a remote connection due to the nature of the directive.");
 		}
 
 	}
 
-	private void internalFlush() {
-		if (readyToFlush) {
-			for (int i = 0; i < toflush.size(); i++) {
-				byte[] buffer = toflush.get(i);
-				int offset = offsetFlush.get(i);
-				int length = lengthFlush.get(i);
-				if (sslCommunicator != null) {
-					sslCommunicator.feedOutput(buffer, offset, length);
-				} else if (outputStream != null) {
-					try {
-						if (outputStream != null) {
-							outputStream.write(buffer, offset, length);
+	private void openFreshSocket() {
+		logger.log(LoggingLevel.INFO, "Opening outgoing socket for " + directive.getHost() + ":"
+				+ directive.getPort() + " with request " + directive.getOutcomingRequest().toHttpRequestLine());
+		SocketOpeningTool openingTool = new SocketOpeningTool(directive.getHost(), directive.getPort(),
+				new StandardSocketOpener(), (s, status) -> {
+					if (s == null) {
+						try {
+							if (!status) {
+								handlerThread.getOutputStream()
+										.write(new String("HTTP/1.1 504 Gateway Timeout\r\n").getBytes());
+							} else {
+								handlerThread.getOutputStream()
+										.write(new String("HTTP/1.1 502 Bad Gateway\r\n").getBytes());
+							}
+							handlerThread.getOutputStream()
+									.write(new String("Connection: Close\r\n\r\n").getBytes());
+						} catch (IOException e) {
+							logger.log(LoggingLevel.WARN, "Failed to tell the client that an error occured.",
+									e);
+						}
+						logger.log(LoggingLevel.WARN, "Failed to open the outgoing socket.");
+						closeSocket();
+					} else {
+						ProxyMain.getUpstreamPool().connectionOpened();
+						try {
+							attachOutgoing(s);
+							logger.log(LoggingLevel.INFO, "Outgoing socket opened.");
+						} catch (IOException e) {
+							logger.log(LoggingLevel.WARN, "Failed to open the outgoing socket.", e);
+							closeSocket();
 						}
-					} catch (IOException e) {
-						logger.log(LoggingLevel.WARN, "Failed to write to the outgoing stream.", e);
 					}
-				}
+				});
+		try {
+
+			openingTool.run();
+		} catch (Exception e) {
+			logger.log(LoggingLevel.WARN, "Failed to open the outgoing socket.", e);
+			closeSocket();
+		}
+	}
+
+	private void attachOutgoing(Socket socket) throws IOException {
+		boolean late;
+		synchronized (this) {
+			// A racing connection can be opened after the handler has been closed, it
+			// mustn't be used then.
+			late = closed;
+			if (!late) {
+				referenceSocket = socket;
+				inputStream = socket.getInputStream();
+				outputStream = socket.getOutputStream();
+				pipeThread = new SimpleInputOutputPipeThread(socket, handlerThread.getOutputStream(), this);
+				pipeThread.start();
 			}
-			toflush.clear();
-			offsetFlush.clear();
-			lengthFlush.clear();
 		}
+		if (late) {
+			logger.log(LoggingLevel.INFO, "The handler has been closed while its outgoing socket was opened.");
+			socket.close();
+			ProxyMain.getUpstreamPool().connectionClosed();
+			return;
+		}
+		rewriteDirectiveLine();
+		pendingOutput.open(this::writeOutgoing);
 	}
 
-	private synchronized void registerToWaitingQueue(byte[] buffer, int offset, int length, boolean flushOnly) {
-		if (!flushOnly) {
-			toflush.add(buffer);
-			offsetFlush.add(offset);
-			lengthFlush.add(length);
+	private void writeOutgoing(byte[] buffer, int offset, int length) {
+		try {
+			writeTimeout.arm(TimeoutType.WRITE_STALL);
+			outputStream.write(buffer, offset, length);
+		} catch (IOException e) {
+			logger.log(LoggingLevel.WARN, "Failed to write to the outgoing stream.", e);
+		} finally {
+			writeTimeout.disarm();
 		}
-		internalFlush();
 	}
 
 	/**
-	 * This function is used to tell the outgoing stream informations.
+	 * This function is used to tell the outgoing stream informations. The bytes
+	 * are only copied if the outgoing connection isn't ready yet.
 	 * 
 	 * @param buffer The buffer you want to send.
 	 * @param offset The offset for the buffer.
 	 * @param length The size of the buffer to read and send.
 	 */
 	public void feedOutput(byte[] buffer, int offset, int length) {
-		byte[] copy = new byte[buffer.length];
-		for (int i = 0; i < buffer.length; i++) {
-			copy[i] = buffer[i];
+		if (length > 0)
+			clientBytesFed = true;
+		pendingOutput.write(buffer, offset, length);
+	}
+
+	/**
+	 * Sends the request again through a new connection, when the server has
+	 * closed the pooled one before sending any byte of the response. This is only
+	 * done for the first request of the handler if no byte of its body has been
+	 * sent, so it can be sent again as it is.
+	 * 
+	 * @return If a new connection is being used.
+	 */
+	boolean retryStaleSocket() {
+		Socket stale;
+		synchronized (this) {
+			if (closed || !socketFromPool || requestsSent != 1 || clientBytesFed)
+				return false;
+			socketFromPool = false;
+			stale = referenceSocket;
+			referenceSocket = null;
+			requestsSent = 0;
 		}
-		registerToWaitingQueue(copy, offset, length, false);
+		logger.log(LoggingLevel.WARN, "The pooled outgoing socket for " + directive.getHost() + ":"
+				+ directive.getPort() + " had been closed by the server, sending the request through a new one.");
+		try {
+			stale.close();
+		} catch (IOException e) {
+			logger.log(LoggingLevel.WARN, "Failed to close the stale outgoing socket.", e);
+		}
+		ProxyMain.getUpstreamPool().connectionStale();
+		openFreshSocket();
+		return true;
+	}
+
+	/**
+	 * Returns the stream which receives the raw client bytes of an established SSL
+	 * tunnel. These bytes don't need to be parsed, modified or copied.
+	 * 
+	 * @return The tunnel stream, or {@code null} if there is no established
+	 *         tunnel.
+	 */
+	public OutputStream getTunnelOutput() {
+		if (closed || sslCommunicator == null)
+			return null;
+		return sslCommunicator.getTunnelOutput();
+	}
+
+	/**
+	 * Tells if the socket of the client must be given to
+	 * {@code runInterception}, which happens once an intercepted SSL tunnel has
+	 * been established.
+	 * 
+	 * @return If the client socket is waiting for its SSL layer.
+	 */
+	public boolean isIntercepting() {
+		return !closed && sslCommunicator != null && sslCommunicator.isIntercepting();
+	}
+
+	/**
+	 * Serves an intercepted SSL tunnel on the current thread, the SSL layer is put
+	 * directly over the socket of the client.
+	 * 
+	 * @param client The socket of the client.
+	 */
+	public void runInterception(Socket client) {
+		SSLComunicator communicator = sslCommunicator;
+		if (communicator != null)
+			communicator.runInterception(client);
 	}
 
 	/**
@@ -289,44 +449,73 @@ public class ConnectionDirectiveHandler {
 		return closed;
 	}
 
+	/**
+	 * This function is used to close the handler. The outgoing connection is given
+	 * to the upstream pool if it only waits for the next request, otherwise it is
+	 * closed.
+	 */
+	public void releaseSocket() {
+		if (closed)
+			return;
+		Socket outgoing = referenceSocket;
+		if (outgoing != null && connectionType == ConnectionType.KEEPALIVE && pendingOutput.getQueuedBytes() == 0
+				&& pipeThread != null && pipeThread.detach()) {
+			referenceSocket = null;
+			closeSocket();
+			logger.log(LoggingLevel.INFO, "Giving the outgoing socket for " + directive.getHost() + ":"
+					+ directive.getPort() + " back to the pool.");
+			ProxyMain.getUpstreamPool().release(directive.getHost(), directive.getPort(), outgoing);
+			return;
+		}
+		closeSocket();
+	}
+
 	/**
 	 * This function is used to close the outgoing connection.
 	 */
 	public void closeSocket() {
-		if (!closed) {
+		synchronized (this) {
+			if (closed)
+				return;
 			closed = true;
-			ProxyMain.getPluginsManager().notifyDirectiveClose(directive);
-			if (pipeThread != null) {
-				pipeThread.interrupt();
-			}
-			if (sslCommunicator != null) {
-				sslCommunicator.stopCommunicator();
-			}
-			try {
-				if (referenceSocket != null) {
-					referenceSocket.close();
-					referenceSocket = null;
-				}
-			} catch (IOException e) {
-				logger.log(LoggingLevel.WARN, "Failed to close the socket coming from outside.", e);
+		}
+		upstreamTimeout.disarm();
+		writeTimeout.disarm();
+		pendingOutput.close();
+		ProxyMain.getPluginsManager().notifyDirectiveClose(directive);
+		if (pipeThread != null) {
+			pipeThread.interrupt();
+		}
+		if (sslCommunicator != null) {
+			sslCommunicator.stopCommunicator();
+		}
+		try {
+			if (referenceSocket != null) {
+				referenceSocket.close();
+				referenceSocket = null;
+				ProxyMain.getUpstreamPool().connectionClosed();
 			}
+		} catch (IOException e) {
+			logger.log(LoggingLevel.WARN, "Failed to close the socket coming from outside.", e);
+		}
 
-			if (directive.isRemoteConnect()) {
-				if (directive.isSSL()) {
-					logger.log(LoggingLevel.INFO, "Closed outgoing socket for " + directive.getHost() + ":"
-							+ directive.getPort() + " with SSL.");
-				} else {
-					logger.log(LoggingLevel.INFO,
-							"Closed outgoing socket for " + directive.getHost() + ":" + directive.getPort()
-									+ " with request " + directive.getOutcomingRequest().toHttpRequestLine());
-				}
+		if (directive.isRemoteConnect()) {
+			if (directive.isSSL()) {
+				logger.log(LoggingLevel.INFO, "Closed outgoing socket for " + directive.getHost() + ":"
+						+ directive.getPort() + " with SSL.");
 			} else {
-				logger.log(LoggingLevel.INFO, "Closed non-remote-connect handler.");
-			}
-			if (connectionType == ConnectionType.CLOSE) {
-				logger.log(LoggingLevel.INFO, "Closing listening thread as the handler thread is in Close mode.");
-				handlerThread.closeListeningSocket();
+				logger.log(LoggingLevel.INFO,
+						"Closed outgoing socket for " + directive.getHost() + ":" + directive.getPort()
+								+ " with request " + directive.getOutcomingRequest().toHttpRequestLine());
 			}
+		} else {
+			logger.log(LoggingLevel.INFO, "Closed non-remote-connect handler.");
+		}
+		logger.log(LoggingLevel.INFO, "Flow high-water of the handler: " + requestWindow.getHighWater()
+				+ " bytes for the request, " + responseWindow.getHighWater() + " bytes for the response.");
+		if (connectionType == ConnectionType.CLOSE) {
+			logger.log(LoggingLevel.INFO, "Closing listening thread as the handler thread is in Close mode.");
+			handlerThread.closeListeningSocket();
 		}
 	}
 }
@@ -19,16 +19,31 @@ package io.github.explodingbottle.jmagicproxy.proxy;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Arrays;
 
 import io.github.explodingbottle.jmagicproxy.HardcodedConfig;
 import io.github.explodingbottle.jmagicproxy.ProxyMain;
 import io.github.explodingbottle.jmagicproxy.api.ConnectionType;
+import io.github.explodingbottle.jmagicproxy.api.HttpMethod;
 import io.github.explodingbottle.jmagicproxy.api.HttpResponse;
 import io.github.explodingbottle.jmagicproxy.api.IncomingTransferDirective;
 import io.github.explodingbottle.jmagicproxy.api.MalformedParsableContent;
+import io.github.explodingbottle.jmagicproxy.buffer.AdaptiveReadSize;
+import io.github.explodingbottle.jmagicproxy.buffer.FlowWindow;
+import io.github.explodingbottle.jmagicproxy.buffer.LeasedReader;
+import io.github.explodingbottle.jmagicproxy.http.HeadParseResult;
+import io.github.explodingbottle.jmagicproxy.http.HttpBodyFramer;
+import io.github.explodingbottle.jmagicproxy.http.HttpHeadParser;
+import io.github.explodingbottle.jmagicproxy.http.HttpMessageWriter;
 import io.github.explodingbottle.jmagicproxy.logging.LoggingLevel;
 import io.github.explodingbottle.jmagicproxy.logging.ProxyLogger;
+import io.github.explodingbottle.jmagicproxy.properties.PropertyKey;
+import io.github.explodingbottle.jmagicproxy.threading.ProxyThread;
+import io.github.explodingbottle.jmagicproxy.timeout.TimeoutGuard;
+import io.github.explodingbottle.jmagicproxy.timeout.TimeoutType;
 
 /**
  * This class represents a Input->Output pipe Thread to allow asynchronous
@@ -44,22 +59,37 @@ import io.github.explodingbottle.jmagicproxy.logging.ProxyLogger;
  * Author's quick note: Never allow that kind of thread to close streams else
  * you'll have a real nightmare.
  */
-public class SimpleInputOutputPipeThread extends Thread {
+public class SimpleInputOutputPipeThread extends ProxyThread {
 
+	private Socket socket;
 	private InputStream in;
 	private OutputStream out;
 
+	private LeasedReader reader;
+	private FlowWindow window;
+	private TimeoutGuard writeTimeout;
 	private byte[] transferBuffer;
 
 	private ProxyLogger logger;
 
 	private boolean canParseHeader;
-	private int toReadBeforeParse;
+	private HttpBodyFramer framer;
 
 	private ConnectionDirectiveHandler parent;
 
 	private IncomingTransferDirective lastTransferDirective;
 
+	private HttpHeadParser parser;
+	private HttpMessageWriter writer;
+
+	private int responsesSeen;
+	private boolean responseStarted;
+	private boolean lastResponseFramed;
+	private final Object boundaryLock = new Object();
+	private boolean parked;
+	private volatile boolean detachRequested;
+	private volatile boolean detached;
+
 	/**
 	 * This constructs the pipe.
 	 * 
@@ -73,146 +103,240 @@ public class SimpleInputOutputPipeThread extends Thread {
 		out = output;
 		this.parent = parent;
 		logger = ProxyMain.getLoggerProvider().createLogger();
-		transferBuffer = new byte[HardcodedConfig.returnBufferSize()]; // You must respect buffer size here too !.
+		window = parent.getResponseWindow();
+		writeTimeout = ProxyMain.getTimeoutWheel().newGuard(parent::timeoutExpired);
+		if (input != null) {
+			reader = new LeasedReader(input,
+					new AdaptiveReadSize(
+							ProxyMain.getPropertiesProvider().getAsInteger(PropertyKey.PROXY_BUFFERS_MIN_READ_SIZE),
+							(int) Math.min(HardcodedConfig.returnBufferSize(), window.getLimit())),
+					true, null);
+		}
 		canParseHeader = true;
-		toReadBeforeParse = 0;
+		framer = new HttpBodyFramer();
+		parser = HttpHeadParser.createConfigured(true);
+		writer = new HttpMessageWriter(output, false);
+	}
+
+	/**
+	 * This constructs the pipe for a connection to a server. The pipe can then be
+	 * detached from the socket between two responses.
+	 * 
+	 * @param socket The socket connected to the server.
+	 * @param output Where the data will be written.
+	 * @param parent Represents the directive handler which instantiated this
+	 *               thread.
+	 * @throws IOException If the stream of the socket can't be obtained.
+	 */
+	public SimpleInputOutputPipeThread(Socket socket, OutputStream output, ConnectionDirectiveHandler parent)
+			throws IOException {
+		this(socket.getInputStream(), output, parent);
+		this.socket = socket;
+	}
+
+	private boolean isHeadRequest() {
+		return parent.getDirective().getOutcomingRequest() != null
+				&& parent.getDirective().getOutcomingRequest().getMethod() == HttpMethod.HEAD;
 	}
 
-	private StringBuilder lastReadBlock;
-	private StringBuilder lastReadLine;
+	/**
+	 * Tells if the last response has been fully read and every sent request got
+	 * its response, so the connection only waits for the next request.
+	 */
+	private boolean isAtResponseBoundary() {
+		return socket != null && canParseHeader && lastResponseFramed && framer.isComplete()
+				&& !parser.hasPartialHead()
+				&& responsesSeen == parent.getRequestsSent();
+	}
 
-	// This code has been borrowed from SocketHandlerThread.
-	private Integer handleLineRead(int readLength) throws IOException {
-		if (!canParseHeader) {
-			return null;
+	/**
+	 * Stops the pipe without closing the socket, if it is waiting for the next
+	 * request. The socket can then be used by another handler right away, as the
+	 * pipe doesn't read it anymore.
+	 * 
+	 * @return If the pipe has left the socket usable.
+	 */
+	boolean detach() {
+		synchronized (boundaryLock) {
+			detachRequested = true;
+			detached = parked && isAtResponseBoundary();
+			boundaryLock.notifyAll();
+			return detached;
 		}
-		int offset = 0;
-		if (toReadBeforeParse != 0) {
-			toReadBeforeParse -= readLength;
-			if (toReadBeforeParse < 0) {
-				lastReadBlock = new StringBuilder();
-				lastReadLine = new StringBuilder();
-				offset = toReadBeforeParse * -1;
-				toReadBeforeParse = 0;
-			}
+	}
+
+	/**
+	 * Tells that a request has been sent to the server, so the pipe must read its
+	 * response.
+	 */
+	void signalRequest() {
+		synchronized (boundaryLock) {
+			boundaryLock.notifyAll();
 		}
-		if (toReadBeforeParse > 0) {
-			lastReadBlock = new StringBuilder();
-			lastReadLine = new StringBuilder();
-			return null;
+	}
+
+	private void handleResponse() throws IOException {
+		HttpResponse response;
+		try {
+			response = parser.toResponse();
+		} catch (MalformedParsableContent e) {
+			logger.log(LoggingLevel.WARN, "Ignored a malformed response header.", e);
+			return;
 		}
-		Integer toRet = null;
-		if (lastReadBlock == null)
-			lastReadBlock = new StringBuilder();
-		if (lastReadLine == null)
-			lastReadLine = new StringBuilder();
-		for (int it = offset; it < readLength; it++) {
-			byte r = transferBuffer[it];
-			lastReadBlock.append((char) r);
-			lastReadLine.append((char) r);
-			if ((char) r == '\n') {
-				String readLine = lastReadLine.toString();
-				if (readLine.trim().isEmpty()) {
-					try {
-						HttpResponse response = HttpResponse.createFromHeaderBlock(lastReadBlock);
-						IncomingTransferDirective itd = ProxyMain.getPluginsManager()
-								.getIncomingTransferDirective(response);
-						if (itd != null) {
-							lastTransferDirective = itd;
-							HttpResponse modifiedResponse = itd.getResponse();
-							ConnectionType ct = itd.getConnectionType();
-							if (ct == ConnectionType.KEEPALIVE) {
-								if (modifiedResponse.getHeaders().containsKey("Content-Length")) {
-									toReadBeforeParse = Integer
-											.parseInt(modifiedResponse.getHeaders().get("Content-Length"));
-								}
-							} else {
-								canParseHeader = false;
-							}
-							parent.setConnectionType(ct);
-							out.write((modifiedResponse.toHttpResponseLine() + "\r\n").getBytes());
-							modifiedResponse.getHeaders().forEach((hKey, hVal) -> {
-								try {
-									out.write((hKey + ": " + hVal + "\r\n").getBytes());
-								} catch (IOException e) {
-									logger.log(LoggingLevel.WARN, "Failed to write a header in the ForEach loop.", e);
-								}
-							});
-							out.write("\r\n".getBytes());
-							toRet = it + 1;
-							lastReadBlock = new StringBuilder();
-							lastReadLine = new StringBuilder();
-							break;
-						} else {
-							logger.log(LoggingLevel.WARN, "Directive is null, no actions will be taken.");
-						}
-					} catch (MalformedParsableContent e) {
+		IncomingTransferDirective itd = ProxyMain.getPluginsManager().getIncomingTransferDirective(response);
+		if (itd == null) {
+			logger.log(LoggingLevel.WARN, "Directive is null, no actions will be taken.");
+			return;
+		}
+		lastTransferDirective = itd;
+		HttpResponse modifiedResponse = itd.getResponse();
+		ConnectionType ct = itd.getConnectionType();
+		// The body is framed with the headers given by the server, as these
+		// are the bytes coming from it.
+		if (response.getResponseCode() >= 200)
+			responsesSeen++;
+		framer.startResponse(response, isHeadRequest());
+		if (framer.isMalformed())
+			logger.log(LoggingLevel.WARN, "Invalid Content-Length in a response, it will end with the connection.");
+		lastResponseFramed = !framer.isCloseDelimited();
+		if (ct != ConnectionType.KEEPALIVE || framer.isCloseDelimited())
+			canParseHeader = false;
+		parent.setConnectionType(ct);
+		writer.writeHead(modifiedResponse);
+	}
 
-					}
-					lastReadBlock = new StringBuilder();
+	private void forwardData(byte[] data, int offset, int length) throws IOException {
+		if (length == 0)
+			return;
+		byte[] realData = Arrays.copyOfRange(data, offset, offset + length);
+		realData = ProxyMain.getPluginsManager().getModifiedData(2, parent.getDirective(), realData,
+				lastTransferDirective);
+		writeWindowed(realData);
+	}
+
+	/**
+	 * Sends the read bytes either to the parser or to the client.
+	 * 
+	 * @param readLength The count of read bytes.
+	 * @throws IOException              If the client can't be written to.
+	 * @throws MalformedParsableContent If a response header exceeds the limits.
+	 */
+	private void handleRead(int readLength) throws IOException, MalformedParsableContent {
+		int position = 0;
+		while (position < readLength) {
+			if (!canParseHeader) {
+				forwardData(transferBuffer, position, readLength - position);
+				position = readLength;
+				continue;
+			}
+			if (!framer.isComplete()) {
+				int length = framer.consume(transferBuffer, position, readLength - position);
+				forwardData(transferBuffer, position, length);
+				position += length;
+				if (framer.isCloseDelimited()) {
+					logger.log(LoggingLevel.WARN, "Malformed chunked response, it will end with the connection.");
+					canParseHeader = false;
+					lastResponseFramed = false;
 				}
-				lastReadLine = new StringBuilder();
+				continue;
+			}
+			int used = parser.feed(transferBuffer, position, readLength - position);
+			if (parser.getResult() == HeadParseResult.NOT_A_HEAD) {
+				forwardData(parser.getRejectedBytes(), 0, parser.getRejectedLength());
+				forwardData(transferBuffer, position, used);
+			} else if (parser.getResult() == HeadParseResult.COMPLETE) {
+				handleResponse();
+			}
+			position += used;
+		}
+		if (writer.hasPendingHead()) {
+			writeTimeout.arm(TimeoutType.WRITE_STALL);
+			try {
+				writer.flush();
+			} finally {
+				writeTimeout.disarm();
+			}
+		}
+	}
 
+	/**
+	 * Waits for the next request without reading the socket, so the pipe can
+	 * leave it to another handler when asked.
+	 */
+	private int readAtBoundary() throws IOException {
+		synchronized (boundaryLock) {
+			parked = true;
+			try {
+				while (!detachRequested && isAtResponseBoundary())
+					boundaryLock.wait();
+			} catch (InterruptedException e) {
+				interrupt();
+				throw new InterruptedIOException("The pipe has been interrupted while waiting for a request.");
+			} finally {
+				parked = false;
 			}
+			if (detachRequested)
+				return -1;
+		}
+		return reader.read();
+	}
+
+	private int readNext() throws IOException {
+		if (reader != null) {
+			int read = isAtResponseBoundary() ? readAtBoundary() : reader.read();
+			transferBuffer = reader.getBuffer();
+			if (read > 0) {
+				responseStarted = true;
+				parent.signalResponse();
+			}
+			return read;
+		}
+		if (!parent.getDirective().isRemoteConnect()) {
+			transferBuffer = ProxyMain.getPluginsManager().getModifiedData(2, parent.getDirective(), null,
+					lastTransferDirective);
+			if (transferBuffer != null) {
+				return transferBuffer.length;
+			}
+		}
+		return -1;
+	}
+
+	private void writeWindowed(byte[] data) throws IOException {
+		window.acquire(data.length);
+		writeTimeout.arm(TimeoutType.WRITE_STALL);
+		try {
+			writer.write(data, 0, data.length);
+		} finally {
+			writeTimeout.disarm();
+			window.release(data.length);
 		}
-		return toRet;
 	}
 
 	@Override
 	public void run() {
 		logger.log(LoggingLevel.INFO, "Signaling pipe startup.");
 		try {
-			int read = -1;
-			if (in != null) {
-				read = in.read(transferBuffer, 0, transferBuffer.length);
-			} else {
-				if (!parent.getDirective().isRemoteConnect()) {
-					transferBuffer = ProxyMain.getPluginsManager().getModifiedData(2, parent.getDirective(), null,
-							lastTransferDirective);
-					if (transferBuffer != null) {
-						read = transferBuffer.length;
-					} else {
-						read = -1;
-					}
-				}
-			}
+			int read = readNext();
 
 			while (!interrupted() && read != -1) {
 				if (!isInterrupted()) {
-					Integer offset = handleLineRead(read);
-					if (offset != null) {
-						byte[] realData = new byte[read - offset];
-						for (int i = 0; i < read - offset; i++) {
-							realData[i] = transferBuffer[i + offset];
-						}
-						realData = ProxyMain.getPluginsManager().getModifiedData(2, parent.getDirective(), realData,
-								lastTransferDirective);
-						out.write(realData, 0, realData.length);
-					} else {
-						byte[] realData = new byte[read];
-						for (int i = 0; i < read; i++) {
-							realData[i] = transferBuffer[i];
-						}
-						realData = ProxyMain.getPluginsManager().getModifiedData(2, parent.getDirective(), realData,
-								lastTransferDirective);
-						out.write(realData, 0, realData.length);
-					}
-					if (in != null) {
-						read = in.read(transferBuffer, 0, transferBuffer.length);
-					} else {
-						if (!parent.getDirective().isRemoteConnect()) {
-							transferBuffer = ProxyMain.getPluginsManager().getModifiedData(2, parent.getDirective(),
-									null, lastTransferDirective);
-							if (transferBuffer != null) {
-								read = transferBuffer.length;
-							} else {
-								read = -1;
-							}
-						}
+					try {
+						handleRead(read);
+					} catch (MalformedParsableContent e) {
+						logger.log(LoggingLevel.WARN, "Rejected a response header, closing the connection.", e);
+						writer.close();
+						out.write(("HTTP/1.1 502 Bad Gateway\r\nContent-Length: 0\r\nConnection: Close\r\n\r\n")
+								.getBytes());
+						parent.setConnectionType(ConnectionType.CLOSE);
+						break;
 					}
+					read = readNext();
 				}
 			}
-			if (read == -1) {
+			if (detachRequested) {
+				logger.log(LoggingLevel.INFO, detached ? "Pipe has been detached from the server connection."
+						: "Pipe has stopped before the end of a response, it can't be detached.");
+			} else if (read == -1) {
 				logger.log(LoggingLevel.INFO, "Server has terminated the stream. Forcing connection mode to Close.");
 				parent.setConnectionType(ConnectionType.CLOSE);
 			}
@@ -220,7 +344,16 @@ public class SimpleInputOutputPipeThread extends Thread {
 			if (!isInterrupted())
 				logger.log(LoggingLevel.WARN, "An unexpected stream closure happened.", e);
 		}
+		writeTimeout.disarm();
+		writer.close();
+		if (reader != null)
+			reader.close();
+		transferBuffer = null;
 		logger.log(LoggingLevel.INFO, "Thread can be interrupted now !");
+		if (detachRequested)
+			return; // The handler which asked for the detach closes or keeps the connection.
+		if (!responseStarted && parent.retryStaleSocket())
+			return; // The request has been sent again through a new connection with its own pipe.
 		parent.signalThreadClose(); // This doesn't close the stream ! It is not contradictory
 		// In fact it does, but it doesn't close the "Client=>Proxy" connection.
 	}
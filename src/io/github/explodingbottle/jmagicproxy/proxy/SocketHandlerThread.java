@@ -20,7 +20,9 @@ package io.github.explodingbottle.jmagicproxy.proxy;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetAddress;
 import java.net.Socket;
+import java.util.Arrays;
 
 import io.github.explodingbottle.jmagicproxy.HardcodedConfig;
 import io.github.explodingbottle.jmagicproxy.ProxyMain;
@@ -28,9 +30,18 @@ import io.github.explodingbottle.jmagicproxy.api.ConnectionDirective;
 import io.github.explodingbottle.jmagicproxy.api.ConnectionType;
 import io.github.explodingbottle.jmagicproxy.api.HttpRequestHeader;
 import io.github.explodingbottle.jmagicproxy.api.MalformedParsableContent;
+import io.github.explodingbottle.jmagicproxy.buffer.AdaptiveReadSize;
+import io.github.explodingbottle.jmagicproxy.buffer.LeasedReader;
+import io.github.explodingbottle.jmagicproxy.http.HeadParseResult;
+import io.github.explodingbottle.jmagicproxy.http.HttpBodyFramer;
+import io.github.explodingbottle.jmagicproxy.http.HttpHeadParser;
 import io.github.explodingbottle.jmagicproxy.logging.LoggingLevel;
 import io.github.explodingbottle.jmagicproxy.logging.ProxyLogger;
-import io.github.explodingbottle.jmagicproxy.server.SocketAcceptorThread;
+import io.github.explodingbottle.jmagicproxy.properties.PropertyKey;
+import io.github.explodingbottle.jmagicproxy.server.HandlerRegistry;
+import io.github.explodingbottle.jmagicproxy.threading.ProxyThread;
+import io.github.explodingbottle.jmagicproxy.timeout.TimeoutGuard;
+import io.github.explodingbottle.jmagicproxy.timeout.TimeoutType;
 
 /**
  * This socket handles the communication with the client and the server.
@@ -38,22 +49,32 @@ import io.github.explodingbottle.jmagicproxy.server.SocketAcceptorThread;
  * @author ExplodingBottle
  *
  */
-public class SocketHandlerThread extends Thread {
+public class SocketHandlerThread extends ProxyThread {
 
 	private Socket socket;
+	private InetAddress clientAddress;
 	private ProxyLogger logger;
 
 	private InputStream input;
 	private OutputStream output;
 
-	private SocketAcceptorThread parent;
+	private HandlerRegistry parent;
 
+	private LeasedReader reader;
 	private byte[] buffer;
+	private byte[] pendingData;
 
 	private boolean isClosed;
+	private boolean providedStreams;
+
+	private TimeoutGuard timeout;
+	private TimeoutGuard writeTimeout;
 
 	private ConnectionDirectiveHandler linkedDirectiveHandler;
 
+	private HttpHeadParser parser;
+	private HttpBodyFramer framer;
+
 	/**
 	 * Creates a handler thread according to its socket.
 	 * 
@@ -61,11 +82,35 @@ public class SocketHandlerThread extends Thread {
 	 * @param parent The parent which is the SocketAcceptorThread to allow
 	 *               unregister when thread dies.
 	 */
-	public SocketHandlerThread(Socket socket, SocketAcceptorThread parent) {
+	public SocketHandlerThread(Socket socket, HandlerRegistry parent) {
 		this.socket = socket;
 		this.parent = parent;
+		clientAddress = socket.getInetAddress();
 		logger = ProxyMain.getLoggerProvider().createLogger();
-		buffer = new byte[HardcodedConfig.returnBufferSize()];
+		timeout = ProxyMain.getTimeoutWheel().newGuard(this::timeoutExpired);
+		writeTimeout = ProxyMain.getTimeoutWheel().newGuard(this::timeoutExpired);
+		parser = HttpHeadParser.createConfigured(false);
+		framer = new HttpBodyFramer();
+	}
+
+	/**
+	 * Creates a handler thread for a connection which has already been started
+	 * somewhere else, like in the NIO transport.
+	 * 
+	 * @param socket      The socket to handle.
+	 * @param input       The input stream coming from the client.
+	 * @param output      The output stream going to the client.
+	 * @param pendingData The data which has already been read from the client but
+	 *                    not handled yet, can be {@code null}.
+	 * @param parent      The parent to allow unregister when thread dies.
+	 */
+	public SocketHandlerThread(Socket socket, InputStream input, OutputStream output, byte[] pendingData,
+			HandlerRegistry parent) {
+		this(socket, parent);
+		this.input = input;
+		this.output = output;
+		this.pendingData = pendingData;
+		providedStreams = true;
 	}
 
 	/**
@@ -74,13 +119,15 @@ public class SocketHandlerThread extends Thread {
 	public void closeListeningSocket() {
 		if (!isClosed) {
 			isClosed = true;
-			super.interrupt();
+			timeout.disarm();
+			writeTimeout.disarm();
 			if (linkedDirectiveHandler != null)
 				try {
-					linkedDirectiveHandler.closeSocket();
+					linkedDirectiveHandler.releaseSocket();
 				} catch (Exception e) {
 					logger.log(LoggingLevel.WARN, "Failed to close the directive handler.", e);
 				}
+			super.interrupt();
 			try {
 				if (socket != null)
 					socket.close();
@@ -93,6 +140,20 @@ public class SocketHandlerThread extends Thread {
 		}
 	}
 
+	private void timeoutExpired(TimeoutType type) {
+		logger.log(LoggingLevel.WARN, "The " + type.getDescription() + " timeout has expired for the socket from "
+				+ socket.getInetAddress() + " and from port " + socket.getPort() + ".");
+		closeListeningSocket();
+	}
+
+	/**
+	 * Tells that something has been transferred for this connection, so it isn't
+	 * idle.
+	 */
+	void signalActivity() {
+		timeout.refresh(TimeoutType.IDLE_KEEPALIVE);
+	}
+
 	/**
 	 * Redefining interrupt to force use of closeListeningSocket().
 	 */
@@ -100,6 +161,15 @@ public class SocketHandlerThread extends Thread {
 		closeListeningSocket();
 	}
 
+	/**
+	 * This methods returns the address of the client.
+	 * 
+	 * @return The address of the client.
+	 */
+	public InetAddress getClientAddress() {
+		return clientAddress;
+	}
+
 	/**
 	 * This methods returns the output stream to go to the client.
 	 * 
@@ -118,129 +188,217 @@ public class SocketHandlerThread extends Thread {
 		return input;
 	}
 
-	private StringBuilder lastReadBlock;
-	private StringBuilder lastReadLine;
-
-	private Integer handleLineRead(int readLength) {
-		Integer toRet = null;
-		if (lastReadBlock == null)
-			lastReadBlock = new StringBuilder();
-		if (lastReadLine == null)
-			lastReadLine = new StringBuilder();
-		boolean gotItOnce = false;
-		for (int it = 0; it < readLength; it++) {
-			byte r = buffer[it];
-			lastReadBlock.append((char) r);
-			lastReadLine.append((char) r);
-			if ((char) r == '\n') {
-				String readLine = lastReadLine.toString();
-				try {
-					HttpRequestHeader.createFromHeaderBlock(lastReadBlock);
-					gotItOnce = true;
-				} catch (MalformedParsableContent e1) {
-					lastReadBlock = new StringBuilder();
-					lastReadLine = new StringBuilder();
-					return toRet;
-				}
-				if (readLine.trim().isEmpty()) {
-					try {
-						HttpRequestHeader httpRequestHeader = HttpRequestHeader.createFromHeaderBlock(lastReadBlock);
-						ConnectionDirective directive = ProxyMain.getPluginsManager()
-								.getInitialDirectiveByPlugins(httpRequestHeader);
-						boolean reuse = false;
-						if (linkedDirectiveHandler != null) {
-							if (directive != null
-									&& directive.getHost()
-											.equalsIgnoreCase(linkedDirectiveHandler.getDirective().getHost())
-									&& directive.getPort() == linkedDirectiveHandler.getDirective().getPort()
-									&& linkedDirectiveHandler.getConnectionType() == ConnectionType.KEEPALIVE
-									&& !linkedDirectiveHandler.isClosed())
-								reuse = true;
-							if (!reuse)
-								linkedDirectiveHandler.closeSocket();
-						}
-						if (directive != null) {
-							if (reuse) {
-								logger.log(LoggingLevel.INFO, "Keep-Alive connection has been reused for "
-										+ directive.getOutcomingRequest().toHttpRequestLine() + ".");
-								linkedDirectiveHandler.setDirective(directive);
-								linkedDirectiveHandler.rewriteDirectiveLine();
-							} else {
-								linkedDirectiveHandler = new ConnectionDirectiveHandler(directive, this);
-								linkedDirectiveHandler.openSocket();
-							}
-							lastReadBlock = new StringBuilder();
-							lastReadLine = new StringBuilder();
-							toRet = it + 1;
-							break;
-						} else {
-							logger.log(LoggingLevel.WARN, "Directive is null, closing socket.");
-							closeListeningSocket();
-						}
-					} catch (MalformedParsableContent e) {
-					}
-					lastReadBlock = new StringBuilder();
-				}
-				lastReadLine = new StringBuilder();
+	private void handleRequest() {
+		HttpRequestHeader httpRequestHeader;
+		try {
+			httpRequestHeader = parser.toRequest();
+		} catch (MalformedParsableContent e) {
+			logger.log(LoggingLevel.WARN, "Ignored a malformed request header.", e);
+			return;
+		}
+		if (parser.hasSpaceBeforeColon()) {
+			rejectRequest("400 Bad Request",
+					new MalformedParsableContent("A header name of the request is followed by whitespace."));
+			closeListeningSocket();
+			return;
+		}
+		// The body is framed with the headers given by the client, as these are
+		// the bytes coming from it.
+		if (!framer.startRequest(httpRequestHeader)) {
+			rejectRequest("400 Bad Request",
+					new MalformedParsableContent("The length of the request body is invalid."));
+			closeListeningSocket();
+			return;
+		}
+		ConnectionDirective directive = ProxyMain.getPluginsManager().getInitialDirectiveByPlugins(httpRequestHeader);
+		if (directive != null && !directive.isRemoteConnect() && framer.isWaitingForContinue(httpRequestHeader))
+			sendContinue();
+		boolean reuse = false;
+		if (linkedDirectiveHandler != null) {
+			if (directive != null
+					&& directive.getHost().equalsIgnoreCase(linkedDirectiveHandler.getDirective().getHost())
+					&& directive.getPort() == linkedDirectiveHandler.getDirective().getPort()
+					&& linkedDirectiveHandler.getConnectionType() == ConnectionType.KEEPALIVE
+					&& !linkedDirectiveHandler.isClosed())
+				reuse = true;
+			if (!reuse)
+				linkedDirectiveHandler.releaseSocket();
+		}
+		if (directive != null) {
+			if (reuse) {
+				logger.log(LoggingLevel.INFO, "Keep-Alive connection has been reused for "
+						+ directive.getOutcomingRequest().toHttpRequestLine() + ".");
+				linkedDirectiveHandler.setDirective(directive);
+				linkedDirectiveHandler.rewriteDirectiveLine();
+			} else {
+				linkedDirectiveHandler = new ConnectionDirectiveHandler(directive, this);
+				linkedDirectiveHandler.openSocket();
+			}
+		} else {
+			logger.log(LoggingLevel.WARN, "Directive is null, closing socket.");
+			closeListeningSocket();
+		}
+	}
+
+	private void forwardData(byte[] data, int offset, int length) {
+		if (linkedDirectiveHandler == null || length == 0)
+			return;
+		if (linkedDirectiveHandler.getDirective().isSSL()) {
+			linkedDirectiveHandler.feedOutput(data, offset, length);
+			return;
+		}
+		byte[] realData = Arrays.copyOfRange(data, offset, offset + length);
+		realData = ProxyMain.getPluginsManager().getModifiedData(1, linkedDirectiveHandler.getDirective(), realData,
+				null);
+		if (linkedDirectiveHandler != null) {
+			linkedDirectiveHandler.feedOutput(realData, 0, realData.length);
+		}
+	}
+
+	/**
+	 * Sends the read bytes either to the parser or to the server.
+	 * 
+	 * @param readLength The count of read bytes.
+	 * @throws MalformedParsableContent If a request header exceeds the limits.
+	 */
+	private void handleRead(int readLength) throws MalformedParsableContent {
+		int position = 0;
+		while (position < readLength && !isClosed) {
+			if (linkedDirectiveHandler != null && linkedDirectiveHandler.getDirective().isSSL()) {
+				// After a CONNECT request, the bytes belong to the tunnel.
+				forwardData(buffer, position, readLength - position);
+				return;
+			}
+			if (!framer.isComplete()) {
+				// The body goes to the server as it is, the parser only starts again at the
+				// next request.
+				boolean framed = !framer.isCloseDelimited();
+				int length = framer.consume(buffer, position, readLength - position);
+				forwardData(buffer, position, length);
+				position += length;
+				if (framed && framer.isCloseDelimited())
+					logger.log(LoggingLevel.WARN,
+							"Malformed chunked request, the rest of the connection is sent as it is.");
+				continue;
+			}
+			int used = parser.feed(buffer, position, readLength - position);
+			if (parser.getResult() == HeadParseResult.NOT_A_HEAD) {
+				forwardData(parser.getRejectedBytes(), 0, parser.getRejectedLength());
+				forwardData(buffer, position, used);
+			} else if (parser.getResult() == HeadParseResult.COMPLETE) {
+				position += used;
+				handleRequest();
+				continue;
 			}
+			position += used;
 		}
-		if (!gotItOnce) {
-			lastReadBlock = new StringBuilder();
-			lastReadLine = new StringBuilder();
+	}
+
+	private void sendContinue() {
+		// The plugins answer the request themselves, no server will ask for the body.
+		try {
+			writeTimeout.arm(TimeoutType.WRITE_STALL);
+			output.write("HTTP/1.1 100 Continue\r\n\r\n".getBytes());
+			output.flush();
+		} catch (IOException e) {
+			logger.log(LoggingLevel.WARN, "Failed to send the 100 Continue response.", e);
+		} finally {
+			writeTimeout.disarm();
+		}
+	}
+
+	private void rejectRequest(String status, MalformedParsableContent cause) {
+		logger.log(LoggingLevel.WARN, "Rejected a request header, closing socket.", cause);
+		try {
+			writeTimeout.arm(TimeoutType.WRITE_STALL);
+			output.write(
+					("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\nConnection: Close\r\n\r\n").getBytes());
+			output.flush();
+		} catch (IOException e) {
+			logger.log(LoggingLevel.WARN, "Failed to send the rejection response.", e);
+		} finally {
+			writeTimeout.disarm();
+		}
+	}
+
+	private void updateReadTimeout() {
+		if (parser.hasPartialHead()) {
+			// A request header has been started, the client must complete it in time.
+			if (timeout.getType() != TimeoutType.HEADER_READ)
+				timeout.arm(TimeoutType.HEADER_READ);
+		} else if (linkedDirectiveHandler != null) {
+			timeout.arm(TimeoutType.IDLE_KEEPALIVE);
+		}
+	}
+
+	private int readInput() throws IOException {
+		int length = reader.read();
+		buffer = reader.getBuffer();
+		return length;
+	}
+
+	private void relayTunnel(OutputStream tunnelOutput) throws IOException {
+		logger.log(LoggingLevel.INFO, "Switching to raw tunnel mode.");
+		int readLength = readInput();
+		while (readLength != -1 && !interrupted()) {
+			timeout.arm(TimeoutType.IDLE_KEEPALIVE);
+			writeTimeout.arm(TimeoutType.WRITE_STALL);
+			tunnelOutput.write(buffer, 0, readLength);
+			writeTimeout.disarm();
+			readLength = readInput();
 		}
-		return toRet;
 	}
 
 	public void run() {
 		logger.log(LoggingLevel.INFO,
 				"Now handling a socket from " + socket.getInetAddress() + " and from port " + socket.getPort());
+		timeout.arm(TimeoutType.HEADER_READ);
 		try {
-			input = socket.getInputStream();
-			output = socket.getOutputStream();
+			if (input == null)
+				input = socket.getInputStream();
+			if (output == null)
+				output = socket.getOutputStream();
 		} catch (IOException e) {
 			logger.log(LoggingLevel.WARN, "Failed to open input or output stream.", e);
 		}
+		// Provided streams may not be able to tell how many bytes are available.
+		reader = new LeasedReader(input,
+				new AdaptiveReadSize(
+						ProxyMain.getPropertiesProvider().getAsInteger(PropertyKey.PROXY_BUFFERS_MIN_READ_SIZE),
+						HardcodedConfig.returnBufferSize()),
+				!providedStreams, pendingData);
+		pendingData = null;
 		try {
-			int readLength = input.read(buffer, 0, buffer.length);
+			int readLength = readInput();
 			while (readLength != -1 && !interrupted()) {
-				Integer offset = handleLineRead(readLength);
-
-				if (offset != null) {
-					if (linkedDirectiveHandler != null) {
-						byte[] realData = new byte[readLength - offset];
-						for (int i = 0; i < readLength - offset; i++) {
-							realData[i] = buffer[i + offset];
-						}
-						realData = ProxyMain.getPluginsManager().getModifiedData(1,
-								linkedDirectiveHandler.getDirective(), realData, null);
-						linkedDirectiveHandler.feedOutput(realData, 0, realData.length);
-					} else {
-						linkedDirectiveHandler.feedOutput(buffer, offset, readLength - offset);
+				try {
+					handleRead(readLength);
+				} catch (MalformedParsableContent e) {
+					rejectRequest("431 Request Header Fields Too Large", e);
+					break;
+				}
+				updateReadTimeout();
+				if (linkedDirectiveHandler != null && linkedDirectiveHandler.getDirective().isSSL()) {
+					OutputStream tunnelOutput = linkedDirectiveHandler.getTunnelOutput();
+					if (tunnelOutput != null) {
+						relayTunnel(tunnelOutput);
+						break;
 					}
-				} else {
-					if (linkedDirectiveHandler != null) {
-						if (!linkedDirectiveHandler.getDirective().isSSL()) {
-							byte[] realData = new byte[readLength];
-							for (int i = 0; i < readLength; i++) {
-								realData[i] = buffer[i];
-							}
-							realData = ProxyMain.getPluginsManager().getModifiedData(1,
-									linkedDirectiveHandler.getDirective(), realData, null);
-							if (linkedDirectiveHandler != null) {
-								linkedDirectiveHandler.feedOutput(realData, 0, realData.length);
-							}
-						} else {
-							linkedDirectiveHandler.feedOutput(buffer, 0, readLength);
-						}
+					if (linkedDirectiveHandler.isIntercepting()) {
+						timeout.arm(TimeoutType.IDLE_KEEPALIVE);
+						linkedDirectiveHandler.runInterception(socket);
+						break;
 					}
 				}
-				readLength = input.read(buffer, 0, buffer.length);
+				readLength = readInput();
 			}
 		} catch (Exception e) {
 			if (!isInterrupted()) {
 				logger.log(LoggingLevel.WARN, "Transfer thread crashed.", e);
 			}
 		}
+		reader.close();
+		buffer = null;
 		closeListeningSocket();
 	}
 
@@ -0,0 +1,82 @@
+/*
+ *   JMagic Proxy - A HTTP and HTTPS Proxy
+ *   Copyright (C) 2023  ExplodingBottle
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.explodingbottle.jmagicproxy.proxy.ssl;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * This class orders the cipher suites from the cheapest to the most expensive:
+ * AES-GCM first since processors accelerate it, then ChaCha20, then the CBC
+ * suites, and the legacy ones needed by the old clients last. Among suites of
+ * the same kind, the ones with forward secrecy and elliptic curves come first.
+ * 
+ * @author ExplodingBottle
+ *
+ */
+final class CipherSuiteOrder {
+
+	private CipherSuiteOrder() {
+	}
+
+	private static int rank(String suite) {
+		if (suite.endsWith("_SCSV"))
+			return 100;
+		if (suite.contains("_NULL_") || suite.contains("_anon_") || suite.contains("_EXPORT_")
+				|| suite.contains("_RC4_") || suite.contains("_DES_") || suite.contains("_3DES_")
+				|| suite.contains("_DES40_"))
+			return 90;
+		boolean gcm = suite.contains("_GCM_");
+		boolean chacha = suite.contains("_CHACHA20_");
+		int kind;
+		if (!suite.contains("_WITH_")) {
+			// TLS 1.3 suites don't tell their key exchange.
+			kind = 0;
+		} else if (suite.startsWith("TLS_ECDHE_ECDSA_")) {
+			kind = 1;
+		} else if (suite.startsWith("TLS_ECDHE_RSA_")) {
+			kind = 2;
+		} else if (suite.startsWith("TLS_DHE_")) {
+			kind = 3;
+		} else {
+			kind = 4;
+		}
+		int cipher = gcm ? 0 : chacha ? 1 : 2;
+		int rank = cipher * 20 + kind * 4;
+		// AES-128 needs fewer rounds than AES-256 for the same hardware.
+		if (suite.contains("_256_"))
+			rank += 1;
+		if (suite.endsWith("_SHA") || suite.endsWith("_MD5"))
+			rank += 2;
+		return rank;
+	}
+
+	/**
+	 * Orders cipher suites.
+	 * 
+	 * @param suites The suites to order.
+	 * @return A copy of the suites, in the order of their cost.
+	 */
+	static String[] order(String[] suites) {
+		String[] ordered = suites.clone();
+		// The sort is stable, so suites of the same rank keep the order of Java.
+		Arrays.sort(ordered, Comparator.comparingInt(CipherSuiteOrder::rank));
+		return ordered;
+	}
+
+}
@@ -0,0 +1,165 @@
+/*
+ *   JMagic Proxy - A HTTP and HTTPS Proxy
+ *   Copyright (C) 2023  ExplodingBottle
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.explodingbottle.jmagicproxy.proxy.ssl;
+
+import java.util.ArrayDeque;
+
+/**
+ * This class limits the count of handshakes done at the same time with one
+ * side of the intercepted tunnels, since they are what costs the most CPU when
+ * a lot of connections are opened together. The other handshakes wait in a
+ * bounded queue, in their order of arrival, until a slot is free or until they
+ * waited too long. The tunnels which are already established don't go through
+ * it and keep transferring meanwhile.
+ *
+ * @author ExplodingBottle
+ *
+ */
+public class HandshakeLimiter {
+
+	private String leg;
+	private int maxHandshakes;
+	private int maxQueued;
+	private long queueTimeout;
+
+	private int activeHandshakes;
+	private ArrayDeque<WaitingHandshake> queue;
+
+	private long grantedCount;
+	private long queuedCount;
+	private long rejectedCount;
+	private long expiredCount;
+	private long queuedMillis;
+	private long longestQueuedMillis;
+
+	private static class WaitingHandshake {
+		private boolean granted;
+	}
+
+	/**
+	 * Creates the limiter.
+	 *
+	 * @param leg           The name of the side of the tunnels, used in the
+	 *                      summary.
+	 * @param maxHandshakes The maximum count of handshakes done at the same time,
+	 *                      0 means no limit.
+	 * @param maxQueued     The maximum count of handshakes waiting for a slot.
+	 * @param queueTimeout  The time in milliseconds a handshake can wait for a
+	 *                      slot.
+	 */
+	public HandshakeLimiter(String leg, int maxHandshakes, int maxQueued, long queueTimeout) {
+		this.leg = leg;
+		this.maxHandshakes = maxHandshakes;
+		this.maxQueued = Math.max(0, maxQueued);
+		this.queueTimeout = Math.max(0, queueTimeout);
+		queue = new ArrayDeque<WaitingHandshake>();
+	}
+
+	private boolean hasFreeSlot() {
+		return maxHandshakes <= 0 || activeHandshakes < maxHandshakes;
+	}
+
+	/**
+	 * Waits for a slot before doing a handshake. When it returns {@code true},
+	 * {@link #release()} must be called once the handshake is over.
+	 *
+	 * @return If the handshake can be done, {@code false} if the queue is full or
+	 *         if the slot didn't come in time.
+	 */
+	public synchronized boolean acquire() {
+		if (queue.isEmpty() && hasFreeSlot()) {
+			activeHandshakes++;
+			grantedCount++;
+			return true;
+		}
+		if (queue.size() >= maxQueued || queueTimeout == 0) {
+			rejectedCount++;
+			return false;
+		}
+		WaitingHandshake waiting = new WaitingHandshake();
+		queue.add(waiting);
+		queuedCount++;
+		long start = System.currentTimeMillis();
+		long deadline = start + queueTimeout;
+		long now = start;
+		while (!waiting.granted && now < deadline) {
+			try {
+				wait(deadline - now);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+			now = System.currentTimeMillis();
+		}
+		long waited = System.currentTimeMillis() - start;
+		queuedMillis += waited;
+		longestQueuedMillis = Math.max(longestQueuedMillis, waited);
+		if (!waiting.granted) {
+			queue.remove(waiting);
+			expiredCount++;
+			rejectedCount++;
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Frees the slot of a finished handshake, the next waiting one gets it.
+	 */
+	public synchronized void release() {
+		activeHandshakes--;
+		while (!queue.isEmpty() && hasFreeSlot()) {
+			queue.poll().granted = true;
+			activeHandshakes++;
+			grantedCount++;
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Returns the count of handshakes waiting for a slot.
+	 *
+	 * @return The count of queued handshakes.
+	 */
+	public synchronized int getQueuedHandshakes() {
+		return queue.size();
+	}
+
+	/**
+	 * Returns the average time spent in the queue by the handshakes which had to
+	 * wait.
+	 *
+	 * @return The average in milliseconds.
+	 */
+	public synchronized long getAverageQueueTime() {
+		return queuedCount == 0 ? 0 : queuedMillis / queuedCount;
+	}
+
+	/**
+	 * Returns a summary of the counters.
+	 *
+	 * @return The summary.
+	 */
+	public synchronized String getStatistics() {
+		return "SSL handshake slots for the " + leg + ": " + activeHandshakes + " active, " + queue.size()
+				+ " waiting, " + grantedCount + " granted, " + queuedCount + " queued, " + rejectedCount
+				+ " rejected (" + expiredCount + " expired), " + getAverageQueueTime() + " ms in queue on average, "
+				+ longestQueuedMillis + " ms at most.";
+	}
+
+}
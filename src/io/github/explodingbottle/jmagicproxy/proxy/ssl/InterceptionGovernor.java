@@ -0,0 +1,160 @@
+/*
+ *   JMagic Proxy - A HTTP and HTTPS Proxy
+ *   Copyright (C) 2023  ExplodingBottle
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.explodingbottle.jmagicproxy.proxy.ssl;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+
+import io.github.explodingbottle.jmagicproxy.ProxyMain;
+import io.github.explodingbottle.jmagicproxy.logging.LoggingLevel;
+import io.github.explodingbottle.jmagicproxy.logging.ProxyLogger;
+import io.github.explodingbottle.jmagicproxy.server.AdmissionController;
+
+/**
+ * This class decides if an intercepted {@code CONNECT} request should rather
+ * become a direct tunnel because the proxy is overloaded. The pressure comes
+ * from the usage of the CPU, from the count of handshakes waiting for a slot
+ * and from the count of connections being handled. It is sampled at most once
+ * per second.
+ *
+ * Only the hosts which are intercepted by default are downgraded, the hosts
+ * listed explicitly in the sort list are always intercepted, see
+ * {@link SSLSortEngine#isListedExplicitly(String)}.
+ *
+ * @author ExplodingBottle
+ *
+ */
+public class InterceptionGovernor {
+
+	private static final long SAMPLE_INTERVAL = 1000;
+
+	private ProxyLogger logger;
+
+	private int maxCpuLoad;
+	private int maxQueuedHandshakes;
+	private int maxConnections;
+
+	private OperatingSystemMXBean operatingSystem;
+
+	private long lastSample;
+	private String pressure;
+
+	private long decisionCount;
+	private long downgradeCount;
+
+	/**
+	 * Creates the governor.
+	 *
+	 * @param maxCpuLoad          The usage of the CPU in percents above which the
+	 *                            proxy is overloaded, 0 means it isn't checked.
+	 * @param maxQueuedHandshakes The count of handshakes waiting for a slot above
+	 *                            which the proxy is overloaded, 0 means it isn't
+	 *                            checked.
+	 * @param maxConnections      The count of connections being handled above
+	 *                            which the proxy is overloaded, 0 means it isn't
+	 *                            checked.
+	 */
+	public InterceptionGovernor(int maxCpuLoad, int maxQueuedHandshakes, int maxConnections) {
+		this.maxCpuLoad = maxCpuLoad;
+		this.maxQueuedHandshakes = maxQueuedHandshakes;
+		this.maxConnections = maxConnections;
+		operatingSystem = ManagementFactory.getOperatingSystemMXBean();
+		logger = ProxyMain.getLoggerProvider().createLogger();
+	}
+
+	/**
+	 * Returns the usage of the CPU in percents, or -1 if it is unknown.
+	 */
+	private int getCpuLoad() {
+		if (operatingSystem instanceof com.sun.management.OperatingSystemMXBean) {
+			double load = ((com.sun.management.OperatingSystemMXBean) operatingSystem).getSystemCpuLoad();
+			if (load >= 0)
+				return (int) Math.round(load * 100);
+		}
+		double average = operatingSystem.getSystemLoadAverage();
+		if (average < 0)
+			return -1;
+		return (int) Math.round(average * 100 / operatingSystem.getAvailableProcessors());
+	}
+
+	/**
+	 * Finds what overloads the proxy.
+	 * 
+	 * @return The reason, or {@code null} if the proxy isn't overloaded.
+	 */
+	private String measurePressure() {
+		if (maxCpuLoad > 0) {
+			int cpuLoad = getCpuLoad();
+			if (cpuLoad >= maxCpuLoad)
+				return "CPU load of " + cpuLoad + "%";
+		}
+		SSLObjectsProvider provider = ProxyMain.getSSLObjectsProvider();
+		if (maxQueuedHandshakes > 0 && provider != null) {
+			int queued = provider.getIncomingLimiter().getQueuedHandshakes()
+					+ provider.getOutgoingLimiter().getQueuedHandshakes();
+			if (queued >= maxQueuedHandshakes)
+				return queued + " handshakes waiting";
+		}
+		AdmissionController admission = ProxyMain.getAdmissionController();
+		if (maxConnections > 0 && admission != null) {
+			int active = admission.getActiveConnections();
+			if (active >= maxConnections)
+				return active + " active connections";
+		}
+		return null;
+	}
+
+	/**
+	 * Decides if an intercepted {@code CONNECT} request must become a direct
+	 * tunnel. Each downgrade is logged.
+	 * 
+	 * @param host The host of the request, it must not be listed explicitly.
+	 * @param port The port of the request.
+	 * @return If the tunnel must be direct.
+	 */
+	public boolean shouldDowngrade(String host, int port) {
+		String reason;
+		long count;
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			if (now - lastSample >= SAMPLE_INTERVAL) {
+				lastSample = now;
+				pressure = measurePressure();
+			}
+			decisionCount++;
+			reason = pressure;
+			if (reason == null)
+				return false;
+			count = ++downgradeCount;
+		}
+		logger.log(LoggingLevel.INFO, "Downgrade #" + count + ": " + host + ":" + port
+				+ " will be using direct connection because of the " + reason + ".");
+		return true;
+	}
+
+	/**
+	 * Returns a summary of the counters.
+	 *
+	 * @return The summary.
+	 */
+	public synchronized String getStatistics() {
+		return "Interception governor: " + decisionCount + " decisions, " + downgradeCount
+				+ " downgraded to direct tunnels.";
+	}
+
+}
@@ -17,13 +17,13 @@
  */
 package io.github.explodingbottle.jmagicproxy.proxy.ssl;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.BindException;
-import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Arrays;
 
-import javax.net.ssl.SSLServerSocket;
 import javax.net.ssl.SSLSocket;
 
 import io.github.explodingbottle.jmagicproxy.HardcodedConfig;
@@ -32,19 +32,27 @@ import io.github.explodingbottle.jmagicproxy.api.HttpRequestHeader;
 import io.github.explodingbottle.jmagicproxy.api.MalformedParsableContent;
 import io.github.explodingbottle.jmagicproxy.api.SSLControlDirective;
 import io.github.explodingbottle.jmagicproxy.api.SSLControlInformations;
+import io.github.explodingbottle.jmagicproxy.buffer.AdaptiveReadSize;
+import io.github.explodingbottle.jmagicproxy.buffer.LeasedReader;
+import io.github.explodingbottle.jmagicproxy.http.HeadParseResult;
+import io.github.explodingbottle.jmagicproxy.http.HttpBodyFramer;
+import io.github.explodingbottle.jmagicproxy.http.HttpHeadParser;
 import io.github.explodingbottle.jmagicproxy.logging.LoggingLevel;
 import io.github.explodingbottle.jmagicproxy.logging.ProxyLogger;
 import io.github.explodingbottle.jmagicproxy.properties.PropertyKey;
+import io.github.explodingbottle.jmagicproxy.timeout.TimeoutGuard;
+import io.github.explodingbottle.jmagicproxy.timeout.TimeoutType;
 
 /**
- * This class is responsible of handling a SSL connection through a socket.
+ * This class is responsible of handling a SSL connection through a socket. The
+ * TLS layer is put directly over the socket of the client, and the thread
+ * which was reading this socket serves it.
  * 
  * @author ExplodingBottle
  *
  */
-public class SSLCommunicationServer extends Thread {
+public class SSLCommunicationServer {
 
-	private SSLServerSocket server;
 	private ProxyLogger logger;
 
 	private InputStream heartInput; // Just a strange naming, heart like coming from the inside, also like very
@@ -57,10 +65,16 @@ public class SSLCommunicationServer extends Thread {
 
 	private SSLDirectiveHandler outgoingHandler;
 
+	private LeasedReader reader;
 	private byte[] buffer;
 
-	private boolean canParseHeader;
-	private int toReadBeforeParse;
+	private HttpHeadParser parser;
+	private HttpBodyFramer framer;
+
+	private TimeoutGuard headerTimeout;
+
+	private volatile boolean started;
+	private volatile boolean stopped;
 
 	/**
 	 * This constructor is used to create the server
@@ -70,27 +84,31 @@ public class SSLCommunicationServer extends Thread {
 	public SSLCommunicationServer(SSLComunicator communicator) {
 		this.communicator = communicator;
 		logger = ProxyMain.getLoggerProvider().createLogger();
-		buffer = new byte[HardcodedConfig.returnBufferSize()];
-		canParseHeader = true;
-		toReadBeforeParse = 0;
+		parser = HttpHeadParser.createConfigured(false);
+		framer = new HttpBodyFramer();
+		headerTimeout = ProxyMain.getTimeoutWheel().newGuard(type -> {
+			logger.log(LoggingLevel.WARN, "The " + type.getDescription() + " timeout has expired for the SSL socket.");
+			stopServer();
+		});
 	}
 
-	public void interrupt() {
-		super.interrupt();
-		if (server != null) {
+	/**
+	 * Stops the server, the outgoing connection and the socket of the client.
+	 */
+	public void stopServer() {
+		headerTimeout.disarm();
+		if (!stopped) {
+			stopped = true;
 			if (outgoingHandler != null)
 				outgoingHandler.finishHandler(true);
 			try {
 				if (acceptedSocket != null)
 					acceptedSocket.close();
-				if (server != null)
-					server.close();
-				server = null;
-				if (communicator != null) {
-					communicator.stopCommunicator();
-				}
 			} catch (IOException e) {
-				logger.log(LoggingLevel.WARN, "Failed to close the SSL server.", e);
+				logger.log(LoggingLevel.WARN, "Failed to close the SSL socket.", e);
+			}
+			if (communicator != null) {
+				communicator.stopCommunicator();
 			}
 			logger.log(LoggingLevel.INFO, "Stopped the SSL Communication server.");
 		} else {
@@ -100,51 +118,19 @@ public class SSLCommunicationServer extends Thread {
 	}
 
 	/**
-	 * This function will setup the server socket and return the used port.
-	 * 
-	 * @return The port associated to the server socket.
+	 * Tells that something has been transferred for this tunnel, so it isn't
+	 * idle.
 	 */
-	public Integer prepareServerSocket() {
-		if (server != null) {
-			logger.log(LoggingLevel.WARN, "Trying to open a SSL Server Socket twice.");
-			return null;
-		}
-		SSLObjectsProvider obProv = ProxyMain.getSSLObjectsProvider();
-		logger.log(LoggingLevel.INFO, "Searching an available port.");
-		int testPort = ProxyMain.getPropertiesProvider().getAsInteger(PropertyKey.PROXY_SSL_SCAN_STARTING_PORT);
-		while (server == null)
-			try {
-				server = (SSLServerSocket) obProv.getFactoryServer().createServerSocket(testPort, 0,
-						InetAddress.getLoopbackAddress());
-				if (ProxyMain.getPropertiesProvider().getAsBoolean(PropertyKey.PROXY_SSL_ENABLE_SSLV3)) {
-					boolean canEnableSSLv3 = false;
-					for (String protocol : server.getSupportedProtocols()) {
-						if (protocol.equals("SSLv3")) {
-							canEnableSSLv3 = true;
-							break;
-						}
-					}
-					if (canEnableSSLv3) {
-						server.setEnabledProtocols(server.getSupportedProtocols());
-					} else {
-						logger.log(LoggingLevel.WARN, "Failed to enable SSLv3 because not a supported protocol.");
-					}
-				}
-			} catch (BindException e) {
-				testPort++;
-			} catch (IOException e) {
-				logger.log(LoggingLevel.WARN, "Failed to open a socket for a different reason than a BindException.",
-						e);
-				break;
-			}
-		if (server != null) {
-			logger.log(LoggingLevel.INFO,
-					"A SSL Communication Server has been started on local port " + server.getLocalPort() + ".");
-		} else {
-			logger.log(LoggingLevel.WARN, "SSL Communication Server won't be started due to an error.");
-			return null;
-		}
-		return testPort;
+	void signalActivity() {
+		communicator.signalActivity();
+	}
+
+	/**
+	 * Takes the connection opened during the handshake of the client, see
+	 * {@link SSLComunicator#adoptSpeculative(String, int)}.
+	 */
+	Socket adoptSpeculative(String host, int port) {
+		return communicator.adoptSpeculative(host, port);
 	}
 
 	/**
@@ -156,139 +142,217 @@ public class SSLCommunicationServer extends Thread {
 		return heartOutput;
 	}
 
-	private StringBuilder lastReadBlock;
-	private StringBuilder lastReadLine;
-
-	// Yes, I borrowed it again, this is a bad practice...
-	private Integer handleLineRead(int readLength) {
-		if (!canParseHeader) {
-			return null;
+	private void handleRequest() {
+		HttpRequestHeader httpRequestHeader;
+		try {
+			httpRequestHeader = parser.toRequest();
+		} catch (MalformedParsableContent e) {
+			logger.log(LoggingLevel.WARN, "Ignored a malformed request header in the SSL socket.", e);
+			return;
+		}
+		if (parser.hasSpaceBeforeColon()) {
+			rejectRequest("400 Bad Request",
+					new MalformedParsableContent("A header name of the request is followed by whitespace."));
+			stopServer();
+			return;
+		}
+		// The body is framed with the headers given by the client, as these are
+		// the bytes coming from it.
+		if (!framer.startRequest(httpRequestHeader)) {
+			rejectRequest("400 Bad Request",
+					new MalformedParsableContent("The length of the request body is invalid."));
+			stopServer();
+			return;
+		}
+		SSLControlDirective directive = ProxyMain.getPluginsManager().getSSLControlDirective(
+				new SSLControlInformations(httpRequestHeader, communicator.originalHost, communicator.originalPort));
+		if (directive == null)
+			return;
+		if (!directive.isRemoteConnect() && framer.isWaitingForContinue(httpRequestHeader))
+			sendContinue();
+		if (outgoingHandler != null && outgoingHandler.canCarry(directive)) {
+			outgoingHandler.carry(directive);
+		} else {
+			if (outgoingHandler != null) {
+				outgoingHandler.finishHandler(false);
+			}
+			outgoingHandler = new SSLDirectiveHandler(directive, this);
+			outgoingHandler.openSocket();
 		}
-		int offset = 0;
-		if (toReadBeforeParse != 0) {
-			toReadBeforeParse -= readLength;
-			if (toReadBeforeParse < 0) {
-				lastReadBlock = new StringBuilder();
-				lastReadLine = new StringBuilder();
-				offset = toReadBeforeParse * -1;
-				toReadBeforeParse = 0;
+	}
+
+	private void forwardData(byte[] data, int offset, int length) {
+		if (outgoingHandler == null || length == 0)
+			return;
+		byte[] realData = Arrays.copyOfRange(data, offset, offset + length);
+		realData = ProxyMain.getPluginsManager().getModifiedData(3, outgoingHandler.getControlDirective(), realData,
+				null);
+		outgoingHandler.feedOutput(realData, 0, realData.length);
+	}
+
+	/**
+	 * Sends the read bytes either to the parser or to the server.
+	 * 
+	 * @param readLength The count of read bytes.
+	 * @throws MalformedParsableContent If a request header exceeds the limits.
+	 */
+	private void handleRead(int readLength) throws MalformedParsableContent {
+		int position = 0;
+		while (position < readLength && !stopped) {
+			if (!framer.isComplete()) {
+				// The body goes to the server as it is, the parser only starts again at the
+				// next request.
+				boolean framed = !framer.isCloseDelimited();
+				int length = framer.consume(buffer, position, readLength - position);
+				forwardData(buffer, position, length);
+				position += length;
+				if (framed && framer.isCloseDelimited())
+					logger.log(LoggingLevel.WARN,
+							"Malformed chunked request in the SSL socket, the rest of the tunnel is sent as it is.");
+				continue;
 			}
+			int used = parser.feed(buffer, position, readLength - position);
+			if (parser.getResult() == HeadParseResult.NOT_A_HEAD) {
+				forwardData(parser.getRejectedBytes(), 0, parser.getRejectedLength());
+				forwardData(buffer, position, used);
+			} else if (parser.getResult() == HeadParseResult.COMPLETE) {
+				handleRequest();
+			}
+			position += used;
 		}
-		if (toReadBeforeParse > 0) {
-			lastReadBlock = new StringBuilder();
-			lastReadLine = new StringBuilder();
-			return null;
+	}
+
+	private void sendContinue() {
+		// The plugins answer the request themselves, no server will ask for the body.
+		try {
+			heartOutput.write("HTTP/1.1 100 Continue\r\n\r\n".getBytes());
+			heartOutput.flush();
+		} catch (IOException e) {
+			logger.log(LoggingLevel.WARN, "Failed to send the 100 Continue response in the SSL socket.", e);
 		}
-		Integer toRet = null;
-		if (lastReadBlock == null)
-			lastReadBlock = new StringBuilder();
-		if (lastReadLine == null)
-			lastReadLine = new StringBuilder();
-		for (int it = offset; it < readLength; it++) {
-			byte r = buffer[it];
-			lastReadBlock.append((char) r);
-			lastReadLine.append((char) r);
-			if ((char) r == '\n') {
-				String readLine = lastReadLine.toString();
-				if (readLine.trim().isEmpty()) {
-					try {
-						HttpRequestHeader httpRequestHeader = HttpRequestHeader.createFromHeaderBlock(lastReadBlock);
-						SSLControlDirective directive = ProxyMain.getPluginsManager()
-								.getSSLControlDirective(new SSLControlInformations(httpRequestHeader,
-										communicator.originalHost, communicator.originalPort));
-						if (directive != null) {
-							if (directive.getOutcomingRequest() != null
-									&& directive.getOutcomingRequest().getHeaders().get("Content-Length") != null) {
-								toReadBeforeParse = Integer
-										.parseInt(directive.getOutcomingRequest().getHeaders().get("Content-Length"));
-							}
-							if (outgoingHandler != null) {
-								outgoingHandler.finishHandler(false);
-							}
-							outgoingHandler = new SSLDirectiveHandler(directive, this);
-							outgoingHandler.openSocket();
-							toRet = it + 1;
-							lastReadBlock = new StringBuilder();
-							lastReadLine = new StringBuilder();
-							break;
-						}
-					} catch (MalformedParsableContent e) {
-					}
-					lastReadBlock = new StringBuilder();
-				}
-				lastReadLine = new StringBuilder();
+	}
 
+	private void rejectRequest(String status, MalformedParsableContent cause) {
+		logger.log(LoggingLevel.WARN, "Rejected a request header in the SSL socket.", cause);
+		try {
+			heartOutput.write(
+					("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\nConnection: Close\r\n\r\n").getBytes());
+			heartOutput.flush();
+		} catch (IOException e) {
+			logger.log(LoggingLevel.WARN, "Failed to send the rejection response.", e);
+		}
+	}
+
+	private void enableProtocols() {
+		if (ProxyMain.getPropertiesProvider().getAsBoolean(PropertyKey.PROXY_SSL_ENABLE_SSLV3)) {
+			boolean canEnableSSLv3 = false;
+			for (String protocol : acceptedSocket.getSupportedProtocols()) {
+				if (protocol.equals("SSLv3")) {
+					canEnableSSLv3 = true;
+					break;
+				}
+			}
+			if (canEnableSSLv3) {
+				acceptedSocket.setEnabledProtocols(acceptedSocket.getSupportedProtocols());
+			} else {
+				logger.log(LoggingLevel.WARN, "Failed to enable SSLv3 because not a supported protocol.");
 			}
 		}
-		return toRet;
 	}
 
-	public void run() {
-		if (server != null) {
+	/**
+	 * Serves the client on the current thread until the tunnel is closed.
+	 * 
+	 * @param client   The socket of the client, the TLS layer will be put over it.
+	 * @param consumed The bytes which have already been read from the client
+	 *                 after its {@code CONNECT} request, they are the start of
+	 *                 the handshake.
+	 */
+	public void serve(Socket client, byte[] consumed) {
+		if (started || stopped) {
+			logger.log(LoggingLevel.WARN, "SSL Communication Server is attempting to start twice.");
+			return;
+		}
+		started = true;
+		// The first request header must arrive in time, handshake included.
+		headerTimeout.arm(TimeoutType.HEADER_READ);
+		try {
+			acceptedSocket = (SSLSocket) ProxyMain.getSSLObjectsProvider().getFactoryIncoming().createSocket(client,
+					new ByteArrayInputStream(consumed), true);
+			acceptedSocket.setUseClientMode(false);
+			enableProtocols();
+			ProxyMain.getSSLObjectsProvider().prepareIncoming(acceptedSocket, communicator.originalHost);
+		} catch (IOException e) {
+			logger.log(LoggingLevel.WARN, "Failed to put the SSL layer over the client socket.", e);
+			stopServer();
+			return;
+		}
+		if (stopped) {
+			// Stopped while the layer was being created, the new socket must be closed.
 			try {
-				try {
-					if (acceptedSocket != null)
-						acceptedSocket.close();
-				} catch (IOException e) {
-					logger.log(LoggingLevel.WARN, "Failed to close the previous SSL socket.", e);
-				}
-				acceptedSocket = (SSLSocket) server.accept();
+				acceptedSocket.close();
 			} catch (IOException e) {
-				logger.log(LoggingLevel.WARN, "Failed to accept a SSL socket.", e);
-				interrupt();
-				return;
+				logger.log(LoggingLevel.WARN, "Failed to close the SSL socket.", e);
 			}
-			logger.log(LoggingLevel.INFO, "SSL Socket has been successfully accepted.");
+			return;
+		}
+		HandshakeLimiter limiter = ProxyMain.getSSLObjectsProvider().getIncomingLimiter();
+		if (!limiter.acquire()) {
+			logger.log(LoggingLevel.WARN, "No handshake slot became free in time for the SSL socket.");
+			stopServer();
+			return;
+		}
+		try {
+			long handshakeStart = System.currentTimeMillis();
 			try {
 				acceptedSocket.startHandshake();
-				heartInput = acceptedSocket.getInputStream();
-				heartOutput = acceptedSocket.getOutputStream();
-			} catch (IOException e) {
-				logger.log(LoggingLevel.WARN, "Failed to process the handshake of the SSL socket.", e);
-				interrupt();
-				return;
+			} finally {
+				limiter.release();
 			}
-			logger.log(LoggingLevel.INFO, "Handshake successfully performed.");
+			ProxyMain.getSSLObjectsProvider().getIncomingHandshakes().record(acceptedSocket.getSession(),
+					handshakeStart);
+			heartInput = acceptedSocket.getInputStream();
+			heartOutput = acceptedSocket.getOutputStream();
+			reader = new LeasedReader(heartInput,
+					new AdaptiveReadSize(
+							ProxyMain.getPropertiesProvider().getAsInteger(PropertyKey.PROXY_BUFFERS_MIN_READ_SIZE),
+							HardcodedConfig.returnBufferSize()),
+					true, null);
+		} catch (IOException e) {
+			logger.log(LoggingLevel.WARN, "Failed to process the handshake of the SSL socket.", e);
+			stopServer();
+			return;
+		}
+		logger.log(LoggingLevel.INFO, "Handshake successfully performed.");
 
-			try {
-				int read = heartInput.read(buffer, 0, buffer.length);
-				while (!interrupted() && read != -1) {
-					Integer offset = handleLineRead(read);
-					if (offset != null) {
-						if (outgoingHandler != null) {
-							byte[] realData = new byte[read - offset];
-							for (int i = 0; i < read - offset; i++) {
-								realData[i] = buffer[i + offset];
-							}
-							realData = ProxyMain.getPluginsManager().getModifiedData(3,
-									outgoingHandler.getControlDirective(), realData, null);
-							outgoingHandler.feedOutput(realData, 0, realData.length);
-						}
-					} else {
-						if (outgoingHandler != null) {
-							byte[] realData = new byte[read];
-							for (int i = 0; i < read; i++) {
-								realData[i] = buffer[i];
-							}
-							realData = ProxyMain.getPluginsManager().getModifiedData(3,
-									outgoingHandler.getControlDirective(), realData, null);
-							outgoingHandler.feedOutput(realData, 0, realData.length);
-						}
-					}
-					read = heartInput.read(buffer, 0, buffer.length);
+		try {
+			int read = reader.read();
+			buffer = reader.getBuffer();
+			while (!stopped && read != -1) {
+				signalActivity();
+				try {
+					handleRead(read);
+				} catch (MalformedParsableContent e) {
+					rejectRequest("431 Request Header Fields Too Large", e);
+					break;
 				}
-			} catch (IOException e) {
-				if (!isInterrupted()) {
-					logger.log(LoggingLevel.WARN, "SSL Communicator Server transfer error.", e);
+				if (outgoingHandler != null) {
+					// Once the first request is there, the handler of the tunnel closes the
+					// idle connections.
+					headerTimeout.disarm();
 				}
+				read = reader.read();
+				buffer = reader.getBuffer();
+			}
+		} catch (IOException e) {
+			if (!stopped) {
+				logger.log(LoggingLevel.WARN, "SSL Communicator Server transfer error.", e);
 			}
-			logger.log(LoggingLevel.INFO, "SSL Communicator Server will now shutdown.");
-			interrupt();
-
-		} else {
-			logger.log(LoggingLevel.WARN,
-					"SSL Communication Server is attempting to start but has no SSL Server Socket.");
 		}
+		reader.close();
+		buffer = null;
+		logger.log(LoggingLevel.INFO, "SSL Communicator Server will now shutdown.");
+		stopServer();
 	}
 
 }
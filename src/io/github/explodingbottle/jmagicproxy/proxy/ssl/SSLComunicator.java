@@ -17,10 +17,10 @@
  */
 package io.github.explodingbottle.jmagicproxy.proxy.ssl;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.InetAddress;
 import java.net.Socket;
 import java.util.TreeMap;
 
@@ -31,6 +31,8 @@ import io.github.explodingbottle.jmagicproxy.logging.LoggingLevel;
 import io.github.explodingbottle.jmagicproxy.logging.ProxyLogger;
 import io.github.explodingbottle.jmagicproxy.properties.PropertyKey;
 import io.github.explodingbottle.jmagicproxy.proxy.ConnectionDirectiveHandler;
+import io.github.explodingbottle.jmagicproxy.socketopener.SocketOpeningTool;
+import io.github.explodingbottle.jmagicproxy.socketopener.StandardSocketOpener;
 
 /**
  * 
@@ -51,11 +53,13 @@ public class SSLComunicator {
 	String originalHost;
 	int originalPort;
 
-	private Socket transferSocket;
+	private volatile Socket transferSocket;
 
 	private SSLCommunicationServer server;
+	private volatile ByteArrayOutputStream earlyClientBytes;
+	private volatile SpeculativeConnection speculative;
 
-	private ConnectionDirectiveHandler parent;
+	private volatile ConnectionDirectiveHandler parent;
 
 	private SimpleTransferPipe transferPipeOutToIn;
 
@@ -76,22 +80,30 @@ public class SSLComunicator {
 
 	public void startConnection() {
 		if (parent.getDirective().isDirect()) {
+			SocketOpeningTool openingTool = new SocketOpeningTool(originalHost, originalPort,
+					new StandardSocketOpener(), (s, status) -> {
+						if (s == null) {
+							try {
+								if (!status) {
+									output.write(new String("HTTP/1.1 504 Gateway Timeout\r\n").getBytes());
+								} else {
+									output.write(new String("HTTP/1.1 502 Bad Gateway\r\n").getBytes());
+								}
+								output.write(new String("Connection: Close\r\n\r\n").getBytes());
+							} catch (IOException e) {
+								logger.log(LoggingLevel.WARN, "Failed to tell the client that an error occured.", e);
+							}
+							logger.log(LoggingLevel.WARN, "Failed to open the outgoing socket.");
+							stopCommunicator();
+						} else {
+							establishDirect(s);
+						}
+					});
 			try {
-				transferSocket = new Socket(originalHost, originalPort);
-				inputOutgoing = transferSocket.getInputStream();
-				outputOutgoing = transferSocket.getOutputStream();
-				HttpResponse hrqh = new HttpResponse("HTTP/1.1", 200, "Connection Established",
-						new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER));
-				output.write((hrqh.toHttpResponseLine() + "\r\n\r\n").getBytes());
-				if (transferSocket != null) {
-					transferPipeOutToIn = new SimpleTransferPipe(inputOutgoing, output, this);
-					transferPipeOutToIn.start();
-				}
-				logger.log(LoggingLevel.INFO, "Direct connection established.");
-			} catch (IOException e) {
-				logger.log(LoggingLevel.WARN, "Failed to write the response line.", e);
+				openingTool.run();
+			} catch (Exception e) {
+				logger.log(LoggingLevel.WARN, "Failed to open the outgoing socket.", e);
 				stopCommunicator();
-				return;
 			}
 		} else {
 			if (!ProxyMain.getPropertiesProvider().getAsBoolean(PropertyKey.PROXY_SSL_ENABLED)) {
@@ -109,43 +121,94 @@ public class SSLComunicator {
 					return;
 				}
 			}
-			server = new SSLCommunicationServer(this);
-			Integer serverPort = server.prepareServerSocket();
 			try {
-				if (serverPort != null) {
-					HttpResponse hrqh = new HttpResponse("HTTP/1.1", 200, "Connection Established",
-							new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER));
-					output.write((hrqh.toHttpResponseLine() + "\r\n\r\n").getBytes());
-				} else {
-					HttpResponse hrqh = new HttpResponse("HTTP/1.1", 500, "Internal Server Error",
-							new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER));
-					output.write((hrqh.toHttpResponseLine() + "\r\n\r\n").getBytes());
-					stopCommunicator();
-					return;
-				}
+				HttpResponse hrqh = new HttpResponse("HTTP/1.1", 200, "Connection Established",
+						new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER));
+				output.write((hrqh.toHttpResponseLine() + "\r\n\r\n").getBytes());
 			} catch (IOException e) {
 				logger.log(LoggingLevel.WARN, "Failed to write the response line.", e);
 				stopCommunicator();
 				return;
 			}
-			try {
-				server.start();
-				logger.log(LoggingLevel.INFO,
-						"SSL incoming-side comunication has been started and is waiting for an accept on port "
-								+ serverPort + ".");
-				transferSocket = new Socket(InetAddress.getLoopbackAddress(), serverPort);
-				inputOutgoing = transferSocket.getInputStream();
-				outputOutgoing = transferSocket.getOutputStream();
-			} catch (IOException e) {
-				logger.log(LoggingLevel.WARN, "Failed to start SSL communication.", e);
+			// The handshake is read by the thread of the client once it is given to
+			// runInterception, the bytes it already read are kept until then.
+			earlyClientBytes = new ByteArrayOutputStream();
+			server = new SSLCommunicationServer(this);
+			if (ProxyMain.getPropertiesProvider().getAsBoolean(PropertyKey.PROXY_SSL_SPECULATIVE_CONNECT)) {
+				speculative = new SpeculativeConnection(originalHost, originalPort);
+				speculative.start();
 			}
-			if (transferSocket != null) {
-				transferPipeOutToIn = new SimpleTransferPipe(inputOutgoing, output);
-				transferPipeOutToIn.start();
+			logger.log(LoggingLevel.INFO, "SSL interception is ready.");
+		}
+
+	}
+
+	private void establishDirect(Socket socket) {
+		try {
+			transferSocket = socket;
+			if (parent == null) {
+				// The communicator has been stopped while the socket was opened.
+				socket.close();
+				return;
 			}
-			logger.log(LoggingLevel.INFO, "SSL transfer is ready for port " + serverPort + ".");
+			inputOutgoing = transferSocket.getInputStream();
+			outputOutgoing = transferSocket.getOutputStream();
+			HttpResponse hrqh = new HttpResponse("HTTP/1.1", 200, "Connection Established",
+					new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER));
+			output.write((hrqh.toHttpResponseLine() + "\r\n\r\n").getBytes());
+			transferPipeOutToIn = new SimpleTransferPipe(inputOutgoing, output, this);
+			transferPipeOutToIn.start();
+			logger.log(LoggingLevel.INFO, "Direct connection established.");
+		} catch (IOException e) {
+			logger.log(LoggingLevel.WARN, "Failed to write the response line.", e);
+			stopCommunicator();
 		}
+	}
+
+	/**
+	 * Tells if the client socket must be given to {@code runInterception}.
+	 * 
+	 * @return If the tunnel is intercepted and not served yet.
+	 */
+	public boolean isIntercepting() {
+		return parent != null && earlyClientBytes != null;
+	}
+
+	/**
+	 * Puts the SSL layer over the socket of the client and serves it on the
+	 * current thread until the tunnel is closed.
+	 * 
+	 * @param client The socket of the client.
+	 */
+	public void runInterception(Socket client) {
+		ByteArrayOutputStream consumed = earlyClientBytes;
+		SSLCommunicationServer current = server;
+		if (consumed == null || current == null)
+			return;
+		earlyClientBytes = null;
+		current.serve(client, consumed.toByteArray());
+	}
 
+	/**
+	 * Takes the connection opened to the host of the {@code CONNECT} request
+	 * during the handshake of the client, if the first request goes to the same
+	 * host and port. It is closed otherwise.
+	 * 
+	 * @param host The host of the first request, or {@code null} if it doesn't
+	 *             need a SSL connection.
+	 * @param port The port of the first request.
+	 * @return The connected socket after its handshake, or {@code null} if a new
+	 *         one must be opened.
+	 */
+	Socket adoptSpeculative(String host, int port) {
+		SpeculativeConnection current = speculative;
+		speculative = null;
+		if (current == null)
+			return null;
+		if (host != null && current.isFor(host, port))
+			return current.adopt();
+		current.discard();
+		return null;
 	}
 
 	/**
@@ -156,6 +219,11 @@ public class SSLComunicator {
 	 * @param length The size of the buffer to read and send.
 	 */
 	public void feedOutput(byte[] buffer, int offset, int length) {
+		ByteArrayOutputStream early = earlyClientBytes;
+		if (early != null) {
+			early.write(buffer, offset, length);
+			return;
+		}
 		try {
 			if (outputOutgoing != null)
 				outputOutgoing.write(buffer, offset, length);
@@ -164,13 +232,39 @@ public class SSLComunicator {
 		}
 	}
 
+	/**
+	 * Returns the stream going to the other side of the tunnel once the
+	 * connection has been established, so the client bytes can be written
+	 * without going through {@code feedOutput}.
+	 * 
+	 * @return The outgoing stream, or {@code null} if the tunnel isn't ready.
+	 */
+	public OutputStream getTunnelOutput() {
+		return parent != null ? outputOutgoing : null;
+	}
+
+	/**
+	 * Tells that bytes have been transferred through the tunnel, so the connection
+	 * isn't idle.
+	 */
+	void signalActivity() {
+		ConnectionDirectiveHandler current = parent;
+		if (current != null)
+			current.signalActivity();
+	}
+
 	/**
 	 * This is used to close the SSL Communication.
 	 */
 	public void stopCommunicator() {
 		if (parent != null) {
+			earlyClientBytes = null;
+			SpeculativeConnection unused = speculative;
+			speculative = null;
+			if (unused != null)
+				unused.discard();
 			if (server != null)
-				server.interrupt();
+				server.stopServer();
 			if (transferPipeOutToIn != null)
 				transferPipeOutToIn.interrupt();
 			if (transferSocket != null)
@@ -21,19 +21,21 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
 
 import javax.net.ssl.SSLSocket;
 
 import io.github.explodingbottle.jmagicproxy.ProxyMain;
 import io.github.explodingbottle.jmagicproxy.api.SSLControlDirective;
+import io.github.explodingbottle.jmagicproxy.buffer.FlowWindow;
+import io.github.explodingbottle.jmagicproxy.buffer.PendingOutputRing;
 import io.github.explodingbottle.jmagicproxy.logging.LoggingLevel;
 import io.github.explodingbottle.jmagicproxy.logging.ProxyLogger;
+import io.github.explodingbottle.jmagicproxy.properties.PropertyKey;
 import io.github.explodingbottle.jmagicproxy.socketopener.SSLSocketOpener;
 import io.github.explodingbottle.jmagicproxy.socketopener.SocketOpeningTool;
 import io.github.explodingbottle.jmagicproxy.socketopener.StandardSocketOpener;
+import io.github.explodingbottle.jmagicproxy.timeout.TimeoutGuard;
+import io.github.explodingbottle.jmagicproxy.timeout.TimeoutType;
 
 /**
  * The main goal of this class is to assure an outgoing SSL connection.
@@ -46,21 +48,24 @@ public class SSLDirectiveHandler {
 	private SSLControlDirective directive;
 	private ProxyLogger selfLogger;
 
-	private Socket outgoingSocket;
+	private volatile Socket outgoingSocket;
 	private SSLCommunicationServer parent;
 
 	private InputStream inputStream;
 	private OutputStream outputStream;
 
-	private SSLInputOutputPipeThread ioPipe;
+	private volatile SSLInputOutputPipeThread ioPipe;
 
-	private List<byte[]> toflush;
-	private List<Integer> offsetFlush;
-	private List<Integer> lengthFlush;
+	private PendingOutputRing pendingOutput;
+	private FlowWindow requestWindow;
+	private FlowWindow responseWindow;
 
-	private boolean readyToFlush;
+	private TimeoutGuard upstreamTimeout;
+	private TimeoutGuard writeTimeout;
 
-	private boolean isClosed;
+	private volatile boolean isClosed;
+
+	private volatile int requestsSent;
 
 	/**
 	 * Builds a handler using a directive.
@@ -72,10 +77,13 @@ public class SSLDirectiveHandler {
 		this.parent = parent;
 		selfLogger = ProxyMain.getLoggerProvider().createLogger();
 		isClosed = false;
-		toflush = Collections.synchronizedList(new ArrayList<byte[]>());
-		offsetFlush = Collections.synchronizedList(new ArrayList<Integer>());
-		lengthFlush = Collections.synchronizedList(new ArrayList<Integer>());
-		readyToFlush = false;
+		requestWindow = new FlowWindow(
+				ProxyMain.getPropertiesProvider().getAsInteger(PropertyKey.PROXY_FLOW_REQUEST_WINDOW));
+		responseWindow = new FlowWindow(
+				ProxyMain.getPropertiesProvider().getAsInteger(PropertyKey.PROXY_FLOW_RESPONSE_WINDOW));
+		pendingOutput = new PendingOutputRing(requestWindow);
+		upstreamTimeout = ProxyMain.getTimeoutWheel().newGuard(this::timeoutExpired);
+		writeTimeout = ProxyMain.getTimeoutWheel().newGuard(this::timeoutExpired);
 	}
 
 	/**
@@ -86,19 +94,73 @@ public class SSLDirectiveHandler {
 			selfLogger.log(LoggingLevel.WARN, "Trying to use Keep-Alive with unsupported methods.");
 			return;
 		}
+		byte[] block = directive.getOutcomingRequest().toHttpRequestBytes();
+		synchronized (this) {
+			// The timeout of a closed handler would never be disarmed.
+			if (isClosed)
+				return;
+			requestsSent++;
+			upstreamTimeout.arm(TimeoutType.UPSTREAM_FIRST_BYTE);
+		}
+		if (pendingOutput.isOpen()) {
+			// The connection carries another request, the ring keeps it after what is
+			// still waiting.
+			pendingOutput.write(block, 0, block.length);
+			return;
+		}
 		try {
-			outputStream.write((directive.getOutcomingRequest().toHttpRequestBlock()).getBytes());
+			writeTimeout.arm(TimeoutType.WRITE_STALL);
+			outputStream.write(block);
 		} catch (IOException e) {
 			selfLogger.log(LoggingLevel.WARN, "Failed to write directive content.", e);
+		} finally {
+			writeTimeout.disarm();
 		}
 
 	}
 
+	/**
+	 * Tells if the next request of the client can be sent through the outgoing
+	 * connection of this handler. It must go to the same target, and every
+	 * previous response must have been fully read from a connection kept alive.
+	 * 
+	 * @param next The directive of the next request.
+	 * @return If the request can be carried by this handler.
+	 */
+	public boolean canCarry(SSLControlDirective next) {
+		SSLInputOutputPipeThread pipe = ioPipe;
+		if (isClosed || outgoingSocket == null || pipe == null || directive.isUsingFile() || next.isUsingFile()
+				|| !next.isRemoteConnect() || next.getOutcomingRequest() == null)
+			return false;
+		if (!next.getHost().equalsIgnoreCase(directive.getHost()) || next.getPort() != directive.getPort()
+				|| next.isSSL() != directive.isSSL())
+			return false;
+		return pendingOutput.getQueuedBytes() == 0 && pipe.isWaitingForRequest(requestsSent);
+	}
+
+	/**
+	 * Sends the next request through the outgoing connection of this handler,
+	 * which must have been checked with {@code canCarry}.
+	 * 
+	 * @param next The directive of the next request.
+	 */
+	public void carry(SSLControlDirective next) {
+		selfLogger.log(LoggingLevel.INFO, "Reusing the outgoing connection for " + next.getHost() + ":"
+				+ next.getPort() + " with request " + next.getOutcomingRequest().toHttpRequestLine());
+		ProxyMain.getPluginsManager().notifyDirectiveClose(directive);
+		directive = next;
+		rewriteDirectiveLine();
+	}
+
 	/**
 	 * This function will open the outgoing connection.
 	 */
 	public void openSocket() {
 		SSLObjectsProvider obProv = ProxyMain.getSSLObjectsProvider();
+		if (!directive.isRemoteConnect() || !directive.isSSL()) {
+			// The connection opened during the handshake of the client can't be used.
+			parent.adoptSpeculative(null, 0);
+		}
 		if (!directive.isRemoteConnect()) {
 			ioPipe = new SSLInputOutputPipeThread(null, parent.getHeartOutput(), this);
 			ioPipe.start();
@@ -108,8 +170,14 @@ public class SSLDirectiveHandler {
 					+ ":" + directive.getPort() + ".");
 			if (directive.isSSL()) {
 				selfLogger.log(LoggingLevel.INFO, "The connection will be using outgoing SSL");
+				Socket speculative = parent.adoptSpeculative(directive.getHost(), directive.getPort());
+				if (speculative != null) {
+					selfLogger.log(LoggingLevel.INFO, "Using the connection opened during the client handshake.");
+					attachOutgoing(speculative);
+					return;
+				}
 				SocketOpeningTool openingTool = new SocketOpeningTool(directive.getHost(), directive.getPort(),
-						new SSLSocketOpener(obProv.getFactoryOutgoing()), (s, status) -> {
+						new SSLSocketOpener(obProv.getFactoryOutgoing(), directive.getHost(), directive.getPort()), (s, status) -> {
 							if (s == null) {
 								try {
 									if (!status) {
@@ -127,20 +195,50 @@ public class SSLDirectiveHandler {
 								selfLogger.log(LoggingLevel.WARN, "Failed to open the outgoing SSL socket.");
 								finishHandler(true);
 							} else {
+								// Closing the handler aborts the handshake, the socket is only
+								// used once it has been attached.
+								outgoingSocket = s;
+								if (!obProv.getOutgoingLimiter().acquire()) {
+									try {
+										parent.getHeartOutput().write(new String(
+												"HTTP/1.1 503 Service Unavailable\r\nConnection: Close\r\n\r\n")
+												.getBytes());
+									} catch (IOException e) {
+										selfLogger.log(LoggingLevel.WARN,
+												"Failed to tell the client that an error occured.", e);
+									}
+									selfLogger.log(LoggingLevel.WARN,
+											"No handshake slot became free in time for the outgoing SSL socket.");
+									try {
+										s.close();
+									} catch (IOException e) {
+										selfLogger.log(LoggingLevel.WARN, "Failed to close the outgoing SSL socket.",
+												e);
+									}
+									finishHandler(true);
+									return;
+								}
 								try {
-									outgoingSocket = s;
-									((SSLSocket) outgoingSocket).startHandshake();
-									inputStream = outgoingSocket.getInputStream();
-									outputStream = outgoingSocket.getOutputStream();
-									rewriteDirectiveLine();
-									ioPipe = new SSLInputOutputPipeThread(inputStream, parent.getHeartOutput(), this);
-									ioPipe.start();
-									readyToFlush = true;
-									registerToWaitingQueue(null, 0, 0, true);
+									long handshakeStart = System.currentTimeMillis();
+									try {
+										obProv.startOutgoingHandshake((SSLSocket) s);
+									} finally {
+										obProv.getOutgoingLimiter().release();
+									}
+									obProv.getOutgoingHandshakes().record(((SSLSocket) s).getSession(),
+											handshakeStart);
 								} catch (IOException e) {
 									selfLogger.log(LoggingLevel.WARN, "Failed to open the outgoing SSL socket.", e);
+									try {
+										s.close();
+									} catch (IOException e1) {
+										selfLogger.log(LoggingLevel.WARN, "Failed to close the outgoing SSL socket.",
+												e1);
+									}
 									finishHandler(true);
+									return;
 								}
+								attachOutgoing(s);
 							}
 						});
 				openingTool.run();
@@ -166,20 +264,7 @@ public class SSLDirectiveHandler {
 								selfLogger.log(LoggingLevel.WARN, "Failed to open the outgoing standard socket.");
 								finishHandler(true);
 							} else {
-								try {
-									outgoingSocket = s;
-									inputStream = outgoingSocket.getInputStream();
-									outputStream = outgoingSocket.getOutputStream();
-									rewriteDirectiveLine();
-									ioPipe = new SSLInputOutputPipeThread(inputStream, parent.getHeartOutput(), this);
-									ioPipe.start();
-									readyToFlush = true;
-									registerToWaitingQueue(null, 0, 0, true);
-								} catch (IOException e) {
-									selfLogger.log(LoggingLevel.WARN, "Failed to open the outgoing standard socket.",
-											e);
-									finishHandler(true);
-								}
+								attachOutgoing(s);
 							}
 						});
 				openingTool.run();
@@ -187,26 +272,82 @@ public class SSLDirectiveHandler {
 		}
 	}
 
-	private void internalFlush() {
-		if (readyToFlush) {
-			for (int i = 0; i < toflush.size(); i++) {
-				byte[] buffer = toflush.get(i);
-				int offset = offsetFlush.get(i);
-				int length = lengthFlush.get(i);
-				try {
-					if (outputStream != null) {
-						outputStream.write(buffer, offset, length);
-					}
-				} catch (IOException e) {
-					selfLogger.log(LoggingLevel.WARN, "Failed to write to the outgoing stream.", e);
+	private void attachOutgoing(Socket s) {
+		try {
+			boolean late;
+			synchronized (this) {
+				// A racing connection can be opened after the handler has been closed, it
+				// mustn't be used then.
+				late = isClosed;
+				if (!late) {
+					outgoingSocket = s;
+					inputStream = s.getInputStream();
+					outputStream = s.getOutputStream();
+					ioPipe = new SSLInputOutputPipeThread(inputStream, parent.getHeartOutput(), this);
+					ioPipe.start();
 				}
 			}
-			toflush.clear();
-			offsetFlush.clear();
-			lengthFlush.clear();
+			if (late) {
+				selfLogger.log(LoggingLevel.INFO, "The handler has been closed while its outgoing socket was opened.");
+				s.close();
+				return;
+			}
+			rewriteDirectiveLine();
+			pendingOutput.open(this::writeOutgoing);
+		} catch (IOException e) {
+			selfLogger.log(LoggingLevel.WARN, "Failed to open the outgoing socket.", e);
+			finishHandler(true);
+		}
+	}
+
+	private void writeOutgoing(byte[] buffer, int offset, int length) {
+		try {
+			writeTimeout.arm(TimeoutType.WRITE_STALL);
+			outputStream.write(buffer, offset, length);
+		} catch (IOException e) {
+			selfLogger.log(LoggingLevel.WARN, "Failed to write to the outgoing stream.", e);
+		} finally {
+			writeTimeout.disarm();
 		}
 	}
 
+	/**
+	 * Returns the window of the bytes going from the server to the client.
+	 * 
+	 * @return The response window.
+	 */
+	FlowWindow getResponseWindow() {
+		return responseWindow;
+	}
+
+	/**
+	 * Closes the connection because of an expired timeout. The client gets a
+	 * {@code 504} if the server never answered.
+	 * 
+	 * @param type The expired timeout.
+	 */
+	void timeoutExpired(TimeoutType type) {
+		selfLogger.log(LoggingLevel.WARN, "The " + type.getDescription() + " timeout has expired for "
+				+ directive.getHost() + ":" + directive.getPort() + ".");
+		if (type == TimeoutType.UPSTREAM_FIRST_BYTE) {
+			try {
+				parent.getHeartOutput()
+						.write("HTTP/1.1 504 Gateway Timeout\r\nConnection: Close\r\n\r\n".getBytes());
+			} catch (IOException e) {
+				selfLogger.log(LoggingLevel.WARN, "Failed to tell the client that an error occured.", e);
+			}
+		}
+		finishHandler(true);
+	}
+
+	/**
+	 * Tells that the server has sent a part of its response.
+	 */
+	void signalResponse() {
+		upstreamTimeout.disarm();
+		parent.signalActivity();
+	}
+
 	/**
 	 * Returns the SSL Control Directive.
 	 * 
@@ -216,67 +357,62 @@ public class SSLDirectiveHandler {
 		return directive;
 	}
 
-	private synchronized void registerToWaitingQueue(byte[] buffer, int offset, int length, boolean flushOnly) {
-		if (!flushOnly) {
-			toflush.add(buffer);
-			offsetFlush.add(offset);
-			lengthFlush.add(length);
-		}
-		internalFlush();
-	}
-
 	/**
-	 * This function is used to tell the outgoing stream informations.
+	 * This function is used to tell the outgoing stream informations. The bytes
+	 * are only copied if the outgoing connection isn't ready yet.
 	 * 
 	 * @param buffer The buffer you want to send.
 	 * @param offset The offset for the buffer.
 	 * @param length The size of the buffer to read and send.
 	 */
 	public void feedOutput(byte[] buffer, int offset, int length) {
-		byte[] copy = new byte[buffer.length];
-		for (int i = 0; i < buffer.length; i++) {
-			copy[i] = buffer[i];
-		}
-		registerToWaitingQueue(copy, offset, length, false);
+		pendingOutput.write(buffer, offset, length);
 	}
 
 	/**
 	 * This function will close any outgoing connections.
 	 */
 	public void finishHandler(boolean shouldInterrupt) {
-		if (!isClosed) {
+		synchronized (this) {
+			if (isClosed) {
+				selfLogger.log(LoggingLevel.WARN, "Closing SSL but it is already closed !!.");
+				return;
+			}
 			isClosed = true;
-			selfLogger.log(LoggingLevel.INFO, "Finishing handler with shouldInterrupt=" + shouldInterrupt);
-			ProxyMain.getPluginsManager().notifyDirectiveClose(directive);
-			if (ioPipe != null)
-				ioPipe.interrupt();
-			try {
-				if (outgoingSocket != null) {
-					outgoingSocket.close();
-					outgoingSocket = null;
-				}
-			} catch (IOException e) {
-				selfLogger.log(LoggingLevel.WARN, "Failed to close the socket coming from outside.", e);
+		}
+		upstreamTimeout.disarm();
+		writeTimeout.disarm();
+		pendingOutput.close();
+		selfLogger.log(LoggingLevel.INFO, "Finishing handler with shouldInterrupt=" + shouldInterrupt);
+		selfLogger.log(LoggingLevel.INFO, "Flow high-water of the handler: " + requestWindow.getHighWater()
+				+ " bytes for the request, " + responseWindow.getHighWater() + " bytes for the response.");
+		ProxyMain.getPluginsManager().notifyDirectiveClose(directive);
+		if (ioPipe != null)
+			ioPipe.interrupt();
+		try {
+			if (outgoingSocket != null) {
+				outgoingSocket.close();
+				outgoingSocket = null;
 			}
-			if (shouldInterrupt) {
-				if (!directive.isUsingFile()) {
-					if (directive.isSSL()) {
-						selfLogger.log(LoggingLevel.INFO, "Closed outgoing socket for " + directive.getHost() + ":"
-								+ directive.getPort() + " with SSL.");
-					} else {
-						selfLogger.log(LoggingLevel.INFO,
-								"Closed outgoing socket for " + directive.getHost() + ":" + directive.getPort()
-										+ " with request " + directive.getOutcomingRequest().toHttpRequestLine());
-					}
+		} catch (IOException e) {
+			selfLogger.log(LoggingLevel.WARN, "Failed to close the socket coming from outside.", e);
+		}
+		if (shouldInterrupt) {
+			if (!directive.isUsingFile()) {
+				if (directive.isSSL()) {
+					selfLogger.log(LoggingLevel.INFO, "Closed outgoing socket for " + directive.getHost() + ":"
+							+ directive.getPort() + " with SSL.");
 				} else {
 					selfLogger.log(LoggingLevel.INFO,
-							"Closed outgoing file input stream for " + directive.getFileInput());
+							"Closed outgoing socket for " + directive.getHost() + ":" + directive.getPort()
+									+ " with request " + directive.getOutcomingRequest().toHttpRequestLine());
 				}
-				selfLogger.log(LoggingLevel.INFO, "Closing SSL thread as the handler thread is in Close mode.");
-				parent.interrupt();
+			} else {
+				selfLogger.log(LoggingLevel.INFO,
+						"Closed outgoing file input stream for " + directive.getFileInput());
 			}
-		} else {
-			selfLogger.log(LoggingLevel.WARN, "Closing SSL but it is already closed !!.");
+			selfLogger.log(LoggingLevel.INFO, "Closing SSL thread as the handler thread is in Close mode.");
+			parent.stopServer();
 		}
 	}
 
@@ -0,0 +1,31 @@
+/*
+ *   JMagic Proxy - A HTTP and HTTPS Proxy
+ *   Copyright (C) 2023  ExplodingBottle
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.explodingbottle.jmagicproxy.proxy.ssl;
+
+/**
+ * This enumeration contains the different costs of the handshakes with the
+ * clients. {@code FAST} gives ECDSA certificates to the clients supporting them
+ * and prefers the cipher suites which are accelerated by the hardware, and
+ * {@code LEGACY} keeps the choices of Java.
+ * 
+ * @author ExplodingBottle
+ *
+ */
+public enum SSLHandshakeProfile {
+	FAST, LEGACY;
+}
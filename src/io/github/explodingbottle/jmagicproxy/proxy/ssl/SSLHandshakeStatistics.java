@@ -0,0 +1,124 @@
+/*
+ *   JMagic Proxy - A HTTP and HTTPS Proxy
+ *   Copyright (C) 2023  ExplodingBottle
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.explodingbottle.jmagicproxy.proxy.ssl;
+
+import java.security.cert.Certificate;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * This class counts the handshakes of one side of the intercepted tunnels and
+ * how many of them resumed a previous session.
+ *
+ * A session is known to be resumed when it was created before the handshake
+ * started.
+ *
+ * The handshakes are also counted by type of key of the certificate and by
+ * cipher suite, since they are what makes a handshake more or less expensive.
+ *
+ * @author ExplodingBottle
+ *
+ */
+public class SSLHandshakeStatistics {
+
+	private String leg;
+	private boolean localCertificate;
+
+	private long handshakeCount;
+	private long resumedCount;
+	private long handshakeMillis;
+
+	private TreeMap<String, long[]> byKind;
+
+	/**
+	 * Creates the counters.
+	 *
+	 * @param leg              The name of the side of the tunnels, used in the
+	 *                         summary.
+	 * @param localCertificate If the certificate is the one of the proxy, which
+	 *                         is the case when the proxy is the server.
+	 */
+	public SSLHandshakeStatistics(String leg, boolean localCertificate) {
+		this.leg = leg;
+		this.localCertificate = localCertificate;
+		byKind = new TreeMap<String, long[]>();
+	}
+
+	private String getKeyType(SSLSession session) {
+		Certificate[] certificates;
+		try {
+			certificates = localCertificate ? session.getLocalCertificates() : session.getPeerCertificates();
+		} catch (SSLPeerUnverifiedException e) {
+			certificates = null;
+		}
+		if (certificates == null || certificates.length == 0)
+			return "NONE";
+		return certificates[0].getPublicKey().getAlgorithm();
+	}
+
+	/**
+	 * Counts a finished handshake.
+	 *
+	 * @param session The session of the handshake.
+	 * @param start   The time in milliseconds when the handshake started.
+	 */
+	public void record(SSLSession session, long start) {
+		long elapsed = System.currentTimeMillis() - start;
+		String kind = getKeyType(session) + " " + session.getCipherSuite();
+		synchronized (this) {
+			handshakeCount++;
+			handshakeMillis += elapsed;
+			if (session.getCreationTime() < start)
+				resumedCount++;
+			long[] counters = byKind.computeIfAbsent(kind, key -> new long[2]);
+			counters[0]++;
+			counters[1] += elapsed;
+		}
+	}
+
+	/**
+	 * Returns the part of the handshakes which resumed a session.
+	 *
+	 * @return The resumption ratio, between 0 and 1.
+	 */
+	public synchronized double getResumptionRatio() {
+		return handshakeCount == 0 ? 0 : (double) resumedCount / handshakeCount;
+	}
+
+	/**
+	 * Returns a summary of the counters.
+	 *
+	 * @return The summary.
+	 */
+	public synchronized String getStatistics() {
+		StringBuilder summary = new StringBuilder("SSL handshakes with the " + leg + ": " + handshakeCount
+				+ " handshakes, " + resumedCount + " resumed (" + Math.round(getResumptionRatio() * 100)
+				+ "% resumption ratio), " + (handshakeCount == 0 ? 0 : handshakeMillis / handshakeCount)
+				+ " ms on average.");
+		for (Map.Entry<String, long[]> kind : byKind.entrySet()) {
+			long[] counters = kind.getValue();
+			summary.append(" " + kind.getKey() + ": " + counters[0] + " in " + counters[1] / counters[0]
+					+ " ms on average.");
+		}
+		return summary.toString();
+	}
+
+}
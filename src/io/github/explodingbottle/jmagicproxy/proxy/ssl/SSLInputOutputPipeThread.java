@@ -20,13 +20,27 @@ package io.github.explodingbottle.jmagicproxy.proxy.ssl;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Locale;
 
 import io.github.explodingbottle.jmagicproxy.HardcodedConfig;
 import io.github.explodingbottle.jmagicproxy.ProxyMain;
+import io.github.explodingbottle.jmagicproxy.api.HttpMethod;
 import io.github.explodingbottle.jmagicproxy.api.HttpResponse;
 import io.github.explodingbottle.jmagicproxy.api.MalformedParsableContent;
+import io.github.explodingbottle.jmagicproxy.buffer.AdaptiveReadSize;
+import io.github.explodingbottle.jmagicproxy.buffer.FlowWindow;
+import io.github.explodingbottle.jmagicproxy.buffer.LeasedReader;
+import io.github.explodingbottle.jmagicproxy.http.HeadParseResult;
+import io.github.explodingbottle.jmagicproxy.http.HttpBodyFramer;
+import io.github.explodingbottle.jmagicproxy.http.HttpHeadParser;
+import io.github.explodingbottle.jmagicproxy.http.HttpMessageWriter;
 import io.github.explodingbottle.jmagicproxy.logging.LoggingLevel;
 import io.github.explodingbottle.jmagicproxy.logging.ProxyLogger;
+import io.github.explodingbottle.jmagicproxy.properties.PropertyKey;
+import io.github.explodingbottle.jmagicproxy.threading.ProxyThread;
+import io.github.explodingbottle.jmagicproxy.timeout.TimeoutGuard;
+import io.github.explodingbottle.jmagicproxy.timeout.TimeoutType;
 
 /**
  * This class represents a Input->Output pipe Thread to allow asynchronous
@@ -42,22 +56,32 @@ import io.github.explodingbottle.jmagicproxy.logging.ProxyLogger;
  * Author's quick note: Never allow that kind of thread to close streams else
  * you'll have a real nightmare.
  */
-public class SSLInputOutputPipeThread extends Thread {
+public class SSLInputOutputPipeThread extends ProxyThread {
 
 	private InputStream in;
 	private OutputStream out;
 
+	private LeasedReader reader;
+	private FlowWindow window;
+	private TimeoutGuard writeTimeout;
 	private byte[] transferBuffer;
 
 	private ProxyLogger logger;
 
 	private boolean canParseHeader;
-	private int toReadBeforeParse;
+	private HttpBodyFramer framer;
 
 	private SSLDirectiveHandler parent;
 
 	private HttpResponse lastRepsonse;
 
+	private HttpHeadParser parser;
+	private HttpMessageWriter writer;
+
+	private boolean lastResponseReusable;
+	private volatile int responsesSeen;
+	private volatile boolean responseComplete;
+
 	/**
 	 * This constructs the pipe.
 	 * 
@@ -71,142 +95,199 @@ public class SSLInputOutputPipeThread extends Thread {
 		out = output;
 		this.parent = parent;
 		logger = ProxyMain.getLoggerProvider().createLogger();
-		transferBuffer = new byte[HardcodedConfig.returnBufferSize()]; // You must respect buffer size here too !.
+		window = parent.getResponseWindow();
+		writeTimeout = ProxyMain.getTimeoutWheel().newGuard(parent::timeoutExpired);
+		if (input != null) {
+			reader = new LeasedReader(input,
+					new AdaptiveReadSize(
+							ProxyMain.getPropertiesProvider().getAsInteger(PropertyKey.PROXY_BUFFERS_MIN_READ_SIZE),
+							(int) Math.min(HardcodedConfig.returnBufferSize(), window.getLimit())),
+					true, null);
+		}
 		canParseHeader = true;
-		toReadBeforeParse = 0;
+		framer = new HttpBodyFramer();
+		parser = HttpHeadParser.createConfigured(true);
+		writer = new HttpMessageWriter(output, true);
+	}
+
+	/**
+	 * Tells if the connection to the server can carry another request once this
+	 * response has been read: it must be kept alive, and its end must not be the
+	 * end of the connection.
+	 */
+	private boolean isReusable(HttpResponse response) {
+		String connection = response.getHeaderList().get("Connection");
+		connection = connection != null ? connection.toLowerCase(Locale.ROOT) : "";
+		boolean keepAlive = !connection.contains("close")
+				&& ("HTTP/1.1".equalsIgnoreCase(response.getHttpVersion()) || connection.contains("keep-alive"));
+		return keepAlive && !framer.isCloseDelimited();
 	}
 
-	private StringBuilder lastReadBlock;
-	private StringBuilder lastReadLine;
+	private boolean isHeadRequest() {
+		return parent.getControlDirective().getOutcomingRequest() != null
+				&& parent.getControlDirective().getOutcomingRequest().getMethod() == HttpMethod.HEAD;
+	}
 
-	// This code has been borrowed from SocketHandlerThread.
-	private Integer handleLineRead(int readLength) throws IOException {
-		if (!canParseHeader) {
-			return null;
+	/**
+	 * Tells if every request sent so far got its complete response, so the
+	 * connection to the server only waits for the next request.
+	 * 
+	 * @param requestsSent The count of requests sent to the server.
+	 * @return If the connection can carry the next request.
+	 */
+	boolean isWaitingForRequest(int requestsSent) {
+		// responseComplete is cleared before responsesSeen is increased.
+		return responsesSeen == requestsSent && responseComplete;
+	}
+
+	private void updateResponseComplete() {
+		responseComplete = lastResponseReusable && canParseHeader && framer.isComplete()
+				&& !parser.hasPartialHead();
+	}
+
+	private void handleResponse() throws IOException {
+		HttpResponse response;
+		try {
+			response = parser.toResponse();
+		} catch (MalformedParsableContent e) {
+			logger.log(LoggingLevel.WARN, "Ignored a malformed response header.", e);
+			return;
+		}
+		HttpResponse response2 = ProxyMain.getPluginsManager().getModifiedSSLResponse(response);
+		if (response2 == null) {
+			logger.log(LoggingLevel.WARN, "Directive is null, no actions will be taken.");
+			return;
 		}
+		lastRepsonse = response2;
+		responseComplete = false;
+		if (response.getResponseCode() >= 200)
+			responsesSeen++;
+		// The body is framed with the headers given by the server, as these
+		// are the bytes coming from it.
+		framer.startResponse(response, isHeadRequest());
+		if (framer.isMalformed())
+			logger.log(LoggingLevel.WARN, "Invalid Content-Length in a response, it will end with the connection.");
+		lastResponseReusable = isReusable(response);
+		if (framer.isCloseDelimited())
+			canParseHeader = false;
+		writer.writeHead(response2);
+	}
+
+	private void forwardData(byte[] data, int offset, int length) throws IOException {
+		if (length == 0)
+			return;
+		byte[] realData = Arrays.copyOfRange(data, offset, offset + length);
+		realData = ProxyMain.getPluginsManager().getModifiedData(4, parent.getControlDirective(), realData,
+				lastRepsonse);
+		writeWindowed(realData);
+	}
 
-		int offset = 0;
-		if (toReadBeforeParse != 0) {
-			toReadBeforeParse -= readLength;
-			if (toReadBeforeParse < 0) {
-				lastReadBlock = new StringBuilder();
-				lastReadLine = new StringBuilder();
-				offset = toReadBeforeParse * -1;
-				toReadBeforeParse = 0;
+	/**
+	 * Sends the read bytes either to the parser or to the client.
+	 * 
+	 * @param readLength The count of read bytes.
+	 * @throws IOException              If the client can't be written to.
+	 * @throws MalformedParsableContent If a response header exceeds the limits.
+	 */
+	private void handleRead(int readLength) throws IOException, MalformedParsableContent {
+		int position = 0;
+		while (position < readLength) {
+			if (!canParseHeader) {
+				forwardData(transferBuffer, position, readLength - position);
+				position = readLength;
+				continue;
+			}
+			if (!framer.isComplete()) {
+				int length = framer.consume(transferBuffer, position, readLength - position);
+				if (framer.isCloseDelimited()) {
+					logger.log(LoggingLevel.WARN, "Malformed chunked response, it will end with the connection.");
+					canParseHeader = false;
+					lastResponseReusable = false;
+				}
+				// Published before the end of the body reaches the client, which may then
+				// send its next request right away.
+				if (position + length == readLength)
+					updateResponseComplete();
+				forwardData(transferBuffer, position, length);
+				position += length;
+				continue;
+			}
+			int used = parser.feed(transferBuffer, position, readLength - position);
+			if (parser.getResult() == HeadParseResult.NOT_A_HEAD) {
+				forwardData(parser.getRejectedBytes(), 0, parser.getRejectedLength());
+				forwardData(transferBuffer, position, used);
+			} else if (parser.getResult() == HeadParseResult.COMPLETE) {
+				handleResponse();
 			}
+			position += used;
 		}
-		if (toReadBeforeParse > 0) {
-			lastReadBlock = new StringBuilder();
-			lastReadLine = new StringBuilder();
-			return null;
+		// Also published before the header block of a response without a body is sent.
+		updateResponseComplete();
+		if (writer.hasPendingHead()) {
+			writeTimeout.arm(TimeoutType.WRITE_STALL);
+			try {
+				writer.flush();
+			} finally {
+				writeTimeout.disarm();
+			}
 		}
-		Integer toRet = null;
-		if (lastReadBlock == null)
-			lastReadBlock = new StringBuilder();
-		if (lastReadLine == null)
-			lastReadLine = new StringBuilder();
-		for (int it = offset; it < readLength; it++) {
-			byte r = transferBuffer[it];
-			lastReadBlock.append((char) r);
-			lastReadLine.append((char) r);
-			if ((char) r == '\n') {
-				String readLine = lastReadLine.toString();
-				if (readLine.trim().isEmpty()) {
-					try {
-						HttpResponse response = HttpResponse.createFromHeaderBlock(lastReadBlock);
-						HttpResponse response2 = ProxyMain.getPluginsManager().getModifiedSSLResponse(response);
-
-						if (response2 != null) {
-							lastRepsonse = response2;
-							if (response2.getHeaders().get("Content-Length") != null) {
-								toReadBeforeParse = Integer.parseInt(response2.getHeaders().get("Content-Length"));
-							}
-							out.write((response2.toHttpResponseLine() + "\r\n").getBytes());
-							response2.getHeaders().forEach((hKey, hVal) -> {
-								try {
-									out.write((hKey + ": " + hVal + "\r\n").getBytes());
-								} catch (IOException e) {
-									logger.log(LoggingLevel.WARN, "Failed to write a header in the ForEach loop.", e);
-								}
-							});
-							out.write("\r\n".getBytes());
-							toRet = it + 1;
-							lastReadBlock = new StringBuilder();
-							lastReadLine = new StringBuilder();
-							break;
-						} else {
-							logger.log(LoggingLevel.WARN, "Directive is null, no actions will be taken.");
-						}
-					} catch (MalformedParsableContent e) {
-					}
-					lastReadBlock = new StringBuilder();
-				}
-				lastReadLine = new StringBuilder();
+	}
+
+	private int readNext() throws IOException {
+		if (reader != null) {
+			int read = reader.read();
+			transferBuffer = reader.getBuffer();
+			if (read > 0)
+				parent.signalResponse();
+			return read;
+		}
+		if (!parent.getControlDirective().isRemoteConnect()) {
+			transferBuffer = ProxyMain.getPluginsManager().getModifiedData(4, parent.getControlDirective(), null,
+					lastRepsonse);
+			if (transferBuffer != null) {
+				return transferBuffer.length;
 			}
 		}
-		return toRet;
+		return -1;
+	}
+
+	private void writeWindowed(byte[] data) throws IOException {
+		window.acquire(data.length);
+		writeTimeout.arm(TimeoutType.WRITE_STALL);
+		try {
+			writer.write(data, 0, data.length);
+		} finally {
+			writeTimeout.disarm();
+			window.release(data.length);
+		}
 	}
 
 	public void run() {
 		logger.log(LoggingLevel.INFO, "Signaling pipe startup for SSL.");
 		try {
-			int read = -1;
-			if (in != null) {
-				read = in.read(transferBuffer, 0, transferBuffer.length);
-			} else {
-				if (!parent.getControlDirective().isRemoteConnect()) {
-					transferBuffer = ProxyMain.getPluginsManager().getModifiedData(4, parent.getControlDirective(),
-							null, lastRepsonse);
-					if (transferBuffer != null) {
-						read = transferBuffer.length;
-					} else {
-						read = -1;
-					}
-				}
-			}
+			int read = readNext();
 			logger.log(LoggingLevel.INFO, "SSL Pipe has read for the first time " + read + " bytes.");
 			while (!interrupted() && read != -1) {
-				Integer offset = handleLineRead(read);
-
-				if (offset != null) {
-					byte[] realData = new byte[read - offset];
-					for (int i = 0; i < read - offset; i++) {
-						realData[i] = transferBuffer[i + offset];
-					}
-					realData = ProxyMain.getPluginsManager().getModifiedData(4, parent.getControlDirective(), realData,
-							lastRepsonse);
-					out.write(realData, 0, realData.length);
-					// outgoingHandler.feedOutput(realData, 0, realData.length);
-					// out.write(transferBuffer, offset, read - offset);
-					//out.write(transferBuffer, offset, read - offset);
-				} else {
-					byte[] realData = new byte[read];
-					for (int i = 0; i < read; i++) {
-						realData[i] = transferBuffer[i];
-					}
-					realData = ProxyMain.getPluginsManager().getModifiedData(4, parent.getControlDirective(), realData,
-							lastRepsonse);
-					out.write(realData, 0, realData.length);
-					// out.write(transferBuffer, 0, read);
-				}
-				if (in != null) {
-					read = in.read(transferBuffer, 0, transferBuffer.length);
-				} else {
-					if (!parent.getControlDirective().isRemoteConnect()) {
-						transferBuffer = ProxyMain.getPluginsManager().getModifiedData(4, parent.getControlDirective(),
-								null, lastRepsonse);
-						if (transferBuffer != null) {
-							read = transferBuffer.length;
-						} else {
-							read = -1;
-						}
-					}
+				try {
+					handleRead(read);
+				} catch (MalformedParsableContent e) {
+					logger.log(LoggingLevel.WARN, "Rejected a response header, closing the connection.", e);
+					writer.close();
+					out.write(("HTTP/1.1 502 Bad Gateway\r\nContent-Length: 0\r\nConnection: Close\r\n\r\n")
+							.getBytes());
+					break;
 				}
+				read = readNext();
 			}
 		} catch (IOException e) {
 			if (!isInterrupted())
 				logger.log(LoggingLevel.WARN, "An unexpected stream closure happened in SSL pipe.", e);
 		}
+		writeTimeout.disarm();
+		writer.close();
+		if (reader != null)
+			reader.close();
+		transferBuffer = null;
 		parent.finishHandler(true);
 	}
 
@@ -19,13 +19,24 @@ package io.github.explodingbottle.jmagicproxy.proxy.ssl;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.security.GeneralSecurityException;
 import java.security.KeyStore;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
 import java.security.SecureRandom;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
 
+import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManagerFactory;
 import javax.net.ssl.X509TrustManager;
@@ -33,6 +44,10 @@ import javax.net.ssl.X509TrustManager;
 import io.github.explodingbottle.jmagicproxy.ProxyMain;
 import io.github.explodingbottle.jmagicproxy.logging.LoggingLevel;
 import io.github.explodingbottle.jmagicproxy.logging.ProxyLogger;
+import io.github.explodingbottle.jmagicproxy.properties.PropertiesProvider;
+import io.github.explodingbottle.jmagicproxy.properties.PropertyKey;
+import io.github.explodingbottle.jmagicproxy.proxy.ssl.mint.LeafCertificateAuthority;
+import io.github.explodingbottle.jmagicproxy.proxy.ssl.mint.MintingKeyManager;
 
 /**
  * This class has to handle the work of loading KeyStores and prepare factories.
@@ -46,9 +61,22 @@ public class SSLObjectsProvider {
 	private String password;
 	private String keystoreType;
 
-	private SSLServerSocketFactory factoryServer;
+	private SSLSocketFactory factoryIncoming;
 	private SSLSocketFactory factoryOutgoing;
 
+	private SecureRandom random;
+	private SSLHandshakeProfile profile;
+
+	private SSLHandshakeStatistics incomingHandshakes;
+	private SSLHandshakeStatistics outgoingHandshakes;
+
+	private HandshakeLimiter incomingLimiter;
+	private HandshakeLimiter outgoingLimiter;
+	private int outgoingHandshakeTimeout;
+
+	private LeafCertificateAuthority leafAuthority;
+	private MintingKeyManager mintingKeyManager;
+
 	private ProxyLogger providerLogger;
 
 	/**
@@ -63,6 +91,43 @@ public class SSLObjectsProvider {
 		this.password = password;
 		this.keystoreType = keystoreType;
 		providerLogger = ProxyMain.getLoggerProvider().createLogger();
+		incomingHandshakes = new SSLHandshakeStatistics("clients", true);
+		outgoingHandshakes = new SSLHandshakeStatistics("servers", false);
+		PropertiesProvider properties = ProxyMain.getPropertiesProvider();
+		incomingLimiter = new HandshakeLimiter("clients",
+				properties.getAsInteger(PropertyKey.PROXY_SSL_HANDSHAKE_INCOMING_MAX),
+				properties.getAsInteger(PropertyKey.PROXY_SSL_HANDSHAKE_INCOMING_QUEUE_SIZE),
+				properties.getAsInteger(PropertyKey.PROXY_SSL_HANDSHAKE_INCOMING_QUEUE_TIMEOUT));
+		outgoingLimiter = new HandshakeLimiter("servers",
+				properties.getAsInteger(PropertyKey.PROXY_SSL_HANDSHAKE_OUTGOING_MAX),
+				properties.getAsInteger(PropertyKey.PROXY_SSL_HANDSHAKE_OUTGOING_QUEUE_SIZE),
+				properties.getAsInteger(PropertyKey.PROXY_SSL_HANDSHAKE_OUTGOING_QUEUE_TIMEOUT));
+		outgoingHandshakeTimeout = properties.getAsInteger(PropertyKey.PROXY_SSL_HANDSHAKE_OUTGOING_TIMEOUT);
+	}
+
+	/**
+	 * Creates the source of randomness of every context. The strong source of
+	 * Java can block while the system gathers entropy, during the startup or
+	 * during the handshakes, a DRBG is only seeded once.
+	 */
+	private SecureRandom createRandom() {
+		SecureRandom created;
+		try {
+			created = SecureRandom.getInstance("DRBG");
+		} catch (NoSuchAlgorithmException e) {
+			// Before Java 9.
+			created = new SecureRandom();
+		}
+		// Seeds it now rather than during the first handshake.
+		created.nextBytes(new byte[1]);
+		providerLogger.log(LoggingLevel.INFO, "Using the " + created.getAlgorithm() + " random generator.");
+		return created;
+	}
+
+	private void tuneSessions(SSLSessionContext sessions) {
+		PropertiesProvider properties = ProxyMain.getPropertiesProvider();
+		sessions.setSessionCacheSize(Math.max(0, properties.getAsInteger(PropertyKey.PROXY_SSL_SESSION_CACHE_SIZE)));
+		sessions.setSessionTimeout(Math.max(0, properties.getAsInteger(PropertyKey.PROXY_SSL_SESSION_TIMEOUT)));
 	}
 
 	/**
@@ -70,10 +135,24 @@ public class SSLObjectsProvider {
 	 */
 	public void getFactoriesReady() {
 		providerLogger.log(LoggingLevel.INFO, "Getting factories ready...");
+		// Read once by JSSE, before the first context is created.
+		String tickets = ProxyMain.getPropertiesProvider().getAsBoolean(PropertyKey.PROXY_SSL_SESSION_TICKETS)
+				.toString();
+		System.setProperty("jdk.tls.server.enableSessionTicketExtension", tickets);
+		System.setProperty("jdk.tls.client.enableSessionTicketExtension", tickets);
+		profile = SSLHandshakeProfile.FAST;
+		try {
+			profile = SSLHandshakeProfile
+					.valueOf(ProxyMain.getPropertiesProvider().getAsString(PropertyKey.PROXY_SSL_HANDSHAKE_PROFILE));
+		} catch (IllegalArgumentException e) {
+			providerLogger.log(LoggingLevel.WARN, "Failed to parse handshake profile. Default FAST will be used.", e);
+		}
+		random = createRandom();
 		X509TrustManager[] trustManagers = new X509TrustManager[] { new AcceptAllCertificatesTrustManager() };
 		try {
 			SSLContext freeContext = SSLContext.getInstance("SSL");
-			freeContext.init(null, trustManagers, SecureRandom.getInstanceStrong());
+			freeContext.init(null, trustManagers, random);
+			tuneSessions(freeContext.getClientSessionContext());
 			factoryOutgoing = freeContext.getSocketFactory();
 			providerLogger.log(LoggingLevel.INFO, "Outgoing factory is ready.");
 		} catch (GeneralSecurityException e) {
@@ -97,26 +176,179 @@ public class SSLObjectsProvider {
 			trustManagerFactory.init(trustStore);
 			keyManagerFactory.init(keyStore, password.toCharArray());
 
+			KeyManager[] keyManagers = keyManagerFactory.getKeyManagers();
+			if (ProxyMain.getPropertiesProvider().getAsBoolean(PropertyKey.PROXY_SSL_MINT_ENABLED)) {
+				keyManagers = prepareMinting(keyStore);
+			}
+
 			SSLContext context = SSLContext.getInstance("SSL");
-			context.init(keyManagerFactory.getKeyManagers(), trustManagerFactory.getTrustManagers(),
-					SecureRandom.getInstanceStrong());
-			factoryServer = context.getServerSocketFactory();
-			providerLogger.log(LoggingLevel.INFO, "Server factory is ready.");
+			context.init(keyManagers, trustManagerFactory.getTrustManagers(), random);
+			tuneSessions(context.getServerSessionContext());
+			factoryIncoming = context.getSocketFactory();
+			providerLogger.log(LoggingLevel.INFO, "Incoming factory is ready.");
 
 		} catch (Exception e) {
-			providerLogger.log(LoggingLevel.WARN, "Failed to instantiate the server factory.", e);
+			providerLogger.log(LoggingLevel.WARN, "Failed to instantiate the incoming factory.", e);
 		}
 		providerLogger.log(LoggingLevel.INFO, "Factories are now ready.");
 	}
 
+	private KeyManager[] prepareMinting(KeyStore keyStore) throws GeneralSecurityException {
+		PropertiesProvider properties = ProxyMain.getPropertiesProvider();
+		String caAlias = properties.getAsString(PropertyKey.PROXY_SSL_MINT_CA_ALIAS).trim();
+		if (caAlias.isEmpty()) {
+			Enumeration<String> aliases = keyStore.aliases();
+			while (aliases.hasMoreElements()) {
+				String alias = aliases.nextElement();
+				if (keyStore.isKeyEntry(alias)) {
+					caAlias = alias;
+					break;
+				}
+			}
+		}
+		if (!keyStore.isKeyEntry(caAlias)) {
+			throw new GeneralSecurityException("The keystore has no key entry for the certificate authority.");
+		}
+		Certificate[] stored = keyStore.getCertificateChain(caAlias);
+		X509Certificate[] caChain = new X509Certificate[stored.length];
+		for (int i = 0; i < stored.length; i++) {
+			caChain[i] = (X509Certificate) stored[i];
+		}
+		if (caChain[0].getBasicConstraints() < 0) {
+			providerLogger.log(LoggingLevel.WARN, "The certificate " + caAlias
+					+ " isn't a certificate authority, clients may refuse the minted certificates.");
+		}
+		String folder = properties.getAsString(PropertyKey.PROXY_SSL_MINT_CACHE_FOLDER).trim();
+		leafAuthority = new LeafCertificateAuthority((PrivateKey) keyStore.getKey(caAlias, password.toCharArray()),
+				caChain, properties.getAsInteger(PropertyKey.PROXY_SSL_MINT_CACHE_SIZE),
+				folder.isEmpty() ? null : new File(folder), password.toCharArray(),
+				properties.getAsInteger(PropertyKey.PROXY_SSL_MINT_KEY_POOL),
+				properties.getAsInteger(PropertyKey.PROXY_SSL_MINT_KEY_SIZE),
+				properties.getAsInteger(PropertyKey.PROXY_SSL_MINT_VALIDITY), profile == SSLHandshakeProfile.FAST,
+				random);
+		leafAuthority.start();
+		mintingKeyManager = new MintingKeyManager(leafAuthority);
+		providerLogger.log(LoggingLevel.INFO, "Certificates will be minted for each host with " + caAlias + ".");
+		return new KeyManager[] { mintingKeyManager };
+	}
+
+	/**
+	 * Prepares the socket of a client for its handshake. The proxy is told which
+	 * host the client asked for in its {@code CONNECT} request, so a certificate
+	 * for this host is given to the clients which don't send SNI. With the
+	 * {@code FAST} profile, the cheapest cipher suites are preferred over the
+	 * order of the client.
+	 * 
+	 * @param socket The socket of the client, before its handshake.
+	 * @param host   The requested host.
+	 */
+	public void prepareIncoming(SSLSocket socket, String host) {
+		if (mintingKeyManager != null)
+			mintingKeyManager.setRequestedHost(socket, host);
+		if (profile == SSLHandshakeProfile.FAST) {
+			SSLParameters parameters = socket.getSSLParameters();
+			parameters.setCipherSuites(CipherSuiteOrder.order(socket.getEnabledCipherSuites()));
+			parameters.setUseCipherSuitesOrder(true);
+			socket.setSSLParameters(parameters);
+		}
+	}
+
+	/**
+	 * Returns the counters of the handshakes with the clients.
+	 * 
+	 * @return The counters.
+	 */
+	public SSLHandshakeStatistics getIncomingHandshakes() {
+		return incomingHandshakes;
+	}
+
+	/**
+	 * Returns the counters of the handshakes with the servers.
+	 * 
+	 * @return The counters.
+	 */
+	public SSLHandshakeStatistics getOutgoingHandshakes() {
+		return outgoingHandshakes;
+	}
+
+	/**
+	 * Returns the limiter of the handshakes with the clients.
+	 * 
+	 * @return The limiter.
+	 */
+	public HandshakeLimiter getIncomingLimiter() {
+		return incomingLimiter;
+	}
+
+	/**
+	 * Returns the limiter of the handshakes with the servers.
+	 * 
+	 * @return The limiter.
+	 */
+	public HandshakeLimiter getOutgoingLimiter() {
+		return outgoingLimiter;
+	}
+
+	/**
+	 * Does the handshake of a socket opened to a server. The reads of the
+	 * handshake are bounded, so a server which doesn't answer can't keep a slot
+	 * of the outgoing limiter forever.
+	 * 
+	 * @param socket The socket.
+	 * @throws IOException If the handshake fails or the server doesn't answer in
+	 *                     time.
+	 */
+	public void startOutgoingHandshake(SSLSocket socket) throws IOException {
+		int previousTimeout = socket.getSoTimeout();
+		socket.setSoTimeout(Math.max(0, outgoingHandshakeTimeout));
+		socket.startHandshake();
+		socket.setSoTimeout(previousTimeout);
+	}
+
+	/**
+	 * Returns the time in milliseconds a handshake with a server can last, 0 if
+	 * it isn't limited.
+	 * 
+	 * @return The timeout.
+	 */
+	public int getOutgoingHandshakeTimeout() {
+		return Math.max(0, outgoingHandshakeTimeout);
+	}
+
+	/**
+	 * Stops the background work of the provider.
+	 */
+	public void closeProvider() {
+		if (leafAuthority != null)
+			leafAuthority.closeAuthority();
+	}
+
+	/**
+	 * Returns a summary of the counters.
+	 * 
+	 * @return The lines of the summary.
+	 */
+	public List<String> getStatistics() {
+		List<String> statistics = new ArrayList<String>();
+		statistics.add(incomingHandshakes.getStatistics());
+		statistics.add(outgoingHandshakes.getStatistics());
+		statistics.add(incomingLimiter.getStatistics());
+		statistics.add(outgoingLimiter.getStatistics());
+		statistics.add(SpeculativeConnection.getGlobalStatistics());
+		if (leafAuthority != null)
+			statistics.add(leafAuthority.getStatistics());
+		return statistics;
+	}
+
 	/**
-	 * Will returns the Server Factory, which is used to establish connections
-	 * between the client and the proxy.
+	 * Will returns the Incoming Factory, which is used to put the SSL layer over
+	 * the connections between the client and the proxy. The sockets it creates
+	 * must be set in server mode.
 	 * 
-	 * @return The Server Factory.
+	 * @return The Incoming Factory.
 	 */
-	public SSLServerSocketFactory getFactoryServer() {
-		return factoryServer;
+	public SSLSocketFactory getFactoryIncoming() {
+		return factoryIncoming;
 	}
 
 	/**
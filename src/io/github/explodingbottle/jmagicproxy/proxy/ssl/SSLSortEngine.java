@@ -51,6 +51,27 @@ public class SSLSortEngine {
 		logger.log(LoggingLevel.INFO, "Created a SSL sort engine for list " + list + " using the " + mode + " mode.");
 	}
 
+	/**
+	 * Tells if a pattern of the list matches a host.
+	 * 
+	 * @param host          The target host.
+	 * @param skipLoneStars If the patterns made of a lone {@code *} are ignored.
+	 * @return If a pattern matches.
+	 */
+	private boolean hasMatchingPattern(String host, boolean skipLoneStars) {
+		String[] patterns = list.split(";");
+		for (int i = 0; i < patterns.length; i++) {
+			if (skipLoneStars && patterns[i].trim().equals("*"))
+				continue;
+			Pattern found = Pattern.compile(patterns[i].replace(".", "\\.").replace("*", ".*"));
+			Matcher matcher = found.matcher(host);
+			if (matcher.matches()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	/**
 	 * This method will decide if the address should be using the custom
 	 * certificates or if a direct connection only should be created.
@@ -62,16 +83,25 @@ public class SSLSortEngine {
 	public boolean shouldUseCustomPipe(String host) {
 		if (mode == SSLSortMode.NONE)
 			return false;
-		String[] patterns = list.split(";");
-		for (int i = 0; i < patterns.length; i++) {
-			patterns[i] = patterns[i].replace(".", "\\.").replace("*", ".*");
-			Pattern found = Pattern.compile(patterns[i]);
-			Matcher matcher = found.matcher(host);
-			if (matcher.matches()) {
-				return mode == SSLSortMode.INCLUDE;
-			}
+		if (hasMatchingPattern(host, false)) {
+			return mode == SSLSortMode.INCLUDE;
 		}
 		return mode == SSLSortMode.EXCLUDE;
 	}
 
+	/**
+	 * Tells if a host is intercepted because it is named in the list, rather than
+	 * because it matches a lone {@code *} or isn't excluded. Those hosts are the
+	 * ones the plugins need to see, so they keep being intercepted when the proxy
+	 * is overloaded.
+	 * 
+	 * @param host The target host.
+	 * @return If the host is listed explicitly.
+	 */
+	public boolean isListedExplicitly(String host) {
+		if (mode != SSLSortMode.INCLUDE)
+			return false;
+		return hasMatchingPattern(host, true);
+	}
+
 }
@@ -23,8 +23,14 @@ import java.io.OutputStream;
 
 import io.github.explodingbottle.jmagicproxy.HardcodedConfig;
 import io.github.explodingbottle.jmagicproxy.ProxyMain;
+import io.github.explodingbottle.jmagicproxy.buffer.AdaptiveReadSize;
+import io.github.explodingbottle.jmagicproxy.buffer.LeasedReader;
 import io.github.explodingbottle.jmagicproxy.logging.LoggingLevel;
 import io.github.explodingbottle.jmagicproxy.logging.ProxyLogger;
+import io.github.explodingbottle.jmagicproxy.properties.PropertyKey;
+import io.github.explodingbottle.jmagicproxy.threading.ProxyThread;
+import io.github.explodingbottle.jmagicproxy.timeout.TimeoutGuard;
+import io.github.explodingbottle.jmagicproxy.timeout.TimeoutType;
 
 /**
  * Simple Transfer Pipe is used for SSL, where we have an input stream and an
@@ -33,16 +39,19 @@ import io.github.explodingbottle.jmagicproxy.logging.ProxyLogger;
  * @author ExplodingBottle
  *
  */
-class SimpleTransferPipe extends Thread {
+class SimpleTransferPipe extends ProxyThread {
 
 	private InputStream input;
 	private OutputStream output;
 
-	private byte[] buffer;
+	private LeasedReader reader;
 
 	private ProxyLogger logger;
 
 	private SSLComunicator communicator;
+	private boolean stopsCommunicator;
+
+	private TimeoutGuard writeTimeout;
 
 	/**
 	 * This is the constructor of the transfer pipe.
@@ -53,7 +62,11 @@ class SimpleTransferPipe extends Thread {
 	public SimpleTransferPipe(InputStream input, OutputStream output) {
 		this.input = input;
 		this.output = output;
-		buffer = new byte[HardcodedConfig.returnBufferSize()];
+		reader = new LeasedReader(input,
+				new AdaptiveReadSize(
+						ProxyMain.getPropertiesProvider().getAsInteger(PropertyKey.PROXY_BUFFERS_MIN_READ_SIZE),
+						HardcodedConfig.returnBufferSize()),
+				true, null);
 		logger = ProxyMain.getLoggerProvider().createLogger();
 	}
 
@@ -65,23 +78,51 @@ class SimpleTransferPipe extends Thread {
 	 * @param communicator Represents the parent SSL communicator (if any).
 	 */
 	public SimpleTransferPipe(InputStream input, OutputStream output, SSLComunicator communicator) {
+		this(input, output, communicator, true);
+	}
+
+	/**
+	 * This is the constructor of the transfer pipe.
+	 * 
+	 * @param input             Represents the input that will feed the output.
+	 * @param output            Represents the output that will be feed.
+	 * @param communicator      Represents the parent SSL communicator.
+	 * @param stopsCommunicator If the communicator must be stopped when the
+	 *                          input ends.
+	 */
+	public SimpleTransferPipe(InputStream input, OutputStream output, SSLComunicator communicator,
+			boolean stopsCommunicator) {
 		this(input, output);
 		this.communicator = communicator;
+		this.stopsCommunicator = stopsCommunicator;
+		writeTimeout = ProxyMain.getTimeoutWheel().newGuard(type -> {
+			logger.log(LoggingLevel.WARN, "The " + type.getDescription() + " timeout has expired for a SSL tunnel.");
+			communicator.stopCommunicator();
+		});
 	}
 
 	public void run() {
 		try {
-			int readedLength = input.read(buffer, 0, buffer.length);
+			int readedLength = reader.read();
 			while (readedLength != -1 && !interrupted()) {
-				output.write(buffer, 0, readedLength);
-				readedLength = input.read(buffer, 0, buffer.length);
+				if (communicator != null) {
+					communicator.signalActivity();
+					writeTimeout.arm(TimeoutType.WRITE_STALL);
+				}
+				output.write(reader.getBuffer(), 0, readedLength);
+				if (writeTimeout != null)
+					writeTimeout.disarm();
+				readedLength = reader.read();
 			}
 		} catch (IOException e) {
 			if (!isInterrupted()) {
 				logger.log(LoggingLevel.WARN, "A tranfer failed for SimpleTransferPipe.", e);
 			}
 		}
-		if (communicator != null) {
+		reader.close();
+		if (writeTimeout != null)
+			writeTimeout.disarm();
+		if (communicator != null && stopsCommunicator) {
 			communicator.stopCommunicator();
 		}
 	}
@@ -0,0 +1,216 @@
+/*
+ *   JMagic Proxy - A HTTP and HTTPS Proxy
+ *   Copyright (C) 2023  ExplodingBottle
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.explodingbottle.jmagicproxy.proxy.ssl;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLSocket;
+
+import io.github.explodingbottle.jmagicproxy.ProxyMain;
+import io.github.explodingbottle.jmagicproxy.logging.LoggingLevel;
+import io.github.explodingbottle.jmagicproxy.logging.ProxyLogger;
+import io.github.explodingbottle.jmagicproxy.properties.PropertiesProvider;
+import io.github.explodingbottle.jmagicproxy.properties.PropertyKey;
+import io.github.explodingbottle.jmagicproxy.socketopener.SSLSocketOpener;
+import io.github.explodingbottle.jmagicproxy.socketopener.SocketOpeningTool;
+import io.github.explodingbottle.jmagicproxy.threading.ProxyThread;
+
+/**
+ * This thread opens the SSL connection to the host of a {@code CONNECT} request
+ * while the client does its own handshake with the proxy, so the first request
+ * doesn't wait for the resolution, the connection and the handshake with the
+ * server. The connection is adopted by the first request if the plugins send
+ * it to the same host and port, and closed otherwise.
+ *
+ * @author ExplodingBottle
+ *
+ */
+class SpeculativeConnection extends ProxyThread {
+
+	private static final AtomicLong GLOBAL_STARTED = new AtomicLong();
+	private static final AtomicLong GLOBAL_ADOPTED = new AtomicLong();
+	private static final AtomicLong GLOBAL_DISCARDED = new AtomicLong();
+	private static final AtomicLong GLOBAL_FAILED = new AtomicLong();
+
+	private String host;
+	private int port;
+
+	private ProxyLogger logger;
+
+	private Socket socket;
+	private boolean done;
+	private boolean discarded;
+	private long maxWait;
+
+	/**
+	 * Prepares the connection.
+	 *
+	 * @param host The host of the {@code CONNECT} request.
+	 * @param port The port of the {@code CONNECT} request.
+	 */
+	SpeculativeConnection(String host, int port) {
+		this.host = host;
+		this.port = port;
+		logger = ProxyMain.getLoggerProvider().createLogger();
+		// Opening the connection can't take longer than the connection attempts, the
+		// wait for a handshake slot and the handshake, unless one has no limit.
+		PropertiesProvider properties = ProxyMain.getPropertiesProvider();
+		int connect = properties.getAsInteger(PropertyKey.PROXY_CONNECT_TIMEOUT);
+		int queue = properties.getAsInteger(PropertyKey.PROXY_SSL_HANDSHAKE_OUTGOING_QUEUE_TIMEOUT);
+		int handshake = ProxyMain.getSSLObjectsProvider().getOutgoingHandshakeTimeout();
+		if (connect > 0 && queue > 0 && handshake > 0)
+			maxWait = (long) connect + queue + handshake;
+	}
+
+	/**
+	 * Tells if the connection can be used for a host and a port.
+	 *
+	 * @param host The host.
+	 * @param port The port.
+	 * @return If it is the host and the port of the connection.
+	 */
+	boolean isFor(String host, int port) {
+		return this.host.equalsIgnoreCase(host) && this.port == port;
+	}
+
+	/**
+	 * Waits for the connection and takes it. The connection is discarded if it
+	 * isn't opened in time.
+	 *
+	 * @return The socket after its handshake, or {@code null} if the connection
+	 *         failed, was discarded or took too long.
+	 */
+	synchronized Socket adopt() {
+		long deadline = System.currentTimeMillis() + maxWait;
+		while (!done && !discarded) {
+			long left = maxWait == 0 ? 0 : deadline - System.currentTimeMillis();
+			if (maxWait != 0 && left <= 0) {
+				logger.log(LoggingLevel.WARN, "The speculative connection took too long, it is discarded.");
+				GLOBAL_DISCARDED.incrementAndGet();
+				break;
+			}
+			try {
+				wait(left);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		if (discarded || socket == null) {
+			// A connection completing later is closed by complete().
+			discarded = true;
+			return null;
+		}
+		Socket adopted = socket;
+		socket = null;
+		discarded = true;
+		GLOBAL_ADOPTED.incrementAndGet();
+		return adopted;
+	}
+
+	/**
+	 * Closes the connection, now or once it is opened.
+	 */
+	void discard() {
+		Socket toClose;
+		synchronized (this) {
+			if (discarded)
+				return;
+			discarded = true;
+			GLOBAL_DISCARDED.incrementAndGet();
+			toClose = socket;
+			socket = null;
+			notifyAll();
+		}
+		closeSocket(toClose);
+	}
+
+	private void closeSocket(Socket toClose) {
+		if (toClose != null) {
+			try {
+				toClose.close();
+			} catch (IOException e) {
+				logger.log(LoggingLevel.WARN, "Failed to close the speculative connection.", e);
+			}
+		}
+	}
+
+	private void complete(Socket opened) {
+		boolean close;
+		synchronized (this) {
+			done = true;
+			close = discarded;
+			if (!close)
+				socket = opened;
+			notifyAll();
+		}
+		if (close)
+			closeSocket(opened);
+	}
+
+	@Override
+	public void run() {
+		GLOBAL_STARTED.incrementAndGet();
+		SSLObjectsProvider obProv = ProxyMain.getSSLObjectsProvider();
+		new SocketOpeningTool(host, port, new SSLSocketOpener(obProv.getFactoryOutgoing(), host, port),
+				(s, status) -> {
+					if (s == null) {
+						GLOBAL_FAILED.incrementAndGet();
+						complete(null);
+						return;
+					}
+					if (!obProv.getOutgoingLimiter().acquire()) {
+						logger.log(LoggingLevel.WARN,
+								"No handshake slot became free in time for the speculative connection.");
+						GLOBAL_FAILED.incrementAndGet();
+						closeSocket(s);
+						complete(null);
+						return;
+					}
+					try {
+						long handshakeStart = System.currentTimeMillis();
+						try {
+							obProv.startOutgoingHandshake((SSLSocket) s);
+						} finally {
+							obProv.getOutgoingLimiter().release();
+						}
+						obProv.getOutgoingHandshakes().record(((SSLSocket) s).getSession(), handshakeStart);
+						complete(s);
+					} catch (IOException e) {
+						logger.log(LoggingLevel.WARN, "Failed the speculative handshake with " + host + ":" + port + ".",
+								e);
+						GLOBAL_FAILED.incrementAndGet();
+						closeSocket(s);
+						complete(null);
+					}
+				}).run();
+	}
+
+	/**
+	 * Returns a summary of the counters of every speculative connection.
+	 *
+	 * @return The summary.
+	 */
+	static String getGlobalStatistics() {
+		return "Speculative connections: " + GLOBAL_STARTED.get() + " started, " + GLOBAL_ADOPTED.get() + " adopted, "
+				+ GLOBAL_DISCARDED.get() + " discarded, " + GLOBAL_FAILED.get() + " failed.";
+	}
+
+}
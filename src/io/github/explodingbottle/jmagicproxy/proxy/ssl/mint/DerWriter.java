@@ -0,0 +1,160 @@
+/*
+ *   JMagic Proxy - A HTTP and HTTPS Proxy
+ *   Copyright (C) 2023  ExplodingBottle
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.explodingbottle.jmagicproxy.proxy.ssl.mint;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * This class builds the DER encoding of the few ASN.1 types needed to write a
+ * certificate. Each function returns the complete encoding of one value, so
+ * they can be nested.
+ *
+ * @author ExplodingBottle
+ *
+ */
+final class DerWriter {
+
+	private static final int TAG_BOOLEAN = 0x01;
+	private static final int TAG_INTEGER = 0x02;
+	private static final int TAG_BIT_STRING = 0x03;
+	private static final int TAG_OCTET_STRING = 0x04;
+	private static final int TAG_NULL = 0x05;
+	private static final int TAG_OID = 0x06;
+	private static final int TAG_UTF8_STRING = 0x0C;
+	private static final int TAG_UTC_TIME = 0x17;
+	private static final int TAG_GENERALIZED_TIME = 0x18;
+	private static final int TAG_SEQUENCE = 0x30;
+	private static final int TAG_SET = 0x31;
+
+	private DerWriter() {
+	}
+
+	private static byte[] value(int tag, byte[] content) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(content.length + 6);
+		out.write(tag);
+		int length = content.length;
+		if (length < 0x80) {
+			out.write(length);
+		} else {
+			int count = 0;
+			for (int rest = length; rest != 0; rest >>>= 8)
+				count++;
+			out.write(0x80 | count);
+			for (int i = count - 1; i >= 0; i--)
+				out.write(length >>> (i * 8));
+		}
+		out.write(content, 0, content.length);
+		return out.toByteArray();
+	}
+
+	private static byte[] concat(byte[]... values) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (byte[] encoded : values)
+			out.write(encoded, 0, encoded.length);
+		return out.toByteArray();
+	}
+
+	static byte[] sequence(byte[]... values) {
+		return value(TAG_SEQUENCE, concat(values));
+	}
+
+	static byte[] set(byte[]... values) {
+		return value(TAG_SET, concat(values));
+	}
+
+	static byte[] integer(BigInteger number) {
+		return value(TAG_INTEGER, number.toByteArray());
+	}
+
+	static byte[] bool(boolean flag) {
+		return value(TAG_BOOLEAN, new byte[] { (byte) (flag ? 0xFF : 0x00) });
+	}
+
+	static byte[] nullValue() {
+		return value(TAG_NULL, new byte[0]);
+	}
+
+	static byte[] bitString(byte[] bits, int unusedBits) {
+		byte[] content = new byte[bits.length + 1];
+		content[0] = (byte) unusedBits;
+		System.arraycopy(bits, 0, content, 1, bits.length);
+		return value(TAG_BIT_STRING, content);
+	}
+
+	static byte[] octetString(byte[] bytes) {
+		return value(TAG_OCTET_STRING, bytes);
+	}
+
+	static byte[] utf8String(String text) {
+		return value(TAG_UTF8_STRING, text.getBytes(StandardCharsets.UTF_8));
+	}
+
+	static byte[] oid(String dotted) {
+		String[] arcs = dotted.split("\\.");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		writeArc(out, Long.parseLong(arcs[0]) * 40 + Long.parseLong(arcs[1]));
+		for (int i = 2; i < arcs.length; i++)
+			writeArc(out, Long.parseLong(arcs[i]));
+		return value(TAG_OID, out.toByteArray());
+	}
+
+	private static void writeArc(ByteArrayOutputStream out, long arc) {
+		int groups = 1;
+		for (long rest = arc >>> 7; rest != 0; rest >>>= 7)
+			groups++;
+		for (int i = groups - 1; i >= 0; i--) {
+			int group = (int) ((arc >>> (i * 7)) & 0x7F);
+			out.write(i == 0 ? group : group | 0x80);
+		}
+	}
+
+	/**
+	 * Encodes a time the way certificates do: as an UTCTime until 2049 and as a
+	 * GeneralizedTime after.
+	 */
+	static byte[] time(Date date) {
+		SimpleDateFormat yearFormat = new SimpleDateFormat("yyyy", Locale.ROOT);
+		yearFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+		boolean utc = Integer.parseInt(yearFormat.format(date)) < 2050;
+		SimpleDateFormat format = new SimpleDateFormat(utc ? "yyMMddHHmmss'Z'" : "yyyyMMddHHmmss'Z'", Locale.ROOT);
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return value(utc ? TAG_UTC_TIME : TAG_GENERALIZED_TIME,
+				format.format(date).getBytes(StandardCharsets.US_ASCII));
+	}
+
+	/**
+	 * Wraps a value in an explicit context-specific tag.
+	 */
+	static byte[] explicit(int number, byte[] encoded) {
+		return value(0xA0 | number, encoded);
+	}
+
+	/**
+	 * Builds a primitive value with an implicit context-specific tag.
+	 */
+	static byte[] implicit(int number, byte[] content) {
+		return value(0x80 | number, content);
+	}
+
+}
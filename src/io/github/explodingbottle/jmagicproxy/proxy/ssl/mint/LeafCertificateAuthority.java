@@ -0,0 +1,525 @@
+/*
+ *   JMagic Proxy - A HTTP and HTTPS Proxy
+ *   Copyright (C) 2023  ExplodingBottle
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.explodingbottle.jmagicproxy.proxy.ssl.mint;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import io.github.explodingbottle.jmagicproxy.ProxyMain;
+import io.github.explodingbottle.jmagicproxy.logging.LoggingLevel;
+import io.github.explodingbottle.jmagicproxy.logging.ProxyLogger;
+
+/**
+ * This Thread signs a certificate for each intercepted host with the key of a
+ * certificate authority, so the clients trusting this authority accept any
+ * host without a wildcard certificate. The minted certificates are kept in
+ * memory, the least recently used ones being dropped, and are written to a
+ * folder so they can be used again after a restart.
+ *
+ * Generating a key pair is the slow part of minting, so this thread keeps a
+ * few of them ready.
+ *
+ * The certificates have RSA keys, or ECDSA P-256 keys which make cheaper
+ * handshakes for the clients supporting them.
+ *
+ * @author ExplodingBottle
+ *
+ */
+public class LeafCertificateAuthority extends Thread {
+
+	private static final Pattern IPV4_LITERAL = Pattern.compile("\\d{1,3}(\\.\\d{1,3}){3}");
+
+	private static final String LEAF_ALIAS = "leaf";
+
+	/**
+	 * The type of the RSA keys, as given by Java to the key managers.
+	 */
+	public static final String KEY_TYPE_RSA = "RSA";
+
+	/**
+	 * The type of the ECDSA keys, as given by Java to the key managers.
+	 */
+	public static final String KEY_TYPE_EC = "EC";
+
+	/**
+	 * The time in milliseconds the certificates start being valid before being
+	 * minted, so clients with a late clock accept them.
+	 */
+	private static final long BACKDATE = TimeUnit.DAYS.toMillis(1);
+
+	private ProxyLogger logger;
+
+	private PrivateKey caKey;
+	private X509Certificate[] caChain;
+	private int maxEntries;
+	private File folder;
+	private char[] storePassword;
+	private int keyPoolSize;
+	private int keySize;
+	private String[] keyTypes;
+	private long validity;
+
+	private SecureRandom random;
+
+	private LinkedHashMap<String, MintedLeaf> leaves;
+	private HashSet<String> minting;
+	private HashMap<String, ArrayDeque<KeyPair>> keyPools;
+
+	private long hitCount;
+	private long diskCount;
+	private long mintCount;
+	private long failedCount;
+	private long mintNanos;
+	private long maxMintNanos;
+	private long pooledKeyCount;
+	private long waitedKeyCount;
+
+	private boolean closed;
+
+	/**
+	 * A minted certificate and its key.
+	 *
+	 * @author ExplodingBottle
+	 *
+	 */
+	public static class MintedLeaf {
+		private PrivateKey key;
+		private X509Certificate[] chain;
+
+		private MintedLeaf(PrivateKey key, X509Certificate[] chain) {
+			this.key = key;
+			this.chain = chain;
+		}
+
+		/**
+		 * Returns the private key of the certificate.
+		 *
+		 * @return The private key.
+		 */
+		public PrivateKey getKey() {
+			return key;
+		}
+
+		/**
+		 * Returns the certificate followed by the chain of the authority.
+		 *
+		 * @return The certificate chain.
+		 */
+		public X509Certificate[] getChain() {
+			return chain.clone();
+		}
+	}
+
+	/**
+	 * Creates the authority.
+	 *
+	 * @param caKey         The private key of the authority.
+	 * @param caChain       The certificate of the authority followed by its own
+	 *                      chain.
+	 * @param maxEntries    The maximum count of certificates kept in memory.
+	 * @param folder        The folder where the certificates are written, or
+	 *                      {@code null} to keep them only in memory.
+	 * @param storePassword The password of the written certificates.
+	 * @param keyPoolSize   The count of key pairs generated in advance, 0
+	 *                      disables it.
+	 * @param keySize       The size in bits of the generated RSA keys.
+	 * @param validityDays  The count of days the certificates are valid.
+	 * @param ecdsa         If ECDSA certificates can be minted, otherwise only RSA
+	 *                      ones are.
+	 * @param random        The source of randomness of the keys and the serial
+	 *                      numbers.
+	 */
+	public LeafCertificateAuthority(PrivateKey caKey, X509Certificate[] caChain, int maxEntries, File folder,
+			char[] storePassword, int keyPoolSize, int keySize, int validityDays, boolean ecdsa,
+			SecureRandom random) {
+		this.caKey = caKey;
+		this.caChain = caChain.clone();
+		this.maxEntries = Math.max(1, maxEntries);
+		this.folder = folder;
+		this.storePassword = storePassword.clone();
+		this.keyPoolSize = Math.max(0, keyPoolSize);
+		this.keySize = keySize;
+		this.validity = TimeUnit.DAYS.toMillis(Math.max(1, validityDays));
+		this.keyTypes = ecdsa ? new String[] { KEY_TYPE_EC, KEY_TYPE_RSA } : new String[] { KEY_TYPE_RSA };
+		this.random = random;
+		logger = ProxyMain.getLoggerProvider().createLogger();
+		leaves = new LinkedHashMap<String, MintedLeaf>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, MintedLeaf> eldest) {
+				return size() > LeafCertificateAuthority.this.maxEntries;
+			}
+		};
+		minting = new HashSet<String>();
+		keyPools = new HashMap<String, ArrayDeque<KeyPair>>();
+		for (String keyType : keyTypes) {
+			keyPools.put(keyType, new ArrayDeque<KeyPair>());
+		}
+		if (folder != null && !folder.isDirectory() && !folder.mkdirs()) {
+			logger.log(LoggingLevel.WARN,
+					"Failed to create the folder of the minted certificates, they will only be kept in memory.");
+			this.folder = null;
+		}
+		setName("Leaf Certificate Key Generator");
+		setDaemon(true);
+	}
+
+	/**
+	 * Tells if certificates with a type of key can be minted.
+	 *
+	 * @param keyType The type of key, {@code RSA} or {@code EC}.
+	 * @return If the type is supported.
+	 */
+	public boolean supportsKeyType(String keyType) {
+		return keyPools.containsKey(keyType);
+	}
+
+	private static String keyOf(String host, String keyType) {
+		return keyType + "/" + host.toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * Gives the certificate of a host, from the memory, from the folder or by
+	 * minting it.
+	 *
+	 * @param host    The host the certificate is for.
+	 * @param keyType The type of key of the certificate, {@code RSA} or
+	 *                {@code EC}.
+	 * @return The certificate, or {@code null} if it couldn't be minted.
+	 */
+	public MintedLeaf getLeaf(String host, String keyType) {
+		if (!supportsKeyType(keyType))
+			return null;
+		host = host.toLowerCase(Locale.ROOT);
+		String key = keyOf(host, keyType);
+		synchronized (this) {
+			while (true) {
+				MintedLeaf leaf = leaves.get(key);
+				if (leaf != null) {
+					hitCount++;
+					return leaf;
+				}
+				if (!minting.contains(key))
+					break;
+				// Another handshake is minting this certificate, it will be used.
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return null;
+				}
+			}
+			minting.add(key);
+		}
+		MintedLeaf leaf = null;
+		try {
+			leaf = loadLeaf(host, keyType);
+			if (leaf != null) {
+				synchronized (this) {
+					diskCount++;
+				}
+				return leaf;
+			}
+			long start = System.nanoTime();
+			try {
+				leaf = mintLeaf(host, keyType);
+			} catch (GeneralSecurityException | IOException e) {
+				logger.log(LoggingLevel.WARN, "Failed to mint a " + keyType + " certificate for " + host + ".", e);
+				synchronized (this) {
+					failedCount++;
+				}
+				return null;
+			}
+			long elapsed = System.nanoTime() - start;
+			synchronized (this) {
+				mintCount++;
+				mintNanos += elapsed;
+				maxMintNanos = Math.max(maxMintNanos, elapsed);
+			}
+			logger.log(LoggingLevel.INFO, "Minted a " + keyType + " certificate for " + host + " in "
+					+ TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms.");
+			saveLeaf(host, keyType, leaf);
+			return leaf;
+		} finally {
+			synchronized (this) {
+				minting.remove(key);
+				if (leaf != null)
+					leaves.put(key, leaf);
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Gives the certificate of a host if it is in memory, without counting it as
+	 * a request.
+	 */
+	synchronized MintedLeaf findLeaf(String host, String keyType) {
+		return leaves.get(keyOf(host, keyType));
+	}
+
+	private KeyPair generateKeyPair(String keyType) throws GeneralSecurityException {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance(keyType);
+		if (KEY_TYPE_EC.equals(keyType)) {
+			generator.initialize(new ECGenParameterSpec("secp256r1"), random);
+		} else {
+			generator.initialize(keySize, random);
+		}
+		return generator.generateKeyPair();
+	}
+
+	private KeyPair takeKeyPair(String keyType) throws GeneralSecurityException {
+		synchronized (this) {
+			KeyPair pooled = keyPools.get(keyType).poll();
+			if (pooled != null) {
+				pooledKeyCount++;
+				notifyAll();
+				return pooled;
+			}
+			waitedKeyCount++;
+			notifyAll();
+		}
+		return generateKeyPair(keyType);
+	}
+
+	private String getSignatureAlgorithm() {
+		return "EC".equals(caKey.getAlgorithm()) ? "SHA256withECDSA" : "SHA256withRSA";
+	}
+
+	private byte[] getSignatureAlgorithmIdentifier() {
+		if ("EC".equals(caKey.getAlgorithm()))
+			return DerWriter.sequence(DerWriter.oid("1.2.840.10045.4.3.2"));
+		return DerWriter.sequence(DerWriter.oid("1.2.840.113549.1.1.11"), DerWriter.nullValue());
+	}
+
+	private static byte[] extension(String oid, boolean critical, byte[] value) {
+		if (critical)
+			return DerWriter.sequence(DerWriter.oid(oid), DerWriter.bool(true), DerWriter.octetString(value));
+		return DerWriter.sequence(DerWriter.oid(oid), DerWriter.octetString(value));
+	}
+
+	private static byte[] subjectAlternativeName(String host) throws IOException {
+		if (IPV4_LITERAL.matcher(host).matches() || host.indexOf(':') >= 0) {
+			// Only literals reach this point, so there is no lookup.
+			byte[] address = InetAddress.getByName(host).getAddress();
+			return DerWriter.sequence(DerWriter.implicit(7, address));
+		}
+		return DerWriter.sequence(DerWriter.implicit(2, host.getBytes(StandardCharsets.US_ASCII)));
+	}
+
+	private MintedLeaf mintLeaf(String host, String keyType) throws GeneralSecurityException, IOException {
+		KeyPair keyPair = takeKeyPair(keyType);
+		// RSA keys can also encipher the premaster secret of the oldest suites.
+		byte[] keyUsage = KEY_TYPE_EC.equals(keyType) ? DerWriter.bitString(new byte[] { (byte) 0x80 }, 7)
+				: DerWriter.bitString(new byte[] { (byte) 0xA0 }, 5);
+		long now = System.currentTimeMillis();
+		String commonName = host.length() > 64 ? host.substring(0, 64) : host;
+		byte[] subject = DerWriter.sequence(DerWriter
+				.set(DerWriter.sequence(DerWriter.oid("2.5.4.3"), DerWriter.utf8String(commonName))));
+		byte[] extensions = DerWriter.sequence(
+				extension("2.5.29.17", false, subjectAlternativeName(host)),
+				extension("2.5.29.19", true, DerWriter.sequence()),
+				extension("2.5.29.15", true, keyUsage),
+				extension("2.5.29.37", false, DerWriter.sequence(DerWriter.oid("1.3.6.1.5.5.7.3.1"))));
+		byte[] tbsCertificate = DerWriter.sequence(DerWriter.explicit(0, DerWriter.integer(BigInteger.valueOf(2))),
+				DerWriter.integer(new BigInteger(64, random).setBit(62)), getSignatureAlgorithmIdentifier(),
+				caChain[0].getSubjectX500Principal().getEncoded(),
+				DerWriter.sequence(DerWriter.time(new Date(now - BACKDATE)),
+						DerWriter.time(new Date(now + validity))),
+				subject, keyPair.getPublic().getEncoded(), DerWriter.explicit(3, extensions));
+		Signature signature = Signature.getInstance(getSignatureAlgorithm());
+		signature.initSign(caKey);
+		signature.update(tbsCertificate);
+		byte[] encoded = DerWriter.sequence(tbsCertificate, getSignatureAlgorithmIdentifier(),
+				DerWriter.bitString(signature.sign(), 0));
+		X509Certificate leaf = (X509Certificate) CertificateFactory.getInstance("X.509")
+				.generateCertificate(new ByteArrayInputStream(encoded));
+		X509Certificate[] chain = new X509Certificate[caChain.length + 1];
+		chain[0] = leaf;
+		System.arraycopy(caChain, 0, chain, 1, caChain.length);
+		return new MintedLeaf(keyPair.getPrivate(), chain);
+	}
+
+	private File getLeafFile(String host, String keyType) {
+		String name = host.replaceAll("[^a-z0-9.\\-]", "_") + ".p12";
+		if (KEY_TYPE_EC.equals(keyType))
+			return new File(new File(folder, "ec"), name);
+		return new File(folder, name);
+	}
+
+	private MintedLeaf loadLeaf(String host, String keyType) {
+		if (folder == null)
+			return null;
+		File file = getLeafFile(host, keyType);
+		if (!file.isFile())
+			return null;
+		try (InputStream input = new FileInputStream(file)) {
+			KeyStore store = KeyStore.getInstance("pkcs12");
+			store.load(input, storePassword);
+			Certificate[] stored = store.getCertificateChain(LEAF_ALIAS);
+			if (stored == null || stored.length == 0)
+				return null;
+			X509Certificate leaf = (X509Certificate) stored[0];
+			if (!keyType.equals(leaf.getPublicKey().getAlgorithm()))
+				return null;
+			// Certificates of another authority or expired ones are minted again.
+			leaf.checkValidity();
+			leaf.verify(caChain[0].getPublicKey());
+			X509Certificate[] chain = new X509Certificate[caChain.length + 1];
+			chain[0] = leaf;
+			System.arraycopy(caChain, 0, chain, 1, caChain.length);
+			return new MintedLeaf((PrivateKey) store.getKey(LEAF_ALIAS, storePassword), chain);
+		} catch (GeneralSecurityException | IOException e) {
+			logger.log(LoggingLevel.INFO, "The stored certificate of " + host + " can't be used, minting it again.");
+			return null;
+		}
+	}
+
+	private void saveLeaf(String host, String keyType, MintedLeaf leaf) {
+		if (folder == null)
+			return;
+		File file = getLeafFile(host, keyType);
+		File temporary = new File(file.getParentFile(), file.getName() + ".tmp");
+		try {
+			if (!file.getParentFile().isDirectory() && !file.getParentFile().mkdirs())
+				throw new IOException("Failed to create " + file.getParentFile() + ".");
+			KeyStore store = KeyStore.getInstance("pkcs12");
+			store.load(null, null);
+			store.setKeyEntry(LEAF_ALIAS, leaf.key, storePassword, leaf.chain);
+			try (OutputStream output = new FileOutputStream(temporary)) {
+				store.store(output, storePassword);
+			}
+			if (file.exists() && !file.delete() || !temporary.renameTo(file)) {
+				logger.log(LoggingLevel.WARN, "Failed to replace the stored certificate of " + host + ".");
+				temporary.delete();
+			}
+		} catch (GeneralSecurityException | IOException e) {
+			logger.log(LoggingLevel.WARN, "Failed to store the certificate of " + host + ".", e);
+			temporary.delete();
+		}
+	}
+
+	/**
+	 * Stops the generation of key pairs.
+	 */
+	public synchronized void closeAuthority() {
+		closed = true;
+		keyPools.values().forEach(ArrayDeque::clear);
+		notifyAll();
+	}
+
+	/**
+	 * Returns the part of the requested certificates which were already in memory
+	 * or in the folder.
+	 *
+	 * @return The hit ratio, between 0 and 1.
+	 */
+	public synchronized double getHitRatio() {
+		long total = hitCount + diskCount + mintCount + failedCount;
+		return total == 0 ? 0 : (double) (hitCount + diskCount) / total;
+	}
+
+	/**
+	 * Returns the average time spent minting a certificate.
+	 *
+	 * @return The average time in milliseconds.
+	 */
+	public synchronized double getAverageMintTime() {
+		return mintCount == 0 ? 0 : mintNanos / 1000000.0 / mintCount;
+	}
+
+	/**
+	 * Returns a summary of the counters.
+	 *
+	 * @return The summary.
+	 */
+	public synchronized String getStatistics() {
+		return "Leaf certificates: " + leaves.size() + " in memory, " + hitCount + " hits, " + diskCount
+				+ " loaded from disk, " + mintCount + " minted, " + failedCount + " failed ("
+				+ Math.round(getHitRatio() * 100) + "% hit ratio), mint time " + Math.round(getAverageMintTime())
+				+ " ms on average and " + TimeUnit.NANOSECONDS.toMillis(maxMintNanos) + " ms at most, "
+				+ pooledKeyCount + " keys from the pool, " + waitedKeyCount + " generated on demand.";
+	}
+
+	private String getMissingKeyType() {
+		for (String keyType : keyTypes) {
+			if (keyPools.get(keyType).size() < keyPoolSize)
+				return keyType;
+		}
+		return null;
+	}
+
+	public void run() {
+		while (true) {
+			String keyType;
+			synchronized (this) {
+				while (!closed && (keyType = getMissingKeyType()) == null) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (closed)
+					return;
+				keyType = getMissingKeyType();
+			}
+			try {
+				KeyPair generated = generateKeyPair(keyType);
+				synchronized (this) {
+					if (closed)
+						return;
+					keyPools.get(keyType).add(generated);
+				}
+			} catch (GeneralSecurityException e) {
+				logger.log(LoggingLevel.WARN, "Failed to generate a key pair in advance, stopping.", e);
+				return;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,148 @@
+/*
+ *   JMagic Proxy - A HTTP and HTTPS Proxy
+ *   Copyright (C) 2023  ExplodingBottle
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.explodingbottle.jmagicproxy.proxy.ssl.mint;
+
+import java.net.Socket;
+import java.security.Principal;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import javax.net.ssl.ExtendedSSLSession;
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SNIServerName;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.X509ExtendedKeyManager;
+
+import io.github.explodingbottle.jmagicproxy.proxy.ssl.mint.LeafCertificateAuthority.MintedLeaf;
+
+/**
+ * This key manager gives to each handshake the certificate of the host asked
+ * by the client through SNI, minted by a {@link LeafCertificateAuthority}. The
+ * clients which don't send SNI get the certificate of the host of their
+ * {@code CONNECT} request. The aliases are the type of key followed by a slash
+ * and the host name. Java asks for the types of key the client supports, in
+ * the order of preference of the handshake.
+ *
+ * @author ExplodingBottle
+ *
+ */
+public class MintingKeyManager extends X509ExtendedKeyManager {
+
+	private LeafCertificateAuthority authority;
+	private Map<Socket, String> requestedHosts;
+
+	/**
+	 * Creates the key manager.
+	 *
+	 * @param authority The authority minting the certificates.
+	 */
+	public MintingKeyManager(LeafCertificateAuthority authority) {
+		this.authority = authority;
+		requestedHosts = Collections.synchronizedMap(new WeakHashMap<Socket, String>());
+	}
+
+	/**
+	 * Tells which host a socket was opened for, in case its client doesn't send
+	 * SNI.
+	 *
+	 * @param socket The socket of the client.
+	 * @param host   The host of the {@code CONNECT} request.
+	 */
+	public void setRequestedHost(Socket socket, String host) {
+		requestedHosts.put(socket, host);
+	}
+
+	private static String getServerName(SSLSession handshakeSession) {
+		if (handshakeSession instanceof ExtendedSSLSession) {
+			for (SNIServerName name : ((ExtendedSSLSession) handshakeSession).getRequestedServerNames()) {
+				if (name instanceof SNIHostName)
+					return ((SNIHostName) name).getAsciiName();
+			}
+		}
+		return null;
+	}
+
+	private String chooseAlias(String keyType, String host) {
+		if (host == null || !authority.supportsKeyType(keyType))
+			return null;
+		MintedLeaf leaf = authority.getLeaf(host, keyType);
+		return leaf != null ? keyType + "/" + host.toLowerCase(Locale.ROOT) : null;
+	}
+
+	private MintedLeaf getMintedLeaf(String alias) {
+		int separator = alias.indexOf('/');
+		if (separator < 0)
+			return null;
+		String keyType = alias.substring(0, separator);
+		String host = alias.substring(separator + 1);
+		MintedLeaf leaf = authority.findLeaf(host, keyType);
+		return leaf != null ? leaf : authority.getLeaf(host, keyType);
+	}
+
+	@Override
+	public String chooseServerAlias(String keyType, Principal[] issuers, Socket socket) {
+		String host = null;
+		if (socket instanceof SSLSocket)
+			host = getServerName(((SSLSocket) socket).getHandshakeSession());
+		if (host == null)
+			host = requestedHosts.get(socket);
+		return chooseAlias(keyType, host);
+	}
+
+	@Override
+	public String chooseEngineServerAlias(String keyType, Principal[] issuers, SSLEngine engine) {
+		String host = getServerName(engine.getHandshakeSession());
+		if (host == null)
+			host = engine.getPeerHost();
+		return chooseAlias(keyType, host);
+	}
+
+	@Override
+	public X509Certificate[] getCertificateChain(String alias) {
+		MintedLeaf leaf = getMintedLeaf(alias);
+		return leaf != null ? leaf.getChain() : null;
+	}
+
+	@Override
+	public PrivateKey getPrivateKey(String alias) {
+		MintedLeaf leaf = getMintedLeaf(alias);
+		return leaf != null ? leaf.getKey() : null;
+	}
+
+	@Override
+	public String[] getServerAliases(String keyType, Principal[] issuers) {
+		return null;
+	}
+
+	@Override
+	public String[] getClientAliases(String keyType, Principal[] issuers) {
+		return null;
+	}
+
+	@Override
+	public String chooseClientAlias(String[] keyType, Principal[] issuers, Socket socket) {
+		return null;
+	}
+
+}
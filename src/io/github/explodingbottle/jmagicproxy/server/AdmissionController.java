@@ -0,0 +1,322 @@
+/*
+ *   JMagic Proxy - A HTTP and HTTPS Proxy
+ *   Copyright (C) 2023  ExplodingBottle
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.explodingbottle.jmagicproxy.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+
+import io.github.explodingbottle.jmagicproxy.ProxyMain;
+import io.github.explodingbottle.jmagicproxy.logging.LoggingLevel;
+import io.github.explodingbottle.jmagicproxy.logging.ProxyLogger;
+
+/**
+ * This Thread decides if an accepted connection can be handled now. It limits
+ * the count of connections being handled and the count of connections coming
+ * from the same client. The other connections wait in a bounded queue until a
+ * slot is free or until their deadline is reached, they then receive a
+ * {@code 503} response.
+ * 
+ * @author ExplodingBottle
+ *
+ */
+public class AdmissionController extends Thread {
+
+	private ProxyLogger logger;
+
+	private int maxConnections;
+	private int maxPerClient;
+	private int maxQueued;
+	private long queueTimeout;
+	private byte[] rejectResponse;
+
+	private int activeConnections;
+	private HashMap<InetAddress, Integer> perClient;
+	private ArrayDeque<PendingAdmission> queue;
+
+	private long admittedCount;
+	private long queuedCount;
+	private long rejectedCount;
+	private long expiredCount;
+
+	private boolean closed;
+
+	private static class PendingAdmission {
+		private Socket socket;
+		private Consumer<Socket> onAdmit;
+		private long deadline;
+
+		private PendingAdmission(Socket socket, Consumer<Socket> onAdmit, long deadline) {
+			this.socket = socket;
+			this.onAdmit = onAdmit;
+			this.deadline = deadline;
+		}
+	}
+
+	/**
+	 * Creates the admission controller.
+	 * 
+	 * @param maxConnections The maximum count of connections handled at the same
+	 *                       time, 0 means no limit.
+	 * @param maxPerClient   The maximum count of connections handled at the same
+	 *                       time for a single client address, 0 means no limit.
+	 * @param maxQueued      The maximum count of connections waiting for a slot.
+	 * @param queueTimeout   The time in milliseconds a connection can wait for a
+	 *                       slot.
+	 * @param retryAfter     The value of the Retry-After header sent with the
+	 *                       {@code 503} responses, in seconds.
+	 */
+	public AdmissionController(int maxConnections, int maxPerClient, int maxQueued, long queueTimeout,
+			int retryAfter) {
+		this.maxConnections = maxConnections;
+		this.maxPerClient = maxPerClient;
+		this.maxQueued = Math.max(0, maxQueued);
+		this.queueTimeout = Math.max(0, queueTimeout);
+		rejectResponse = ("HTTP/1.1 503 Service Unavailable\r\nRetry-After: " + Math.max(0, retryAfter)
+				+ "\r\nContent-Length: 0\r\nConnection: Close\r\n\r\n").getBytes();
+		perClient = new HashMap<InetAddress, Integer>();
+		queue = new ArrayDeque<PendingAdmission>();
+		logger = ProxyMain.getLoggerProvider().createLogger();
+		setDaemon(true);
+	}
+
+	private boolean canAdmit(InetAddress client) {
+		if (maxConnections > 0 && activeConnections >= maxConnections)
+			return false;
+		if (maxPerClient > 0) {
+			Integer count = perClient.get(client);
+			if (count != null && count >= maxPerClient)
+				return false;
+		}
+		return true;
+	}
+
+	private void markAdmitted(InetAddress client) {
+		activeConnections++;
+		if (maxPerClient > 0)
+			perClient.merge(client, 1, Integer::sum);
+		admittedCount++;
+	}
+
+	/**
+	 * Asks to handle an accepted connection. The callback is either ran now, ran
+	 * later by the thread releasing a slot, or never ran if the connection is
+	 * rejected.
+	 * 
+	 * @param socket  The accepted socket.
+	 * @param onAdmit The callback which will start handling the socket.
+	 */
+	public void admit(Socket socket, Consumer<Socket> onAdmit) {
+		InetAddress client = socket.getInetAddress();
+		boolean admitted = false;
+		synchronized (this) {
+			if (!closed && canAdmit(client)) {
+				markAdmitted(client);
+				admitted = true;
+			} else if (!closed && queue.size() < maxQueued && queueTimeout > 0) {
+				queue.add(new PendingAdmission(socket, onAdmit, System.currentTimeMillis() + queueTimeout));
+				queuedCount++;
+				notifyAll();
+				return;
+			} else {
+				rejectedCount++;
+			}
+		}
+		if (admitted) {
+			onAdmit.accept(socket);
+		} else {
+			reject(socket);
+		}
+	}
+
+	/**
+	 * Releases the slot of a connection which was handled. Waiting connections
+	 * may be admitted by the calling thread.
+	 * 
+	 * @param client The address of the client of the connection.
+	 */
+	public void release(InetAddress client) {
+		List<PendingAdmission> toAdmit = new ArrayList<PendingAdmission>();
+		synchronized (this) {
+			activeConnections--;
+			if (maxPerClient > 0) {
+				perClient.computeIfPresent(client, (address, count) -> {
+					return count > 1 ? count - 1 : null;
+				});
+			}
+			Iterator<PendingAdmission> it = queue.iterator();
+			while (it.hasNext() && (maxConnections <= 0 || activeConnections < maxConnections)) {
+				PendingAdmission pending = it.next();
+				InetAddress pendingClient = pending.socket.getInetAddress();
+				if (canAdmit(pendingClient)) {
+					it.remove();
+					markAdmitted(pendingClient);
+					toAdmit.add(pending);
+				}
+			}
+		}
+		toAdmit.forEach(pending -> {
+			pending.onAdmit.accept(pending.socket);
+		});
+	}
+
+	private void reject(Socket socket) {
+		try {
+			OutputStream output = socket.getOutputStream();
+			output.write(rejectResponse);
+			output.flush();
+			socket.shutdownOutput();
+			// Reading what the client already sent avoids a reset which could drop the
+			// response.
+			InputStream input = socket.getInputStream();
+			int available = input.available();
+			if (available > 0)
+				input.skip(available);
+		} catch (IOException e) {
+			logger.log(LoggingLevel.WARN, "Failed to send the rejection response.", e);
+		}
+		try {
+			socket.close();
+		} catch (IOException e) {
+			logger.log(LoggingLevel.WARN, "Failed to close a rejected socket.", e);
+		}
+	}
+
+	/**
+	 * Stops the controller and rejects every waiting connection.
+	 */
+	public void closeController() {
+		List<PendingAdmission> toReject;
+		synchronized (this) {
+			closed = true;
+			toReject = new ArrayList<PendingAdmission>(queue);
+			rejectedCount += queue.size();
+			queue.clear();
+			notifyAll();
+		}
+		toReject.forEach(pending -> {
+			reject(pending.socket);
+		});
+	}
+
+	/**
+	 * Returns the count of connections being handled.
+	 * 
+	 * @return The count of active connections.
+	 */
+	public synchronized int getActiveConnections() {
+		return activeConnections;
+	}
+
+	/**
+	 * Returns the count of connections waiting for a slot.
+	 * 
+	 * @return The count of queued connections.
+	 */
+	public synchronized int getQueuedConnections() {
+		return queue.size();
+	}
+
+	/**
+	 * Returns the count of connections which were admitted since the start.
+	 * 
+	 * @return The count of admitted connections.
+	 */
+	public synchronized long getAdmittedCount() {
+		return admittedCount;
+	}
+
+	/**
+	 * Returns the count of connections which had to wait in the queue since the
+	 * start.
+	 * 
+	 * @return The count of queued connections.
+	 */
+	public synchronized long getQueuedCount() {
+		return queuedCount;
+	}
+
+	/**
+	 * Returns the count of connections which received a {@code 503} since the
+	 * start, this includes the expired ones.
+	 * 
+	 * @return The count of rejected connections.
+	 */
+	public synchronized long getRejectedCount() {
+		return rejectedCount;
+	}
+
+	/**
+	 * Returns the count of connections which reached their deadline in the queue
+	 * since the start.
+	 * 
+	 * @return The count of expired connections.
+	 */
+	public synchronized long getExpiredCount() {
+		return expiredCount;
+	}
+
+	/**
+	 * Returns a summary of the counters.
+	 * 
+	 * @return The summary.
+	 */
+	public synchronized String getStatistics() {
+		return "Admission: " + activeConnections + " active, " + queue.size() + " waiting, " + admittedCount
+				+ " admitted, " + queuedCount + " queued, " + rejectedCount + " rejected (" + expiredCount
+				+ " expired).";
+	}
+
+	public void run() {
+		while (true) {
+			List<PendingAdmission> expired = new ArrayList<PendingAdmission>();
+			synchronized (this) {
+				if (closed)
+					return;
+				long now = System.currentTimeMillis();
+				while (!queue.isEmpty() && queue.peek().deadline <= now) {
+					expired.add(queue.poll());
+					expiredCount++;
+					rejectedCount++;
+				}
+				if (expired.isEmpty()) {
+					try {
+						if (queue.isEmpty())
+							wait();
+						else
+							wait(Math.max(1, queue.peek().deadline - now));
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+			expired.forEach(pending -> {
+				reject(pending.socket);
+			});
+		}
+	}
+
+}
@@ -0,0 +1,46 @@
+/*
+ *   JMagic Proxy - A HTTP and HTTPS Proxy
+ *   Copyright (C) 2023  ExplodingBottle
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.explodingbottle.jmagicproxy.server;
+
+import io.github.explodingbottle.jmagicproxy.proxy.SocketHandlerThread;
+
+/**
+ * This interface represents something that keeps track of the running
+ * {@code SocketHandlerThread}s, so they can unregister themselves when they
+ * die.
+ * 
+ * @author ExplodingBottle
+ *
+ */
+public interface HandlerRegistry {
+
+	/**
+	 * Adds a SocketHandlerThread to the registry.
+	 * 
+	 * @param sht The thread you want to register.
+	 */
+	public void addToList(SocketHandlerThread sht);
+
+	/**
+	 * Removes a SocketHandlerThread from the registry.
+	 * 
+	 * @param sht The thread you want to unregister.
+	 */
+	public void removeFromList(SocketHandlerThread sht);
+
+}
@@ -0,0 +1,153 @@
+/*
+ *   JMagic Proxy - A HTTP and HTTPS Proxy
+ *   Copyright (C) 2023  ExplodingBottle
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.explodingbottle.jmagicproxy.server;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+
+import io.github.explodingbottle.jmagicproxy.ProxyMain;
+import io.github.explodingbottle.jmagicproxy.logging.LoggingLevel;
+import io.github.explodingbottle.jmagicproxy.logging.ProxyLogger;
+
+/**
+ * This class opens the listening sockets of the proxy. When SO_REUSEPORT is
+ * enabled, every acceptor can open its own socket on the same port and the
+ * system spreads the new connections between them. It also allows another
+ * proxy to listen on the same port during a restart.
+ * 
+ * @author ExplodingBottle
+ *
+ */
+public class ListenSocketOpener {
+
+	private ProxyLogger logger;
+	private int port;
+	private int backlog;
+	private SocketOption<Boolean> reusePortOption;
+
+	/**
+	 * Creates the opener.
+	 * 
+	 * @param port      The port to listen to.
+	 * @param backlog   The length of the queue of pending connections, 0 means
+	 *                  the system default.
+	 * @param reusePort If SO_REUSEPORT must be enabled when supported.
+	 */
+	public ListenSocketOpener(int port, int backlog, boolean reusePort) {
+		this.port = port;
+		this.backlog = backlog;
+		logger = ProxyMain.getLoggerProvider().createLogger();
+		if (reusePort) {
+			reusePortOption = lookupReusePort();
+			if (reusePortOption == null) {
+				logger.log(LoggingLevel.WARN,
+						"SO_REUSEPORT is not supported here, acceptors will share a single server socket.");
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private SocketOption<Boolean> lookupReusePort() {
+		SocketOption<Boolean> option;
+		try {
+			// SO_REUSEPORT only exists since Java 9.
+			option = (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+		try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+			if (probe.supportedOptions().contains(option))
+				return option;
+		} catch (IOException e) {
+			logger.log(LoggingLevel.WARN, "Failed to check the support of SO_REUSEPORT.", e);
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the port to listen to.
+	 * 
+	 * @return The port.
+	 */
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * Returns if SO_REUSEPORT will be enabled on the opened sockets.
+	 * 
+	 * @return If SO_REUSEPORT is enabled.
+	 */
+	public boolean isReusePortEnabled() {
+		return reusePortOption != null;
+	}
+
+	/**
+	 * Opens a bound server socket.
+	 * 
+	 * @return The server socket.
+	 * @throws IOException If the socket couldn't be opened.
+	 */
+	public ServerSocket openServerSocket() throws IOException {
+		ServerSocket socket = new ServerSocket();
+		try {
+			if (reusePortOption != null) {
+				// ServerSocket.setOption only exists since Java 9.
+				Method setOption = ServerSocket.class.getMethod("setOption", SocketOption.class, Object.class);
+				setOption.invoke(socket, reusePortOption, true);
+			}
+			socket.bind(new InetSocketAddress(port), backlog);
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		} catch (InvocationTargetException e) {
+			socket.close();
+			throw new IOException("Failed to enable SO_REUSEPORT.", e.getCause());
+		} catch (ReflectiveOperationException e) {
+			socket.close();
+			throw new IOException("Failed to enable SO_REUSEPORT.", e);
+		}
+		return socket;
+	}
+
+	/**
+	 * Opens a bound server channel.
+	 * 
+	 * @return The server channel.
+	 * @throws IOException If the channel couldn't be opened.
+	 */
+	public ServerSocketChannel openServerChannel() throws IOException {
+		ServerSocketChannel channel = ServerSocketChannel.open();
+		try {
+			if (reusePortOption != null)
+				channel.setOption(reusePortOption, true);
+			channel.bind(new InetSocketAddress(port), backlog);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return channel;
+	}
+
+}
@@ -36,20 +36,23 @@ import io.github.explodingbottle.jmagicproxy.proxy.SocketHandlerThread;
  * @author ExplodingBottle
  *
  */
-public class SocketAcceptorThread extends Thread {
+public class SocketAcceptorThread extends Thread implements HandlerRegistry {
 
 	private ProxyLogger selfLogger;
-	private int listenPort;
+	private ListenSocketOpener opener;
 	private ServerSocket socket;
 	private List<SocketHandlerThread> threads;
 
 	/**
-	 * Instantiates the thread with a port to listen.
+	 * Instantiates the thread with the opener of its server socket.
 	 * 
-	 * @param listenPort The port the server socket must listen to.
+	 * @param opener       The opener of the server socket.
+	 * @param sharedSocket A server socket shared with other acceptors, or
+	 *                     {@code null} to open a new one with the opener.
 	 */
-	public SocketAcceptorThread(int listenPort) {
-		this.listenPort = listenPort;
+	public SocketAcceptorThread(ListenSocketOpener opener, ServerSocket sharedSocket) {
+		this.opener = opener;
+		socket = sharedSocket;
 		threads = Collections.synchronizedList(new ArrayList<SocketHandlerThread>());
 		selfLogger = ProxyMain.getLoggerProvider().createLogger();
 	}
@@ -91,25 +94,30 @@ public class SocketAcceptorThread extends Thread {
 	 * @param sht The thread you want to unregister.
 	 */
 	public synchronized void removeFromList(SocketHandlerThread sht) {
-		threads.remove(sht);
+		if (threads.remove(sht))
+			ProxyMain.getAdmissionController().release(sht.getClientAddress());
 	}
 
 	public void run() {
-		selfLogger.log(LoggingLevel.INFO, "Starting the Server socket for port " + listenPort);
-		try {
-			socket = new ServerSocket(listenPort);
-		} catch (IOException e) {
-			selfLogger.log(LoggingLevel.FATAL, "Failed to open the Server Socket, sending shutdown message.", e);
-			ProxyMain.getShutdownThread().start();
-			return;
+		if (socket == null) {
+			selfLogger.log(LoggingLevel.INFO, "Starting the Server socket for port " + opener.getPort());
+			try {
+				socket = opener.openServerSocket();
+			} catch (IOException e) {
+				selfLogger.log(LoggingLevel.FATAL, "Failed to open the Server Socket, sending shutdown message.", e);
+				ProxyMain.getShutdownThread().start();
+				return;
+			}
 		}
 		selfLogger.log(LoggingLevel.INFO, "Server socket is listening.");
 		while (!interrupted()) {
 			try {
 				Socket accepted = socket.accept();
-				SocketHandlerThread handler = new SocketHandlerThread(accepted, this);
-				addToList(handler);
-				handler.start();
+				ProxyMain.getAdmissionController().admit(accepted, admitted -> {
+					SocketHandlerThread handler = new SocketHandlerThread(admitted, this);
+					addToList(handler);
+					handler.start();
+				});
 			} catch (IOException e) {
 				if (!isInterrupted())
 					selfLogger.log(LoggingLevel.WARN, "Failed to accept socket.", e);
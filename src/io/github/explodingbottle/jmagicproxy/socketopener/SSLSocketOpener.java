@@ -18,34 +18,68 @@
 package io.github.explodingbottle.jmagicproxy.socketopener;
 
 import java.io.IOException;
-import java.net.InetAddress;
 import java.net.Socket;
+import java.util.Collections;
+import java.util.regex.Pattern;
 
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 
 /**
  * 
- * This opener will create a SSL socket.
+ * This opener will create a SSL socket. The SSL layer is created with the name
+ * of the host, so it is sent through SNI and the sessions of this host can be
+ * resumed.
  * 
  * @author ExplodingBottle
  * 
  */
 public class SSLSocketOpener implements SocketOpener {
 
+	private static final Pattern IPV4_LITERAL = Pattern.compile("\\d{1,3}(\\.\\d{1,3}){3}");
+
 	private SSLSocketFactory socketFactory;
+	private String hostName;
+	private int port;
 
 	/**
 	 * This constructor will prepare the opener using a SSL Socket Factory.
 	 * 
 	 * @param socketFactory Represents the SSL Socket Factory that will be used.
+	 * @param hostName      Represents the name of the host the sockets connect
+	 *                      to.
+	 * @param port          Represents the port the sockets connect to.
 	 */
-	public SSLSocketOpener(SSLSocketFactory socketFactory) {
+	public SSLSocketOpener(SSLSocketFactory socketFactory, String hostName, int port) {
 		this.socketFactory = socketFactory;
+		this.hostName = hostName;
+		this.port = port;
+	}
+
+	@Override
+	public Socket unconnectedSocket() throws IOException {
+		return new Socket();
 	}
 
 	@Override
-	public Socket openedSocket(InetAddress host, int port) throws IOException {
-		return socketFactory.createSocket(host, port);
+	public Socket connectedSocket(Socket connected) throws IOException {
+		SSLSocket layered = (SSLSocket) socketFactory.createSocket(connected, hostName, port, true);
+		// The name is only sent by default when it contains a dot, and IPs are
+		// never sent.
+		if (IPV4_LITERAL.matcher(hostName).matches() || hostName.indexOf(':') >= 0)
+			return layered;
+		try {
+			SSLParameters parameters = layered.getSSLParameters();
+			if (parameters.getServerNames() == null || parameters.getServerNames().isEmpty()) {
+				parameters.setServerNames(Collections.singletonList(new SNIHostName(hostName)));
+				layered.setSSLParameters(parameters);
+			}
+		} catch (IllegalArgumentException e) {
+			// Not a valid host name.
+		}
+		return layered;
 	}
 
 }
@@ -18,7 +18,6 @@
 package io.github.explodingbottle.jmagicproxy.socketopener;
 
 import java.io.IOException;
-import java.net.InetAddress;
 import java.net.Socket;
 
 /**
@@ -30,13 +29,22 @@ import java.net.Socket;
 public interface SocketOpener {
 
 	/**
-	 * Opens a socket using parameters.
+	 * Creates a socket which isn't connected yet, so the connection can be given
+	 * a timeout and be cancelled.
 	 * 
-	 * @param host The host to connect to.
-	 * @param port The port to connect to.
-	 * @return The opened socket.
-	 * @throws IOException If there was any issues while opening the socket.
+	 * @return The socket to connect.
+	 * @throws IOException If the socket couldn't be created.
 	 */
-	public Socket openedSocket(InetAddress host, int port) throws IOException;
+	public Socket unconnectedSocket() throws IOException;
+
+	/**
+	 * Finishes a socket once it is connected, for example by putting a layer over
+	 * it.
+	 * 
+	 * @param connected The connected socket given by {@code unconnectedSocket}.
+	 * @return The socket to use.
+	 * @throws IOException If the socket couldn't be finished.
+	 */
+	public Socket connectedSocket(Socket connected) throws IOException;
 
 }
@@ -19,6 +19,10 @@ package io.github.explodingbottle.jmagicproxy.socketopener;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import io.github.explodingbottle.jmagicproxy.threading.ProxyThread;
 
 /**
  * 
@@ -27,25 +31,72 @@ import java.net.InetAddress;
  * @author ExplodingBottle
  *
  */
-class SocketOpeningThread extends Thread {
+class SocketOpeningThread extends ProxyThread {
 
 	private InetAddress inetAddress;
 	private int port;
+	private int connectTimeout;
 	private SocketOpeningTool parent;
 	private SocketOpener opener;
 
-	SocketOpeningThread(InetAddress inetAddress, int port, SocketOpeningTool parent, SocketOpener opener) {
+	private volatile Socket socket;
+	private volatile boolean cancelled;
+
+	SocketOpeningThread(InetAddress inetAddress, int port, int connectTimeout, SocketOpeningTool parent,
+			SocketOpener opener) {
 		this.inetAddress = inetAddress;
 		this.port = port;
+		this.connectTimeout = connectTimeout;
 		this.parent = parent;
 		this.opener = opener;
 	}
 
+	/**
+	 * Returns the address this thread tries to connect to.
+	 * 
+	 * @return The address.
+	 */
+	InetAddress getAddress() {
+		return inetAddress;
+	}
+
+	/**
+	 * Stops the attempt, the socket is closed even if it is still connecting.
+	 */
+	void cancel() {
+		cancelled = true;
+		closeSocket(socket);
+	}
+
+	private void closeSocket(Socket toClose) {
+		if (toClose != null) {
+			try {
+				toClose.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
 	@Override
 	public void run() {
+		Socket opened = null;
 		try {
-			parent.receiveSocket(opener.openedSocket(inetAddress, port), this);
+			opened = opener.unconnectedSocket();
+			socket = opened;
+			if (cancelled) {
+				closeSocket(opened);
+				return;
+			}
+			opened.connect(new InetSocketAddress(inetAddress, port), connectTimeout);
+			opened = opener.connectedSocket(opened);
+			socket = opened;
+			if (cancelled) {
+				closeSocket(opened);
+				return;
+			}
+			parent.receiveSocket(opened, this);
 		} catch (IOException e) {
+			closeSocket(opened);
 			parent.receiveSocket(null, this);
 		}
 	}
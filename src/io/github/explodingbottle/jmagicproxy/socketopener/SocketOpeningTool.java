@@ -18,23 +18,35 @@
 package io.github.explodingbottle.jmagicproxy.socketopener;
 
 import java.io.IOException;
+import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.function.BiConsumer;
 
 import io.github.explodingbottle.jmagicproxy.ProxyMain;
 import io.github.explodingbottle.jmagicproxy.logging.LoggingLevel;
 import io.github.explodingbottle.jmagicproxy.logging.ProxyLogger;
+import io.github.explodingbottle.jmagicproxy.properties.PropertyKey;
+import io.github.explodingbottle.jmagicproxy.threading.ProxyThread;
 
 /**
  * This class will create a socket by resolving the IP. It is now here because
  * it appeared that some issues were occurring with
  * {@code InetAddress.getByName}.
  * 
+ * The addresses come from the DNS cache of the proxy.
+ * 
+ * The addresses are tried like described in RFC 8305 (Happy Eyeballs): the
+ * address families are alternated, and a new attempt is started when the
+ * previous ones didn't succeed after the attempt delay or have failed. The
+ * first connected socket wins, the other attempts are cancelled.
+ * 
  * @author ExplodingBottle
  *
  */
@@ -44,13 +56,35 @@ public class SocketOpeningTool {
 	private int port;
 	private SocketOpener opener;
 
-	private boolean hasBeenFound = false;
 	private BiConsumer<Socket, Boolean> callback;
 
-	private List<SocketOpeningThread> threads;
+	private InetAddress[] addresses;
+	private int nextAddress;
+	private List<SocketOpeningThread> attempts;
+	private LinkedBlockingQueue<AttemptResult> results;
+
+	private int attemptDelay;
+	private int connectTimeout;
 
 	private ProxyLogger logger;
 
+	private static class AttemptResult {
+		private Socket socket;
+		private SocketOpeningThread thread;
+
+		private AttemptResult(Socket socket, SocketOpeningThread thread) {
+			this.socket = socket;
+			this.thread = thread;
+		}
+	}
+
+	private class RacingThread extends ProxyThread {
+		@Override
+		public void run() {
+			race();
+		}
+	}
+
 	/**
 	 * Builds an opening tool using the parameters.
 	 * 
@@ -67,7 +101,43 @@ public class SocketOpeningTool {
 		this.opener = opener;
 		this.callback = callback;
 		this.logger = ProxyMain.getLoggerProvider().createLogger();
-		this.threads = Collections.synchronizedList(new ArrayList<SocketOpeningThread>());
+		attempts = new ArrayList<SocketOpeningThread>();
+		results = new LinkedBlockingQueue<AttemptResult>();
+		attemptDelay = Math.max(1,
+				ProxyMain.getPropertiesProvider().getAsInteger(PropertyKey.PROXY_CONNECT_ATTEMPT_DELAY));
+		connectTimeout = Math.max(0,
+				ProxyMain.getPropertiesProvider().getAsInteger(PropertyKey.PROXY_CONNECT_TIMEOUT));
+	}
+
+	/**
+	 * Orders the addresses by alternating their families, starting with the
+	 * family of the first address.
+	 * 
+	 * @param resolved The addresses in the order given by the resolver.
+	 * @return The addresses in the order they must be tried.
+	 */
+	static InetAddress[] interleaveFamilies(InetAddress[] resolved) {
+		if (resolved.length < 2)
+			return resolved;
+		boolean firstIsV6 = resolved[0] instanceof Inet6Address;
+		ArrayDeque<InetAddress> preferred = new ArrayDeque<InetAddress>();
+		ArrayDeque<InetAddress> other = new ArrayDeque<InetAddress>();
+		for (InetAddress address : resolved) {
+			if ((address instanceof Inet6Address) == firstIsV6) {
+				preferred.add(address);
+			} else {
+				other.add(address);
+			}
+		}
+		InetAddress[] ordered = new InetAddress[resolved.length];
+		int i = 0;
+		while (!preferred.isEmpty() || !other.isEmpty()) {
+			if (!preferred.isEmpty())
+				ordered[i++] = preferred.poll();
+			if (!other.isEmpty())
+				ordered[i++] = other.poll();
+		}
+		return ordered;
 	}
 
 	/**
@@ -77,46 +147,71 @@ public class SocketOpeningTool {
 	public void run() {
 		InetAddress[] resolvedAddresses;
 		try {
-			resolvedAddresses = InetAddress.getAllByName(host);
+			resolvedAddresses = ProxyMain.getDnsCache().resolve(host);
 		} catch (UnknownHostException e) {
 			logger.log(LoggingLevel.WARN, "Failed to get IPs of an unknown host.", e);
 			callback.accept(null, true);
 			return;
 		}
-		for (InetAddress address : resolvedAddresses) {
-			SocketOpeningThread thread = new SocketOpeningThread(address, port, this, opener);
-			threads.add(thread);
-			thread.start();
+		addresses = interleaveFamilies(resolvedAddresses);
+		new RacingThread().start();
+	}
+
+	private void startNextAttempt() {
+		SocketOpeningThread thread = new SocketOpeningThread(addresses[nextAddress++], port, connectTimeout, this,
+				opener);
+		attempts.add(thread);
+		thread.start();
+	}
+
+	private void race() {
+		startNextAttempt();
+		while (!attempts.isEmpty()) {
+			AttemptResult result;
+			try {
+				if (nextAddress < addresses.length) {
+					result = results.poll(attemptDelay, TimeUnit.MILLISECONDS);
+				} else {
+					result = results.take();
+				}
+			} catch (InterruptedException e) {
+				break;
+			}
+			if (result == null) {
+				// The running attempts are too slow, another one joins them.
+				startNextAttempt();
+				continue;
+			}
+			attempts.remove(result.thread);
+			if (result.socket != null) {
+				for (SocketOpeningThread loser : attempts) {
+					loser.cancel();
+				}
+				attempts.clear();
+				logger.log(LoggingLevel.INFO, "We found a socket for connection " + host + ":" + port + " for IP "
+						+ result.socket.getInetAddress() + ".");
+				callback.accept(result.socket, false);
+				return;
+			}
+			if (nextAddress < addresses.length)
+				startNextAttempt();
+		}
+		for (SocketOpeningThread attempt : attempts) {
+			attempt.cancel();
 		}
+		logger.log(LoggingLevel.WARN, "We found NO socket for connection " + host + ":" + port + ".");
+		callback.accept(null, false);
 	}
 
 	/**
 	 * This function will be called by a started check thread in order to send the
-	 * first opened socket.
+	 * result of its attempt.
 	 * 
-	 * @param received The socket that has been the first opened.
+	 * @param received The opened socket, or {@code null} if the attempt failed.
 	 * @param thread   The thread from which comes the request.
 	 */
 	void receiveSocket(Socket received, SocketOpeningThread thread) {
-		threads.remove(thread);
-		if (received != null) {
-			if (!hasBeenFound) {
-				hasBeenFound = true;
-				logger.log(LoggingLevel.INFO, "We found a socket for connection " + host + ":" + port + " for IP "
-						+ received.getInetAddress() + ".");
-				callback.accept(received, false);
-			} else {
-				try {
-					received.close();
-				} catch (IOException e) {
-					logger.log(LoggingLevel.WARN, "Failed to close a connection.", e);
-				}
-			}
-		}
-		if (!hasBeenFound && threads.size() == 0) {
-			logger.log(LoggingLevel.WARN, "We found NO socket for connection " + host + ":" + port + ".");
-			callback.accept(null, false);
-		}
+		results.add(new AttemptResult(received, thread));
 	}
 
 }
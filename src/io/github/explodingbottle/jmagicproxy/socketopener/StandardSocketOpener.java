@@ -18,7 +18,6 @@
 package io.github.explodingbottle.jmagicproxy.socketopener;
 
 import java.io.IOException;
-import java.net.InetAddress;
 import java.net.Socket;
 
 /**
@@ -31,8 +30,13 @@ import java.net.Socket;
 public class StandardSocketOpener implements SocketOpener {
 
 	@Override
-	public Socket openedSocket(InetAddress host, int port) throws IOException {
-		return new Socket(host, port);
+	public Socket unconnectedSocket() throws IOException {
+		return new Socket();
+	}
+
+	@Override
+	public Socket connectedSocket(Socket connected) throws IOException {
+		return connected;
 	}
 
 }
@@ -0,0 +1,102 @@
+/*
+ *   JMagic Proxy - A HTTP and HTTPS Proxy
+ *   Copyright (C) 2023  ExplodingBottle
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.explodingbottle.jmagicproxy.threading;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+import io.github.explodingbottle.jmagicproxy.ProxyMain;
+import io.github.explodingbottle.jmagicproxy.logging.LoggerProvider;
+import io.github.explodingbottle.jmagicproxy.logging.LoggingLevel;
+import io.github.explodingbottle.jmagicproxy.logging.ProxyLogger;
+import io.github.explodingbottle.jmagicproxy.proxy.ConnectionDirectiveHandler;
+import io.github.explodingbottle.jmagicproxy.proxy.SimpleInputOutputPipeThread;
+import io.github.explodingbottle.jmagicproxy.proxy.SocketHandlerThread;
+import io.github.explodingbottle.jmagicproxy.proxy.ssl.SSLCommunicationServer;
+import io.github.explodingbottle.jmagicproxy.proxy.ssl.SSLComunicator;
+import io.github.explodingbottle.jmagicproxy.proxy.ssl.SSLDirectiveHandler;
+import io.github.explodingbottle.jmagicproxy.proxy.ssl.SSLInputOutputPipeThread;
+import io.github.explodingbottle.jmagicproxy.socketopener.SocketOpeningTool;
+
+/**
+ * This class looks for synchronized methods on the classes used while a
+ * connection is being handled. Until Java 24, a virtual thread which blocks
+ * inside a synchronized method stays pinned to its carrier thread, so these
+ * methods are reported when the virtual threads are used.
+ * 
+ * @author ExplodingBottle
+ *
+ */
+public class PinningCheck {
+
+	private static final Class<?>[] CHECKED_CLASSES = new Class<?>[] { SocketHandlerThread.class,
+			ConnectionDirectiveHandler.class, SimpleInputOutputPipeThread.class, SSLComunicator.class,
+			SSLCommunicationServer.class, SSLDirectiveHandler.class, SSLInputOutputPipeThread.class,
+			SocketOpeningTool.class, LoggerProvider.class };
+
+	private ProxyLogger logger;
+
+	/**
+	 * Builds the pinning check.
+	 */
+	public PinningCheck() {
+		logger = ProxyMain.getLoggerProvider().createLogger();
+	}
+
+	private int getJavaVersion() {
+		String version = System.getProperty("java.specification.version", "1.8");
+		if (version.startsWith("1.")) {
+			version = version.substring(2);
+		}
+		try {
+			return Integer.parseInt(version);
+		} catch (NumberFormatException e) {
+			return 8;
+		}
+	}
+
+	/**
+	 * Runs the check and logs every method which may pin a carrier thread.
+	 * 
+	 * @return The count of methods which may pin a carrier thread.
+	 */
+	public int runCheck() {
+		if (getJavaVersion() >= 24) {
+			logger.log(LoggingLevel.INFO, "Synchronized methods do not pin virtual threads on this Java version.");
+			return 0;
+		}
+		int found = 0;
+		for (Class<?> checked : CHECKED_CLASSES) {
+			for (Method method : checked.getDeclaredMethods()) {
+				if (Modifier.isSynchronized(method.getModifiers())) {
+					logger.log(LoggingLevel.WARN, checked.getSimpleName() + "." + method.getName()
+							+ " is synchronized and may pin a carrier thread if it blocks.");
+					found++;
+				}
+			}
+		}
+		if (found > 0) {
+			logger.log(LoggingLevel.WARN, found
+					+ " method(s) may pin carrier threads, use -Djdk.tracePinnedThreads=short to see when it happens.");
+		} else {
+			logger.log(LoggingLevel.INFO, "No method which may pin a carrier thread has been found.");
+		}
+		return found;
+	}
+
+}
@@ -0,0 +1,107 @@
+/*
+ *   JMagic Proxy - A HTTP and HTTPS Proxy
+ *   Copyright (C) 2023  ExplodingBottle
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.explodingbottle.jmagicproxy.threading;
+
+import io.github.explodingbottle.jmagicproxy.ProxyMain;
+
+/**
+ * This class replaces {@code Thread} for every class handling a connection. It
+ * keeps the same {@code start}, {@code interrupt} and {@code isInterrupted}
+ * methods, but the real thread comes from the {@code ThreadProvider}, so it can
+ * be a virtual thread.
+ * 
+ * Please note that interrupting a virtual thread which is blocked on a socket
+ * closes this socket.
+ * 
+ * @author ExplodingBottle
+ *
+ */
+public abstract class ProxyThread implements Runnable {
+
+	private volatile Thread runner;
+	private volatile boolean interruptRequested;
+
+	/**
+	 * Starts the thread using the thread provider.
+	 */
+	public synchronized void start() {
+		if (runner != null) {
+			throw new IllegalThreadStateException("This thread has already been started.");
+		}
+		ThreadProvider provider = ProxyMain.getThreadProvider();
+		if (provider != null) {
+			runner = provider.newThread(this);
+		} else {
+			runner = new Thread(this);
+		}
+		runner.start();
+	}
+
+	/**
+	 * Interrupts the thread running this task.
+	 */
+	public void interrupt() {
+		interruptRequested = true;
+		Thread backup = runner;
+		if (backup != null)
+			backup.interrupt();
+	}
+
+	/**
+	 * Returns if this thread has been interrupted.
+	 * 
+	 * @return If the thread has been interrupted.
+	 */
+	public boolean isInterrupted() {
+		Thread backup = runner;
+		return interruptRequested || (backup != null && backup.isInterrupted());
+	}
+
+	/**
+	 * Returns if the thread running this task has been started and hasn't ended.
+	 * 
+	 * @return If the thread is alive.
+	 */
+	public boolean isAlive() {
+		Thread backup = runner;
+		return backup != null && backup.isAlive();
+	}
+
+	/**
+	 * Waits for the thread running this task to end.
+	 * 
+	 * @param millis The maximum time to wait in milliseconds.
+	 * @throws InterruptedException If the current thread has been interrupted.
+	 */
+	public void join(long millis) throws InterruptedException {
+		Thread backup = runner;
+		if (backup != null)
+			backup.join(millis);
+	}
+
+	/**
+	 * Same as {@code Thread.interrupted()}, kept so subclasses can use it the same
+	 * way they did when they were extending {@code Thread}.
+	 * 
+	 * @return If the current thread has been interrupted.
+	 */
+	protected static boolean interrupted() {
+		return Thread.interrupted();
+	}
+
+}
@@ -0,0 +1,88 @@
+/*
+ *   JMagic Proxy - A HTTP and HTTPS Proxy
+ *   Copyright (C) 2023  ExplodingBottle
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.explodingbottle.jmagicproxy.threading;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+import io.github.explodingbottle.jmagicproxy.ProxyMain;
+import io.github.explodingbottle.jmagicproxy.logging.LoggingLevel;
+import io.github.explodingbottle.jmagicproxy.logging.ProxyLogger;
+
+/**
+ * This class provides the threads which will run every {@code ProxyThread}.
+ * Virtual threads are obtained by reflection so the proxy still runs on older
+ * Java versions.
+ * 
+ * @author ExplodingBottle
+ *
+ */
+public class ThreadProvider {
+
+	private ThreadingMode mode;
+	private ThreadFactory factory;
+	private ProxyLogger logger;
+
+	/**
+	 * Builds the provider using the requested mode. If virtual threads are
+	 * requested but not supported, platform threads will be used instead.
+	 * 
+	 * @param requestedMode The requested threading mode.
+	 */
+	public ThreadProvider(ThreadingMode requestedMode) {
+		logger = ProxyMain.getLoggerProvider().createLogger();
+		mode = ThreadingMode.PLATFORM;
+		if (requestedMode == ThreadingMode.VIRTUAL) {
+			try {
+				Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+				Method factoryMethod = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+				factory = (ThreadFactory) factoryMethod.invoke(builder);
+				mode = ThreadingMode.VIRTUAL;
+			} catch (ReflectiveOperationException e) {
+				logger.log(LoggingLevel.WARN,
+						"Virtual threads are not supported by this Java version (21 or later is required), platform threads will be used.");
+			}
+		}
+		if (factory == null) {
+			factory = task -> {
+				return new Thread(task);
+			};
+		}
+		logger.log(LoggingLevel.INFO, "Connections will be handled by " + mode + " threads.");
+	}
+
+	/**
+	 * Returns the mode which is really used.
+	 * 
+	 * @return The threading mode.
+	 */
+	public ThreadingMode getMode() {
+		return mode;
+	}
+
+	/**
+	 * Creates a thread which is not started yet.
+	 * 
+	 * @param task The task the thread will run.
+	 * @return The unstarted thread.
+	 */
+	public Thread newThread(Runnable task) {
+		return factory.newThread(task);
+	}
+
+}
@@ -0,0 +1,147 @@
+/*
+ *   JMagic Proxy - A HTTP and HTTPS Proxy
+ *   Copyright (C) 2023  ExplodingBottle
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.explodingbottle.jmagicproxy.timeout;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * This class is the timeout of one activity of a connection. It is armed with
+ * a timeout type and calls its callback if it isn't disarmed or armed again
+ * before the deadline.
+ * 
+ * Arming again with a later deadline only changes a field, the wheel notices
+ * it when the guard comes out of its slot. That way, pushing the deadline on
+ * every read stays cheap.
+ * 
+ * @author ExplodingBottle
+ *
+ */
+public class TimeoutGuard {
+
+	private TimeoutWheel wheel;
+	private Consumer<TimeoutType> onExpire;
+
+	private AtomicLong deadline;
+	private volatile TimeoutType type;
+	private AtomicLong scheduledAt;
+
+	/**
+	 * Creates a guard, it must then be armed.
+	 * 
+	 * @param wheel    The wheel which will check the guard.
+	 * @param onExpire What must be done when the guard expires, it receives the
+	 *                 type of the expired timeout.
+	 */
+	TimeoutGuard(TimeoutWheel wheel, Consumer<TimeoutType> onExpire) {
+		this.wheel = wheel;
+		this.onExpire = onExpire;
+		deadline = new AtomicLong();
+		scheduledAt = new AtomicLong();
+	}
+
+	/**
+	 * Arms the guard, the deadline starts now. A disabled timeout type disarms
+	 * the guard.
+	 * 
+	 * @param type The timeout type.
+	 */
+	public void arm(TimeoutType type) {
+		long delay = wheel.getDelay(type);
+		if (delay <= 0) {
+			disarm();
+			return;
+		}
+		long newDeadline = wheel.now() + delay;
+		this.type = type;
+		deadline.set(newDeadline);
+		while (true) {
+			long current = scheduledAt.get();
+			if (current != 0 && current <= newDeadline)
+				return;
+			if (scheduledAt.compareAndSet(current, newDeadline)) {
+				wheel.schedule(this, newDeadline);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Pushes the deadline if the guard is armed with the given type.
+	 * 
+	 * @param type The timeout type to refresh.
+	 */
+	public void refresh(TimeoutType type) {
+		if (this.type == type && deadline.get() != 0)
+			arm(type);
+	}
+
+	/**
+	 * Disarms the guard.
+	 */
+	public void disarm() {
+		deadline.set(0);
+	}
+
+	/**
+	 * Returns the type the guard is armed with.
+	 * 
+	 * @return The timeout type, or {@code null} if the guard is disarmed.
+	 */
+	public TimeoutType getType() {
+		return deadline.get() != 0 ? type : null;
+	}
+
+	/**
+	 * Called by the wheel when the slot where the guard was placed is reached.
+	 * 
+	 * @param slotDeadline The deadline the guard was placed for.
+	 * @param now          The time of the wheel.
+	 * @return The expired type, or {@code null} if nothing has expired.
+	 */
+	TimeoutType check(long slotDeadline, long now) {
+		if (scheduledAt.get() != slotDeadline)
+			return null; // A sooner placement replaced this one.
+		long current = deadline.get();
+		TimeoutType currentType = type;
+		if (current > now) {
+			if (scheduledAt.compareAndSet(slotDeadline, current))
+				wheel.schedule(this, current);
+			return null;
+		}
+		if (!scheduledAt.compareAndSet(slotDeadline, 0))
+			return null;
+		if (current != 0 && currentType != null && deadline.compareAndSet(current, 0))
+			return currentType;
+		// Armed again meanwhile, it must be placed again.
+		long rearmed = deadline.get();
+		if (rearmed != 0 && scheduledAt.compareAndSet(0, rearmed))
+			wheel.schedule(this, rearmed);
+		return null;
+	}
+
+	/**
+	 * Runs the callback of the guard.
+	 * 
+	 * @param expired The expired type.
+	 */
+	void expire(TimeoutType expired) {
+		onExpire.accept(expired);
+	}
+
+}
@@ -0,0 +1,72 @@
+/*
+ *   JMagic Proxy - A HTTP and HTTPS Proxy
+ *   Copyright (C) 2023  ExplodingBottle
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.explodingbottle.jmagicproxy.timeout;
+
+import io.github.explodingbottle.jmagicproxy.properties.PropertyKey;
+
+/**
+ * This enumeration lists the timeouts a connection can be closed for.
+ * 
+ * @author ExplodingBottle
+ *
+ */
+public enum TimeoutType {
+	/**
+	 * The client took too long to send a complete request header.
+	 */
+	HEADER_READ(PropertyKey.PROXY_TIMEOUT_HEADER_READ, "header read"),
+	/**
+	 * Nothing has been transferred for too long between two requests or during
+	 * a transfer.
+	 */
+	IDLE_KEEPALIVE(PropertyKey.PROXY_TIMEOUT_IDLE, "idle"),
+	/**
+	 * The server took too long to send the first byte of its response.
+	 */
+	UPSTREAM_FIRST_BYTE(PropertyKey.PROXY_TIMEOUT_FIRST_BYTE, "upstream first byte"),
+	/**
+	 * A write stayed blocked for too long because the other side doesn't read.
+	 */
+	WRITE_STALL(PropertyKey.PROXY_TIMEOUT_WRITE_STALL, "write stall");
+
+	private PropertyKey propertyKey;
+	private String description;
+
+	private TimeoutType(PropertyKey propertyKey, String description) {
+		this.propertyKey = propertyKey;
+		this.description = description;
+	}
+
+	/**
+	 * Returns the key of the property containing the delay of this timeout.
+	 * 
+	 * @return The property key.
+	 */
+	public PropertyKey getPropertyKey() {
+		return propertyKey;
+	}
+
+	/**
+	 * Returns a readable name of this timeout.
+	 * 
+	 * @return The description.
+	 */
+	public String getDescription() {
+		return description;
+	}
+}
@@ -0,0 +1,221 @@
+/*
+ *   JMagic Proxy - A HTTP and HTTPS Proxy
+ *   Copyright (C) 2023  ExplodingBottle
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.github.explodingbottle.jmagicproxy.timeout;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import io.github.explodingbottle.jmagicproxy.ProxyMain;
+import io.github.explodingbottle.jmagicproxy.logging.LoggingLevel;
+import io.github.explodingbottle.jmagicproxy.logging.ProxyLogger;
+
+/**
+ * This Thread checks the timeouts of every connection. The guards are placed
+ * in the slot of a hashed wheel matching their deadline, and each tick only
+ * looks at one slot. Deadlines further than a turn of the wheel stay in their
+ * slot until the right turn.
+ * 
+ * The expired guards get their callback called from a small pool of threads,
+ * because closing a connection can block.
+ * 
+ * @author ExplodingBottle
+ *
+ */
+public class TimeoutWheel extends Thread {
+
+	private static final long TICK_MILLIS = 100;
+	private static final int SLOTS = 512;
+	private static final int EXPIRE_THREADS = 4;
+
+	private ProxyLogger logger;
+
+	private ConcurrentLinkedQueue<Placement>[] slots;
+	private long[] delays;
+	private AtomicLong[] reclaimed;
+	private ExecutorService expirePool;
+
+	private long origin;
+	private volatile long now;
+	private volatile long currentTick;
+
+	private volatile boolean closed;
+
+	private static class Placement {
+		private TimeoutGuard guard;
+		private long deadline;
+
+		private Placement(TimeoutGuard guard, long deadline) {
+			this.guard = guard;
+			this.deadline = deadline;
+		}
+	}
+
+	/**
+	 * Creates the wheel, the delays are read from the configuration.
+	 */
+	@SuppressWarnings("unchecked")
+	public TimeoutWheel() {
+		logger = ProxyMain.getLoggerProvider().createLogger();
+		slots = (ConcurrentLinkedQueue<Placement>[]) new ConcurrentLinkedQueue<?>[SLOTS];
+		for (int i = 0; i < SLOTS; i++) {
+			slots[i] = new ConcurrentLinkedQueue<Placement>();
+		}
+		TimeoutType[] types = TimeoutType.values();
+		delays = new long[types.length];
+		reclaimed = new AtomicLong[types.length];
+		for (TimeoutType type : types) {
+			delays[type.ordinal()] = ProxyMain.getPropertiesProvider().getAsInteger(type.getPropertyKey());
+			reclaimed[type.ordinal()] = new AtomicLong();
+		}
+		expirePool = Executors.newFixedThreadPool(EXPIRE_THREADS, runnable -> {
+			Thread expireThread = new Thread(runnable);
+			expireThread.setDaemon(true);
+			return expireThread;
+		});
+		origin = System.nanoTime();
+		setDaemon(true);
+	}
+
+	/**
+	 * Creates a guard checked by this wheel.
+	 * 
+	 * @param onExpire What must be done when the guard expires.
+	 * @return The guard, not armed yet.
+	 */
+	public TimeoutGuard newGuard(Consumer<TimeoutType> onExpire) {
+		return new TimeoutGuard(this, onExpire);
+	}
+
+	/**
+	 * Returns the time of the wheel, it only moves once per tick.
+	 * 
+	 * @return The time in milliseconds.
+	 */
+	long now() {
+		return now;
+	}
+
+	/**
+	 * Returns the delay of a timeout type.
+	 * 
+	 * @param type The timeout type.
+	 * @return The delay in milliseconds, 0 or less if it is disabled.
+	 */
+	long getDelay(TimeoutType type) {
+		return delays[type.ordinal()];
+	}
+
+	/**
+	 * Places a guard in the slot of its deadline.
+	 * 
+	 * @param guard    The guard.
+	 * @param deadline The deadline in the time of the wheel.
+	 */
+	void schedule(TimeoutGuard guard, long deadline) {
+		// The slot being checked is never chosen, the guard would be checked again
+		// right away.
+		long tick = Math.max(deadline / TICK_MILLIS, currentTick + 1);
+		slots[(int) (tick % SLOTS)].add(new Placement(guard, deadline));
+	}
+
+	/**
+	 * Returns the count of connections closed for a timeout type.
+	 * 
+	 * @param type The timeout type.
+	 * @return The count of closed connections.
+	 */
+	public long getReclaimed(TimeoutType type) {
+		return reclaimed[type.ordinal()].get();
+	}
+
+	/**
+	 * Stops the wheel, the remaining guards will never expire.
+	 */
+	public void closeWheel() {
+		closed = true;
+		interrupt();
+		expirePool.shutdownNow();
+	}
+
+	/**
+	 * Returns the counters of the wheel as a printable line.
+	 * 
+	 * @return The statistics of the wheel.
+	 */
+	public String getStatistics() {
+		StringBuilder statistics = new StringBuilder("Connections closed by timeouts:");
+		for (TimeoutType type : TimeoutType.values()) {
+			statistics.append(" " + getReclaimed(type) + " for " + type.getDescription() + ",");
+		}
+		statistics.setLength(statistics.length() - 1);
+		return statistics.append(".").toString();
+	}
+
+	private void runTick(long tick) {
+		currentTick = tick;
+		ConcurrentLinkedQueue<Placement> slot = slots[(int) (tick % SLOTS)];
+		ArrayList<Placement> placements = new ArrayList<Placement>();
+		Placement placement;
+		while ((placement = slot.poll()) != null) {
+			placements.add(placement);
+		}
+		for (Placement toCheck : placements) {
+			if (toCheck.deadline / TICK_MILLIS > tick) {
+				slot.add(toCheck); // Not this turn of the wheel.
+				continue;
+			}
+			TimeoutType expired = toCheck.guard.check(toCheck.deadline, now);
+			if (expired != null) {
+				reclaimed[expired.ordinal()].incrementAndGet();
+				TimeoutGuard guard = toCheck.guard;
+				try {
+					expirePool.execute(() -> {
+						guard.expire(expired);
+					});
+				} catch (Exception e) {
+					logger.log(LoggingLevel.WARN, "Failed to run an expired timeout.", e);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		long doneTick = 0;
+		while (!closed) {
+			try {
+				Thread.sleep(TICK_MILLIS);
+			} catch (InterruptedException e) {
+				if (closed)
+					break;
+			}
+			long elapsed = (System.nanoTime() - origin) / 1000000L;
+			now = elapsed;
+			long targetTick = elapsed / TICK_MILLIS;
+			while (doneTick < targetTick) {
+				doneTick++;
+				runTick(doneTick);
+			}
+		}
+	}
+
+}